@@ -0,0 +1,243 @@
+package com.bonitasoft.presales.connector.mergepdf;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSInteger;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDDocumentCatalog;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.PDResources;
+import org.apache.pdfbox.pdmodel.common.COSObjectable;
+import org.apache.pdfbox.pdmodel.common.PDNumberTreeNode;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.pdmodel.documentinterchange.logicalstructure.PDMarkInfo;
+import org.apache.pdfbox.pdmodel.documentinterchange.logicalstructure.PDStructureElement;
+import org.apache.pdfbox.pdmodel.documentinterchange.logicalstructure.PDStructureTreeRoot;
+import org.apache.pdfbox.pdmodel.documentinterchange.markedcontent.PDMarkedContent;
+import org.apache.pdfbox.pdmodel.documentinterchange.markedcontent.PDPropertyList;
+import org.apache.pdfbox.pdmodel.documentinterchange.taggedpdf.StandardStructureTypes;
+import org.apache.pdfbox.pdmodel.font.PDFont;
+import org.apache.pdfbox.pdmodel.font.PDType0Font;
+import org.apache.pdfbox.pdmodel.font.PDType1Font;
+import org.apache.pdfbox.pdmodel.graphics.image.LosslessFactory;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+import org.apache.pdfbox.pdmodel.interactive.annotation.PDAnnotationWidget;
+import org.apache.pdfbox.pdmodel.interactive.form.PDAcroForm;
+import org.apache.pdfbox.pdmodel.interactive.form.PDTextField;
+
+/**
+ * Generated source documents the benchmarks merge. Each corpus stresses a different part of the pipeline.
+ */
+public enum BenchmarkCorpus {
+
+    /** Many one-page text letters: dominated by per-document overhead (fetch, parse, page tree). */
+    SMALL_TEXT {
+        @Override
+        List<byte[]> generate() throws IOException {
+            List<byte[]> documents = new ArrayList<>();
+            for (int i = 0; i < 40; i++) {
+                documents.add(textDocument("Letter " + i, 1));
+            }
+            return documents;
+        }
+    },
+
+    /** A few scanned-like documents with large, poorly compressible images: dominated by byte copying. */
+    LARGE_IMAGE {
+        @Override
+        List<byte[]> generate() throws IOException {
+            List<byte[]> documents = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                documents.add(imageDocument(i, 2, 1200, 1600));
+            }
+            return documents;
+        }
+    },
+
+    /** Documents embedding a complete TrueType font each: dominated by font stream cloning. */
+    FONT_HEAVY {
+        @Override
+        List<byte[]> generate() throws IOException {
+            List<byte[]> documents = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                documents.add(embeddedFontDocument("Statement " + i, 3));
+            }
+            return documents;
+        }
+    },
+
+    /** Tagged documents with a structure tree and AcroForm fields: dominated by structure and form merging. */
+    TAGGED_FORM {
+        @Override
+        List<byte[]> generate() throws IOException {
+            List<byte[]> documents = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                documents.add(taggedFormDocument("Form " + i, 5, 40, 10));
+            }
+            return documents;
+        }
+    },
+
+    /** A few hundred generated statements: a long list where parsing and copying are spread over the cores. */
+    STATEMENTS {
+        @Override
+        List<byte[]> generate() throws IOException {
+            List<byte[]> documents = new ArrayList<>();
+            for (int i = 0; i < 240; i++) {
+                documents.add(textDocument("Statement " + i, 4));
+            }
+            return documents;
+        }
+    };
+
+    private static final String FONT_RESOURCE = "/org/apache/pdfbox/resources/ttf/LiberationSans-Regular.ttf";
+
+    abstract List<byte[]> generate() throws IOException;
+
+    static byte[] textDocument(String title, int pages) throws IOException {
+        try (PDDocument document = new PDDocument()) {
+            for (int p = 0; p < pages; p++) {
+                PDPage page = new PDPage(PDRectangle.A4);
+                document.addPage(page);
+                try (PDPageContentStream content = new PDPageContentStream(document, page)) {
+                    writeLines(content, PDType1Font.HELVETICA, title + " - page " + (p + 1), 40);
+                }
+            }
+            return save(document);
+        }
+    }
+
+    static byte[] imageDocument(int seed, int pages, int width, int height) throws IOException {
+        Random random = new Random(seed);
+        try (PDDocument document = new PDDocument()) {
+            for (int p = 0; p < pages; p++) {
+                BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+                for (int y = 0; y < height; y++) {
+                    for (int x = 0; x < width; x++) {
+                        int grey = 200 + random.nextInt(56);
+                        image.setRGB(x, y, (grey << 16) | (grey << 8) | grey);
+                    }
+                }
+                PDImageXObject scan = LosslessFactory.createFromImage(document, image);
+                PDPage page = new PDPage(PDRectangle.A4);
+                document.addPage(page);
+                try (PDPageContentStream content = new PDPageContentStream(document, page)) {
+                    content.drawImage(scan, 0, 0, PDRectangle.A4.getWidth(), PDRectangle.A4.getHeight());
+                }
+            }
+            return save(document);
+        }
+    }
+
+    static byte[] embeddedFontDocument(String title, int pages) throws IOException {
+        try (PDDocument document = new PDDocument()) {
+            PDFont font;
+            try (InputStream fontStream = BenchmarkCorpus.class.getResourceAsStream(FONT_RESOURCE)) {
+                font = PDType0Font.load(document, fontStream, false);
+            }
+            for (int p = 0; p < pages; p++) {
+                PDPage page = new PDPage(PDRectangle.A4);
+                document.addPage(page);
+                try (PDPageContentStream content = new PDPageContentStream(document, page)) {
+                    writeLines(content, font, title + " - page " + (p + 1), 40);
+                }
+            }
+            return save(document);
+        }
+    }
+
+    static byte[] taggedFormDocument(String title, int pages, int paragraphsPerPage, int fieldsPerPage)
+            throws IOException {
+        try (PDDocument document = new PDDocument()) {
+            PDDocumentCatalog catalog = document.getDocumentCatalog();
+            PDMarkInfo markInfo = new PDMarkInfo();
+            markInfo.setMarked(true);
+            catalog.setMarkInfo(markInfo);
+            PDStructureTreeRoot structureRoot = new PDStructureTreeRoot();
+            catalog.setStructureTreeRoot(structureRoot);
+            PDStructureElement documentElement = new PDStructureElement(StandardStructureTypes.DOCUMENT, null);
+            structureRoot.appendKid(documentElement);
+            COSArray parentTreeNums = new COSArray();
+
+            PDAcroForm acroForm = new PDAcroForm(document);
+            PDResources formResources = new PDResources();
+            formResources.put(COSName.getPDFName("Helv"), PDType1Font.HELVETICA);
+            acroForm.setDefaultResources(formResources);
+            acroForm.setDefaultAppearance("/Helv 10 Tf 0 g");
+            catalog.setAcroForm(acroForm);
+
+            for (int p = 0; p < pages; p++) {
+                PDPage page = new PDPage(PDRectangle.A4);
+                document.addPage(page);
+                page.getCOSObject().setInt(COSName.STRUCT_PARENTS, p);
+                COSArray pageElements = new COSArray();
+                try (PDPageContentStream content = new PDPageContentStream(document, page)) {
+                    content.setFont(PDType1Font.HELVETICA, 8);
+                    for (int mcid = 0; mcid < paragraphsPerPage; mcid++) {
+                        COSDictionary properties = new COSDictionary();
+                        properties.setInt(COSName.MCID, mcid);
+                        content.beginMarkedContent(COSName.P, PDPropertyList.create(properties));
+                        content.beginText();
+                        content.newLineAtOffset(40, 800 - mcid * 12);
+                        content.showText(title + " paragraph " + mcid);
+                        content.endText();
+                        content.endMarkedContent();
+
+                        PDStructureElement paragraph = new PDStructureElement(StandardStructureTypes.P, documentElement);
+                        paragraph.setPage(page);
+                        paragraph.appendKid(new PDMarkedContent(COSName.P, properties));
+                        documentElement.appendKid(paragraph);
+                        pageElements.add(paragraph);
+                    }
+                }
+                parentTreeNums.add(COSInteger.get(p));
+                parentTreeNums.add(pageElements);
+
+                for (int f = 0; f < fieldsPerPage; f++) {
+                    PDTextField field = new PDTextField(acroForm);
+                    field.setPartialName("page" + p + "field" + f);
+                    PDAnnotationWidget widget = field.getWidgets().get(0);
+                    widget.setRectangle(new PDRectangle(360, 780 - f * 24, 180, 18));
+                    widget.setPage(page);
+                    page.getAnnotations().add(widget);
+                    acroForm.getFields().add(field);
+                    field.setValue("value " + f);
+                }
+            }
+            COSDictionary parentTree = new COSDictionary();
+            parentTree.setItem(COSName.NUMS, parentTreeNums);
+            structureRoot.setParentTree(new PDNumberTreeNode(parentTree, COSObjectable.class));
+            structureRoot.setParentTreeNextKey(pages);
+            return save(document);
+        }
+    }
+
+    private static void writeLines(PDPageContentStream content, PDFont font, String text, int lines)
+            throws IOException {
+        content.beginText();
+        content.setFont(font, 10);
+        content.setLeading(14);
+        content.newLineAtOffset(40, 800);
+        for (int line = 0; line < lines; line++) {
+            content.showText(text + " - line " + line + " - the quick brown fox jumps over the lazy dog");
+            content.newLine();
+        }
+        content.endText();
+    }
+
+    private static byte[] save(PDDocument document) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        document.save(outputStream);
+        return outputStream.toByteArray();
+    }
+}
@@ -0,0 +1,94 @@
+package com.bonitasoft.presales.connector.mergepdf;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bonitasoft.engine.api.APIAccessor;
+import org.bonitasoft.engine.api.ProcessAPI;
+import org.bonitasoft.engine.bpm.document.Document;
+import org.bonitasoft.engine.bpm.document.DocumentNotFoundException;
+
+/**
+ * In-memory stand-ins for the engine APIs the connector talks to.
+ * <p>
+ * Plain {@link Proxy} instances are used rather than Mockito mocks: mocks record every invocation, which
+ * would show up as allocations and retained heap in the measurements.
+ */
+final class BenchmarkFixtures {
+
+    private final Map<String, byte[]> contents = new HashMap<>();
+    private final List<Document> documents = new ArrayList<>();
+    private final APIAccessor apiAccessor;
+
+    BenchmarkFixtures(List<byte[]> sources) {
+        for (int i = 0; i < sources.size(); i++) {
+            String storageId = "storage-" + i;
+            contents.put(storageId, sources.get(i));
+            documents.add(document(storageId, "source-" + i + ".pdf"));
+        }
+        ProcessAPI processAPI = proxy(ProcessAPI.class, (method, args) -> {
+            if (method.equals("getDocumentContent")) {
+                byte[] content = contents.get((String) args[0]);
+                if (content == null) {
+                    throw new DocumentNotFoundException("No content for " + args[0]);
+                }
+                return content;
+            }
+            throw new UnsupportedOperationException(method);
+        });
+        apiAccessor = proxy(APIAccessor.class, (method, args) -> {
+            if (method.equals("getProcessAPI")) {
+                return processAPI;
+            }
+            throw new UnsupportedOperationException(method);
+        });
+    }
+
+    List<Document> getDocuments() {
+        return documents;
+    }
+
+    APIAccessor getApiAccessor() {
+        return apiAccessor;
+    }
+
+    long getTotalBytes() {
+        return contents.values().stream().mapToLong(content -> content.length).sum();
+    }
+
+    private static Document document(String storageId, String fileName) {
+        return proxy(Document.class, (method, args) -> {
+            switch (method) {
+                case "getContentStorageId":
+                    return storageId;
+                case "getContentFileName":
+                case "getName":
+                    return fileName;
+                case "getContentMimeType":
+                    return "application/pdf";
+                case "hashCode":
+                    return storageId.hashCode();
+                case "equals":
+                    return false;
+                case "toString":
+                    return fileName;
+                default:
+                    throw new UnsupportedOperationException(method);
+            }
+        });
+    }
+
+    @FunctionalInterface
+    private interface Handler {
+        Object handle(String method, Object[] args) throws Exception;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, Handler handler) {
+        return (T) Proxy.newProxyInstance(BenchmarkFixtures.class.getClassLoader(), new Class<?>[] { type },
+                (proxy, method, args) -> handler.handle(method.getName(), args));
+    }
+}
@@ -0,0 +1,159 @@
+package com.bonitasoft.presales.connector.mergepdf;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSObjectKey;
+import org.apache.pdfbox.io.RandomAccessBuffer;
+import org.apache.pdfbox.pdfparser.PDFParser;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.rendering.PDFRenderer;
+import org.bonitasoft.engine.bpm.document.DocumentValue;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time to display the first page of a merged document, as a viewer reading it over a link does.
+ * <p>
+ * A viewer needs the whole of a {@code STANDARD} document before it can display anything, since the
+ * cross-reference table is at the end; it needs a {@code LINEARIZED} document up to the end of its first page
+ * section only. Each invocation parses the bytes the viewer must have received first and renders the first page at
+ * 72 DPI. The number of these bytes is reported as the {@code bytesBeforeFirstPage} secondary result: divided by
+ * the speed of the link, it gives the download time to add to the measured time.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = { "-Xms2g", "-Xmx2g" })
+public class FirstPageBenchmark {
+
+    private static final Pattern FIRST_PAGE_ENTRY = Pattern.compile("/(O|E) +(\\d+)");
+    private static final Pattern XREF_SUBSECTION = Pattern.compile("\\bxref\n(\\d+) (\\d+)\n");
+
+    @Param({ "SMALL_TEXT", "LARGE_IMAGE" })
+    public BenchmarkCorpus corpus;
+
+    @Param({ "STANDARD", "LINEARIZED" })
+    public String outputCompression;
+
+    private byte[] received;
+    private long firstPageNumber;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        BenchmarkFixtures fixtures = new BenchmarkFixtures(corpus.generate());
+        Map<String, Object> inputs = new HashMap<>();
+        inputs.put(MergePDF.DOCUMENTS_INPUT, fixtures.getDocuments());
+        inputs.put(MergePDF.OUTPUT_FILE_NAME_INPUT, "benchmark.pdf");
+        inputs.put(MergePDF.OUTPUT_COMPRESSION_INPUT, outputCompression);
+        MergePDF connector = new MergePDF();
+        connector.setInputParameters(inputs);
+        connector.setAPIAccessor(fixtures.getApiAccessor());
+        byte[] merged = ((DocumentValue) connector.execute().get(MergePDF.MERGED_DOCUMENT_OUTPUT)).getContent();
+        received = merged;
+        if (OutputCompression.fromInput(outputCompression) == OutputCompression.LINEARIZED) {
+            // the linearization dictionary is the first object of the file
+            String start = new String(merged, 0, 512, StandardCharsets.ISO_8859_1);
+            Matcher matcher = FIRST_PAGE_ENTRY.matcher(start.substring(0, start.indexOf(">>")));
+            while (matcher.find()) {
+                if (matcher.group(1).equals("O")) {
+                    firstPageNumber = Long.parseLong(matcher.group(2));
+                } else {
+                    received = Arrays.copyOf(merged, Integer.parseInt(matcher.group(2)));
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    public BufferedImage renderFirstPage(Received counters) throws IOException {
+        counters.bytesBeforeFirstPage = received.length;
+        if (firstPageNumber == 0) {
+            try (PDDocument document = PDDocument.load(received)) {
+                return new PDFRenderer(document).renderImage(0);
+            }
+        }
+        FirstPageParser parser = new FirstPageParser(received);
+        parser.parse();
+        try (PDDocument partial = parser.getPDDocument();
+             PDDocument viewer = new PDDocument()) {
+            viewer.addPage(new PDPage(parser.readPage(firstPageNumber)));
+            return new PDFRenderer(viewer).renderImage(0);
+        }
+    }
+
+    /**
+     * Bytes a viewer needs before it can display the first page, reported next to the timings.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Received {
+
+        public long bytesBeforeFirstPage;
+    }
+
+    /**
+     * Reads the first page as a viewer does while the rest of the file is still downloading: through the
+     * cross-reference section of the first page, which follows the linearization dictionary, without looking for the
+     * page tree.
+     */
+    private static class FirstPageParser extends PDFParser {
+
+        private final byte[] received;
+
+        FirstPageParser(byte[] received) throws IOException {
+            super(new RandomAccessBuffer(received));
+            this.received = received;
+        }
+
+        @Override
+        protected void initialParse() throws IOException {
+            String start = new String(received, 0, Math.min(received.length, 1024), StandardCharsets.ISO_8859_1);
+            Matcher subsection = XREF_SUBSECTION.matcher(start);
+            if (!subsection.find()) {
+                throw new IOException("No cross-reference section for the first page");
+            }
+            int first = Integer.parseInt(subsection.group(1));
+            int count = Integer.parseInt(subsection.group(2));
+            Map<COSObjectKey, Long> offsets = new HashMap<>();
+            for (int i = 0; i < count; i++) {
+                int entry = subsection.end() + 20 * i;
+                String offset = new String(received, entry, 10, StandardCharsets.ISO_8859_1);
+                offsets.put(new COSObjectKey(first + i, 0), Long.parseLong(offset));
+            }
+            document.addXRefTable(offsets);
+            document.setDecrypted();
+            initialParseDone = true;
+        }
+
+        COSDictionary readPage(long number) throws IOException {
+            COSDictionary page = (COSDictionary) parseObjectDynamically(number, 0, true);
+            parseDictObjects(page, COSName.PARENT);
+            page.removeItem(COSName.PARENT);
+            return page;
+        }
+    }
+}
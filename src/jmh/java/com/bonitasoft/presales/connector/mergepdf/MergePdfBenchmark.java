@@ -0,0 +1,90 @@
+package com.bonitasoft.presales.connector.mergepdf;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.bonitasoft.engine.bpm.document.DocumentValue;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End-to-end cost of one connector execution against an in-memory {@link org.bonitasoft.engine.api.ProcessAPI}.
+ * <p>
+ * Throughput mode gives merges per second, sample mode gives the latency percentiles. Run with
+ * {@code -prof gc} (the default of the {@code benchmark} Maven profile) to get the allocation rate. The size
+ * of the merged document is reported as the {@code outputBytes} secondary result.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = { "-Xms2g", "-Xmx2g" })
+public class MergePdfBenchmark {
+
+    @Param({ "SMALL_TEXT", "LARGE_IMAGE", "FONT_HEAVY", "TAGGED_FORM" })
+    public BenchmarkCorpus corpus;
+
+    @Param({ "MAIN_MEMORY_ONLY", "TEMP_FILE_ONLY" })
+    public String memoryStrategy;
+
+    @Param({ "4" })
+    public int fetchParallelism;
+
+    @Param({ "false" })
+    public boolean deduplicateResources;
+
+    @Param({ "STANDARD", "COMPRESSED" })
+    public String outputCompression;
+
+    @Param({ "FULL", "FAST" })
+    public String mergeEngine;
+
+    private BenchmarkFixtures fixtures;
+    private Map<String, Object> inputs;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        fixtures = new BenchmarkFixtures(corpus.generate());
+        inputs = new HashMap<>();
+        inputs.put(MergePDF.DOCUMENTS_INPUT, fixtures.getDocuments());
+        inputs.put(MergePDF.OUTPUT_FILE_NAME_INPUT, "benchmark.pdf");
+        inputs.put(MergePDF.MEMORY_STRATEGY_INPUT, memoryStrategy);
+        inputs.put(MergePDF.FETCH_PARALLELISM_INPUT, fetchParallelism);
+        inputs.put(MergePDF.DEDUPLICATE_RESOURCES_INPUT, deduplicateResources);
+        inputs.put(MergePDF.OUTPUT_COMPRESSION_INPUT, outputCompression);
+        inputs.put(MergePDF.MERGE_ENGINE_INPUT, mergeEngine);
+    }
+
+    @Benchmark
+    public DocumentValue merge(OutputSize outputSize) throws Exception {
+        MergePDF connector = new MergePDF();
+        connector.setInputParameters(inputs);
+        connector.setAPIAccessor(fixtures.getApiAccessor());
+        DocumentValue merged = (DocumentValue) connector.execute().get(MergePDF.MERGED_DOCUMENT_OUTPUT);
+        outputSize.outputBytes = merged.getContent().length;
+        return merged;
+    }
+
+    /**
+     * Size of the last merged document, reported next to the timings.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class OutputSize {
+
+        public long outputBytes;
+    }
+}
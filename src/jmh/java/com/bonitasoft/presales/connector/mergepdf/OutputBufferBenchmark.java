@@ -0,0 +1,110 @@
+package com.bonitasoft.presales.connector.mergepdf;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of collecting a serialized document in memory, as the connector does at the end of a merge: a default-sized
+ * {@link ByteArrayOutputStream} against an {@link OutputBuffer} sized from an estimate.
+ * <p>
+ * The document is written in chunks of the size PDFBox uses. Run with {@code -prof gc}: {@code gc.alloc.rate.norm}
+ * gives the bytes allocated per document. The {@code peakBytes} secondary result is the largest heap footprint of
+ * the buffers at any point, including the final array. {@code estimateRatio} is the expected size given to the
+ * {@link OutputBuffer}, relative to the actual size: merged documents are usually a bit smaller than their sources.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = { "-Xms2g", "-Xmx2g" })
+public class OutputBufferBenchmark {
+
+    private static final int CHUNK_BYTES = 4096;
+
+    @Param({ "1000000", "50000000" })
+    public int documentBytes;
+
+    @Param({ "0.5", "1.2" })
+    public double estimateRatio;
+
+    private byte[] chunk;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        chunk = new byte[CHUNK_BYTES];
+        new Random(42).nextBytes(chunk);
+    }
+
+    @Benchmark
+    public byte[] byteArrayOutputStream(Footprint footprint) throws IOException {
+        TrackedByteArrayOutputStream outputStream = new TrackedByteArrayOutputStream();
+        writeDocument(outputStream);
+        byte[] content = outputStream.toByteArray();
+        footprint.peakBytes = Math.max(outputStream.peakBytes, outputStream.capacity() + content.length);
+        return content;
+    }
+
+    @Benchmark
+    public byte[] outputBuffer(Footprint footprint) throws IOException {
+        OutputBuffer outputBuffer = new OutputBuffer((long) (documentBytes * estimateRatio));
+        writeDocument(outputBuffer);
+        byte[] content = outputBuffer.toByteArray();
+        footprint.peakBytes = outputBuffer.getPeakBytes();
+        return content;
+    }
+
+    private void writeDocument(OutputStream outputStream) throws IOException {
+        for (int written = 0; written < documentBytes; written += CHUNK_BYTES) {
+            outputStream.write(chunk, 0, Math.min(CHUNK_BYTES, documentBytes - written));
+        }
+    }
+
+    /**
+     * Keeps track of the old and new arrays alive together while the stream grows.
+     */
+    private static class TrackedByteArrayOutputStream extends ByteArrayOutputStream {
+
+        private long peakBytes;
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            int capacity = buf.length;
+            super.write(b, off, len);
+            if (buf.length != capacity) {
+                peakBytes = Math.max(peakBytes, (long) capacity + buf.length);
+            }
+        }
+
+        int capacity() {
+            return buf.length;
+        }
+    }
+
+    /**
+     * Largest footprint of the last document collected, reported next to the timings.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Footprint {
+
+        public long peakBytes;
+    }
+}
@@ -0,0 +1,72 @@
+package com.bonitasoft.presales.connector.mergepdf;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.bonitasoft.engine.bpm.document.DocumentValue;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time to merge a long list of statements on a single thread and on a pool of {@code parallelism} threads.
+ * <p>
+ * Every combination of parameters runs in its own JVM, so the pool shared by the merges of the JVM is sized by
+ * {@code parallelism} before its first use. A {@code parallelMergeThreshold} of {@code 0} leaves the input unset and
+ * merges on a single thread, whatever the pool size: it is the baseline of the scaling curve.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgs = { "-Xms4g", "-Xmx4g" })
+public class ParallelMergeBenchmark {
+
+    @Param({ "STATEMENTS" })
+    public BenchmarkCorpus corpus;
+
+    @Param({ "1", "2", "4", "8", "16" })
+    public int parallelism;
+
+    @Param({ "0", "16" })
+    public int parallelMergeThreshold;
+
+    @Param({ "FULL", "FAST" })
+    public String mergeEngine;
+
+    private BenchmarkFixtures fixtures;
+    private Map<String, Object> inputs;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        System.setProperty(ParallelMerger.PARALLELISM_PROPERTY, Integer.toString(parallelism));
+        fixtures = new BenchmarkFixtures(corpus.generate());
+        inputs = new HashMap<>();
+        inputs.put(MergePDF.DOCUMENTS_INPUT, fixtures.getDocuments());
+        inputs.put(MergePDF.OUTPUT_FILE_NAME_INPUT, "benchmark.pdf");
+        inputs.put(MergePDF.MEMORY_STRATEGY_INPUT, "MAIN_MEMORY_ONLY");
+        inputs.put(MergePDF.MERGE_ENGINE_INPUT, mergeEngine);
+        if (parallelMergeThreshold > 0) {
+            inputs.put(MergePDF.PARALLEL_MERGE_THRESHOLD_INPUT, parallelMergeThreshold);
+        }
+    }
+
+    @Benchmark
+    public DocumentValue merge() throws Exception {
+        MergePDF connector = new MergePDF();
+        connector.setInputParameters(inputs);
+        connector.setAPIAccessor(fixtures.getApiAccessor());
+        return (DocumentValue) connector.execute().get(MergePDF.MERGED_DOCUMENT_OUTPUT);
+    }
+}
@@ -0,0 +1,441 @@
+package com.bonitasoft.presales.connector.mergepdf;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSInteger;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSNull;
+import org.apache.pdfbox.cos.COSObject;
+import org.apache.pdfbox.cos.COSObjectKey;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.cos.COSString;
+import org.apache.pdfbox.pdfwriter.COSWriter;
+import org.apache.pdfbox.pdmodel.PDDocument;
+
+import static com.bonitasoft.presales.connector.mergepdf.CosSerializer.writeAscii;
+
+/**
+ * Saves a document as PDF 1.5 with object streams and a cross-reference stream, which PDFBox 2.0 cannot
+ * write.
+ * <p>
+ * Every object reachable from the trailer is renumbered in breadth-first order from the catalog. Streams
+ * are written as top-level objects, Flate-compressed when they were not compressed yet and re-deflated at
+ * the highest level when they were; every other object is packed into Flate-compressed object streams.
+ * As with {@link COSWriter}, each Java instance is written once, and dictionaries not marked direct become
+ * indirect objects.
+ */
+class CompressedPdfWriter {
+
+    static final int OBJECTS_PER_STREAM = 100;
+    private static final float MIN_VERSION = 1.5f;
+
+    private static final int BUFFER_SIZE = 8192;
+    /** Deflated stream data up to this size is kept from measuring its length rather than deflated again. */
+    private static final int KEPT_DEFLATED_BYTES = 64 * 1024;
+
+    private static final byte[] BINARY_COMMENT = { '%', (byte) 0xE2, (byte) 0xE3, (byte) 0xCF, (byte) 0xD3, '\n' };
+
+    private final Map<COSBase, Integer> numbers = new IdentityHashMap<>();
+    private final List<COSBase> objects = new ArrayList<>();
+    private final Deque<COSBase> pending = new ArrayDeque<>();
+    private final CosSerializer serializer = new CosSerializer(value -> {
+        COSBase target = indirectTarget(value);
+        return target != null ? new COSObjectKey(numbers.get(target), 0) : null;
+    });
+
+    void write(PDDocument document, OutputStream output) throws IOException {
+        COSDictionary trailer = document.getDocument().getTrailer();
+        COSBase root = trailer.getItem(COSName.ROOT);
+        COSBase info = trailer.getItem(COSName.INFO);
+        collect(root);
+        collect(info);
+
+        List<COSBase> streams = new ArrayList<>();
+        List<COSBase> packed = new ArrayList<>();
+        for (COSBase object : objects) {
+            (object instanceof COSStream ? streams : packed).add(object);
+        }
+        int objectStreamCount = (packed.size() + OBJECTS_PER_STREAM - 1) / OBJECTS_PER_STREAM;
+        int xrefNumber = objects.size() + objectStreamCount + 1;
+        long[] types = new long[xrefNumber + 1];
+        long[] fields2 = new long[xrefNumber + 1];
+        long[] fields3 = new long[xrefNumber + 1];
+        types[0] = 0;
+        fields3[0] = 65535;
+
+        PositionOutputStream out = new PositionOutputStream(output);
+        float version = Math.max(MIN_VERSION, document.getVersion());
+        out.write(String.format(Locale.ROOT, "%%PDF-%.1f\n", version).getBytes(StandardCharsets.ISO_8859_1));
+        out.write(BINARY_COMMENT);
+
+        for (COSBase stream : streams) {
+            int number = numbers.get(stream);
+            types[number] = 1;
+            fields2[number] = out.getPosition();
+            writeStreamObject(number, (COSStream) stream, out);
+        }
+        for (int i = 0; i < objectStreamCount; i++) {
+            int number = objects.size() + i + 1;
+            List<COSBase> chunk = packed.subList(i * OBJECTS_PER_STREAM,
+                    Math.min(packed.size(), (i + 1) * OBJECTS_PER_STREAM));
+            for (int index = 0; index < chunk.size(); index++) {
+                int packedNumber = numbers.get(chunk.get(index));
+                types[packedNumber] = 2;
+                fields2[packedNumber] = number;
+                fields3[packedNumber] = index;
+            }
+            types[number] = 1;
+            fields2[number] = out.getPosition();
+            writeObjectStream(number, chunk, out);
+        }
+
+        long xrefOffset = out.getPosition();
+        types[xrefNumber] = 1;
+        fields2[xrefNumber] = xrefOffset;
+        writeXrefStream(xrefNumber, types, fields2, fields3, trailer, root, info, out);
+        out.write(String.format(Locale.ROOT, "startxref\n%d\n%%%%EOF\n", xrefOffset)
+                .getBytes(StandardCharsets.ISO_8859_1));
+        out.flush();
+    }
+
+    private void collect(COSBase start) {
+        register(start);
+        while (!pending.isEmpty()) {
+            visitChildren(pending.poll());
+        }
+    }
+
+    private void visitChildren(COSBase value) {
+        if (value instanceof COSDictionary) {
+            for (COSBase child : ((COSDictionary) value).getValues()) {
+                register(child);
+            }
+        } else if (value instanceof COSArray) {
+            for (COSBase child : (COSArray) value) {
+                register(child);
+            }
+        }
+    }
+
+    /**
+     * Numbers the value if it is written as an indirect object, walks through it otherwise.
+     */
+    private void register(COSBase value) {
+        COSBase target = indirectTarget(value);
+        if (target == null) {
+            visitChildren(value);
+        } else if (!numbers.containsKey(target)) {
+            objects.add(target);
+            numbers.put(target, objects.size());
+            pending.add(target);
+        }
+    }
+
+    /**
+     * @return the object to reference when the value is written as an indirect object, {@code null} when
+     *         it is written inline
+     */
+    static COSBase indirectTarget(COSBase value) {
+        if (value instanceof COSObject) {
+            COSBase target = ((COSObject) value).getObject();
+            return target == null || target instanceof COSNull ? null : target;
+        }
+        if (value instanceof COSStream || value instanceof COSDictionary && !value.isDirect()) {
+            return value;
+        }
+        return null;
+    }
+
+    private void writeStreamObject(int number, COSStream stream, PositionOutputStream out) throws IOException {
+        COSBase filter = stream.getDictionaryObject(COSName.FILTER);
+        // XMP metadata stays readable by tools that do not parse PDF
+        boolean compress = filter == null && !COSName.METADATA.equals(stream.getCOSName(COSName.TYPE))
+                && stream.getItem(COSName.F) == null;
+        boolean recompress = !compress && isPlainFlate(filter)
+                && stream.getDictionaryObject(COSName.DECODE_PARMS) == null;
+        // the length goes before the data, so the data is deflated once to measure it, and again to write it
+        // unless it is small enough to be kept from the first time
+        MeasuringOutputStream deflated = new MeasuringOutputStream(KEPT_DEFLATED_BYTES);
+        long rawLength = compress || recompress ? deflate(stream, recompress, deflated) : -1;
+        boolean useDeflated = rawLength >= 0 && deflated.size() < rawLength;
+        Map<COSName, COSBase> overrides = new IdentityHashMap<>();
+        long length;
+        if (useDeflated) {
+            length = deflated.size();
+            if (compress) {
+                overrides.put(COSName.FILTER, COSName.FLATE_DECODE);
+                overrides.put(COSName.DECODE_PARMS, null);
+            }
+        } else {
+            length = rawLength >= 0 ? rawLength : copy(stream, OutputStream.nullOutputStream());
+        }
+        overrides.put(COSName.LENGTH, COSInteger.get(length));
+
+        writeAscii(number + " 0 obj\n", out);
+        serializer.writeDictionary(stream, overrides, out);
+        writeAscii("stream\r\n", out);
+        long start = out.getPosition();
+        byte[] kept = useDeflated ? deflated.getKept() : null;
+        if (!useDeflated) {
+            copy(stream, out);
+        } else if (kept != null) {
+            out.write(kept);
+        } else {
+            deflate(stream, recompress, out);
+        }
+        if (out.getPosition() - start != length) {
+            throw new IOException(String.format("The data of stream %d changed while it was written", number));
+        }
+        writeAscii("\nendstream\nendobj\n", out);
+    }
+
+    /**
+     * Copies the raw data of a stream chunk by chunk.
+     *
+     * @return the length of the data
+     */
+    private static long copy(COSStream stream, OutputStream out) throws IOException {
+        long length = 0;
+        try (InputStream input = stream.createRawInputStream()) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            for (int read = input.read(buffer); read != -1; read = input.read(buffer)) {
+                out.write(buffer, 0, read);
+                length += read;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Deflates the raw data of a stream chunk by chunk, inflating it first when it is Flate-compressed.
+     *
+     * @return the length of the raw data, or {@code -1} when it is not valid zlib data (the stream is then kept
+     *         as is)
+     */
+    private static long deflate(COSStream stream, boolean inflateFirst, OutputStream out) throws IOException {
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        Inflater inflater = new Inflater();
+        try (InputStream input = stream.createRawInputStream()) {
+            // not closed, which would close the output
+            DeflaterOutputStream deflating = new DeflaterOutputStream(out, deflater, BUFFER_SIZE);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            byte[] inflated = new byte[BUFFER_SIZE];
+            long rawLength = 0;
+            for (int read = input.read(buffer); read != -1; read = input.read(buffer)) {
+                rawLength += read;
+                if (!inflateFirst) {
+                    deflating.write(buffer, 0, read);
+                    continue;
+                }
+                inflater.setInput(buffer, 0, read);
+                while (!inflater.finished() && !inflater.needsInput()) {
+                    int inflatedLength = inflater.inflate(inflated);
+                    if (inflatedLength == 0 && inflater.needsDictionary()) {
+                        return -1;
+                    }
+                    deflating.write(inflated, 0, inflatedLength);
+                }
+            }
+            if (inflateFirst && !inflater.finished()) {
+                return -1;
+            }
+            deflating.finish();
+            return rawLength;
+        } catch (DataFormatException e) {
+            return -1;
+        } finally {
+            deflater.end();
+            inflater.end();
+        }
+    }
+
+    private void writeObjectStream(int number, List<COSBase> chunk, OutputStream out) throws IOException {
+        StringBuilder header = new StringBuilder();
+        ByteArrayOutputStream bodies = new ByteArrayOutputStream();
+        for (COSBase object : chunk) {
+            header.append(numbers.get(object)).append(' ').append(bodies.size()).append(' ');
+            serializer.writeDirect(object, bodies);
+            bodies.write('\n');
+        }
+        byte[] headerBytes = header.toString().getBytes(StandardCharsets.ISO_8859_1);
+        ByteArrayOutputStream content = new ByteArrayOutputStream(headerBytes.length + bodies.size());
+        content.write(headerBytes);
+        bodies.writeTo(content);
+        byte[] data = deflate(content.toByteArray());
+
+        writeAscii(number + " 0 obj\n", out);
+        writeAscii(String.format(Locale.ROOT, "<</Type /ObjStm\n/N %d\n/First %d\n/Filter /FlateDecode\n/Length %d>>",
+                chunk.size(), headerBytes.length, data.length), out);
+        writeAscii("stream\r\n", out);
+        out.write(data);
+        writeAscii("\nendstream\nendobj\n", out);
+    }
+
+    private void writeXrefStream(int number, long[] types, long[] fields2, long[] fields3, COSDictionary trailer,
+            COSBase root, COSBase info, PositionOutputStream out) throws IOException {
+        long maxField2 = 0;
+        for (long field : fields2) {
+            maxField2 = Math.max(maxField2, field);
+        }
+        int width2 = 1;
+        while (width2 < 8 && maxField2 >>> (8 * width2) != 0) {
+            width2++;
+        }
+        ByteArrayOutputStream entries = new ByteArrayOutputStream(types.length * (3 + width2));
+        for (int i = 0; i < types.length; i++) {
+            writeField(types[i], 1, entries);
+            writeField(fields2[i], width2, entries);
+            writeField(fields3[i], 2, entries);
+        }
+        byte[] data = deflate(entries.toByteArray());
+
+        COSBase id = trailer.getDictionaryObject(COSName.ID);
+        if (!(id instanceof COSArray) || ((COSArray) id).size() != 2) {
+            // content-based, so identical merges produce identical files
+            COSString fileId = new COSString(out.digest());
+            fileId.setForceHexForm(true);
+            COSArray generated = new COSArray();
+            generated.add(fileId);
+            generated.add(fileId);
+            id = generated;
+        }
+
+        writeAscii(number + " 0 obj\n", out);
+        writeAscii(String.format(Locale.ROOT, "<</Type /XRef\n/Size %d\n/W [1 %d 2]\n/Filter /FlateDecode\n/Length %d\n",
+                types.length, width2, data.length), out);
+        serializer.writeEntry(COSName.ROOT, root, out);
+        serializer.writeEntry(COSName.INFO, info, out);
+        serializer.writeEntry(COSName.ID, id, out);
+        writeAscii(">>stream\r\n", out);
+        out.write(data);
+        writeAscii("\nendstream\nendobj\n", out);
+    }
+
+    private static boolean isPlainFlate(COSBase filter) {
+        if (filter instanceof COSArray && ((COSArray) filter).size() == 1) {
+            filter = ((COSArray) filter).getObject(0);
+        }
+        return COSName.FLATE_DECODE.equals(filter) || COSName.FLATE_DECODE_ABBREVIATION.equals(filter);
+    }
+
+    static byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, data.length / 2));
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static void writeField(long value, int width, OutputStream out) throws IOException {
+        for (int shift = 8 * (width - 1); shift >= 0; shift -= 8) {
+            out.write((int) (value >>> shift) & 0xFF);
+        }
+    }
+
+    /**
+     * Counts the bytes written to it, and keeps them as long as they fit in a given size.
+     */
+    private static class MeasuringOutputStream extends OutputStream {
+
+        private final ByteArrayOutputStream kept = new ByteArrayOutputStream();
+        private final int maxKeptBytes;
+        private long size;
+
+        MeasuringOutputStream(int maxKeptBytes) {
+            this.maxKeptBytes = maxKeptBytes;
+        }
+
+        @Override
+        public void write(int b) {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            size += len;
+            if (size <= maxKeptBytes) {
+                kept.write(b, off, len);
+            }
+        }
+
+        long size() {
+            return size;
+        }
+
+        /**
+         * @return the bytes written, or {@code null} if there were too many to keep
+         */
+        byte[] getKept() {
+            return size <= maxKeptBytes ? kept.toByteArray() : null;
+        }
+    }
+
+    /**
+     * Tracks the offset of the next byte and digests everything written, for the file identifier.
+     */
+    private static class PositionOutputStream extends FilterOutputStream {
+
+        private final MessageDigest digest;
+        private long position;
+
+        PositionOutputStream(OutputStream out) {
+            super(out);
+            try {
+                digest = MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("MD5 is not available", e);
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            digest.update((byte) b);
+            position++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            digest.update(b, off, len);
+            position += len;
+        }
+
+        long getPosition() {
+            return position;
+        }
+
+        byte[] digest() {
+            return digest.digest();
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package com.bonitasoft.presales.connector.mergepdf;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSBoolean;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSFloat;
+import org.apache.pdfbox.cos.COSInteger;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSNull;
+import org.apache.pdfbox.cos.COSObject;
+import org.apache.pdfbox.cos.COSObjectKey;
+import org.apache.pdfbox.cos.COSString;
+import org.apache.pdfbox.pdfwriter.COSWriter;
+
+/**
+ * Writes COS values in PDF syntax for the writers that number objects themselves. Which values are written as
+ * references, and to which object, is up to the writer.
+ */
+class CosSerializer {
+
+    /**
+     * Object numbering of a writer.
+     */
+    interface References {
+
+        /**
+         * @return the key of the object the value is written as a reference to, {@code null} when it is
+         *         written inline
+         */
+        COSObjectKey keyOf(COSBase value);
+    }
+
+    private final References references;
+
+    CosSerializer(References references) {
+        this.references = references;
+    }
+
+    void writeValue(COSBase value, OutputStream out) throws IOException {
+        COSObjectKey key = references.keyOf(value);
+        if (key != null) {
+            writeAscii(key.getNumber() + " " + key.getGeneration() + " R", out);
+        } else if (value instanceof COSObject || value == null) {
+            COSNull.NULL.writePDF(out);
+        } else {
+            writeDirect(value, out);
+        }
+    }
+
+    void writeDirect(COSBase value, OutputStream out) throws IOException {
+        if (value instanceof COSDictionary) {
+            writeDictionary((COSDictionary) value, null, out);
+        } else if (value instanceof COSArray) {
+            out.write('[');
+            boolean first = true;
+            for (COSBase item : (COSArray) value) {
+                if (!first) {
+                    out.write(' ');
+                }
+                writeValue(item, out);
+                first = false;
+            }
+            out.write(']');
+        } else if (value instanceof COSString) {
+            COSWriter.writeString((COSString) value, out);
+        } else if (value instanceof COSName) {
+            ((COSName) value).writePDF(out);
+        } else if (value instanceof COSInteger) {
+            ((COSInteger) value).writePDF(out);
+        } else if (value instanceof COSFloat) {
+            ((COSFloat) value).writePDF(out);
+        } else if (value instanceof COSBoolean) {
+            ((COSBoolean) value).writePDF(out);
+        } else {
+            COSNull.NULL.writePDF(out);
+        }
+    }
+
+    /**
+     * Writes the entries of a dictionary, the ones in {@code overrides} replacing (or removing, when
+     * mapped to {@code null}) the original values.
+     */
+    void writeDictionary(COSDictionary dictionary, Map<COSName, COSBase> overrides, OutputStream out)
+            throws IOException {
+        out.write('<');
+        out.write('<');
+        for (Map.Entry<COSName, COSBase> entry : dictionary.entrySet()) {
+            if (overrides != null && overrides.containsKey(entry.getKey())) {
+                continue;
+            }
+            writeEntry(entry.getKey(), entry.getValue(), out);
+        }
+        if (overrides != null) {
+            for (Map.Entry<COSName, COSBase> entry : overrides.entrySet()) {
+                if (entry.getValue() != null) {
+                    writeEntry(entry.getKey(), entry.getValue(), out);
+                }
+            }
+        }
+        out.write('>');
+        out.write('>');
+    }
+
+    void writeEntry(COSName key, COSBase value, OutputStream out) throws IOException {
+        if (value == null) {
+            return;
+        }
+        key.writePDF(out);
+        out.write(' ');
+        writeValue(value, out);
+        out.write('\n');
+    }
+
+    static void writeAscii(String text, OutputStream out) throws IOException {
+        out.write(text.getBytes(StandardCharsets.ISO_8859_1));
+    }
+}
@@ -0,0 +1,154 @@
+package com.bonitasoft.presales.connector.mergepdf;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.bonitasoft.engine.api.ProcessAPI;
+import org.bonitasoft.engine.bpm.document.Document;
+import org.bonitasoft.engine.bpm.document.DocumentNotFoundException;
+
+/**
+ * Fetches the content of the documents to merge from the {@link ProcessAPI}, or from another {@link ContentSource},
+ * several at a time.
+ * <p>
+ * Contents are handed to the {@link ContentConsumer} strictly in input order, as soon as every
+ * preceding document is available, so the consumer can spill them to disk without waiting for the
+ * whole list. The first failure cancels the fetches still in flight.
+ */
+class DocumentContentFetcher {
+
+    private static final Logger LOGGER = Logger.getLogger(DocumentContentFetcher.class.getName());
+
+    static final int DEFAULT_PARALLELISM = 4;
+
+    private static final ThreadFactory THREAD_FACTORY = createThreadFactory();
+
+    @FunctionalInterface
+    interface ContentConsumer {
+        void accept(Document document, byte[] content) throws IOException;
+    }
+
+    /**
+     * Where the contents come from, by document.
+     */
+    @FunctionalInterface
+    interface ContentSource {
+        byte[] getContent(Document document) throws DocumentNotFoundException, IOException;
+    }
+
+    private final ContentSource contentSource;
+    private final int parallelism;
+
+    DocumentContentFetcher(ProcessAPI processAPI, int parallelism) {
+        this(document -> processAPI.getDocumentContent(document.getContentStorageId()), parallelism);
+    }
+
+    DocumentContentFetcher(ContentSource contentSource, int parallelism) {
+        this.contentSource = contentSource;
+        this.parallelism = parallelism;
+    }
+
+    void fetchAll(List<Document> documents, ContentConsumer consumer)
+            throws IOException, DocumentNotFoundException {
+        if (parallelism <= 1 || documents.size() <= 1) {
+            for (Document document : documents) {
+                consumer.accept(document, fetch(document));
+            }
+            return;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, documents.size()),
+                THREAD_FACTORY);
+        try {
+            CompletionService<Integer> completionService = new ExecutorCompletionService<>(executor);
+            byte[][] contents = new byte[documents.size()][];
+            List<Future<Integer>> futures = new ArrayList<>(documents.size());
+            for (int i = 0; i < documents.size(); i++) {
+                int index = i;
+                futures.add(completionService.submit(() -> {
+                    contents[index] = fetch(documents.get(index));
+                    return index;
+                }));
+            }
+
+            boolean[] completed = new boolean[documents.size()];
+            int nextToConsume = 0;
+            for (int received = 0; received < documents.size(); received++) {
+                completed[takeCompleted(completionService, futures)] = true;
+                while (nextToConsume < documents.size() && completed[nextToConsume]) {
+                    byte[] content = contents[nextToConsume];
+                    contents[nextToConsume] = null;
+                    consumer.accept(documents.get(nextToConsume), content);
+                    nextToConsume++;
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private int takeCompleted(CompletionService<Integer> completionService, List<Future<Integer>> futures)
+            throws IOException, DocumentNotFoundException {
+        try {
+            return completionService.take().get();
+        } catch (InterruptedException e) {
+            futures.forEach(future -> future.cancel(true));
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while fetching document contents", e);
+        } catch (ExecutionException e) {
+            futures.forEach(future -> future.cancel(true));
+            Throwable cause = e.getCause();
+            if (cause instanceof DocumentNotFoundException) {
+                throw (DocumentNotFoundException) cause;
+            }
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException("Failed to fetch document content: " + cause.getMessage(), cause);
+        }
+    }
+
+    private byte[] fetch(Document document) throws DocumentNotFoundException, IOException {
+        try {
+            return contentSource.getContent(document);
+        } catch (DocumentNotFoundException e) {
+            throw new DocumentNotFoundException(String.format("Content of document '%s' (storage id %s) not found: %s",
+                    document.getContentFileName(), document.getContentStorageId(), e.getMessage()), e);
+        }
+    }
+
+    /**
+     * Uses virtual threads when the runtime provides them (Java 21+), platform daemon threads otherwise.
+     * The pool size bounds the number of concurrent fetches either way.
+     */
+    private static ThreadFactory createThreadFactory() {
+        try {
+            Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderType.getMethod("name", String.class, long.class).invoke(builder, "merge-pdf-fetch-", 0L);
+            return (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            LOGGER.log(Level.FINE, "Virtual threads not available, fetching with platform threads", e);
+            AtomicInteger counter = new AtomicInteger();
+            return runnable -> {
+                Thread thread = new Thread(runnable, "merge-pdf-fetch-" + counter.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            };
+        }
+    }
+}
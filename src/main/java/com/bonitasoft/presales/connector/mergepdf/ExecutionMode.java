@@ -0,0 +1,36 @@
+package com.bonitasoft.presales.connector.mergepdf;
+
+import java.util.Locale;
+
+/**
+ * Whether an execution merges right away or hands the merge over to the background queue.
+ */
+public enum ExecutionMode {
+
+    /**
+     * Merges within the execution and returns the merged document (historical behaviour).
+     */
+    SYNC,
+
+    /**
+     * Queues the merge on the engine node and returns its job id right away.
+     */
+    SUBMIT,
+
+    /**
+     * Returns the outputs of a merge queued by a {@link #SUBMIT} execution, once it is done.
+     */
+    COLLECT;
+
+    /**
+     * Parses a connector input value, {@code null} or blank meaning {@link #SYNC}.
+     *
+     * @throws IllegalArgumentException if the value does not name a mode
+     */
+    static ExecutionMode fromInput(String value) {
+        if (value == null || value.trim().isEmpty()) {
+            return SYNC;
+        }
+        return valueOf(value.trim().toUpperCase(Locale.ROOT));
+    }
+}
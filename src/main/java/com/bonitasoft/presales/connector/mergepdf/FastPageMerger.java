@@ -0,0 +1,434 @@
+package com.bonitasoft.presales.connector.mergepdf;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSInteger;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSNumber;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDDocumentCatalog;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageTree;
+import org.apache.pdfbox.pdmodel.common.PDPageLabelRange;
+import org.apache.pdfbox.pdmodel.common.PDPageLabels;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.pdmodel.documentinterchange.logicalstructure.PDMarkInfo;
+import org.apache.pdfbox.pdmodel.interactive.action.PDAction;
+import org.apache.pdfbox.pdmodel.interactive.action.PDActionGoTo;
+import org.apache.pdfbox.pdmodel.interactive.annotation.PDAnnotation;
+import org.apache.pdfbox.pdmodel.interactive.documentnavigation.destination.PDNamedDestination;
+import org.apache.pdfbox.pdmodel.interactive.documentnavigation.destination.PDPageDestination;
+import org.apache.pdfbox.pdmodel.interactive.documentnavigation.outline.PDDocumentOutline;
+import org.apache.pdfbox.pdmodel.interactive.documentnavigation.outline.PDOutlineItem;
+
+/**
+ * {@link MergeEngine#FAST} merge: the page dictionaries of the source are moved into the destination page
+ * tree as they are, instead of being deep-copied by {@code PDFMergerUtility}.
+ * <p>
+ * Pages, their content, resources and annotations are shared with the source document, which must stay open
+ * until the destination is saved. Attributes a page inherited from the source page tree are copied onto the
+ * page first. Document-level features (outlines, AcroForm fields, structure tree, page labels) are only
+ * brought over when switched on; named destinations, JavaScript, attachments, optional content, open action
+ * and XMP metadata never are.
+ */
+class FastPageMerger {
+
+    private static final COSName[] INHERITABLE_KEYS = { COSName.RESOURCES, COSName.MEDIA_BOX, COSName.CROP_BOX,
+            COSName.ROTATE };
+    private static final COSName[] ACRO_FORM_DEFAULT_KEYS = { COSName.DA, COSName.Q, COSName.NEED_APPEARANCES };
+    private static final int MAX_TREE_DEPTH = 256;
+
+    private final boolean keepOutlines;
+    private final boolean keepForms;
+    private final boolean keepStructureTree;
+    private final boolean keepPageLabels;
+
+    FastPageMerger(boolean keepOutlines, boolean keepForms, boolean keepStructureTree, boolean keepPageLabels) {
+        this.keepOutlines = keepOutlines;
+        this.keepForms = keepForms;
+        this.keepStructureTree = keepStructureTree;
+        this.keepPageLabels = keepPageLabels;
+    }
+
+    void append(PDDocument destination, PDDocument source) throws IOException {
+        PDDocumentCatalog destinationCatalog = destination.getDocumentCatalog();
+        PDDocumentCatalog sourceCatalog = source.getDocumentCatalog();
+        COSDictionary sourceStructureTree = sourceCatalog.getCOSObject().getCOSDictionary(COSName.STRUCT_TREE_ROOT);
+        boolean mergeStructureTree = keepStructureTree && sourceStructureTree != null;
+        int structParentOffset = mergeStructureTree ? getParentTreeNextKey(destinationCatalog) : 0;
+
+        List<PDPage> pages = new ArrayList<>();
+        for (PDPage page : source.getPages()) {
+            pages.add(page);
+        }
+        int pageOffset = destination.getNumberOfPages();
+        PDPageTree destinationPages = destination.getPages();
+        Set<COSBase> offsetObjects = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (PDPage page : pages) {
+            copyInheritedAttributes(page.getCOSObject());
+            if (mergeStructureTree) {
+                offsetStructParents(page, structParentOffset, offsetObjects);
+            } else if (sourceStructureTree != null) {
+                removeStructParents(page);
+            }
+            destinationPages.add(page);
+        }
+
+        if (keepPageLabels) {
+            mergePageLabels(destination, source, pageOffset);
+        }
+        if (keepOutlines) {
+            mergeOutlines(destinationCatalog, sourceCatalog);
+        }
+        if (keepForms) {
+            mergeForms(destinationCatalog, sourceCatalog);
+        }
+        if (mergeStructureTree) {
+            mergeStructureTree(destinationCatalog, sourceCatalog, sourceStructureTree, structParentOffset);
+        }
+        mergeDocumentInformation(destination, source);
+        if (destination.getVersion() < source.getVersion()) {
+            destination.setVersion(source.getVersion());
+        }
+    }
+
+    static void copyInheritedAttributes(COSDictionary page) {
+        for (COSName key : INHERITABLE_KEYS) {
+            if (page.containsKey(key)) {
+                continue;
+            }
+            COSBase parent = page.getDictionaryObject(COSName.PARENT);
+            for (int depth = 0; parent instanceof COSDictionary && depth < MAX_TREE_DEPTH; depth++) {
+                COSBase value = ((COSDictionary) parent).getItem(key);
+                if (value != null) {
+                    page.setItem(key, value);
+                    break;
+                }
+                parent = ((COSDictionary) parent).getDictionaryObject(COSName.PARENT);
+            }
+        }
+        if (!page.containsKey(COSName.RESOURCES)) {
+            page.setItem(COSName.RESOURCES, new COSDictionary());
+        }
+        if (!page.containsKey(COSName.MEDIA_BOX)) {
+            page.setItem(COSName.MEDIA_BOX, PDRectangle.LETTER.getCOSArray());
+        }
+    }
+
+    static void removeStructParents(PDPage page) throws IOException {
+        page.getCOSObject().removeItem(COSName.STRUCT_PARENTS);
+        for (PDAnnotation annotation : page.getAnnotations()) {
+            annotation.getCOSObject().removeItem(COSName.STRUCT_PARENT);
+        }
+    }
+
+    /**
+     * Shifts the parent tree keys of the page, its annotations and its form XObjects. Objects shared between
+     * pages are shifted once.
+     */
+    private static void offsetStructParents(PDPage page, int offset, Set<COSBase> offsetObjects) throws IOException {
+        if (offset == 0) {
+            return;
+        }
+        offsetKey(page.getCOSObject(), COSName.STRUCT_PARENTS, offset, offsetObjects);
+        for (PDAnnotation annotation : page.getAnnotations()) {
+            offsetKey(annotation.getCOSObject(), COSName.STRUCT_PARENT, offset, offsetObjects);
+        }
+        COSDictionary resources = page.getCOSObject().getCOSDictionary(COSName.RESOURCES);
+        COSDictionary xObjects = resources != null ? resources.getCOSDictionary(COSName.XOBJECT) : null;
+        if (xObjects != null) {
+            for (COSName name : xObjects.keySet()) {
+                COSBase xObject = xObjects.getDictionaryObject(name);
+                if (xObject instanceof COSDictionary) {
+                    offsetKey((COSDictionary) xObject, COSName.STRUCT_PARENTS, offset, offsetObjects);
+                }
+            }
+        }
+    }
+
+    private static void offsetKey(COSDictionary dictionary, COSName key, int offset, Set<COSBase> offsetObjects) {
+        COSBase value = dictionary.getDictionaryObject(key);
+        if (value instanceof COSNumber && offsetObjects.add(dictionary)) {
+            dictionary.setInt(key, ((COSNumber) value).intValue() + offset);
+        }
+    }
+
+    private static void mergePageLabels(PDDocument destination, PDDocument source, int pageOffset)
+            throws IOException {
+        PDDocumentCatalog destinationCatalog = destination.getDocumentCatalog();
+        PDPageLabels sourceLabels = source.getDocumentCatalog().getPageLabels();
+        PDPageLabels labels = destinationCatalog.getPageLabels();
+        if (labels == null) {
+            if (sourceLabels == null) {
+                return;
+            }
+            // pages merged so far get the default decimal labels
+            labels = new PDPageLabels(destination);
+        }
+        if (sourceLabels == null) {
+            PDPageLabelRange range = new PDPageLabelRange();
+            range.setStyle(PDPageLabelRange.STYLE_DECIMAL);
+            labels.setLabelItem(pageOffset, range);
+        } else {
+            for (int startPage : sourceLabels.getPageIndices()) {
+                labels.setLabelItem(pageOffset + startPage, sourceLabels.getPageLabelRange(startPage));
+            }
+        }
+        destinationCatalog.setPageLabels(labels);
+    }
+
+    private static void mergeOutlines(PDDocumentCatalog destinationCatalog, PDDocumentCatalog sourceCatalog)
+            throws IOException {
+        PDDocumentOutline sourceOutline = sourceCatalog.getDocumentOutline();
+        if (sourceOutline == null) {
+            return;
+        }
+        List<PDOutlineItem> items = new ArrayList<>();
+        for (PDOutlineItem item : sourceOutline.children()) {
+            items.add(item);
+        }
+        PDDocumentOutline outline = destinationCatalog.getDocumentOutline();
+        if (outline == null) {
+            outline = new PDDocumentOutline();
+            destinationCatalog.setDocumentOutline(outline);
+        }
+        for (PDOutlineItem item : items) {
+            // the source name tree is not merged: named destinations must point at the page directly
+            resolveNamedDestinations(item, sourceCatalog, 0);
+            item.getCOSObject().removeItem(COSName.PREV);
+            item.getCOSObject().removeItem(COSName.NEXT);
+            outline.addLast(item);
+        }
+    }
+
+    static void resolveNamedDestinations(PDOutlineItem item, PDDocumentCatalog sourceCatalog, int depth)
+            throws IOException {
+        if (item.getDestination() instanceof PDNamedDestination) {
+            item.setDestination(sourceCatalog.findNamedDestinationPage((PDNamedDestination) item.getDestination()));
+        }
+        PDAction action = item.getAction();
+        if (action instanceof PDActionGoTo
+                && ((PDActionGoTo) action).getDestination() instanceof PDNamedDestination) {
+            PDPageDestination pageDestination = sourceCatalog.findNamedDestinationPage(
+                    (PDNamedDestination) ((PDActionGoTo) action).getDestination());
+            if (pageDestination != null) {
+                ((PDActionGoTo) action).setDestination(pageDestination);
+            }
+        }
+        if (depth < MAX_TREE_DEPTH) {
+            for (PDOutlineItem child : item.children()) {
+                resolveNamedDestinations(child, sourceCatalog, depth + 1);
+            }
+        }
+    }
+
+    /**
+     * Adds the source fields to the destination form. A field whose name is already taken is renamed with a
+     * numeric suffix, as fields with the same name would otherwise share their value.
+     */
+    private static void mergeForms(PDDocumentCatalog destinationCatalog, PDDocumentCatalog sourceCatalog) {
+        COSDictionary sourceForm = sourceCatalog.getCOSObject().getCOSDictionary(COSName.ACRO_FORM);
+        COSArray sourceFields = sourceForm != null ? sourceForm.getCOSArray(COSName.FIELDS) : null;
+        if (sourceFields == null || sourceFields.size() == 0) {
+            return;
+        }
+        COSDictionary form = destinationCatalog.getCOSObject().getCOSDictionary(COSName.ACRO_FORM);
+        if (form == null) {
+            form = new COSDictionary();
+            for (COSName key : ACRO_FORM_DEFAULT_KEYS) {
+                form.setItem(key, sourceForm.getItem(key));
+            }
+            destinationCatalog.getCOSObject().setItem(COSName.ACRO_FORM, form);
+        } else if (sourceForm.getBoolean(COSName.NEED_APPEARANCES, false)) {
+            form.setBoolean(COSName.NEED_APPEARANCES, true);
+        }
+        mergeDefaultResources(form, sourceForm);
+
+        COSArray fields = form.getCOSArray(COSName.FIELDS);
+        if (fields == null) {
+            fields = new COSArray();
+            form.setItem(COSName.FIELDS, fields);
+        }
+        Set<String> names = new HashSet<>();
+        for (int i = 0; i < fields.size(); i++) {
+            COSBase field = fields.getObject(i);
+            if (field instanceof COSDictionary && ((COSDictionary) field).getString(COSName.T) != null) {
+                names.add(((COSDictionary) field).getString(COSName.T));
+            }
+        }
+        for (int i = 0; i < sourceFields.size(); i++) {
+            COSBase field = sourceFields.getObject(i);
+            if (!(field instanceof COSDictionary)) {
+                continue;
+            }
+            String name = ((COSDictionary) field).getString(COSName.T);
+            if (name != null && !names.add(name)) {
+                int suffix = 2;
+                while (!names.add(name + "_" + suffix)) {
+                    suffix++;
+                }
+                ((COSDictionary) field).setString(COSName.T, name + "_" + suffix);
+            }
+            fields.add(sourceFields.get(i));
+        }
+    }
+
+    private static void mergeDefaultResources(COSDictionary form, COSDictionary sourceForm) {
+        COSDictionary sourceResources = sourceForm.getCOSDictionary(COSName.DR);
+        if (sourceResources == null) {
+            return;
+        }
+        COSDictionary resources = form.getCOSDictionary(COSName.DR);
+        if (resources == null) {
+            form.setItem(COSName.DR, sourceResources);
+            return;
+        }
+        for (Map.Entry<COSName, COSBase> category : sourceResources.entrySet()) {
+            COSDictionary sourceCategory = sourceResources.getCOSDictionary(category.getKey());
+            COSDictionary destinationCategory = resources.getCOSDictionary(category.getKey());
+            if (destinationCategory == null) {
+                resources.setItem(category.getKey(), category.getValue());
+            } else if (sourceCategory != null) {
+                putAbsent(sourceCategory, destinationCategory);
+            }
+        }
+    }
+
+    private static int getParentTreeNextKey(PDDocumentCatalog destinationCatalog) {
+        COSDictionary root = destinationCatalog.getCOSObject().getCOSDictionary(COSName.STRUCT_TREE_ROOT);
+        return root != null ? root.getInt(COSName.PARENT_TREE_NEXT_KEY, 0) : 0;
+    }
+
+    private static void mergeStructureTree(PDDocumentCatalog destinationCatalog, PDDocumentCatalog sourceCatalog,
+            COSDictionary sourceRoot, int offset) {
+        COSDictionary root = destinationCatalog.getCOSObject().getCOSDictionary(COSName.STRUCT_TREE_ROOT);
+        if (root == null) {
+            root = new COSDictionary();
+            root.setItem(COSName.TYPE, COSName.STRUCT_TREE_ROOT);
+            destinationCatalog.getCOSObject().setItem(COSName.STRUCT_TREE_ROOT, root);
+        }
+
+        COSArray kids = root.getCOSArray(COSName.K);
+        if (kids == null) {
+            kids = new COSArray();
+            if (root.getItem(COSName.K) != null) {
+                kids.add(root.getItem(COSName.K));
+            }
+            root.setItem(COSName.K, kids);
+        }
+        COSBase sourceKids = sourceRoot.getDictionaryObject(COSName.K);
+        if (sourceKids instanceof COSArray) {
+            COSArray sourceKidArray = (COSArray) sourceKids;
+            for (int i = 0; i < sourceKidArray.size(); i++) {
+                adoptStructureElement(sourceKidArray.get(i), sourceKidArray.getObject(i), root, kids);
+            }
+        } else if (sourceKids != null) {
+            adoptStructureElement(sourceRoot.getItem(COSName.K), sourceKids, root, kids);
+        }
+
+        COSDictionary parentTree = root.getCOSDictionary(COSName.PARENT_TREE);
+        if (parentTree == null || parentTree.getCOSArray(COSName.NUMS) == null) {
+            Map<Integer, COSBase> existing = new TreeMap<>();
+            collectNumbers(parentTree, existing, 0);
+            parentTree = new COSDictionary();
+            COSArray nums = new COSArray();
+            for (Map.Entry<Integer, COSBase> entry : existing.entrySet()) {
+                nums.add(COSInteger.get(entry.getKey()));
+                nums.add(entry.getValue());
+            }
+            parentTree.setItem(COSName.NUMS, nums);
+            root.setItem(COSName.PARENT_TREE, parentTree);
+        }
+        COSArray nums = parentTree.getCOSArray(COSName.NUMS);
+        Map<Integer, COSBase> sourceNumbers = new TreeMap<>();
+        collectNumbers(sourceRoot.getCOSDictionary(COSName.PARENT_TREE), sourceNumbers, 0);
+        int nextKey = offset + Math.max(0, sourceRoot.getInt(COSName.PARENT_TREE_NEXT_KEY, 0));
+        for (Map.Entry<Integer, COSBase> entry : sourceNumbers.entrySet()) {
+            nums.add(COSInteger.get(offset + entry.getKey()));
+            nums.add(entry.getValue());
+            nextKey = Math.max(nextKey, offset + entry.getKey() + 1);
+        }
+        root.setInt(COSName.PARENT_TREE_NEXT_KEY, nextKey);
+
+        mergeMap(sourceRoot, root, COSName.ROLE_MAP);
+        mergeMap(sourceRoot, root, COSName.CLASS_MAP);
+        PDMarkInfo markInfo = destinationCatalog.getMarkInfo() != null ? destinationCatalog.getMarkInfo()
+                : new PDMarkInfo();
+        markInfo.setMarked(true);
+        destinationCatalog.setMarkInfo(markInfo);
+        if (destinationCatalog.getLanguage() == null && sourceCatalog.getLanguage() != null) {
+            destinationCatalog.setLanguage(sourceCatalog.getLanguage());
+        }
+    }
+
+    private static void adoptStructureElement(COSBase reference, COSBase element, COSDictionary root, COSArray kids) {
+        if (element instanceof COSDictionary) {
+            ((COSDictionary) element).setItem(COSName.P, root);
+        }
+        kids.add(reference);
+    }
+
+    /**
+     * Flattens a number tree, leaves and intermediate nodes alike.
+     */
+    private static void collectNumbers(COSDictionary node, Map<Integer, COSBase> numbers, int depth) {
+        if (node == null || depth > MAX_TREE_DEPTH) {
+            return;
+        }
+        COSArray nums = node.getCOSArray(COSName.NUMS);
+        if (nums != null) {
+            for (int i = 0; i + 1 < nums.size(); i += 2) {
+                COSBase key = nums.getObject(i);
+                if (key instanceof COSNumber) {
+                    numbers.put(((COSNumber) key).intValue(), nums.get(i + 1));
+                }
+            }
+        }
+        COSArray kids = node.getCOSArray(COSName.KIDS);
+        if (kids != null) {
+            for (int i = 0; i < kids.size(); i++) {
+                COSBase kid = kids.getObject(i);
+                if (kid instanceof COSDictionary) {
+                    collectNumbers((COSDictionary) kid, numbers, depth + 1);
+                }
+            }
+        }
+    }
+
+    private static void mergeMap(COSDictionary sourceRoot, COSDictionary root, COSName key) {
+        COSDictionary sourceMap = sourceRoot.getCOSDictionary(key);
+        if (sourceMap == null) {
+            return;
+        }
+        COSDictionary map = root.getCOSDictionary(key);
+        if (map == null) {
+            map = new COSDictionary();
+            root.setItem(key, map);
+        }
+        putAbsent(sourceMap, map);
+    }
+
+    private static void mergeDocumentInformation(PDDocument destination, PDDocument source) {
+        putAbsent(source.getDocumentInformation().getCOSObject(),
+                destination.getDocumentInformation().getCOSObject());
+    }
+
+    private static void putAbsent(COSDictionary source, COSDictionary destination) {
+        for (Map.Entry<COSName, COSBase> entry : source.entrySet()) {
+            if (!destination.containsKey(entry.getKey())) {
+                destination.setItem(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package com.bonitasoft.presales.connector.mergepdf;
+
+import java.util.Locale;
+
+/**
+ * How the images downsampled by the {@link ImageOptimizer} are encoded again.
+ */
+public enum ImageCompression {
+
+    /**
+     * Lossy JPEG (DCTDecode) at the configured quality. Best suited to scanned pages and photos.
+     */
+    JPEG,
+
+    /**
+     * Lossless Flate with PNG predictors. Keeps sharp edges and flat colors intact, for a larger output.
+     */
+    FLATE;
+
+    /**
+     * Parses a connector input value, {@code null} or blank meaning {@link #JPEG}.
+     *
+     * @throws IllegalArgumentException if the value does not name a compression
+     */
+    static ImageCompression fromInput(String value) {
+        if (value == null || value.trim().isEmpty()) {
+            return JPEG;
+        }
+        return valueOf(value.trim().toUpperCase(Locale.ROOT));
+    }
+}
@@ -0,0 +1,372 @@
+package com.bonitasoft.presales.connector.mergepdf;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.pdfbox.contentstream.PDFStreamEngine;
+import org.apache.pdfbox.contentstream.operator.DrawObject;
+import org.apache.pdfbox.contentstream.operator.Operator;
+import org.apache.pdfbox.contentstream.operator.OperatorName;
+import org.apache.pdfbox.contentstream.operator.state.Concatenate;
+import org.apache.pdfbox.contentstream.operator.state.Restore;
+import org.apache.pdfbox.contentstream.operator.state.Save;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.graphics.PDXObject;
+import org.apache.pdfbox.pdmodel.graphics.color.PDCalGray;
+import org.apache.pdfbox.pdmodel.graphics.color.PDColorSpace;
+import org.apache.pdfbox.pdmodel.graphics.color.PDDeviceGray;
+import org.apache.pdfbox.pdmodel.graphics.color.PDICCBased;
+import org.apache.pdfbox.pdmodel.graphics.image.JPEGFactory;
+import org.apache.pdfbox.pdmodel.graphics.image.LosslessFactory;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+import org.apache.pdfbox.util.Matrix;
+
+/**
+ * Downsamples the images of a merged document that are drawn at a higher resolution than a target DPI, and
+ * encodes them again as JPEG or lossless Flate.
+ * <p>
+ * The resolution of an image is derived from the size it is drawn at on the pages (the lowest resolution when it
+ * is drawn several times), so an image is never reduced below the target anywhere. Images that are not drawn by
+ * the page contents (annotation appearances, patterns), bilevel images, stencil masks and images with a mask are
+ * left alone.
+ * <p>
+ * The pages are scanned and the images decoded sequentially on the calling thread, since a document cannot be read
+ * by several threads; they are then resampled and encoded on a bounded pool. At most one decoded image per worker is
+ * held at a time, each subsampled while decoding to stay close to the target size. The new data replaces the
+ * content of the image stream itself, so every page referencing it keeps doing so, and is only kept when it is
+ * smaller than the original.
+ */
+class ImageOptimizer {
+
+    private static final Logger LOGGER = Logger.getLogger(ImageOptimizer.class.getName());
+
+    static final float DEFAULT_JPEG_QUALITY = 0.75f;
+
+    static final int DEFAULT_PARALLELISM = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    /** Entries describing the encoding of an image, replaced with the ones of the new encoding. */
+    private static final Set<COSName> ENCODING_KEYS = Set.of(COSName.FILTER, COSName.DECODE_PARMS, COSName.WIDTH,
+            COSName.HEIGHT, COSName.BITS_PER_COMPONENT, COSName.COLORSPACE, COSName.DECODE,
+            COSName.getPDFName("SMaskInData"));
+
+    private static final ThreadFactory THREAD_FACTORY = createThreadFactory();
+
+    private final int targetDpi;
+    private final ImageCompression compression;
+    private final float jpegQuality;
+    private final int parallelism;
+
+    private int optimizedCount;
+    private long bytesBefore;
+    private long bytesAfter;
+
+    /**
+     * An image drawn by the pages, with the lowest resolution it is drawn at.
+     */
+    private static class Placement {
+
+        private final PDImageXObject image;
+        private float dpi = Float.MAX_VALUE;
+
+        Placement(PDImageXObject image) {
+            this.image = image;
+        }
+    }
+
+    /**
+     * The pixels of an image, with the size and color model to resample them to.
+     */
+    private static class Decoded {
+
+        private final BufferedImage pixels;
+        private final int width;
+        private final int height;
+        private final boolean gray;
+
+        Decoded(BufferedImage pixels, int width, int height, boolean gray) {
+            this.pixels = pixels;
+            this.width = width;
+            this.height = height;
+            this.gray = gray;
+        }
+    }
+
+    /**
+     * The new data and encoding entries of an image.
+     */
+    private static class Encoded {
+
+        private final byte[] data;
+        private final COSDictionary entries;
+
+        Encoded(byte[] data, COSDictionary entries) {
+            this.data = data;
+            this.entries = entries;
+        }
+    }
+
+    ImageOptimizer(int targetDpi, ImageCompression compression, float jpegQuality, int parallelism) {
+        this.targetDpi = targetDpi;
+        this.compression = compression;
+        this.jpegQuality = jpegQuality;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Optimizes the images drawn on the pages of the document.
+     */
+    void optimize(PDDocument document) throws IOException {
+        Map<COSStream, Placement> placements = findPlacements(document);
+        List<Placement> candidates = new ArrayList<>();
+        for (Placement placement : placements.values()) {
+            bytesBefore += placement.image.getCOSObject().getLength();
+            if (placement.dpi > targetDpi && isResampleable(placement.image)) {
+                candidates.add(placement);
+            }
+        }
+
+        List<Encoded> results = encodeAll(candidates);
+        for (int i = 0; i < candidates.size(); i++) {
+            Encoded encoded = results.get(i);
+            COSStream stream = candidates.get(i).image.getCOSObject();
+            if (encoded != null && encoded.data.length < stream.getLength()) {
+                replaceData(stream, encoded);
+                optimizedCount++;
+            }
+        }
+        for (Placement placement : placements.values()) {
+            bytesAfter += placement.image.getCOSObject().getLength();
+        }
+    }
+
+    int getOptimizedCount() {
+        return optimizedCount;
+    }
+
+    /**
+     * @return raw size of the images drawn on the pages before optimization
+     */
+    long getBytesBefore() {
+        return bytesBefore;
+    }
+
+    /**
+     * @return raw size of the same images after optimization
+     */
+    long getBytesAfter() {
+        return bytesAfter;
+    }
+
+    private Map<COSStream, Placement> findPlacements(PDDocument document) throws IOException {
+        Map<COSStream, Placement> placements = new IdentityHashMap<>();
+        PlacementFinder finder = new PlacementFinder(placements);
+        for (PDPage page : document.getPages()) {
+            finder.processPage(page);
+        }
+        return placements;
+    }
+
+    private static boolean isResampleable(PDImageXObject image) throws IOException {
+        COSStream stream = image.getCOSObject();
+        return !image.isStencil() && image.getBitsPerComponent() > 1
+                && stream.getItem(COSName.SMASK) == null && stream.getItem(COSName.MASK) == null
+                && stream.getItem(COSName.F) == null && !image.getStream().getFilters().contains(COSName.JBIG2_DECODE);
+    }
+
+    /**
+     * @return the new encoding of each candidate, {@code null} for the ones that could not be decoded
+     */
+    private List<Encoded> encodeAll(List<Placement> candidates) throws IOException {
+        List<Encoded> results = new ArrayList<>(candidates.size());
+        if (candidates.isEmpty()) {
+            return results;
+        }
+        int workers = Math.min(parallelism, candidates.size());
+        ExecutorService executor = Executors.newFixedThreadPool(workers, THREAD_FACTORY);
+        // bounds the decoded images waiting for or being encoded
+        Semaphore decodedImages = new Semaphore(workers);
+        List<Future<Encoded>> futures = new ArrayList<>(candidates.size());
+        try {
+            for (Placement candidate : candidates) {
+                decodedImages.acquire();
+                Decoded decoded;
+                try {
+                    decoded = decode(candidate);
+                } catch (IOException | RuntimeException e) {
+                    decodedImages.release();
+                    futures.add(CompletableFuture.failedFuture(e));
+                    continue;
+                }
+                futures.add(executor.submit(() -> {
+                    try {
+                        return encode(decoded);
+                    } finally {
+                        decodedImages.release();
+                    }
+                }));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                results.add(awaitEncoded(futures.get(i), candidates.get(i)));
+            }
+            return results;
+        } catch (InterruptedException e) {
+            futures.forEach(future -> future.cancel(true));
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while optimizing images", e);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static Encoded awaitEncoded(Future<Encoded> future, Placement candidate) throws InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            // an image PDFBox cannot decode is kept as it is
+            LOGGER.log(Level.FINE, String.format("Image of %dx%d pixels left unchanged: %s",
+                    candidate.image.getWidth(), candidate.image.getHeight(), cause.getMessage()), cause);
+            return null;
+        }
+    }
+
+    /**
+     * Reads the pixels of an image from the document, on the calling thread.
+     */
+    private Decoded decode(Placement candidate) throws IOException {
+        PDImageXObject image = candidate.image;
+        float scale = targetDpi / candidate.dpi;
+        int width = Math.max(1, Math.round(image.getWidth() * scale));
+        int height = Math.max(1, Math.round(image.getHeight() * scale));
+        int subsampling = Math.max(1, (int) Math.floor(1 / scale));
+        PDColorSpace colorSpace = image.getColorSpace();
+        boolean gray = colorSpace instanceof PDDeviceGray || colorSpace instanceof PDCalGray
+                || colorSpace instanceof PDICCBased && colorSpace.getNumberOfComponents() == 1;
+        return new Decoded(image.getImage(null, subsampling), width, height, gray);
+    }
+
+    /**
+     * Resamples and encodes a decoded image, without reading the document.
+     */
+    private Encoded encode(Decoded decoded) throws IOException {
+        BufferedImage resampled = new BufferedImage(decoded.width, decoded.height,
+                decoded.gray ? BufferedImage.TYPE_BYTE_GRAY : BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = resampled.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            graphics.drawImage(decoded.pixels, 0, 0, decoded.width, decoded.height, null);
+        } finally {
+            graphics.dispose();
+        }
+
+        // the factories need a document to create the stream in; only its bytes and entries are kept
+        try (PDDocument scratch = new PDDocument()) {
+            PDImageXObject result = compression == ImageCompression.JPEG
+                    ? JPEGFactory.createFromImage(scratch, resampled, jpegQuality)
+                    : LosslessFactory.createFromImage(scratch, resampled);
+            COSStream stream = result.getCOSObject();
+            ByteArrayOutputStream data = new ByteArrayOutputStream();
+            try (InputStream input = stream.createRawInputStream()) {
+                input.transferTo(data);
+            }
+            COSDictionary entries = new COSDictionary();
+            for (COSName key : ENCODING_KEYS) {
+                COSBase value = stream.getItem(key);
+                if (value != null) {
+                    entries.setItem(key, value);
+                }
+            }
+            return new Encoded(data.toByteArray(), entries);
+        }
+    }
+
+    private static void replaceData(COSStream stream, Encoded encoded) throws IOException {
+        try (OutputStream output = stream.createRawOutputStream()) {
+            output.write(encoded.data);
+        }
+        for (COSName key : ENCODING_KEYS) {
+            stream.removeItem(key);
+        }
+        stream.addAll(encoded.entries);
+    }
+
+    /**
+     * Follows the transformation matrix through the page contents and the form XObjects they draw, and records
+     * the resolution of every image drawn.
+     */
+    private static class PlacementFinder extends PDFStreamEngine {
+
+        private final Map<COSStream, Placement> placements;
+
+        PlacementFinder(Map<COSStream, Placement> placements) {
+            this.placements = placements;
+            addOperator(new Save());
+            addOperator(new Restore());
+            addOperator(new Concatenate());
+            addOperator(new DrawObject());
+        }
+
+        @Override
+        protected void processOperator(Operator operator, List<COSBase> operands) throws IOException {
+            if (OperatorName.DRAW_OBJECT.equals(operator.getName()) && !operands.isEmpty()
+                    && operands.get(0) instanceof COSName) {
+                PDXObject xobject = getResources().getXObject((COSName) operands.get(0));
+                if (xobject instanceof PDImageXObject) {
+                    record((PDImageXObject) xobject);
+                    return;
+                }
+            }
+            super.processOperator(operator, operands);
+        }
+
+        private void record(PDImageXObject image) {
+            Matrix matrix = getGraphicsState().getCurrentTransformationMatrix();
+            float widthInches = Math.abs(matrix.getScalingFactorX()) / 72;
+            float heightInches = Math.abs(matrix.getScalingFactorY()) / 72;
+            if (widthInches <= 0 || heightInches <= 0) {
+                return;
+            }
+            Placement placement = placements.computeIfAbsent(image.getCOSObject(), key -> new Placement(image));
+            placement.dpi = Math.min(placement.dpi,
+                    Math.min(image.getWidth() / widthInches, image.getHeight() / heightInches));
+        }
+    }
+
+    private static ThreadFactory createThreadFactory() {
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, "merge-pdf-image-" + counter.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
@@ -0,0 +1,631 @@
+package com.bonitasoft.presales.connector.mergepdf;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSDocument;
+import org.apache.pdfbox.cos.COSInteger;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSNull;
+import org.apache.pdfbox.cos.COSNumber;
+import org.apache.pdfbox.cos.COSObject;
+import org.apache.pdfbox.cos.COSObjectKey;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.io.RandomAccessRead;
+import org.apache.pdfbox.io.ScratchFile;
+import org.apache.pdfbox.pdfparser.COSParser;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDDocumentCatalog;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.interactive.documentnavigation.outline.PDDocumentOutline;
+import org.apache.pdfbox.pdmodel.interactive.documentnavigation.outline.PDOutlineItem;
+
+import static com.bonitasoft.presales.connector.mergepdf.CosSerializer.writeAscii;
+
+/**
+ * Appends the pages of a document to an existing PDF as an incremental update: the existing bytes are copied
+ * unchanged, followed by the new objects, the few existing objects that change, and a cross-reference section
+ * chained to the existing one.
+ * <p>
+ * {@code PDDocument.load} and {@code PDDocument.saveIncremental} parse every object of a document. Here only the
+ * cross-reference sections, the trailer and the objects the update changes are parsed: the catalog and the page
+ * tree root, plus the outline root and its last item, and the form with its top-level fields, when the appended
+ * document has bookmarks or form fields. The appended pages are grouped under a new page tree node added to the
+ * root; the other document-level features of the appended document (structure tree, page labels, named
+ * destinations, ...) are not brought over. Its objects are written as they are, so it must stay open until
+ * {@link #write(OutputStream)} returns.
+ */
+class IncrementalAppender implements Closeable {
+
+    private static final COSName[] ACRO_FORM_DEFAULT_KEYS = { COSName.DA, COSName.Q, COSName.DR };
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    private final RandomAccessRead base;
+    private final UpdateParser parser;
+    private final COSDictionary trailer;
+    private final COSDictionary catalog;
+    private final COSDictionary pageTreeRoot;
+    private final int basePageCount;
+
+    /** Keys of the parsed objects of the base document. */
+    private final Map<COSBase, COSObjectKey> baseKeys = new IdentityHashMap<>();
+    /** Parsed objects of the base document rewritten by the update, by object number. */
+    private final Map<Long, COSBase> updated = new TreeMap<>();
+
+    private final Map<COSBase, Long> numbers = new IdentityHashMap<>();
+    private final List<COSBase> newObjects = new ArrayList<>();
+    private final Deque<COSBase> pending = new ArrayDeque<>();
+    private final CosSerializer serializer = new CosSerializer(this::keyOf);
+
+    /**
+     * Reads the cross-reference sections, the catalog and the page tree root of a document. The appender takes
+     * over the source and closes it.
+     *
+     * @throws IOException if the document is encrypted or has no cross-reference section to chain to
+     */
+    IncrementalAppender(RandomAccessRead base) throws IOException {
+        this.base = base;
+        this.parser = new UpdateParser(base);
+        try {
+            trailer = parser.parseTrailer();
+            if (trailer.getItem(COSName.ENCRYPT) != null) {
+                throw new IOException("Cannot append to an encrypted document");
+            }
+            if (parser.getStartXref() <= 0) {
+                throw new IOException("Cannot append to a document without a valid cross-reference table");
+            }
+            catalog = resolveIndirectDictionary(trailer.getItem(COSName.ROOT), "document catalog");
+            pageTreeRoot = resolveIndirectDictionary(catalog.getItem(COSName.PAGES), "page tree");
+            COSBase count = resolve(pageTreeRoot.getItem(COSName.COUNT));
+            basePageCount = count instanceof COSNumber ? ((COSNumber) count).intValue() : 0;
+        } catch (IOException | RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    int getBasePageCount() {
+        return basePageCount;
+    }
+
+    /**
+     * Adds the pages of a document after the pages of the base document, with its bookmarks and form fields.
+     */
+    void append(PDDocument document) throws IOException {
+        List<PDPage> pages = new ArrayList<>();
+        for (PDPage page : document.getPages()) {
+            pages.add(page);
+        }
+        if (pages.isEmpty()) {
+            return;
+        }
+        COSDictionary node = new COSDictionary();
+        node.setItem(COSName.TYPE, COSName.PAGES);
+        node.setItem(COSName.PARENT, pageTreeRoot);
+        if (pageTreeRoot.containsKey(COSName.ROTATE)) {
+            // pages without rotation would otherwise inherit the one of the base page tree
+            node.setInt(COSName.ROTATE, 0);
+        }
+        COSArray kids = new COSArray();
+        for (PDPage page : pages) {
+            COSDictionary dictionary = page.getCOSObject();
+            FastPageMerger.copyInheritedAttributes(dictionary);
+            if (pageTreeRoot.containsKey(COSName.CROP_BOX) && !dictionary.containsKey(COSName.CROP_BOX)) {
+                dictionary.setItem(COSName.CROP_BOX, dictionary.getItem(COSName.MEDIA_BOX));
+            }
+            // the parent tree of the document is not merged
+            FastPageMerger.removeStructParents(page);
+            dictionary.setItem(COSName.PARENT, node);
+            kids.add(dictionary);
+        }
+        node.setItem(COSName.KIDS, kids);
+        node.setInt(COSName.COUNT, kids.size());
+
+        COSBase rootKidsItem = pageTreeRoot.getItem(COSName.KIDS);
+        COSBase rootKids = resolve(rootKidsItem);
+        if (!(rootKids instanceof COSArray)) {
+            throw new IOException("The page tree root of the document has no kids");
+        }
+        ((COSArray) rootKids).add(node);
+        markUpdated(rootKidsItem instanceof COSObject ? rootKids : pageTreeRoot);
+        COSBase count = resolve(pageTreeRoot.getItem(COSName.COUNT));
+        pageTreeRoot.setInt(COSName.COUNT,
+                (count instanceof COSNumber ? ((COSNumber) count).intValue() : 0) + kids.size());
+        markUpdated(pageTreeRoot);
+
+        PDDocumentCatalog documentCatalog = document.getDocumentCatalog();
+        appendOutline(documentCatalog);
+        appendFields(documentCatalog.getCOSObject().getCOSDictionary(COSName.ACRO_FORM));
+    }
+
+    /**
+     * Links the top-level bookmarks of the document after the last top-level bookmark of the base document.
+     */
+    private void appendOutline(PDDocumentCatalog documentCatalog) throws IOException {
+        PDDocumentOutline outline = documentCatalog.getDocumentOutline();
+        if (outline == null) {
+            return;
+        }
+        List<COSDictionary> items = new ArrayList<>();
+        int visibleCount = 0;
+        for (PDOutlineItem item : outline.children()) {
+            // the name tree of the document is not merged: named destinations must point at the page directly
+            FastPageMerger.resolveNamedDestinations(item, documentCatalog, 0);
+            items.add(item.getCOSObject());
+            visibleCount += 1 + Math.max(0, item.getCOSObject().getInt(COSName.COUNT, 0));
+        }
+        if (items.isEmpty()) {
+            return;
+        }
+
+        COSBase outlinesItem = catalog.getItem(COSName.OUTLINES);
+        COSDictionary outlines = asDictionary(resolve(outlinesItem));
+        COSBase outlinesOwner;
+        if (outlines == null) {
+            outlines = new COSDictionary();
+            outlines.setItem(COSName.TYPE, COSName.OUTLINES);
+            catalog.setItem(COSName.OUTLINES, outlines);
+            markUpdated(catalog);
+            outlinesOwner = outlines;
+        } else {
+            outlinesOwner = outlinesItem instanceof COSObject ? outlines : catalog;
+            markUpdated(outlinesOwner);
+        }
+        COSBase lastItem = outlines.getItem(COSName.LAST);
+        COSDictionary last = asDictionary(resolve(lastItem));
+        if (last != null) {
+            last.setItem(COSName.NEXT, items.get(0));
+            markUpdated(lastItem instanceof COSObject ? last : outlinesOwner);
+        } else {
+            outlines.setItem(COSName.FIRST, items.get(0));
+        }
+        for (int i = 0; i < items.size(); i++) {
+            COSDictionary item = items.get(i);
+            item.setItem(COSName.PARENT, outlines);
+            item.setItem(COSName.PREV, i > 0 ? items.get(i - 1) : last);
+            item.setItem(COSName.NEXT, i + 1 < items.size() ? items.get(i + 1) : null);
+        }
+        outlines.setItem(COSName.LAST, items.get(items.size() - 1));
+        COSBase count = resolve(outlines.getItem(COSName.COUNT));
+        outlines.setInt(COSName.COUNT,
+                Math.max(0, count instanceof COSNumber ? ((COSNumber) count).intValue() : 0) + visibleCount);
+    }
+
+    /**
+     * Adds the fields of the document to the form of the base document, renaming those whose name is taken as
+     * {@link FastPageMerger} does. Only the top-level fields of the base document are read.
+     */
+    private void appendFields(COSDictionary sourceForm) throws IOException {
+        COSArray sourceFields = sourceForm != null ? sourceForm.getCOSArray(COSName.FIELDS) : null;
+        if (sourceFields == null || sourceFields.size() == 0) {
+            return;
+        }
+        COSBase formItem = catalog.getItem(COSName.ACRO_FORM);
+        COSDictionary form = asDictionary(resolve(formItem));
+        COSBase formOwner;
+        if (form == null) {
+            form = new COSDictionary();
+            for (COSName key : ACRO_FORM_DEFAULT_KEYS) {
+                form.setItem(key, sourceForm.getItem(key));
+            }
+            catalog.setItem(COSName.ACRO_FORM, form);
+            markUpdated(catalog);
+            formOwner = form;
+        } else {
+            formOwner = formItem instanceof COSObject ? form : catalog;
+        }
+        if (sourceForm.getBoolean(COSName.NEED_APPEARANCES, false)) {
+            form.setBoolean(COSName.NEED_APPEARANCES, true);
+            markUpdated(formOwner);
+        }
+
+        COSBase fieldsItem = form.getItem(COSName.FIELDS);
+        COSBase fieldsValue = resolve(fieldsItem);
+        COSArray fields;
+        if (fieldsValue instanceof COSArray) {
+            fields = (COSArray) fieldsValue;
+            markUpdated(fieldsItem instanceof COSObject ? fields : formOwner);
+        } else {
+            fields = new COSArray();
+            form.setItem(COSName.FIELDS, fields);
+            markUpdated(formOwner);
+        }
+        Set<String> names = new HashSet<>();
+        for (int i = 0; i < fields.size(); i++) {
+            COSDictionary field = asDictionary(resolve(fields.get(i)));
+            if (field != null && field.getString(COSName.T) != null) {
+                names.add(field.getString(COSName.T));
+            }
+        }
+        for (int i = 0; i < sourceFields.size(); i++) {
+            COSBase field = sourceFields.getObject(i);
+            if (!(field instanceof COSDictionary)) {
+                continue;
+            }
+            String name = ((COSDictionary) field).getString(COSName.T);
+            if (name != null && !names.add(name)) {
+                int suffix = 2;
+                while (!names.add(name + "_" + suffix)) {
+                    suffix++;
+                }
+                ((COSDictionary) field).setString(COSName.T, name + "_" + suffix);
+            }
+            fields.add(sourceFields.get(i));
+        }
+    }
+
+    /**
+     * Writes the base document followed by the update.
+     */
+    void write(OutputStream output) throws IOException {
+        long nextNumber = parser.getNextObjectNumber();
+        COSBase size = resolve(trailer.getItem(COSName.SIZE));
+        if (size instanceof COSNumber) {
+            nextNumber = Math.max(nextNumber, ((COSNumber) size).longValue());
+        }
+        for (COSBase object : updated.values()) {
+            visitChildren(object);
+        }
+        while (!pending.isEmpty()) {
+            visitChildren(pending.poll());
+        }
+        for (int i = 0; i < newObjects.size(); i++) {
+            numbers.put(newObjects.get(i), nextNumber + i);
+        }
+        nextNumber += newObjects.size();
+
+        PositionOutputStream out = new PositionOutputStream(output);
+        copyBase(out);
+        Map<Long, long[]> offsets = new TreeMap<>();
+        for (Map.Entry<Long, COSBase> object : updated.entrySet()) {
+            COSObjectKey key = baseKeys.get(object.getValue());
+            offsets.put(key.getNumber(), new long[] { out.getPosition(), key.getGeneration() });
+            writeObject(key, object.getValue(), out);
+        }
+        for (COSBase object : newObjects) {
+            COSObjectKey key = new COSObjectKey(numbers.get(object), 0);
+            offsets.put(key.getNumber(), new long[] { out.getPosition(), 0 });
+            writeObject(key, object, out);
+        }
+
+        long xrefOffset = out.getPosition();
+        if (parser.isXRefStream()) {
+            offsets.put(nextNumber, new long[] { xrefOffset, 0 });
+            writeXrefStream(nextNumber, offsets, out);
+        } else {
+            writeXrefTable(nextNumber, offsets, out);
+        }
+        writeAscii(String.format(Locale.ROOT, "startxref\n%d\n%%%%EOF\n", xrefOffset), out);
+        out.flush();
+    }
+
+    private void copyBase(PositionOutputStream out) throws IOException {
+        base.seek(0);
+        byte[] buffer = new byte[COPY_BUFFER_SIZE];
+        int lastByte = '\n';
+        int read;
+        while ((read = base.read(buffer, 0, buffer.length)) > 0) {
+            out.write(buffer, 0, read);
+            lastByte = buffer[read - 1];
+        }
+        if (lastByte != '\n' && lastByte != '\r') {
+            out.write('\n');
+        }
+    }
+
+    private void writeObject(COSObjectKey key, COSBase object, OutputStream out) throws IOException {
+        writeAscii(key.getNumber() + " " + key.getGeneration() + " obj\n", out);
+        if (object instanceof COSStream) {
+            COSStream stream = (COSStream) object;
+            // read twice rather than held on the heap: once to measure the length, which goes first, once to copy
+            Map<COSName, COSBase> overrides = new IdentityHashMap<>();
+            overrides.put(COSName.LENGTH, COSInteger.get(copyData(stream, OutputStream.nullOutputStream())));
+            serializer.writeDictionary(stream, overrides, out);
+            writeAscii("stream\r\n", out);
+            copyData(stream, out);
+            writeAscii("\nendstream\nendobj\n", out);
+        } else {
+            serializer.writeDirect(object, out);
+            writeAscii("\nendobj\n", out);
+        }
+    }
+
+    /**
+     * Copies the raw data of a stream chunk by chunk.
+     *
+     * @return the length of the data
+     */
+    private static long copyData(COSStream stream, OutputStream out) throws IOException {
+        long length = 0;
+        try (InputStream input = stream.createRawInputStream()) {
+            byte[] buffer = new byte[COPY_BUFFER_SIZE];
+            for (int read = input.read(buffer); read != -1; read = input.read(buffer)) {
+                out.write(buffer, 0, read);
+                length += read;
+            }
+        }
+        return length;
+    }
+
+    private void writeXrefTable(long size, Map<Long, long[]> offsets, OutputStream out) throws IOException {
+        writeAscii("xref\n", out);
+        for (List<Long> section : sections(offsets)) {
+            writeAscii(section.get(0) + " " + section.size() + "\n", out);
+            for (long number : section) {
+                long[] entry = offsets.get(number);
+                writeAscii(String.format(Locale.ROOT, "%010d %05d n\r\n", entry[0], entry[1]), out);
+            }
+        }
+        writeAscii("trailer\n", out);
+        serializer.writeDictionary(updatedTrailer(size), null, out);
+        out.write('\n');
+    }
+
+    private void writeXrefStream(long number, Map<Long, long[]> offsets, OutputStream out) throws IOException {
+        int width2 = 1;
+        long maxOffset = offsets.values().stream().mapToLong(entry -> entry[0]).max().orElse(0);
+        while (width2 < 8 && maxOffset >>> (8 * width2) != 0) {
+            width2++;
+        }
+        COSArray index = new COSArray();
+        ByteArrayOutputStream entries = new ByteArrayOutputStream(offsets.size() * (3 + width2));
+        for (List<Long> section : sections(offsets)) {
+            index.add(COSInteger.get(section.get(0)));
+            index.add(COSInteger.get(section.size()));
+            for (long sectionNumber : section) {
+                long[] entry = offsets.get(sectionNumber);
+                entries.write(1);
+                for (int shift = 8 * (width2 - 1); shift >= 0; shift -= 8) {
+                    entries.write((int) (entry[0] >>> shift) & 0xFF);
+                }
+                entries.write((int) (entry[1] >>> 8) & 0xFF);
+                entries.write((int) entry[1] & 0xFF);
+            }
+        }
+        byte[] data = CompressedPdfWriter.deflate(entries.toByteArray());
+
+        COSDictionary dictionary = updatedTrailer(number + 1);
+        dictionary.setItem(COSName.TYPE, COSName.XREF);
+        dictionary.setItem(COSName.INDEX, index);
+        COSArray widths = new COSArray();
+        widths.add(COSInteger.ONE);
+        widths.add(COSInteger.get(width2));
+        widths.add(COSInteger.TWO);
+        dictionary.setItem(COSName.W, widths);
+        dictionary.setItem(COSName.FILTER, COSName.FLATE_DECODE);
+        dictionary.setInt(COSName.LENGTH, data.length);
+        writeAscii(number + " 0 obj\n", out);
+        serializer.writeDictionary(dictionary, null, out);
+        writeAscii("stream\r\n", out);
+        out.write(data);
+        writeAscii("\nendstream\nendobj\n", out);
+    }
+
+    /**
+     * Runs of consecutive object numbers, one cross-reference subsection each.
+     */
+    private static List<List<Long>> sections(Map<Long, long[]> offsets) {
+        List<List<Long>> sections = new ArrayList<>();
+        List<Long> section = null;
+        for (long number : offsets.keySet()) {
+            if (section == null || section.get(section.size() - 1) != number - 1) {
+                section = new ArrayList<>();
+                sections.add(section);
+            }
+            section.add(number);
+        }
+        return sections;
+    }
+
+    private COSDictionary updatedTrailer(long size) {
+        COSDictionary updatedTrailer = new COSDictionary();
+        updatedTrailer.setLong(COSName.SIZE, size);
+        updatedTrailer.setLong(COSName.PREV, parser.getStartXref());
+        updatedTrailer.setItem(COSName.ROOT, trailer.getItem(COSName.ROOT));
+        updatedTrailer.setItem(COSName.INFO, trailer.getItem(COSName.INFO));
+        updatedTrailer.setItem(COSName.ID, trailer.getItem(COSName.ID));
+        return updatedTrailer;
+    }
+
+    private void visitChildren(COSBase value) {
+        if (value instanceof COSDictionary) {
+            for (COSBase child : ((COSDictionary) value).getValues()) {
+                register(child);
+            }
+        } else if (value instanceof COSArray) {
+            for (COSBase child : (COSArray) value) {
+                register(child);
+            }
+        }
+    }
+
+    /**
+     * Queues a new object written as an indirect object, walks through a value written inline. Objects of the base
+     * document are only referenced.
+     */
+    private void register(COSBase value) {
+        if (value instanceof COSObject && parser.isBaseObject((COSObject) value)) {
+            return;
+        }
+        COSBase target = newIndirectTarget(value);
+        if (target == null) {
+            if (!(value instanceof COSObject) && !baseKeys.containsKey(value)) {
+                visitChildren(value);
+            }
+        } else if (!numbers.containsKey(target)) {
+            numbers.put(target, null);
+            newObjects.add(target);
+            pending.add(target);
+        }
+    }
+
+    /**
+     * @return the new object to reference when the value is written as an indirect object, {@code null} when it
+     *         is written inline or is an object of the base document
+     */
+    private COSBase newIndirectTarget(COSBase value) {
+        COSBase target = value;
+        if (value instanceof COSObject) {
+            target = ((COSObject) value).getObject();
+            if (target == null || target instanceof COSNull) {
+                return null;
+            }
+        } else if (!(value instanceof COSStream || value instanceof COSDictionary && !value.isDirect())) {
+            return null;
+        }
+        return baseKeys.containsKey(target) ? null : target;
+    }
+
+    private COSObjectKey keyOf(COSBase value) {
+        if (value instanceof COSObject && parser.isBaseObject((COSObject) value)) {
+            return new COSObjectKey((COSObject) value);
+        }
+        COSBase target = value instanceof COSObject ? ((COSObject) value).getObject() : value;
+        COSObjectKey baseKey = target != null ? baseKeys.get(target) : null;
+        if (baseKey != null) {
+            return baseKey;
+        }
+        target = newIndirectTarget(value);
+        return target != null ? new COSObjectKey(numbers.get(target), 0) : null;
+    }
+
+    /**
+     * Parses a reference to an object of the base document, once.
+     */
+    private COSBase resolve(COSBase value) throws IOException {
+        if (!(value instanceof COSObject)) {
+            return value;
+        }
+        COSObject object = (COSObject) value;
+        COSBase resolved = object.getObject() != null ? object.getObject() : parser.parse(object);
+        if (resolved == null || resolved instanceof COSNull) {
+            return null;
+        }
+        baseKeys.putIfAbsent(resolved, new COSObjectKey(object));
+        return resolved;
+    }
+
+    private COSDictionary resolveIndirectDictionary(COSBase value, String description) throws IOException {
+        COSBase resolved = resolve(value);
+        if (!(resolved instanceof COSDictionary) || !baseKeys.containsKey(resolved)) {
+            throw new IOException(String.format("The %s of the document is not an indirect dictionary", description));
+        }
+        return (COSDictionary) resolved;
+    }
+
+    private static COSDictionary asDictionary(COSBase value) {
+        return value instanceof COSDictionary ? (COSDictionary) value : null;
+    }
+
+    /**
+     * Rewrites an object of the base document in the update. New objects are written anyway.
+     */
+    private void markUpdated(COSBase object) {
+        COSObjectKey key = baseKeys.get(object);
+        if (key != null) {
+            updated.put(key.getNumber(), object);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            parser.close();
+        } finally {
+            base.close();
+        }
+    }
+
+    /**
+     * Parser reading the cross-reference sections of a document, then only the objects asked for.
+     */
+    private static class UpdateParser extends COSParser {
+
+        UpdateParser(RandomAccessRead source) throws IOException {
+            super(source, "", null, null);
+            fileLen = source.length();
+            document = new COSDocument(ScratchFile.getMainMemoryOnlyInstance());
+        }
+
+        COSDictionary parseTrailer() throws IOException {
+            return retrieveTrailer();
+        }
+
+        COSBase parse(COSObject object) throws IOException {
+            return parseObjectDynamically(object, false);
+        }
+
+        boolean isBaseObject(COSObject object) {
+            try {
+                return document.getObjectFromPool(new COSObjectKey(object)) == object;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        long getStartXref() {
+            return document.getStartXref();
+        }
+
+        boolean isXRefStream() {
+            return document.isXRefStream();
+        }
+
+        long getNextObjectNumber() {
+            long highest = document.getHighestXRefObjectNumber();
+            for (COSObjectKey key : document.getXrefTable().keySet()) {
+                highest = Math.max(highest, key.getNumber());
+            }
+            return highest + 1;
+        }
+
+        void close() throws IOException {
+            document.close();
+        }
+    }
+
+    /**
+     * Tracks the offset of the next byte.
+     */
+    private static class PositionOutputStream extends FilterOutputStream {
+
+        private long position;
+
+        PositionOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            position++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            position += len;
+        }
+
+        long getPosition() {
+            return position;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.bonitasoft.presales.connector.mergepdf;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram with 1-2-5 buckets from 1 ms to about 17 minutes.
+ * <p>
+ * Percentiles are reported as the upper bound of the bucket they fall in, capped by the largest value
+ * recorded, which is precise enough to tell a 200 ms merge from a 2 s one.
+ * <p>
+ * The bucket counts, the count, the sum and the maximum are kept in one {@link AtomicLongArray}, which
+ * can be shared by copies of the histogram loaded by different class loaders.
+ */
+class LatencyHistogram {
+
+    private static final long[] BUCKET_BOUNDS_MILLIS = createBounds();
+
+    private static final int COUNT = BUCKET_BOUNDS_MILLIS.length + 1;
+    private static final int SUM_NANOS = COUNT + 1;
+    private static final int MAX_NANOS = SUM_NANOS + 1;
+
+    private final AtomicLongArray values;
+
+    LatencyHistogram() {
+        this(newValues());
+    }
+
+    LatencyHistogram(AtomicLongArray values) {
+        this.values = values;
+    }
+
+    static AtomicLongArray newValues() {
+        return new AtomicLongArray(MAX_NANOS + 1);
+    }
+
+    void record(long nanos) {
+        long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+        int bucket = 0;
+        while (bucket < BUCKET_BOUNDS_MILLIS.length && millis > BUCKET_BOUNDS_MILLIS[bucket]) {
+            bucket++;
+        }
+        values.incrementAndGet(bucket);
+        values.incrementAndGet(COUNT);
+        values.addAndGet(SUM_NANOS, nanos);
+        values.accumulateAndGet(MAX_NANOS, nanos, Math::max);
+    }
+
+    PhaseStatistics snapshot() {
+        long total = values.get(COUNT);
+        long max = TimeUnit.NANOSECONDS.toMillis(values.get(MAX_NANOS));
+        double mean = total == 0 ? 0 : values.get(SUM_NANOS) / (double) total / TimeUnit.MILLISECONDS.toNanos(1);
+        return new PhaseStatistics(total, mean, percentile(0.50, total, max), percentile(0.90, total, max),
+                percentile(0.99, total, max), max);
+    }
+
+    private long percentile(double fraction, long total, long max) {
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(fraction * total);
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKET_BOUNDS_MILLIS.length; bucket++) {
+            seen += values.get(bucket);
+            if (seen >= rank) {
+                return Math.min(BUCKET_BOUNDS_MILLIS[bucket], max);
+            }
+        }
+        return max;
+    }
+
+    private static long[] createBounds() {
+        long[] bounds = new long[19];
+        long decade = 1;
+        for (int i = 0; i < bounds.length; i++) {
+            bounds[i] = decade * new long[] { 1, 2, 5 }[i % 3];
+            if (i % 3 == 2) {
+                decade *= 10;
+            }
+        }
+        return bounds;
+    }
+}
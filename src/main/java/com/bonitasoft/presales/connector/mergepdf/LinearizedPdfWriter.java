@@ -0,0 +1,599 @@
+package com.bonitasoft.presales.connector.mergepdf;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSInteger;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSObjectKey;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.cos.COSString;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageTree;
+import org.apache.pdfbox.pdmodel.PageMode;
+
+import static com.bonitasoft.presales.connector.mergepdf.CompressedPdfWriter.indirectTarget;
+import static com.bonitasoft.presales.connector.mergepdf.CosSerializer.writeAscii;
+
+/**
+ * Saves a document linearized ("fast web view", ISO 32000-1 Annex F), so that a viewer reading it over a slow
+ * link can display the first page as soon as the beginning of the file has arrived, whatever the size of the
+ * document.
+ * <p>
+ * The file starts with the linearization dictionary, the cross-reference section of the first page, the catalog
+ * with the objects needed to open the document, the hint stream, and the first page with every object it uses.
+ * The other pages follow, each with the objects only it uses, then the objects shared by several pages, the
+ * remaining objects (page tree, outline, structure tree...) and the main cross-reference table. Inherited page
+ * attributes are copied onto the pages beforehand, so that no page depends on the page tree.
+ * <p>
+ * Objects are numbered as by {@link CompressedPdfWriter} but streams are written as they are. In the hint tables,
+ * every shared object is a group of its own and the content stream of a page is described by the whole page, as
+ * most writers do.
+ */
+class LinearizedPdfWriter {
+
+    private static final float MIN_VERSION = 1.2f;
+
+    private static final byte[] BINARY_COMMENT = { '%', (byte) 0xE2, (byte) 0xE3, (byte) 0xCF, (byte) 0xD3, '\n' };
+    private static final byte[] STREAM_END = "\nendstream\nendobj\n".getBytes(StandardCharsets.ISO_8859_1);
+
+    /** Width of the values of the linearization dictionary and first-page trailer, written before they are known. */
+    private static final String RESERVED = "%-10d";
+
+    /** Catalog entries a viewer reads when it opens the document. */
+    private static final COSName[] OPEN_DOCUMENT_KEYS = { COSName.VIEWER_PREFERENCES, COSName.OPEN_ACTION,
+            COSName.ACRO_FORM };
+    private static final COSName[] INHERITABLE_KEYS = { COSName.RESOURCES, COSName.MEDIA_BOX, COSName.CROP_BOX,
+            COSName.ROTATE };
+
+    /**
+     * An indirect object, serialized except for the data of a stream, with its offset in the file as the hint
+     * tables count it, i.e. as if there were no hint stream.
+     */
+    private static class Body {
+
+        private final byte[] head;
+        private final COSStream stream;
+        private final long length;
+        private long offset;
+
+        Body(byte[] head, COSStream stream, long rawLength) {
+            this.head = head;
+            this.stream = stream;
+            this.length = head.length + (stream != null ? rawLength + STREAM_END.length : 0);
+        }
+    }
+
+    private final Map<COSBase, Integer> numbers = new IdentityHashMap<>();
+    private final CosSerializer serializer = new CosSerializer(value -> {
+        COSBase target = indirectTarget(value);
+        return target != null ? new COSObjectKey(numbers.get(target), 0) : null;
+    });
+    private final MessageDigest digest;
+
+    LinearizedPdfWriter() {
+        try {
+            digest = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 is not available", e);
+        }
+    }
+
+    /**
+     * Writes the document, linearized unless it has no page, as there is no first page to display then.
+     */
+    void write(PDDocument document, OutputStream out) throws IOException {
+        List<COSDictionary> pages = new ArrayList<>();
+        for (PDPage page : document.getPages()) {
+            pages.add(page.getCOSObject());
+        }
+        if (pages.isEmpty()) {
+            document.save(out);
+            return;
+        }
+        pushInheritedAttributes(pages);
+        COSDictionary trailer = document.getDocument().getTrailer();
+        COSDictionary catalog = (COSDictionary) indirectTarget(trailer.getItem(COSName.ROOT));
+        COSBase info = indirectTarget(trailer.getItem(COSName.INFO));
+
+        // pages, page tree nodes and the catalog bound the objects used by a page or to open the document
+        Set<COSBase> stops = identitySet();
+        stops.add(catalog);
+        for (COSDictionary page : pages) {
+            for (COSDictionary node = page; node != null && stops.add(node); ) {
+                node = node.getCOSDictionary(COSName.PARENT);
+            }
+        }
+        List<List<COSBase>> pageObjects = new ArrayList<>();
+        for (COSDictionary page : pages) {
+            List<COSBase> reached = new ArrayList<>();
+            walk(page, stops, identitySet(), reached);
+            pageObjects.add(reached);
+        }
+        List<COSBase> firstPage = pageObjects.get(0);
+        Set<COSBase> placed = identitySet();
+        placed.addAll(firstPage);
+
+        List<COSBase> openDocument = new ArrayList<>();
+        Set<COSBase> openSeen = identitySet();
+        openDocument.add(catalog);
+        openSeen.add(catalog);
+        for (COSName key : OPEN_DOCUMENT_KEYS) {
+            walk(catalog.getItem(key), stops, openSeen, openDocument);
+        }
+        if (document.getDocumentCatalog().getPageMode() == PageMode.USE_OUTLINES) {
+            walk(catalog.getItem(COSName.OUTLINES), stops, openSeen, openDocument);
+        }
+        openDocument.removeIf(placed::contains);
+        placed.addAll(openDocument);
+
+        // the objects of the other pages are either used by one page only or shared
+        Map<COSBase, Integer> owners = new IdentityHashMap<>();
+        for (int i = 1; i < pages.size(); i++) {
+            for (COSBase object : pageObjects.get(i)) {
+                if (!placed.contains(object)) {
+                    owners.merge(object, i, (owner, page) -> owner.equals(page) ? owner : -1);
+                }
+            }
+        }
+        List<List<COSBase>> pageSections = new ArrayList<>();
+        List<COSBase> shared = new ArrayList<>();
+        for (int i = 1; i < pages.size(); i++) {
+            List<COSBase> section = new ArrayList<>();
+            for (COSBase object : pageObjects.get(i)) {
+                Integer owner = owners.get(object);
+                if (owner == null) {
+                    continue;
+                }
+                if (owner == i) {
+                    section.add(object);
+                } else if (owner == -1 && placed.add(object)) {
+                    shared.add(object);
+                }
+            }
+            placed.addAll(section);
+            pageSections.add(section);
+        }
+        List<COSBase> others = new ArrayList<>();
+        Set<COSBase> seen = identitySet();
+        walk(catalog, Set.of(), seen, others);
+        walk(info, Set.of(), seen, others);
+        others.removeIf(placed::contains);
+
+        // parts 7 to 9 come first in the numbering, the first-page section of the file last
+        int number = 1;
+        for (List<COSBase> section : pageSections) {
+            number = assignNumbers(section, number);
+        }
+        number = assignNumbers(shared, number);
+        number = assignNumbers(others, number);
+        int linearizationNumber = number++;
+        number = assignNumbers(openDocument, number);
+        int hintNumber = number++;
+        number = assignNumbers(firstPage, number);
+        int size = number;
+
+        List<Body> openDocumentBodies = prepare(openDocument);
+        List<Body> firstPageBodies = prepare(firstPage);
+        List<List<Body>> pageSectionBodies = new ArrayList<>();
+        for (List<COSBase> section : pageSections) {
+            pageSectionBodies.add(prepare(section));
+        }
+        List<Body> sharedBodies = prepare(shared);
+        List<Body> otherBodies = prepare(others);
+
+        COSBase id = trailer.getDictionaryObject(COSName.ID);
+        if (!(id instanceof COSArray) || ((COSArray) id).size() != 2) {
+            // content-based, so identical merges produce identical files
+            COSString fileId = new COSString(digest.digest());
+            fileId.setForceHexForm(true);
+            COSArray generated = new COSArray();
+            generated.add(fileId);
+            generated.add(fileId);
+            id = generated;
+        }
+
+        // layout as the hint tables count it, without the hint stream
+        float version = Math.max(MIN_VERSION, document.getVersion());
+        byte[] header = String.format(Locale.ROOT, "%%PDF-%.1f\n", version).getBytes(StandardCharsets.ISO_8859_1);
+        long linearizationOffset = header.length + BINARY_COMMENT.length;
+        long firstXrefOffset = linearizationOffset
+                + linearizationObject(linearizationNumber, 0, 0, 0, 0, 0, 0, 0).length;
+        int firstXrefCount = size - linearizationNumber;
+        long position = firstXrefOffset + xrefHeader(linearizationNumber, firstXrefCount).length
+                + 20L * firstXrefCount + firstTrailer(size, 0, catalog, info, id).length;
+        position = layout(openDocumentBodies, position);
+        long hintOffset = position;
+        position = layout(firstPageBodies, position);
+        long firstPageEnd = position;
+        for (List<Body> section : pageSectionBodies) {
+            position = layout(section, position);
+        }
+        position = layout(sharedBodies, position);
+        position = layout(otherBodies, position);
+
+        byte[] hintStream = hintStream(hintNumber, firstPageBodies, pageSectionBodies, pageObjects, firstPage,
+                sharedBodies, shared);
+        long mainXrefOffset = position + hintStream.length;
+        byte[] mainXrefHeader = xrefHeader(0, linearizationNumber);
+        long fileLength = mainXrefOffset + mainXrefHeader.length + 20L * linearizationNumber
+                + mainTrailer(linearizationNumber, firstXrefOffset).length;
+
+        out.write(header);
+        out.write(BINARY_COMMENT);
+        out.write(linearizationObject(linearizationNumber, fileLength, hintOffset, hintStream.length,
+                numbers.get(pages.get(0)), firstPageEnd + hintStream.length, pages.size(),
+                mainXrefOffset + mainXrefHeader.length - 1));
+        out.write(xrefHeader(linearizationNumber, firstXrefCount));
+        writeXrefEntry(linearizationOffset, out);
+        writeXrefEntries(openDocumentBodies, 0, out);
+        writeXrefEntry(hintOffset, out);
+        writeXrefEntries(firstPageBodies, hintStream.length, out);
+        out.write(firstTrailer(size, mainXrefOffset, catalog, info, id));
+        writeBodies(openDocumentBodies, out);
+        out.write(hintStream);
+        writeBodies(firstPageBodies, out);
+        for (List<Body> section : pageSectionBodies) {
+            writeBodies(section, out);
+        }
+        writeBodies(sharedBodies, out);
+        writeBodies(otherBodies, out);
+
+        out.write(mainXrefHeader);
+        writeAscii("0000000000 65535 f\r\n", out);
+        for (List<Body> section : pageSectionBodies) {
+            writeXrefEntries(section, hintStream.length, out);
+        }
+        writeXrefEntries(sharedBodies, hintStream.length, out);
+        writeXrefEntries(otherBodies, hintStream.length, out);
+        out.write(mainTrailer(linearizationNumber, firstXrefOffset));
+        out.flush();
+    }
+
+    private static void pushInheritedAttributes(List<COSDictionary> pages) {
+        for (COSDictionary page : pages) {
+            for (COSName key : INHERITABLE_KEYS) {
+                if (page.getItem(key) == null) {
+                    COSBase inherited = PDPageTree.getInheritableAttribute(page, key);
+                    if (inherited != null) {
+                        page.setItem(key, inherited);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds to {@code reached}, breadth first, the objects written as indirect objects that can be reached from
+     * {@code value} without going through a stop, {@code value} included.
+     */
+    private static void walk(COSBase value, Set<COSBase> stops, Set<COSBase> seen, List<COSBase> reached) {
+        if (value == null) {
+            return;
+        }
+        Deque<COSBase> pending = new ArrayDeque<>();
+        COSBase target = indirectTarget(value);
+        if (target == null) {
+            pending.add(value);
+        } else if (seen.add(target)) {
+            reached.add(target);
+            pending.add(target);
+        }
+        while (!pending.isEmpty()) {
+            COSBase current = pending.poll();
+            Iterable<COSBase> children;
+            if (current instanceof COSDictionary) {
+                children = ((COSDictionary) current).getValues();
+            } else if (current instanceof COSArray) {
+                children = (COSArray) current;
+            } else {
+                continue;
+            }
+            for (COSBase child : children) {
+                COSBase childTarget = indirectTarget(child);
+                if (childTarget == null) {
+                    if (child instanceof COSDictionary || child instanceof COSArray) {
+                        pending.add(child);
+                    }
+                } else if (!stops.contains(childTarget) && seen.add(childTarget)) {
+                    reached.add(childTarget);
+                    pending.add(childTarget);
+                }
+            }
+        }
+    }
+
+    private int assignNumbers(List<COSBase> objects, int first) {
+        int number = first;
+        for (COSBase object : objects) {
+            numbers.put(object, number++);
+        }
+        return number;
+    }
+
+    private List<Body> prepare(List<COSBase> objects) throws IOException {
+        List<Body> bodies = new ArrayList<>(objects.size());
+        for (COSBase object : objects) {
+            ByteArrayOutputStream head = new ByteArrayOutputStream();
+            writeAscii(numbers.get(object) + " 0 obj\n", head);
+            if (object instanceof COSStream) {
+                COSStream stream = (COSStream) object;
+                long rawLength = 0;
+                try (InputStream input = stream.createRawInputStream()) {
+                    byte[] buffer = new byte[8192];
+                    for (int read = input.read(buffer); read != -1; read = input.read(buffer)) {
+                        digest.update(buffer, 0, read);
+                        rawLength += read;
+                    }
+                }
+                serializer.writeDictionary(stream, Map.of(COSName.LENGTH, COSInteger.get(rawLength)), head);
+                writeAscii("stream\r\n", head);
+                bodies.add(new Body(head.toByteArray(), stream, rawLength));
+            } else {
+                serializer.writeDirect(object, head);
+                writeAscii("\nendobj\n", head);
+                bodies.add(new Body(head.toByteArray(), null, 0));
+            }
+            digest.update(head.toByteArray());
+        }
+        return bodies;
+    }
+
+    private static long layout(List<Body> bodies, long position) {
+        for (Body body : bodies) {
+            body.offset = position;
+            position += body.length;
+        }
+        return position;
+    }
+
+    /**
+     * Builds the primary hint stream: the page offset hint table, then the shared object hint table (ISO 32000-1
+     * F.4), every offset counted without the hint stream. Each item of the tables starts on a byte boundary.
+     */
+    private byte[] hintStream(int number, List<Body> firstPageBodies, List<List<Body>> pageSectionBodies,
+            List<List<COSBase>> pageObjects, List<COSBase> firstPage, List<Body> sharedBodies, List<COSBase> shared)
+            throws IOException {
+        Map<COSBase, Integer> sharedIds = new IdentityHashMap<>();
+        for (COSBase object : firstPage) {
+            sharedIds.put(object, sharedIds.size());
+        }
+        for (COSBase object : shared) {
+            sharedIds.put(object, sharedIds.size());
+        }
+        int pageCount = pageObjects.size();
+        long[] objectCounts = new long[pageCount];
+        long[] lengths = new long[pageCount];
+        List<List<Integer>> references = new ArrayList<>();
+        objectCounts[0] = firstPageBodies.size();
+        lengths[0] = totalLength(firstPageBodies);
+        references.add(List.of());
+        for (int i = 1; i < pageCount; i++) {
+            List<Body> section = pageSectionBodies.get(i - 1);
+            objectCounts[i] = section.size();
+            lengths[i] = totalLength(section);
+            List<Integer> ids = new ArrayList<>();
+            for (COSBase object : pageObjects.get(i)) {
+                Integer id = sharedIds.get(object);
+                if (id != null) {
+                    ids.add(id);
+                }
+            }
+            references.add(ids);
+        }
+        long minObjects = min(objectCounts);
+        long minLength = min(lengths);
+        int objectBits = bits(max(objectCounts) - minObjects);
+        int lengthBits = bits(max(lengths) - minLength);
+        int referenceCountBits = bits(references.stream().mapToInt(List::size).max().orElse(0));
+        int idBits = bits(Math.max(0, sharedIds.size() - 1));
+
+        BitWriter hints = new BitWriter();
+        hints.write(minObjects, 32);
+        hints.write(firstPageBodies.get(0).offset, 32);
+        hints.write(objectBits, 16);
+        hints.write(minLength, 32);
+        hints.write(lengthBits, 16);
+        hints.write(0, 32);
+        hints.write(0, 16);
+        hints.write(minLength, 32);
+        hints.write(lengthBits, 16);
+        hints.write(referenceCountBits, 16);
+        hints.write(idBits, 16);
+        hints.write(0, 16);
+        hints.write(1, 16);
+        for (long objectCount : objectCounts) {
+            hints.write(objectCount - minObjects, objectBits);
+        }
+        hints.align();
+        for (long length : lengths) {
+            hints.write(length - minLength, lengthBits);
+        }
+        hints.align();
+        for (List<Integer> ids : references) {
+            hints.write(ids.size(), referenceCountBits);
+        }
+        hints.align();
+        for (List<Integer> ids : references) {
+            for (int id : ids) {
+                hints.write(id, idBits);
+            }
+        }
+        hints.align();
+        // no fractional positions nor content stream offsets: both take no bits
+        for (long length : lengths) {
+            hints.write(length - minLength, lengthBits);
+        }
+        hints.align();
+
+        int sharedTableOffset = hints.size();
+        List<Body> groups = new ArrayList<>(firstPageBodies);
+        groups.addAll(sharedBodies);
+        long[] groupLengths = groups.stream().mapToLong(body -> body.length).toArray();
+        long minGroupLength = min(groupLengths);
+        int groupLengthBits = bits(max(groupLengths) - minGroupLength);
+        hints.write(shared.isEmpty() ? 0 : numbers.get(shared.get(0)), 32);
+        hints.write(sharedBodies.isEmpty() ? 0 : sharedBodies.get(0).offset, 32);
+        hints.write(firstPageBodies.size(), 32);
+        hints.write(groups.size(), 32);
+        hints.write(0, 16);
+        hints.write(minGroupLength, 32);
+        hints.write(groupLengthBits, 16);
+        for (long groupLength : groupLengths) {
+            hints.write(groupLength - minGroupLength, groupLengthBits);
+        }
+        hints.align();
+        for (int i = 0; i < groups.size(); i++) {
+            hints.write(0, 1);
+        }
+        hints.align();
+
+        byte[] data = CompressedPdfWriter.deflate(hints.toByteArray());
+        ByteArrayOutputStream hintStream = new ByteArrayOutputStream(data.length + 100);
+        writeAscii(String.format(Locale.ROOT, "%d 0 obj\n<</S %d\n/Filter /FlateDecode\n/Length %d>>stream\r\n",
+                number, sharedTableOffset, data.length), hintStream);
+        hintStream.write(data);
+        hintStream.write(STREAM_END);
+        return hintStream.toByteArray();
+    }
+
+    private static byte[] linearizationObject(int number, long fileLength, long hintOffset, long hintLength,
+            int firstPageNumber, long firstPageEnd, int pageCount, long mainXrefEntries) {
+        return String.format(Locale.ROOT, "%d 0 obj\n<</Linearized 1\n/L " + RESERVED + "\n/H [" + RESERVED + " "
+                        + RESERVED + "]\n/O " + RESERVED + "\n/E " + RESERVED + "\n/N " + RESERVED + "\n/T "
+                        + RESERVED + ">>\nendobj\n", number, fileLength, hintOffset, hintLength, firstPageNumber,
+                firstPageEnd, pageCount, mainXrefEntries).getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private byte[] firstTrailer(int size, long mainXrefOffset, COSBase catalog, COSBase info, COSBase id)
+            throws IOException {
+        ByteArrayOutputStream trailer = new ByteArrayOutputStream();
+        writeAscii(String.format(Locale.ROOT, "trailer\n<</Size %d\n/Prev " + RESERVED + "\n", size,
+                mainXrefOffset), trailer);
+        serializer.writeEntry(COSName.ROOT, catalog, trailer);
+        serializer.writeEntry(COSName.INFO, info, trailer);
+        serializer.writeEntry(COSName.ID, id, trailer);
+        // the first page is found through the linearization dictionary, not through startxref
+        writeAscii(">>\nstartxref\n0\n%%EOF\n", trailer);
+        return trailer.toByteArray();
+    }
+
+    private static byte[] mainTrailer(int size, long firstXrefOffset) {
+        return String.format(Locale.ROOT, "trailer\n<</Size %d>>\nstartxref\n%d\n%%%%EOF\n", size, firstXrefOffset)
+                .getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private static byte[] xrefHeader(int first, int count) {
+        return String.format(Locale.ROOT, "xref\n%d %d\n", first, count).getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private static void writeXrefEntries(List<Body> bodies, long shift, OutputStream out) throws IOException {
+        for (Body body : bodies) {
+            writeXrefEntry(body.offset + shift, out);
+        }
+    }
+
+    private static void writeXrefEntry(long offset, OutputStream out) throws IOException {
+        writeAscii(String.format(Locale.ROOT, "%010d 00000 n\r\n", offset), out);
+    }
+
+    private static void writeBodies(List<Body> bodies, OutputStream out) throws IOException {
+        for (Body body : bodies) {
+            out.write(body.head);
+            if (body.stream != null) {
+                try (InputStream input = body.stream.createRawInputStream()) {
+                    input.transferTo(out);
+                }
+                out.write(STREAM_END);
+            }
+        }
+    }
+
+    private static long totalLength(List<Body> bodies) {
+        return bodies.stream().mapToLong(body -> body.length).sum();
+    }
+
+    private static long min(long[] values) {
+        long min = Long.MAX_VALUE;
+        for (long value : values) {
+            min = Math.min(min, value);
+        }
+        return values.length == 0 ? 0 : min;
+    }
+
+    private static long max(long[] values) {
+        long max = 0;
+        for (long value : values) {
+            max = Math.max(max, value);
+        }
+        return max;
+    }
+
+    /**
+     * @return number of bits needed to write the value
+     */
+    private static int bits(long value) {
+        return 64 - Long.numberOfLeadingZeros(value);
+    }
+
+    private static Set<COSBase> identitySet() {
+        return Collections.newSetFromMap(new IdentityHashMap<>());
+    }
+
+    /**
+     * Packs values most significant bit first.
+     */
+    private static class BitWriter {
+
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private int pending;
+        private int pendingBits;
+
+        void write(long value, int bits) {
+            for (int bit = bits - 1; bit >= 0; bit--) {
+                pending = pending << 1 | (int) (value >>> bit & 1);
+                if (++pendingBits == 8) {
+                    bytes.write(pending);
+                    pending = 0;
+                    pendingBits = 0;
+                }
+            }
+        }
+
+        /**
+         * Pads the last byte with zero bits.
+         */
+        void align() {
+            if (pendingBits > 0) {
+                write(0, 8 - pendingBits);
+            }
+        }
+
+        int size() {
+            return bytes.size();
+        }
+
+        byte[] toByteArray() {
+            align();
+            return bytes.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package com.bonitasoft.presales.connector.mergepdf;
+
+import java.util.Locale;
+
+/**
+ * How PDFBox buffers the source documents and the merge destination while merging.
+ */
+public enum MemoryStrategy {
+
+    /**
+     * Keep everything on the heap while the fetched input fits in the main memory budget,
+     * spill to temporary files once it does not.
+     */
+    AUTO,
+
+    /**
+     * Keep everything on the heap (historical behaviour).
+     */
+    MAIN_MEMORY_ONLY,
+
+    /**
+     * Use the heap up to the main memory budget, then spill to temporary files.
+     */
+    MIXED,
+
+    /**
+     * Buffer everything in temporary files.
+     */
+    TEMP_FILE_ONLY;
+
+    /**
+     * Parses a connector input value, {@code null} or blank meaning {@link #AUTO}.
+     *
+     * @throws IllegalArgumentException if the value does not name a strategy
+     */
+    static MemoryStrategy fromInput(String value) {
+        if (value == null || value.trim().isEmpty()) {
+            return AUTO;
+        }
+        return valueOf(value.trim().toUpperCase(Locale.ROOT));
+    }
+
+    boolean spillsToDisk() {
+        return this == MIXED || this == TEMP_FILE_ONLY;
+    }
+}
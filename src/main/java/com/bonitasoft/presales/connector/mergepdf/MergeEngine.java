@@ -0,0 +1,33 @@
+package com.bonitasoft.presales.connector.mergepdf;
+
+import java.util.Locale;
+
+/**
+ * How the pages of the source documents are brought into the merged document.
+ */
+public enum MergeEngine {
+
+    /**
+     * PDFBox {@code PDFMergerUtility}: deep copy of the pages, with outlines, forms, structure tree, page labels,
+     * named destinations and metadata merged (historical behaviour).
+     */
+    FULL,
+
+    /**
+     * Page-level import without copying, plus only the document-level features switched on by the
+     * {@code keep*} inputs.
+     */
+    FAST;
+
+    /**
+     * Parses a connector input value, {@code null} or blank meaning {@link #FULL}.
+     *
+     * @throws IllegalArgumentException if the value does not name an engine
+     */
+    static MergeEngine fromInput(String value) {
+        if (value == null || value.trim().isEmpty()) {
+            return FULL;
+        }
+        return valueOf(value.trim().toUpperCase(Locale.ROOT));
+    }
+}
@@ -0,0 +1,215 @@
+package com.bonitasoft.presales.connector.mergepdf;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JVM-wide admission control of the merges, against a budget of estimated heap bytes.
+ * <p>
+ * A merge asks for its estimated footprint once its sources are fetched, and holds it until the merged
+ * document is written. Merges that do not fit wait in arrival order, so a large merge is not starved by a
+ * stream of small ones, and give up after {@code mergepdf.governor.timeoutMillis} ({@code 0} rejects them
+ * right away). A footprint larger than the whole budget is admitted alone.
+ * <p>
+ * The budget is {@code mergepdf.governor.maxBytes}, half of the maximum heap by default; a budget of
+ * {@code 0} or less turns admission control off.
+ * <p>
+ * The budget is shared by every copy of the connector loaded in the JVM, through {@link SharedState}: the
+ * waiting queue doubles as the lock of the budget, and the counters are kept in a {@code long[]}, so that
+ * copies loaded by different class loaders can use them alike.
+ */
+class MergeGovernor {
+
+    static final String MAX_BYTES_PROPERTY = "mergepdf.governor.maxBytes";
+    static final String TIMEOUT_PROPERTY = "mergepdf.governor.timeoutMillis";
+
+    static final long DEFAULT_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    private static final String SHARED_STATE_NAME = "MergeGovernor";
+
+    private static final int MAX_BYTES = 0;
+    private static final int USED_BYTES = 1;
+    private static final int PEAK_USED_BYTES = 2;
+    private static final int RUNNING = 3;
+    private static final int REJECTED = 4;
+
+    private static MergeGovernor instance;
+
+    private final long maxBytes;
+    private final long timeoutMillis;
+
+    private final Deque<Object> queue;
+    private final long[] counters;
+    private volatile Runnable listener = () -> { };
+
+    static synchronized MergeGovernor getInstance() {
+        if (instance == null) {
+            long maxBytes = Long.getLong(MAX_BYTES_PROPERTY, Runtime.getRuntime().maxMemory() / 2);
+            instance = new MergeGovernor(SharedState.get(SHARED_STATE_NAME, Object[].class, () -> newState(maxBytes)),
+                    Long.getLong(TIMEOUT_PROPERTY, DEFAULT_TIMEOUT_MILLIS));
+        }
+        return instance;
+    }
+
+    MergeGovernor(long maxBytes, long timeoutMillis) {
+        this(newState(maxBytes), timeoutMillis);
+    }
+
+    @SuppressWarnings("unchecked")
+    private MergeGovernor(Object[] state, long timeoutMillis) {
+        this.queue = (Deque<Object>) state[0];
+        this.counters = (long[]) state[1];
+        this.maxBytes = counters[MAX_BYTES];
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    private static Object[] newState(long maxBytes) {
+        long[] counters = new long[REJECTED + 1];
+        counters[MAX_BYTES] = maxBytes;
+        return new Object[] { new ArrayDeque<>(), counters };
+    }
+
+    /**
+     * Waits until the estimated footprint of a merge fits in the budget.
+     *
+     * @throws IOException if the merge is not admitted in time, or the thread is interrupted while waiting
+     */
+    Permit acquire(long estimatedBytes) throws IOException {
+        if (maxBytes <= 0) {
+            return new Permit(0);
+        }
+        try {
+            return admit(Math.min(Math.max(estimatedBytes, 0), maxBytes), estimatedBytes);
+        } finally {
+            listener.run();
+        }
+    }
+
+    private Permit admit(long requested, long estimatedBytes) throws IOException {
+        Object ticket = new Object();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        synchronized (queue) {
+            if (queue.isEmpty() && fits(requested)) {
+                return grant(requested);
+            }
+            if (timeoutMillis <= 0) {
+                throw reject(estimatedBytes);
+            }
+            queue.addLast(ticket);
+        }
+        try {
+            listener.run();
+            synchronized (queue) {
+                while (queue.peekFirst() != ticket || !fits(requested)) {
+                    long remainingMillis = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                    if (remainingMillis <= 0) {
+                        throw reject(estimatedBytes);
+                    }
+                    queue.wait(remainingMillis);
+                }
+                return grant(requested);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for merge admission");
+        } finally {
+            synchronized (queue) {
+                queue.remove(ticket);
+                queue.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Runs the listener after each change of the budget in use or of the queue, outside the lock of the budget.
+     */
+    void onChange(Runnable listener) {
+        this.listener = listener;
+    }
+
+    private boolean fits(long requested) {
+        return counters[USED_BYTES] + requested <= maxBytes;
+    }
+
+    private Permit grant(long requested) {
+        counters[USED_BYTES] += requested;
+        counters[PEAK_USED_BYTES] = Math.max(counters[PEAK_USED_BYTES], counters[USED_BYTES]);
+        counters[RUNNING]++;
+        return new Permit(requested);
+    }
+
+    private IOException reject(long estimatedBytes) {
+        counters[REJECTED]++;
+        return new IOException(String.format("Merge of an estimated %d bytes not admitted within %d ms: "
+                        + "%d of %d bytes in use by %d merges, %d waiting (see %s and %s)",
+                estimatedBytes, timeoutMillis, counters[USED_BYTES], maxBytes, counters[RUNNING], queue.size(),
+                MAX_BYTES_PROPERTY, TIMEOUT_PROPERTY));
+    }
+
+    private void release(long bytes) {
+        synchronized (queue) {
+            counters[USED_BYTES] -= bytes;
+            counters[RUNNING]--;
+            queue.notifyAll();
+        }
+        listener.run();
+    }
+
+    long getMaxBytes() {
+        return maxBytes;
+    }
+
+    long getUsedBytes() {
+        synchronized (queue) {
+            return counters[USED_BYTES];
+        }
+    }
+
+    long getPeakUsedBytes() {
+        synchronized (queue) {
+            return counters[PEAK_USED_BYTES];
+        }
+    }
+
+    int getRunningCount() {
+        synchronized (queue) {
+            return (int) counters[RUNNING];
+        }
+    }
+
+    int getQueuedCount() {
+        synchronized (queue) {
+            return queue.size();
+        }
+    }
+
+    long getRejectedCount() {
+        synchronized (queue) {
+            return counters[REJECTED];
+        }
+    }
+
+    /**
+     * Share of the budget held by one merge, given back on {@link #close()}.
+     */
+    class Permit implements AutoCloseable {
+
+        private final long bytes;
+        private boolean released;
+
+        private Permit(long bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public void close() {
+            if (!released && maxBytes > 0) {
+                released = true;
+                release(bytes);
+            }
+        }
+    }
+}
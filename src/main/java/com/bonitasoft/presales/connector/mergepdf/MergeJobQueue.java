@@ -0,0 +1,478 @@
+package com.bonitasoft.presales.connector.mergepdf;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.ObjectInputFilter;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * JVM-wide queue of the merges run in the background for the {@link ExecutionMode#SUBMIT} and
+ * {@link ExecutionMode#COLLECT} execution modes.
+ * <p>
+ * Merges run on {@code mergepdf.jobs.threads} threads of their own, so that a long merge never holds a thread of
+ * the engine work executor. At most {@code mergepdf.jobs.maxQueueDepth} merges wait for a thread: further
+ * submissions are rejected right away rather than piling up on the heap. The outputs of a finished merge are written
+ * to a file of {@code mergepdf.jobs.directory}, named after the job id, and deleted once collected. While a merge is
+ * queued or running, a marker file named after the job id tells its state, so that any queue working on the same
+ * directory (another node, another class loader, the same JVM after a reload) can report it; the JVM running the
+ * merge touches the marker every minute. A finished merge can be collected after an engine restart.
+ * <p>
+ * The contents a merge needs are fetched while the submitting execution still runs, since the engine API is only
+ * valid within it, and wait for the merge in a source directory of its own, which the merge deletes.
+ * <p>
+ * Results that are never collected are deleted after {@code mergepdf.jobs.retentionMillis}. Partial files left by a
+ * JVM that stopped while writing a result, and markers of merges lost with the JVM that ran them, are deleted once
+ * they are stale. Both are checked when the queue is created and at each submission.
+ * <p>
+ * The directory holds business documents: on POSIX file systems, the queue creates it and every file in it readable
+ * by the owner of the engine process only.
+ */
+class MergeJobQueue {
+
+    private static final Logger LOGGER = Logger.getLogger(MergeJobQueue.class.getName());
+
+    static final String THREADS_PROPERTY = "mergepdf.jobs.threads";
+    static final String MAX_QUEUE_DEPTH_PROPERTY = "mergepdf.jobs.maxQueueDepth";
+    static final String DIRECTORY_PROPERTY = "mergepdf.jobs.directory";
+    static final String RETENTION_PROPERTY = "mergepdf.jobs.retentionMillis";
+
+    static final int DEFAULT_THREADS = 2;
+    static final int DEFAULT_MAX_QUEUE_DEPTH = 16;
+    static final long DEFAULT_RETENTION_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+    /** A partial file or a marker left alone for this long belongs to a JVM that stopped. */
+    static final long STALE_PART_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    /** The markers of the merges still queued or running are touched this often. */
+    static final long MARKER_REFRESH_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    /** A collector polls the markers of a merge run by another queue this often. */
+    private static final long MARKER_POLL_MILLIS = 250;
+
+    private static final String RESULT_SUFFIX = ".result";
+    private static final String FAILURE_SUFFIX = ".failed";
+    private static final String PART_SUFFIX = ".part";
+    private static final String QUEUED_SUFFIX = ".queued";
+    private static final String RUNNING_SUFFIX = ".running";
+    private static final String SOURCES_SUFFIX = ".sources";
+    private static final Pattern JOB_ID = Pattern.compile("[0-9a-f]{8}(-[0-9a-f]{4}){3}-[0-9a-f]{12}");
+
+    /**
+     * Outputs are maps of strings, numbers, booleans, lists and maps of document values. Maps and lists check the
+     * arrays they are about to allocate, of {@code Map.Entry} and {@code Object}.
+     */
+    private static final ObjectInputFilter OUTPUTS_FILTER = ObjectInputFilter.Config.createFilter(
+            "java.util.HashMap;java.util.LinkedHashMap;java.util.Map$Entry;java.util.ArrayList;java.lang.Object;"
+                    + "java.lang.String;java.lang.Boolean;"
+                    + "java.lang.Number;java.lang.Integer;java.lang.Long;"
+                    + "org.bonitasoft.engine.bpm.document.DocumentValue;!*");
+
+    private static final Set<PosixFilePermission> OWNER_ONLY_DIRECTORY = PosixFilePermissions.fromString("rwx------");
+    private static final Set<PosixFilePermission> OWNER_ONLY_FILE = PosixFilePermissions.fromString("rw-------");
+
+    enum Status {
+        QUEUED, RUNNING, DONE
+    }
+
+    /**
+     * State of a job when it is collected, with its outputs once it is {@link Status#DONE}.
+     */
+    static class Collected {
+
+        private final Status status;
+        private final Map<String, Object> outputs;
+
+        Collected(Status status, Map<String, Object> outputs) {
+            this.status = status;
+            this.outputs = outputs;
+        }
+
+        Status getStatus() {
+            return status;
+        }
+
+        /**
+         * @return the output parameters of the merge, {@code null} until it is done
+         */
+        Map<String, Object> getOutputs() {
+            return outputs;
+        }
+    }
+
+    private static class Job {
+
+        private final FutureTask<Void> task;
+        private volatile Status status = Status.QUEUED;
+
+        Job(FutureTask<Void> task) {
+            this.task = task;
+        }
+    }
+
+    private static MergeJobQueue instance;
+
+    private final Path directory;
+    private final long retentionMillis;
+    private final ThreadPoolExecutor executor;
+    private final Map<String, Job> jobs = new ConcurrentHashMap<>();
+    private ScheduledExecutorService markerRefresher;
+
+    static synchronized MergeJobQueue getInstance() {
+        if (instance == null) {
+            String directory = System.getProperty(DIRECTORY_PROPERTY);
+            instance = new MergeJobQueue(Integer.getInteger(THREADS_PROPERTY, DEFAULT_THREADS),
+                    Integer.getInteger(MAX_QUEUE_DEPTH_PROPERTY, DEFAULT_MAX_QUEUE_DEPTH),
+                    directory != null && !directory.trim().isEmpty() ? Paths.get(directory.trim())
+                            : Paths.get(System.getProperty("java.io.tmpdir"), "merge-pdf-jobs"),
+                    Long.getLong(RETENTION_PROPERTY, DEFAULT_RETENTION_MILLIS));
+        }
+        return instance;
+    }
+
+    MergeJobQueue(int threads, int maxQueueDepth, Path directory, long retentionMillis) {
+        this.directory = directory;
+        this.retentionMillis = retentionMillis;
+        BlockingQueue<Runnable> queue = maxQueueDepth > 0 ? new ArrayBlockingQueue<>(maxQueueDepth)
+                : new SynchronousQueue<>();
+        AtomicInteger counter = new AtomicInteger();
+        executor = new ThreadPoolExecutor(Math.max(1, threads), Math.max(1, threads), 1, TimeUnit.MINUTES, queue,
+                runnable -> {
+                    Thread thread = new Thread(runnable, "merge-pdf-job-" + counter.getAndIncrement());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        executor.allowCoreThreadTimeOut(true);
+        removeExpiredFiles();
+    }
+
+    /**
+     * Queues a merge.
+     *
+     * @param merge runs the merge and returns its output parameters
+     * @return the id of the job, to collect its outputs with
+     * @throws IOException if the queue is full, or the result directory cannot be created
+     */
+    String submit(Callable<Map<String, Object>> merge) throws IOException {
+        createDirectory();
+        removeExpiredFiles();
+        startMarkerRefresher();
+        String jobId = UUID.randomUUID().toString();
+        Job job = new Job(new FutureTask<>(() -> run(jobId, merge), null));
+        Files.createFile(directory.resolve(jobId + QUEUED_SUFFIX), ownerOnly(OWNER_ONLY_FILE));
+        jobs.put(jobId, job);
+        try {
+            executor.execute(job.task);
+        } catch (RejectedExecutionException e) {
+            jobs.remove(jobId);
+            deleteQuietly(directory.resolve(jobId + QUEUED_SUFFIX));
+            throw new IOException(String.format("Merge queue full: %d merges waiting and %d running (see %s and %s)",
+                    executor.getQueue().size(), executor.getActiveCount(), MAX_QUEUE_DEPTH_PROPERTY,
+                    THREADS_PROPERTY), e);
+        }
+        return jobId;
+    }
+
+    /**
+     * Creates a directory for the contents of a merge to submit, to delete with {@link #deleteSourceDirectory}.
+     */
+    Path createSourceDirectory() throws IOException {
+        createDirectory();
+        return Files.createDirectory(directory.resolve(UUID.randomUUID() + SOURCES_SUFFIX),
+                ownerOnly(OWNER_ONLY_DIRECTORY));
+    }
+
+    /**
+     * Writes a content into a source directory, readable by the owner only.
+     */
+    void writeSource(Path file, byte[] content) throws IOException {
+        Files.write(Files.createFile(file, ownerOnly(OWNER_ONLY_FILE)), content);
+    }
+
+    static void deleteSourceDirectory(Path sourceDirectory) {
+        try (Stream<Path> paths = Files.walk(sourceDirectory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(MergeJobQueue::deleteQuietly);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, String.format("Could not delete source directory '%s'", sourceDirectory), e);
+        }
+    }
+
+    /**
+     * Waits up to {@code timeoutMillis} for a job to finish and takes its outputs. Outputs are handed over once:
+     * collecting them deletes the result file. A job run by another queue on the same directory is followed through
+     * its marker.
+     *
+     * @throws IOException if the merge failed, or the job is unknown
+     */
+    Collected collect(String jobId, long timeoutMillis) throws IOException {
+        if (jobId == null || !JOB_ID.matcher(jobId).matches()) {
+            throw new IOException(String.format("'%s' is not a merge job id", jobId));
+        }
+        long deadline = System.currentTimeMillis() + Math.max(timeoutMillis, 0);
+        try {
+            Job job = jobs.get(jobId);
+            if (job != null) {
+                try {
+                    job.task.get(Math.max(timeoutMillis, 0), TimeUnit.MILLISECONDS);
+                } catch (TimeoutException e) {
+                    return new Collected(job.status, null);
+                } catch (ExecutionException e) {
+                    // the job records its own failures
+                }
+            }
+            while (true) {
+                // read before the result: the marker is deleted once the result is published
+                Status pending = readMarker(jobId);
+                Collected collected = claimFinished(jobId);
+                if (collected != null) {
+                    return collected;
+                }
+                if (pending == null) {
+                    throw new IOException(String.format("Unknown merge job %s: already collected, not collected "
+                            + "within %d ms, or lost when the engine stopped", jobId, retentionMillis));
+                }
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return new Collected(pending, null);
+                }
+                Thread.sleep(Math.min(remaining, MARKER_POLL_MILLIS));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for merge job " + jobId);
+        }
+    }
+
+    int getQueuedCount() {
+        return executor.getQueue().size();
+    }
+
+    int getRunningCount() {
+        return executor.getActiveCount();
+    }
+
+    /**
+     * Takes the outputs or the failure of a finished job.
+     *
+     * @return the outputs, {@code null} if the job has not finished
+     * @throws IOException if the merge failed
+     */
+    private Collected claimFinished(String jobId) throws IOException {
+        Path result = claim(jobId, RESULT_SUFFIX);
+        if (result != null) {
+            try {
+                return new Collected(Status.DONE, readOutputs(result));
+            } finally {
+                deleteQuietly(result);
+            }
+        }
+        Path failure = claim(jobId, FAILURE_SUFFIX);
+        if (failure != null) {
+            try {
+                throw new IOException(String.format("Merge job %s failed: %s", jobId,
+                        new String(Files.readAllBytes(failure), StandardCharsets.UTF_8)));
+            } finally {
+                deleteQuietly(failure);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the state told by the marker of a job, {@code null} if it has none or a stale one
+     */
+    private Status readMarker(String jobId) {
+        for (Status status : List.of(Status.QUEUED, Status.RUNNING)) {
+            Path marker = getMarker(jobId, status);
+            long lastModified = marker.toFile().lastModified();
+            if (lastModified == 0) {
+                continue;
+            }
+            if (System.currentTimeMillis() - lastModified > STALE_PART_MILLIS) {
+                LOGGER.info(String.format("Merge job %s was lost by the JVM that ran it", jobId));
+                deleteQuietly(marker);
+                return null;
+            }
+            return status;
+        }
+        return null;
+    }
+
+    private Path getMarker(String jobId, Status status) {
+        return directory.resolve(jobId + (status == Status.QUEUED ? QUEUED_SUFFIX : RUNNING_SUFFIX));
+    }
+
+    private synchronized void startMarkerRefresher() {
+        if (markerRefresher != null) {
+            return;
+        }
+        markerRefresher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "merge-pdf-job-markers");
+            thread.setDaemon(true);
+            return thread;
+        });
+        markerRefresher.scheduleWithFixedDelay(this::refreshMarkers, MARKER_REFRESH_MILLIS, MARKER_REFRESH_MILLIS,
+                TimeUnit.MILLISECONDS);
+    }
+
+    private void refreshMarkers() {
+        FileTime now = FileTime.fromMillis(System.currentTimeMillis());
+        jobs.forEach((jobId, job) -> {
+            try {
+                Files.setLastModifiedTime(getMarker(jobId, job.status), now);
+            } catch (IOException e) {
+                // the job moved on to its next state meanwhile
+                LOGGER.log(Level.FINE, String.format("Could not touch the marker of merge job %s", jobId), e);
+            }
+        });
+    }
+
+    private void run(String jobId, Callable<Map<String, Object>> merge) {
+        Job job = jobs.get(jobId);
+        try {
+            Files.move(getMarker(jobId, Status.QUEUED), getMarker(jobId, Status.RUNNING),
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, String.format("Could not mark merge job %s as running", jobId), e);
+        }
+        job.status = Status.RUNNING;
+        try {
+            Map<String, Object> outputs = new LinkedHashMap<>(merge.call());
+            Path part = Files.createTempFile(directory, jobId + "-", PART_SUFFIX, ownerOnly(OWNER_ONLY_FILE));
+            try (ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(
+                    Files.newOutputStream(part)))) {
+                out.writeObject(outputs);
+            }
+            publish(part, jobId, RESULT_SUFFIX);
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, String.format("Merge job %s failed", jobId), e);
+            try {
+                Path part = Files.createTempFile(directory, jobId + "-", PART_SUFFIX, ownerOnly(OWNER_ONLY_FILE));
+                Files.write(part, String.valueOf(e.getMessage()).getBytes(StandardCharsets.UTF_8));
+                publish(part, jobId, FAILURE_SUFFIX);
+            } catch (IOException writeError) {
+                LOGGER.log(Level.SEVERE, String.format("Could not record the failure of merge job %s", jobId),
+                        writeError);
+            }
+        } finally {
+            jobs.remove(jobId);
+            deleteQuietly(getMarker(jobId, Status.RUNNING));
+        }
+    }
+
+    private void createDirectory() throws IOException {
+        if (!Files.isDirectory(directory)) {
+            Files.createDirectories(directory, ownerOnly(OWNER_ONLY_DIRECTORY));
+        }
+    }
+
+    private FileAttribute<?>[] ownerOnly(Set<PosixFilePermission> permissions) {
+        return directory.getFileSystem().supportedFileAttributeViews().contains("posix")
+                ? new FileAttribute<?>[] { PosixFilePermissions.asFileAttribute(permissions) }
+                : new FileAttribute<?>[0];
+    }
+
+    private void publish(Path part, String jobId, String suffix) throws IOException {
+        Files.move(part, directory.resolve(jobId + suffix), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Moves a finished file of a job out of reach of other collectors.
+     *
+     * @return the moved file, {@code null} if there is none
+     */
+    private Path claim(String jobId, String suffix) throws IOException {
+        Path file = directory.resolve(jobId + suffix);
+        if (!Files.exists(file)) {
+            return null;
+        }
+        Path claimed = directory.resolve(jobId + "-" + UUID.randomUUID() + PART_SUFFIX);
+        try {
+            return Files.move(file, claimed, StandardCopyOption.ATOMIC_MOVE);
+        } catch (NoSuchFileException e) {
+            // collected at the same time by another execution
+            return null;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> readOutputs(Path file) throws IOException {
+        try (ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            in.setObjectInputFilter(OUTPUTS_FILTER);
+            return (Map<String, Object>) in.readObject();
+        } catch (ClassNotFoundException | ClassCastException e) {
+            throw new IOException("Unreadable merge job result: " + e.getMessage(), e);
+        }
+    }
+
+    private void removeExpiredFiles() {
+        if (!Files.isDirectory(directory)) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        try (Stream<Path> files = Files.list(directory)) {
+            files.forEach(file -> {
+                String fileName = file.getFileName().toString();
+                long age = now - file.toFile().lastModified();
+                if ((fileName.endsWith(PART_SUFFIX) || fileName.endsWith(QUEUED_SUFFIX)
+                        || fileName.endsWith(RUNNING_SUFFIX)) && age > STALE_PART_MILLIS) {
+                    deleteQuietly(file);
+                } else if (fileName.endsWith(SOURCES_SUFFIX) && age > retentionMillis) {
+                    // left by a JVM that stopped before running the merge
+                    deleteSourceDirectory(file);
+                } else if ((fileName.endsWith(RESULT_SUFFIX) || fileName.endsWith(FAILURE_SUFFIX))
+                        && age > retentionMillis) {
+                    LOGGER.info(String.format("Deleting merge job result '%s', not collected within %d ms",
+                            fileName, retentionMillis));
+                    deleteQuietly(file);
+                }
+            });
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, String.format("Could not clean up merge job directory '%s'", directory), e);
+        }
+    }
+
+    private static void deleteQuietly(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, String.format("Could not delete '%s'", file), e);
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package com.bonitasoft.presales.connector.mergepdf;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Timings and sizes of one connector execution, returned as the {@code mergeMetrics} output and fed to
+ * {@link MergeStatistics}.
+ * <p>
+ * Phases that run once per source (parsing, appending) are summed over the sources, and over the threads of a
+ * parallel merge.
+ */
+class MergeMetrics {
+
+    enum Phase {
+        FETCH("fetchMillis"),
+        ADMISSION("admissionMillis"),
+        PARSE("parseMillis"),
+        MERGE("mergeMillis"),
+        POST_PROCESS("postProcessMillis"),
+        SERIALIZE("serializeMillis");
+
+        private final String key;
+
+        Phase(String key) {
+            this.key = key;
+        }
+    }
+
+    private final long startNanos = System.nanoTime();
+    private final long[] phaseNanos = new long[Phase.values().length];
+    private long totalNanos;
+    private int documentCount;
+    private int pageCount;
+    private long inputBytes;
+    private long outputBytes;
+    private long peakEstimatedMemoryBytes;
+    private boolean cacheHit;
+
+    /**
+     * Adds the time elapsed since {@code phaseStartNanos} (a {@link System#nanoTime()} value) to the phase.
+     */
+    synchronized void record(Phase phase, long phaseStartNanos) {
+        phaseNanos[phase.ordinal()] += System.nanoTime() - phaseStartNanos;
+    }
+
+    void finish() {
+        totalNanos = System.nanoTime() - startNanos;
+    }
+
+    long getPhaseNanos(Phase phase) {
+        return phaseNanos[phase.ordinal()];
+    }
+
+    long getTotalNanos() {
+        return totalNanos;
+    }
+
+    void setDocumentCount(int documentCount) {
+        this.documentCount = documentCount;
+    }
+
+    int getPageCount() {
+        return pageCount;
+    }
+
+    void setPageCount(int pageCount) {
+        this.pageCount = pageCount;
+    }
+
+    long getInputBytes() {
+        return inputBytes;
+    }
+
+    void setInputBytes(long inputBytes) {
+        this.inputBytes = inputBytes;
+    }
+
+    long getOutputBytes() {
+        return outputBytes;
+    }
+
+    void setOutputBytes(long outputBytes) {
+        this.outputBytes = outputBytes;
+    }
+
+    long getPeakEstimatedMemoryBytes() {
+        return peakEstimatedMemoryBytes;
+    }
+
+    void updatePeakEstimatedMemory(long estimatedBytes) {
+        peakEstimatedMemoryBytes = Math.max(peakEstimatedMemoryBytes, estimatedBytes);
+    }
+
+    boolean isCacheHit() {
+        return cacheHit;
+    }
+
+    void setCacheHit(boolean cacheHit) {
+        this.cacheHit = cacheHit;
+    }
+
+    Map<String, Object> toMap() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("totalMillis", TimeUnit.NANOSECONDS.toMillis(totalNanos));
+        for (Phase phase : Phase.values()) {
+            map.put(phase.key, TimeUnit.NANOSECONDS.toMillis(phaseNanos[phase.ordinal()]));
+        }
+        map.put("documentCount", documentCount);
+        map.put("pageCount", pageCount);
+        map.put("inputBytes", inputBytes);
+        map.put("outputBytes", outputBytes);
+        map.put("peakEstimatedMemoryBytes", peakEstimatedMemoryBytes);
+        map.put("cacheHit", cacheHit);
+        return map;
+    }
+}
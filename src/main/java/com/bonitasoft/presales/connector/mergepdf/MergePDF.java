@@ -1,14 +1,32 @@
 package com.bonitasoft.presales.connector.mergepdf;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
+import java.util.stream.Collectors;
 
 import org.apache.pdfbox.io.MemoryUsageSetting;
+import org.apache.pdfbox.io.RandomAccessBuffer;
 import org.apache.pdfbox.multipdf.PDFMergerUtility;
-import org.bonitasoft.engine.api.ProcessAPI;
+import org.apache.pdfbox.pdmodel.PDDocument;
 import org.bonitasoft.engine.bpm.document.Document;
 import org.bonitasoft.engine.bpm.document.DocumentNotFoundException;
 import org.bonitasoft.engine.bpm.document.DocumentValue;
@@ -23,24 +41,143 @@ public class MergePDF extends AbstractConnector {
 
     static final String DOCUMENTS_INPUT = "documents";
     static final String OUTPUT_FILE_NAME_INPUT = "outputFileName";
+    static final String MEMORY_STRATEGY_INPUT = "memoryStrategy";
+    static final String MAX_MAIN_MEMORY_BYTES_INPUT = "maxMainMemoryBytes";
+    static final String TEMP_DIRECTORY_INPUT = "tempDirectory";
+    static final String FETCH_PARALLELISM_INPUT = "fetchParallelism";
+    static final String PARALLEL_MERGE_THRESHOLD_INPUT = "parallelMergeThreshold";
+    static final String USE_CACHE_INPUT = "useCache";
+    static final String DEDUPLICATE_RESOURCES_INPUT = "deduplicateResources";
+    static final String OUTPUT_COMPRESSION_INPUT = "outputCompression";
+    static final String MERGE_ENGINE_INPUT = "mergeEngine";
+    static final String KEEP_OUTLINES_INPUT = "keepOutlines";
+    static final String KEEP_FORMS_INPUT = "keepForms";
+    static final String KEEP_STRUCTURE_TREE_INPUT = "keepStructureTree";
+    static final String KEEP_PAGE_LABELS_INPUT = "keepPageLabels";
+    static final String PAGE_SELECTIONS_INPUT = "pageSelections";
+    static final String MERGE_GROUPS_INPUT = "mergeGroups";
+    static final String BASE_DOCUMENT_INPUT = "baseDocument";
+    static final String MAX_PART_BYTES_INPUT = "maxPartBytes";
+    static final String MAX_PART_PAGES_INPUT = "maxPartPages";
+    static final String IMAGE_TARGET_DPI_INPUT = "imageTargetDpi";
+    static final String IMAGE_COMPRESSION_INPUT = "imageCompression";
+    static final String IMAGE_JPEG_QUALITY_INPUT = "imageJpegQuality";
+    static final String EXECUTION_MODE_INPUT = "executionMode";
+    static final String JOB_ID_INPUT = "jobId";
+    static final String COLLECT_TIMEOUT_MILLIS_INPUT = "collectTimeoutMillis";
     static final String MERGED_DOCUMENT_OUTPUT = "mergedDocument";
+    static final String MERGED_DOCUMENTS_OUTPUT = "mergedDocuments";
+    static final String MERGED_DOCUMENT_PARTS_OUTPUT = "mergedDocumentParts";
+    static final String CACHE_HIT_OUTPUT = "cacheHit";
+    static final String DEDUPLICATION_SAVED_BYTES_OUTPUT = "deduplicationSavedBytes";
+    static final String IMAGE_BYTES_BEFORE_OUTPUT = "imageBytesBefore";
+    static final String IMAGE_BYTES_AFTER_OUTPUT = "imageBytesAfter";
+    static final String MERGE_METRICS_OUTPUT = "mergeMetrics";
+    static final String JOB_ID_OUTPUT = "jobId";
+    static final String JOB_STATUS_OUTPUT = "jobStatus";
+
+    static final long DEFAULT_MAX_MAIN_MEMORY_BYTES = 64L * 1024 * 1024;
+
+    private MergeMetrics metrics;
+    private Map<String, Object> inputParameters = Map.of();
+    /** Contents fetched by the execution that queued this merge, {@code null} to fetch them from the engine. */
+    private DocumentContentFetcher.ContentSource contentSource;
+
+    /**
+     * Documents merged into one output, with the pages selected in each, and the document they are appended to in
+     * append mode.
+     */
+    private static class MergeGroup {
+
+        private final String name;
+        private final List<Document> documents;
+        private final List<PageSelection> pageSelections;
+        private final Document baseDocument;
+
+        MergeGroup(String name, List<Document> documents, List<PageSelection> pageSelections,
+                Document baseDocument) {
+            this.name = name;
+            this.documents = documents;
+            this.pageSelections = pageSelections;
+            this.baseDocument = baseDocument;
+        }
+    }
+
+    @Override
+    public void setInputParameters(Map<String, Object> parameters) {
+        super.setInputParameters(parameters);
+        // kept to hand the same inputs over to a background merge, whatever the caller does with its map
+        inputParameters = new HashMap<>(parameters);
+    }
 
     @Override
     public void validateInputParameters() throws ConnectorValidationException {
+        checkExecutionMode();
+        if (getExecutionMode() == ExecutionMode.COLLECT) {
+            return;
+        }
         checkMandatoryDocumentsInput();
         checkMandatoryOutputFileName();
+        checkMergeGroups();
+        checkBaseDocument();
+        checkOutputParts();
+        checkMemoryStrategyInputs();
+        checkFetchParallelism();
+        checkParallelMergeThreshold();
+        checkOutputCompression();
+        checkImageOptimization();
+        checkMergeEngine();
+        checkPageSelections();
+    }
+
+    protected void checkExecutionMode() throws ConnectorValidationException {
+        Object executionMode = getInputParameter(EXECUTION_MODE_INPUT);
+        if (executionMode != null) {
+            try {
+                ExecutionMode.fromInput(executionMode.toString());
+            } catch (IllegalArgumentException e) {
+                throw new ConnectorValidationException(this,
+                        String.format("Parameter '%s' must be one of SYNC, SUBMIT or COLLECT.", EXECUTION_MODE_INPUT));
+            }
+        }
+        if (getExecutionMode() != ExecutionMode.COLLECT) {
+            return;
+        }
+        Object jobId = getInputParameter(JOB_ID_INPUT);
+        if (!(jobId instanceof String) || ((String) jobId).trim().isEmpty()) {
+            throw new ConnectorValidationException(this,
+                    String.format("Mandatory parameter '%s' is missing or empty in COLLECT mode.", JOB_ID_INPUT));
+        }
+        Object timeout = getInputParameter(COLLECT_TIMEOUT_MILLIS_INPUT);
+        if (timeout != null && (!(timeout instanceof Number) || ((Number) timeout).longValue() < 0)) {
+            throw new ConnectorValidationException(this,
+                    String.format("Parameter '%s' must be a number greater than or equal to 0.",
+                            COLLECT_TIMEOUT_MILLIS_INPUT));
+        }
     }
 
     protected void checkMandatoryDocumentsInput() throws ConnectorValidationException {
+        if (getInputParameter(MERGE_GROUPS_INPUT) != null) {
+            if (getInputParameter(DOCUMENTS_INPUT) != null) {
+                throw new ConnectorValidationException(this,
+                        String.format("Parameters '%s' and '%s' cannot be used together.", DOCUMENTS_INPUT,
+                                MERGE_GROUPS_INPUT));
+            }
+            return;
+        }
         List<?> documents = (List<?>) getInputParameter(DOCUMENTS_INPUT);
         if (documents == null || documents.isEmpty()) {
             throw new ConnectorValidationException(this,
                     String.format("Mandatory parameter '%s' is missing or empty.", DOCUMENTS_INPUT));
         }
-        if (documents.size() < 2) {
+        if (documents.size() < 2 && getInputParameter(BASE_DOCUMENT_INPUT) == null) {
             throw new ConnectorValidationException(this,
                     "At least 2 documents are required to merge.");
         }
+        checkPdfDocuments(documents);
+    }
+
+    private void checkPdfDocuments(List<?> documents) throws ConnectorValidationException {
         for (Object doc : documents) {
             if (!(doc instanceof Document)) {
                 throw new ConnectorValidationException(this,
@@ -56,6 +193,9 @@ public class MergePDF extends AbstractConnector {
     }
 
     protected void checkMandatoryOutputFileName() throws ConnectorValidationException {
+        if (getInputParameter(MERGE_GROUPS_INPUT) != null) {
+            return;
+        }
         String outputFileName = (String) getInputParameter(OUTPUT_FILE_NAME_INPUT);
         if (outputFileName == null || outputFileName.trim().isEmpty()) {
             throw new ConnectorValidationException(this,
@@ -63,6 +203,204 @@ public class MergePDF extends AbstractConnector {
         }
     }
 
+    protected void checkMergeGroups() throws ConnectorValidationException {
+        Object mergeGroups = getInputParameter(MERGE_GROUPS_INPUT);
+        if (mergeGroups == null) {
+            return;
+        }
+        if (!(mergeGroups instanceof Map) || ((Map<?, ?>) mergeGroups).isEmpty()) {
+            throw new ConnectorValidationException(this,
+                    String.format("Parameter '%s' must be a non-empty map of group names to lists of documents.",
+                            MERGE_GROUPS_INPUT));
+        }
+        for (Map.Entry<?, ?> group : ((Map<?, ?>) mergeGroups).entrySet()) {
+            if (!(group.getKey() instanceof String) || ((String) group.getKey()).trim().isEmpty()) {
+                throw new ConnectorValidationException(this,
+                        String.format("Names of '%s' must be non-empty strings.", MERGE_GROUPS_INPUT));
+            }
+            if (!(group.getValue() instanceof List) || ((List<?>) group.getValue()).isEmpty()) {
+                throw new ConnectorValidationException(this,
+                        String.format("Merge group '%s' must be a non-empty list of documents.", group.getKey()));
+            }
+            checkPdfDocuments((List<?>) group.getValue());
+        }
+        if (getInputParameter(PAGE_SELECTIONS_INPUT) != null) {
+            throw new ConnectorValidationException(this,
+                    String.format("Parameter '%s' cannot be used with '%s'.", PAGE_SELECTIONS_INPUT,
+                            MERGE_GROUPS_INPUT));
+        }
+    }
+
+    protected void checkBaseDocument() throws ConnectorValidationException {
+        Object baseDocument = getInputParameter(BASE_DOCUMENT_INPUT);
+        if (baseDocument == null) {
+            return;
+        }
+        if (!(baseDocument instanceof Document)) {
+            throw new ConnectorValidationException(this,
+                    String.format("Parameter '%s' must be a Document object.", BASE_DOCUMENT_INPUT));
+        }
+        if (!isPdfDocument((Document) baseDocument)) {
+            throw new ConnectorValidationException(this,
+                    String.format("Document '%s' is not a PDF. Only PDF documents can be appended to.",
+                            ((Document) baseDocument).getContentFileName()));
+        }
+        if (getInputParameter(MERGE_GROUPS_INPUT) != null) {
+            throw new ConnectorValidationException(this,
+                    String.format("Parameter '%s' cannot be used with '%s'.", BASE_DOCUMENT_INPUT,
+                            MERGE_GROUPS_INPUT));
+        }
+        Object outputCompression = getInputParameter(OUTPUT_COMPRESSION_INPUT);
+        if (outputCompression != null && ("COMPRESSED".equalsIgnoreCase(outputCompression.toString().trim())
+                || "LINEARIZED".equalsIgnoreCase(outputCompression.toString().trim()))) {
+            throw new ConnectorValidationException(this,
+                    String.format("Parameter '%s' cannot be %s with '%s': the appended part keeps the "
+                            + "layout of the base document.", OUTPUT_COMPRESSION_INPUT,
+                            outputCompression.toString().trim().toUpperCase(Locale.ROOT), BASE_DOCUMENT_INPUT));
+        }
+    }
+
+    protected void checkOutputParts() throws ConnectorValidationException {
+        for (String input : List.of(MAX_PART_BYTES_INPUT, MAX_PART_PAGES_INPUT)) {
+            Object limit = getInputParameter(input);
+            if (limit != null && (!(limit instanceof Number) || ((Number) limit).longValue() < 1)) {
+                throw new ConnectorValidationException(this,
+                        String.format("Parameter '%s' must be a number greater than or equal to 1.", input));
+            }
+        }
+        if (!isSplit()) {
+            return;
+        }
+        for (String input : List.of(MERGE_GROUPS_INPUT, BASE_DOCUMENT_INPUT)) {
+            if (getInputParameter(input) != null) {
+                throw new ConnectorValidationException(this,
+                        String.format("Parameters '%s' and '%s' cannot be used with '%s'.", MAX_PART_BYTES_INPUT,
+                                MAX_PART_PAGES_INPUT, input));
+            }
+        }
+    }
+
+    protected void checkMemoryStrategyInputs() throws ConnectorValidationException {
+        Object memoryStrategy = getInputParameter(MEMORY_STRATEGY_INPUT);
+        if (memoryStrategy != null) {
+            try {
+                MemoryStrategy.fromInput(memoryStrategy.toString());
+            } catch (IllegalArgumentException e) {
+                throw new ConnectorValidationException(this,
+                        String.format("Parameter '%s' must be one of AUTO, MAIN_MEMORY_ONLY, MIXED or TEMP_FILE_ONLY.",
+                                MEMORY_STRATEGY_INPUT));
+            }
+        }
+        Object maxMainMemoryBytes = getInputParameter(MAX_MAIN_MEMORY_BYTES_INPUT);
+        if (maxMainMemoryBytes != null
+                && (!(maxMainMemoryBytes instanceof Number) || ((Number) maxMainMemoryBytes).longValue() <= 0)) {
+            throw new ConnectorValidationException(this,
+                    String.format("Parameter '%s' must be a positive number of bytes.", MAX_MAIN_MEMORY_BYTES_INPUT));
+        }
+        String tempDirectory = (String) getInputParameter(TEMP_DIRECTORY_INPUT);
+        if (tempDirectory != null && !tempDirectory.trim().isEmpty()
+                && !Files.isDirectory(Paths.get(tempDirectory.trim()))) {
+            throw new ConnectorValidationException(this,
+                    String.format("Parameter '%s' must be an existing directory: '%s'.", TEMP_DIRECTORY_INPUT,
+                            tempDirectory));
+        }
+    }
+
+    protected void checkFetchParallelism() throws ConnectorValidationException {
+        Object fetchParallelism = getInputParameter(FETCH_PARALLELISM_INPUT);
+        if (fetchParallelism != null
+                && (!(fetchParallelism instanceof Number) || ((Number) fetchParallelism).intValue() < 1)) {
+            throw new ConnectorValidationException(this,
+                    String.format("Parameter '%s' must be a number greater than or equal to 1.", FETCH_PARALLELISM_INPUT));
+        }
+    }
+
+    protected void checkParallelMergeThreshold() throws ConnectorValidationException {
+        Object threshold = getInputParameter(PARALLEL_MERGE_THRESHOLD_INPUT);
+        if (threshold != null && (!(threshold instanceof Number) || ((Number) threshold).intValue() < 1)) {
+            throw new ConnectorValidationException(this,
+                    String.format("Parameter '%s' must be a number greater than or equal to 1.",
+                            PARALLEL_MERGE_THRESHOLD_INPUT));
+        }
+    }
+
+    protected void checkOutputCompression() throws ConnectorValidationException {
+        Object outputCompression = getInputParameter(OUTPUT_COMPRESSION_INPUT);
+        if (outputCompression != null) {
+            try {
+                OutputCompression.fromInput(outputCompression.toString());
+            } catch (IllegalArgumentException e) {
+                throw new ConnectorValidationException(this,
+                        String.format("Parameter '%s' must be one of STANDARD, COMPRESSED or LINEARIZED.",
+                                OUTPUT_COMPRESSION_INPUT));
+            }
+        }
+    }
+
+    protected void checkImageOptimization() throws ConnectorValidationException {
+        Object targetDpi = getInputParameter(IMAGE_TARGET_DPI_INPUT);
+        if (targetDpi != null && (!(targetDpi instanceof Number) || ((Number) targetDpi).intValue() < 1)) {
+            throw new ConnectorValidationException(this,
+                    String.format("Parameter '%s' must be a number greater than or equal to 1.", IMAGE_TARGET_DPI_INPUT));
+        }
+        Object imageCompression = getInputParameter(IMAGE_COMPRESSION_INPUT);
+        if (imageCompression != null) {
+            try {
+                ImageCompression.fromInput(imageCompression.toString());
+            } catch (IllegalArgumentException e) {
+                throw new ConnectorValidationException(this,
+                        String.format("Parameter '%s' must be one of JPEG or FLATE.", IMAGE_COMPRESSION_INPUT));
+            }
+        }
+        Object jpegQuality = getInputParameter(IMAGE_JPEG_QUALITY_INPUT);
+        if (jpegQuality != null && (!(jpegQuality instanceof Number) || ((Number) jpegQuality).doubleValue() <= 0
+                || ((Number) jpegQuality).doubleValue() > 1)) {
+            throw new ConnectorValidationException(this,
+                    String.format("Parameter '%s' must be a number greater than 0 and at most 1.",
+                            IMAGE_JPEG_QUALITY_INPUT));
+        }
+    }
+
+    protected void checkMergeEngine() throws ConnectorValidationException {
+        Object mergeEngine = getInputParameter(MERGE_ENGINE_INPUT);
+        if (mergeEngine != null) {
+            try {
+                MergeEngine.fromInput(mergeEngine.toString());
+            } catch (IllegalArgumentException e) {
+                throw new ConnectorValidationException(this,
+                        String.format("Parameter '%s' must be one of FULL or FAST.", MERGE_ENGINE_INPUT));
+            }
+        }
+    }
+
+    protected void checkPageSelections() throws ConnectorValidationException {
+        Object pageSelections = getInputParameter(PAGE_SELECTIONS_INPUT);
+        if (pageSelections == null) {
+            return;
+        }
+        if (!(pageSelections instanceof List)) {
+            throw new ConnectorValidationException(this,
+                    String.format("Parameter '%s' must be a list of page ranges, one per document.",
+                            PAGE_SELECTIONS_INPUT));
+        }
+        List<?> selections = (List<?>) pageSelections;
+        List<?> documents = (List<?>) getInputParameter(DOCUMENTS_INPUT);
+        if (documents != null && selections.size() != documents.size()) {
+            throw new ConnectorValidationException(this,
+                    String.format("Parameter '%s' has %d entries but '%s' has %d documents.", PAGE_SELECTIONS_INPUT,
+                            selections.size(), DOCUMENTS_INPUT, documents.size()));
+        }
+        for (int i = 0; i < selections.size(); i++) {
+            try {
+                PageSelection.parse(selections.get(i) != null ? selections.get(i).toString() : null);
+            } catch (IllegalArgumentException e) {
+                throw new ConnectorValidationException(this,
+                        String.format("Invalid page selection '%s' for document %d: %s", selections.get(i), i + 1,
+                                e.getMessage()));
+            }
+        }
+    }
+
     private boolean isPdfDocument(Document document) {
         String mimeType = document.getContentMimeType();
         String fileName = document.getContentFileName();
@@ -72,37 +410,822 @@ public class MergePDF extends AbstractConnector {
 
     @Override
     protected void executeBusinessLogic() throws ConnectorException {
-        List<Document> documents = (List<Document>) getInputParameter(DOCUMENTS_INPUT);
-        String outputFileName = (String) getInputParameter(OUTPUT_FILE_NAME_INPUT);
+        switch (getExecutionMode()) {
+            case SUBMIT:
+                submitMerge();
+                break;
+            case COLLECT:
+                collectMerge();
+                break;
+            default:
+                merge();
+        }
+    }
 
-        LOGGER.info(String.format("Merging %d PDF documents into '%s'", documents.size(), outputFileName));
+    /**
+     * Queues the merge with the inputs of this execution, and returns its job id. The engine API is only valid
+     * within this execution, so the contents are fetched now, into a source directory of the queue, and the merge
+     * reads them from there.
+     */
+    private void submitMerge() throws ConnectorException {
+        Map<String, Object> inputs = new HashMap<>(inputParameters);
+        inputs.put(EXECUTION_MODE_INPUT, ExecutionMode.SYNC.name());
+        MergeJobQueue jobQueue = getJobQueue();
+        Path sourceDirectory = null;
+        boolean submitted = false;
+        try {
+            sourceDirectory = jobQueue.createSourceDirectory();
+            Map<Document, Path> contents = fetchToDirectory(jobQueue, sourceDirectory);
+            Path sources = sourceDirectory;
+            String jobId = jobQueue.submit(() -> {
+                try {
+                    MergePDF merge = new MergePDF();
+                    merge.setInputParameters(inputs);
+                    merge.contentSource = document -> {
+                        Path content = contents.get(document);
+                        if (content == null) {
+                            throw new DocumentNotFoundException(String.format(
+                                    "Content of '%s' was not fetched when the merge was queued",
+                                    document.getContentFileName()));
+                        }
+                        return Files.readAllBytes(content);
+                    };
+                    return merge.execute();
+                } finally {
+                    MergeJobQueue.deleteSourceDirectory(sources);
+                }
+            });
+            submitted = true;
+            LOGGER.info(String.format("Queued merge job %s", jobId));
+            setOutputParameter(JOB_ID_OUTPUT, jobId);
+            setOutputParameter(JOB_STATUS_OUTPUT, MergeJobQueue.Status.QUEUED.name());
+        } catch (IOException | DocumentNotFoundException e) {
+            throw new ConnectorException("Failed to queue PDF merge: " + e.getMessage(), e);
+        } finally {
+            if (sourceDirectory != null && !submitted) {
+                MergeJobQueue.deleteSourceDirectory(sourceDirectory);
+            }
+        }
+    }
 
+    /**
+     * Fetches every distinct content used by the merge into a directory, as {@code <source index>.pdf}.
+     *
+     * @return the file of the content of each document of the inputs, by document instance: documents without storage
+     *         id have distinct contents
+     */
+    private Map<Document, Path> fetchToDirectory(MergeJobQueue jobQueue, Path directory)
+            throws IOException, DocumentNotFoundException {
+        Map<Object, Integer> sourceIndices = new HashMap<>();
+        List<Document> sources = new ArrayList<>();
+        Map<Document, Path> contents = new IdentityHashMap<>();
+        for (MergeGroup group : getMergeGroups()) {
+            List<Document> documents = new ArrayList<>(group.documents);
+            if (group.baseDocument != null) {
+                documents.add(group.baseDocument);
+            }
+            for (Document document : documents) {
+                contents.put(document, directory.resolve(addSource(document, sources, sourceIndices) + ".pdf"));
+            }
+        }
+        // contents are consumed in source order
+        AtomicInteger sourceIndex = new AtomicInteger();
+        new DocumentContentFetcher(getAPIAccessor().getProcessAPI(), getFetchParallelism()).fetchAll(sources,
+                (document, content) -> jobQueue.writeSource(directory.resolve(sourceIndex.getAndIncrement() + ".pdf"),
+                        content));
+        return contents;
+    }
+
+    /**
+     * Returns the outputs of a queued merge once it is done, and only its status until then.
+     */
+    private void collectMerge() throws ConnectorException {
+        String jobId = ((String) getInputParameter(JOB_ID_INPUT)).trim();
+        Number timeoutMillis = (Number) getInputParameter(COLLECT_TIMEOUT_MILLIS_INPUT);
+        MergeJobQueue.Collected collected;
         try {
-            byte[] mergedPdfContent = mergePdfDocuments(documents);
-            DocumentValue documentValue = new DocumentValue(mergedPdfContent, PDF_MIME_TYPE, outputFileName);
-            setOutputParameter(MERGED_DOCUMENT_OUTPUT, documentValue);
-            LOGGER.info(String.format("Successfully merged %d documents into '%s' (%d bytes)",
-                    documents.size(), outputFileName, mergedPdfContent.length));
+            collected = getJobQueue().collect(jobId, timeoutMillis != null ? timeoutMillis.longValue() : 0);
+        } catch (IOException e) {
+            throw new ConnectorException(e.getMessage(), e);
+        }
+        if (collected.getOutputs() != null) {
+            collected.getOutputs().forEach(this::setOutputParameter);
+            LOGGER.info(String.format("Collected merge job %s", jobId));
+        } else {
+            LOGGER.fine(String.format("Merge job %s is %s", jobId, collected.getStatus()));
+        }
+        setOutputParameter(JOB_ID_OUTPUT, jobId);
+        setOutputParameter(JOB_STATUS_OUTPUT, collected.getStatus().name());
+    }
+
+    private void merge() throws ConnectorException {
+        boolean batch = getInputParameter(MERGE_GROUPS_INPUT) != null;
+        boolean split = isSplit();
+        List<MergeGroup> groups = getMergeGroups();
+        int documentCount = groups.stream().mapToInt(group -> group.documents.size()).sum();
+
+        if (batch) {
+            LOGGER.info(String.format("Merging %d PDF documents into %d groups", documentCount, groups.size()));
+        } else if (groups.get(0).baseDocument != null) {
+            LOGGER.info(String.format("Appending %d PDF documents to '%s' into '%s'", documentCount,
+                    groups.get(0).baseDocument.getContentFileName(), groups.get(0).name));
+        } else {
+            LOGGER.info(String.format("Merging %d PDF documents into '%s'", documentCount, groups.get(0).name));
+        }
+
+        metrics = new MergeMetrics();
+        metrics.setDocumentCount(documentCount);
+        MergeStatistics statistics = MergeStatistics.getInstance();
+        boolean succeeded = false;
+        try {
+            // the cache holds one merged document per group, not parts
+            MergeResultCache cache = Boolean.TRUE.equals(getInputParameter(USE_CACHE_INPUT)) && !split
+                    ? MergeResultCache.getInstance() : null;
+            Map<String, byte[]> mergedPdfContents = new LinkedHashMap<>();
+            Map<String, String> cacheKeys = new HashMap<>();
+            List<MergeGroup> groupsToMerge = new ArrayList<>();
+            for (MergeGroup group : groups) {
+                byte[] cachedContent = null;
+                if (cache != null && hasStorageIds(group)) {
+                    String cacheKey = MergeResultCache.key(getStorageIds(group.documents), getOutputOptions(group));
+                    cacheKeys.put(group.name, cacheKey);
+                    cachedContent = cache.get(cacheKey);
+                }
+                if (cachedContent != null) {
+                    LOGGER.info(String.format("Reusing cached merge of %d documents (cache hits: %d, misses: %d)",
+                            group.documents.size(), cache.getHitCount(), cache.getMissCount()));
+                } else {
+                    groupsToMerge.add(group);
+                }
+                mergedPdfContents.put(group.name, cachedContent);
+            }
+            setOutputParameter(DEDUPLICATION_SAVED_BYTES_OUTPUT, 0L);
+            setOutputParameter(IMAGE_BYTES_BEFORE_OUTPUT, 0L);
+            setOutputParameter(IMAGE_BYTES_AFTER_OUTPUT, 0L);
+            if (split) {
+                mergedPdfContents = mergePdfDocuments(groupsToMerge);
+            } else if (!groupsToMerge.isEmpty()) {
+                for (Map.Entry<String, byte[]> merged : mergePdfDocuments(groupsToMerge).entrySet()) {
+                    mergedPdfContents.put(merged.getKey(), merged.getValue());
+                    if (cacheKeys.containsKey(merged.getKey())) {
+                        cache.put(cacheKeys.get(merged.getKey()), merged.getValue());
+                    }
+                }
+            }
+            boolean cacheHit = groupsToMerge.isEmpty();
+            long outputBytes = mergedPdfContents.values().stream().mapToLong(content -> content.length).sum();
+            if (batch) {
+                Map<String, DocumentValue> documentValues = new LinkedHashMap<>();
+                for (Map.Entry<String, byte[]> merged : mergedPdfContents.entrySet()) {
+                    documentValues.put(merged.getKey(),
+                            new DocumentValue(merged.getValue(), PDF_MIME_TYPE, toFileName(merged.getKey())));
+                }
+                setOutputParameter(MERGED_DOCUMENTS_OUTPUT, documentValues);
+            } else if (split) {
+                List<DocumentValue> parts = new ArrayList<>(mergedPdfContents.size());
+                for (Map.Entry<String, byte[]> part : mergedPdfContents.entrySet()) {
+                    parts.add(new DocumentValue(part.getValue(), PDF_MIME_TYPE, part.getKey()));
+                }
+                setOutputParameter(MERGED_DOCUMENT_PARTS_OUTPUT, parts);
+            } else {
+                setOutputParameter(MERGED_DOCUMENT_OUTPUT,
+                        new DocumentValue(mergedPdfContents.get(groups.get(0).name), PDF_MIME_TYPE, groups.get(0).name));
+            }
+            setOutputParameter(CACHE_HIT_OUTPUT, cacheHit);
+
+            metrics.setCacheHit(cacheHit);
+            metrics.setOutputBytes(outputBytes);
+            metrics.finish();
+            statistics.recordSuccess(metrics);
+            setOutputParameter(MERGE_METRICS_OUTPUT, metrics.toMap());
+            succeeded = true;
+            if (batch) {
+                LOGGER.info(String.format("Successfully merged %d documents into %d groups (%d bytes)",
+                        documentCount, groups.size(), outputBytes));
+            } else if (split) {
+                LOGGER.info(String.format("Successfully merged %d documents into %d parts of '%s' (%d bytes)",
+                        documentCount, mergedPdfContents.size(), groups.get(0).name, outputBytes));
+            } else {
+                LOGGER.info(String.format("Successfully merged %d documents into '%s' (%d bytes)",
+                        documentCount, groups.get(0).name, outputBytes));
+            }
+            LOGGER.fine(String.format("Merge metrics: %s", metrics.toMap()));
         } catch (IOException | DocumentNotFoundException e) {
             throw new ConnectorException("Failed to merge PDF documents: " + e.getMessage(), e);
+        } finally {
+            if (!succeeded) {
+                statistics.recordFailure();
+            }
+        }
+    }
+
+    /**
+     * The groups to merge: the named groups of {@code mergeGroups}, or a single group of {@code documents} named after
+     * the output file.
+     */
+    private List<MergeGroup> getMergeGroups() {
+        Map<?, ?> mergeGroups = (Map<?, ?>) getInputParameter(MERGE_GROUPS_INPUT);
+        if (mergeGroups == null) {
+            List<Document> documents = toDocuments(getInputParameter(DOCUMENTS_INPUT));
+            return List.of(new MergeGroup((String) getInputParameter(OUTPUT_FILE_NAME_INPUT), documents,
+                    getPageSelections(documents.size()), (Document) getInputParameter(BASE_DOCUMENT_INPUT)));
+        }
+        List<MergeGroup> groups = new ArrayList<>(mergeGroups.size());
+        for (Map.Entry<?, ?> group : mergeGroups.entrySet()) {
+            List<Document> documents = toDocuments(group.getValue());
+            groups.add(new MergeGroup((String) group.getKey(), documents,
+                    Collections.nCopies(documents.size(), PageSelection.ALL), null));
+        }
+        return groups;
+    }
+
+    /**
+     * The documents of a list input, whose elements were checked by {@link #checkPdfDocuments(List)}.
+     */
+    private static List<Document> toDocuments(Object documents) {
+        List<Document> checked = new ArrayList<>();
+        for (Object document : (List<?>) documents) {
+            checked.add((Document) document);
+        }
+        return checked;
+    }
+
+    private static String toFileName(String groupName) {
+        return groupName.toLowerCase(Locale.ROOT).endsWith(".pdf") ? groupName : groupName + ".pdf";
+    }
+
+    /**
+     * Whether every document of a group has content in the engine: a document given by URL has no storage id, and a
+     * merge using one is never cached.
+     */
+    private static boolean hasStorageIds(MergeGroup group) {
+        return group.documents.stream().allMatch(document -> document.getContentStorageId() != null)
+                && (group.baseDocument == null || group.baseDocument.getContentStorageId() != null);
+    }
+
+    private List<String> getStorageIds(List<Document> documents) {
+        return documents.stream().map(Document::getContentStorageId).collect(Collectors.toList());
+    }
+
+    /**
+     * Inputs that change the merged bytes of a group, and therefore take part in the cache key.
+     */
+    private SortedMap<String, Object> getOutputOptions(MergeGroup group) {
+        SortedMap<String, Object> options = new TreeMap<>();
+        options.put(DEDUPLICATE_RESOURCES_INPUT, Boolean.TRUE.equals(getInputParameter(DEDUPLICATE_RESOURCES_INPUT)));
+        options.put(OUTPUT_COMPRESSION_INPUT, getOutputCompression());
+        ImageOptimizer imageOptimizer = createImageOptimizer();
+        if (imageOptimizer != null) {
+            options.put(IMAGE_TARGET_DPI_INPUT, ((Number) getInputParameter(IMAGE_TARGET_DPI_INPUT)).intValue());
+            ImageCompression imageCompression = getImageCompression();
+            options.put(IMAGE_COMPRESSION_INPUT, imageCompression);
+            if (imageCompression == ImageCompression.JPEG) {
+                options.put(IMAGE_JPEG_QUALITY_INPUT, getImageJpegQuality());
+            }
+        }
+        MergeEngine mergeEngine = getMergeEngine();
+        options.put(MERGE_ENGINE_INPUT, mergeEngine);
+        if (mergeEngine == MergeEngine.FAST) {
+            for (String input : List.of(KEEP_OUTLINES_INPUT, KEEP_FORMS_INPUT, KEEP_STRUCTURE_TREE_INPUT,
+                    KEEP_PAGE_LABELS_INPUT)) {
+                options.put(input, Boolean.TRUE.equals(getInputParameter(input)));
+            }
+        }
+        if (group.pageSelections.stream().anyMatch(selection -> !selection.isAll())) {
+            options.put(PAGE_SELECTIONS_INPUT, group.pageSelections);
+        }
+        if (group.baseDocument != null) {
+            options.put(BASE_DOCUMENT_INPUT, group.baseDocument.getContentStorageId());
+        }
+        return options;
+    }
+
+    /**
+     * Merges the groups one after the other. Every distinct document (by content storage id) is fetched once; with the
+     * full engine, it is also parsed once and shared by the groups that use all its pages, then closed after the last
+     * of them. The fast engine moves the pages of its sources, and page selections remove pages from them, so these
+     * parse the document again for each use.
+     * <p>
+     * A group of more than {@code parallelMergeThreshold} documents is merged by a {@link ParallelMerger}, which
+     * parses its own copy of each of them.
+     * <p>
+     * In append mode, the merged documents are written as an incremental update of the base document, which is
+     * fetched with the others but only read as raw bytes.
+     */
+    // "try": the governor permit is never referenced, it is only held for the merge and released by closing it
+    @SuppressWarnings("try")
+    private Map<String, byte[]> mergePdfDocuments(List<MergeGroup> groups)
+            throws IOException, DocumentNotFoundException {
+        Map<Object, Integer> sourceIndices = new HashMap<>();
+        List<Document> sources = new ArrayList<>();
+        List<int[]> groupSources = new ArrayList<>(groups.size());
+        int[] baseSources = new int[groups.size()];
+        for (int g = 0; g < groups.size(); g++) {
+            MergeGroup group = groups.get(g);
+            int[] indices = new int[group.documents.size()];
+            for (int i = 0; i < indices.length; i++) {
+                indices[i] = addSource(group.documents.get(i), sources, sourceIndices);
+            }
+            groupSources.add(indices);
+            baseSources[g] = group.baseDocument != null ? addSource(group.baseDocument, sources, sourceIndices) : -1;
+        }
+
+        DocumentContentFetcher fetcher = contentSource != null
+                ? new DocumentContentFetcher(contentSource, getFetchParallelism())
+                : new DocumentContentFetcher(getAPIAccessor().getProcessAPI(), getFetchParallelism());
+
+        try (MergeWorkspace workspace = createWorkspace()) {
+            List<PreflightScanner.Report> reports = new ArrayList<>(sources.size());
+            long phaseStart = System.nanoTime();
+            fetcher.fetchAll(sources, (document, content) -> {
+                // rejected before it is spilled, and before the next documents are even fetched
+                PreflightScanner.Report report = preflight(document, content);
+                workspace.addSource(content, report.getObjectCount());
+                reports.add(report);
+                metrics.updatePeakEstimatedMemory(workspace.getEstimatedHeapBytes());
+                LOGGER.fine(String.format("Added document '%s' to merge queue", document.getContentFileName()));
+            });
+            metrics.record(MergeMetrics.Phase.FETCH, phaseStart);
+            metrics.setInputBytes(workspace.getTotalBytes());
+            LOGGER.fine(String.format("Merging %d bytes of input with memory strategy %s",
+                    workspace.getTotalBytes(), workspace.getEffectiveStrategy()));
+
+            // every output stays on the heap until the end, and the largest one (part) is copied once
+            long expectedOutputBytes = 0;
+            long largestOutputBytes = 0;
+            // the intermediate documents of a parallel merge hold up to one more copy of its group
+            long intermediateBytes = 0;
+            for (int g = 0; g < groupSources.size(); g++) {
+                long groupBytes = Arrays.stream(groupSources.get(g)).mapToLong(index -> reports.get(index).getBytes())
+                        .sum() + (baseSources[g] >= 0 ? reports.get(baseSources[g]).getBytes() : 0);
+                expectedOutputBytes += groupBytes;
+                largestOutputBytes = Math.max(largestOutputBytes, groupBytes);
+                if (!isSplit() && isParallel(groups.get(g))) {
+                    intermediateBytes = Math.max(intermediateBytes, groupBytes);
+                }
+            }
+            Number maxPartBytes = (Number) getInputParameter(MAX_PART_BYTES_INPUT);
+            if (maxPartBytes != null) {
+                largestOutputBytes = Math.min(largestOutputBytes, maxPartBytes.longValue());
+            }
+            phaseStart = System.nanoTime();
+            try (MergeGovernor.Permit permit = getGovernor().acquire(
+                    workspace.estimatePeakHeapBytes(expectedOutputBytes + largestOutputBytes + intermediateBytes))) {
+                metrics.record(MergeMetrics.Phase.ADMISSION, phaseStart);
+
+                boolean fast = getMergeEngine() == MergeEngine.FAST;
+                int[] lastSharedUse = new int[sources.size()];
+                Arrays.fill(lastSharedUse, -1);
+                for (int g = 0; g < groups.size(); g++) {
+                    if (isParallel(groups.get(g))) {
+                        continue;
+                    }
+                    for (int i = 0; i < groupSources.get(g).length; i++) {
+                        if (!fast && groups.get(g).pageSelections.get(i).isAll()) {
+                            lastSharedUse[groupSources.get(g)[i]] = g;
+                        }
+                    }
+                }
+
+                MemoryUsageSetting memoryUsageSetting = workspace.getPartitionedMemoryUsageSetting();
+                if (isSplit()) {
+                    return mergeParts(groups.get(0), groupSources.get(0), reports, workspace,
+                            memoryUsageSetting);
+                }
+                PDDocument[] sharedSources = new PDDocument[sources.size()];
+                Map<String, byte[]> mergedPdfContents = new LinkedHashMap<>();
+                long retainedOutputBytes = 0;
+                int pageCount = 0;
+                try {
+                    for (int g = 0; g < groups.size(); g++) {
+                        MergeGroup group = groups.get(g);
+                        List<PDDocument> ownSources = new ArrayList<>();
+                        ParallelMerger parallelMerger = isParallel(group)
+                                ? createParallelMerger(group, groupSources.get(g), workspace, memoryUsageSetting)
+                                : null;
+                        try (PDDocument destination = new PDDocument(memoryUsageSetting)) {
+                            if (parallelMerger != null) {
+                                parallelMerger.merge(destination, group.documents.size());
+                            } else {
+                                PDFMergerUtility pdfMerger = new PDFMergerUtility();
+                                FastPageMerger fastMerger = fast ? createFastMerger() : null;
+                                for (int i = 0; i < group.documents.size(); i++) {
+                                    // sources stay open until the destination is saved: the fast engine shares
+                                    // their objects
+                                    int index = groupSources.get(g)[i];
+                                    boolean shared = !fast && group.pageSelections.get(i).isAll();
+                                    PDDocument source = shared ? sharedSources[index] : null;
+                                    if (source == null) {
+                                        phaseStart = System.nanoTime();
+                                        source = workspace.loadSource(index, memoryUsageSetting);
+                                        if (shared) {
+                                            sharedSources[index] = source;
+                                        } else {
+                                            ownSources.add(source);
+                                        }
+                                        metrics.record(MergeMetrics.Phase.PARSE, phaseStart);
+                                    }
+                                    phaseStart = System.nanoTime();
+                                    retainSelectedPages(source, group.pageSelections.get(i), group.documents.get(i));
+                                    if (fastMerger != null) {
+                                        fastMerger.append(destination, source);
+                                    } else {
+                                        pdfMerger.appendDocument(destination, source);
+                                    }
+                                    metrics.record(MergeMetrics.Phase.MERGE, phaseStart);
+                                }
+                            }
+                            pageCount += destination.getNumberOfPages();
+                            phaseStart = System.nanoTime();
+                            postProcess(destination);
+                            metrics.record(MergeMetrics.Phase.POST_PROCESS, phaseStart);
+
+                            phaseStart = System.nanoTime();
+                            OutputBuffer outputStream = new OutputBuffer(
+                                    estimateOutputBytes(group, groupSources.get(g), baseSources[g], reports));
+                            if (baseSources[g] >= 0) {
+                                try (IncrementalAppender appender = new IncrementalAppender(
+                                        workspace.openSource(baseSources[g]))) {
+                                    appender.append(destination);
+                                    appender.write(outputStream);
+                                    pageCount += appender.getBasePageCount();
+                                }
+                            } else {
+                                save(destination, outputStream);
+                            }
+                            byte[] mergedPdfContent = handOver(outputStream, workspace, retainedOutputBytes);
+                            metrics.record(MergeMetrics.Phase.SERIALIZE, phaseStart);
+                            retainedOutputBytes += mergedPdfContent.length;
+                            mergedPdfContents.put(group.name, mergedPdfContent);
+                        } finally {
+                            for (PDDocument source : ownSources) {
+                                source.close();
+                            }
+                            if (parallelMerger != null) {
+                                parallelMerger.close();
+                            }
+                        }
+                        for (int index = 0; index < sharedSources.length; index++) {
+                            if (lastSharedUse[index] == g && sharedSources[index] != null) {
+                                sharedSources[index].close();
+                                sharedSources[index] = null;
+                            }
+                        }
+                    }
+                } finally {
+                    for (PDDocument source : sharedSources) {
+                        if (source != null) {
+                            source.close();
+                        }
+                    }
+                }
+                metrics.setPageCount(pageCount);
+                return mergedPdfContents;
+            }
+        }
+    }
+
+    /**
+     * Merges the documents of a single group into consecutive parts bounded by {@code maxPartBytes} and
+     * {@code maxPartPages}. The parts are planned from the page counts found by the pre-flight scan, then each one
+     * is built from freshly parsed sources, written and closed before the next one, so that only one part is being
+     * built at a time. A part written larger than {@code maxPartBytes} is built again as two halves.
+     *
+     * @return the content of each part, by file name
+     */
+    private Map<String, byte[]> mergeParts(MergeGroup group, int[] sources, List<PreflightScanner.Report> reports,
+            MergeWorkspace workspace, MemoryUsageSetting memoryUsageSetting) throws IOException {
+        int documentCount = group.documents.size();
+        List<BitSet> selectedPages = new ArrayList<>(documentCount);
+        int[] pageCounts = new int[documentCount];
+        long[] documentBytes = new long[documentCount];
+        long phaseStart = System.nanoTime();
+        for (int i = 0; i < documentCount; i++) {
+            pageCounts[i] = countPages(workspace, sources[i], reports.get(sources[i]), memoryUsageSetting);
+            documentBytes[i] = reports.get(sources[i]).getBytes();
+            selectedPages.add(selectPages(group.pageSelections.get(i), pageCounts[i], group.documents.get(i)));
+        }
+        metrics.record(MergeMetrics.Phase.PARSE, phaseStart);
+
+        Number maxPartBytesInput = (Number) getInputParameter(MAX_PART_BYTES_INPUT);
+        Number maxPartPagesInput = (Number) getInputParameter(MAX_PART_PAGES_INPUT);
+        long maxPartBytes = maxPartBytesInput != null ? maxPartBytesInput.longValue() : 0;
+        int maxPartPages = maxPartPagesInput != null ? maxPartPagesInput.intValue() : 0;
+        Deque<List<PartPlanner.Slice>> pendingParts = new ArrayDeque<>(
+                new PartPlanner(maxPartBytes, maxPartPages).plan(selectedPages, pageCounts, documentBytes));
+
+        String baseName = toFileName(group.name);
+        baseName = baseName.substring(0, baseName.length() - ".pdf".length());
+        Map<String, byte[]> parts = new LinkedHashMap<>();
+        long retainedOutputBytes = 0;
+        int pageCount = 0;
+        while (!pendingParts.isEmpty()) {
+            List<PartPlanner.Slice> part = pendingParts.removeFirst();
+            byte[] content = mergePart(part, PartPlanner.estimateBytes(part, pageCounts, documentBytes), sources,
+                    workspace, memoryUsageSetting, retainedOutputBytes);
+            int partPages = PartPlanner.pageCount(part);
+            if (maxPartBytes > 0 && content.length > maxPartBytes && partPages > 1) {
+                LOGGER.fine(String.format("Part of %d pages is %d bytes, splitting it in two", partPages,
+                        content.length));
+                List<List<PartPlanner.Slice>> halves = PartPlanner.halve(part);
+                pendingParts.addFirst(halves.get(1));
+                pendingParts.addFirst(halves.get(0));
+                continue;
+            }
+            retainedOutputBytes += content.length;
+            pageCount += partPages;
+            parts.put(String.format("%s-%d.pdf", baseName, parts.size() + 1), content);
+        }
+        metrics.setPageCount(pageCount);
+        return parts;
+    }
+
+    private byte[] mergePart(List<PartPlanner.Slice> part, long expectedBytes, int[] sources,
+            MergeWorkspace workspace, MemoryUsageSetting memoryUsageSetting, long retainedOutputBytes)
+            throws IOException {
+        List<PDDocument> partSources = new ArrayList<>(part.size());
+        try (PDDocument destination = new PDDocument(memoryUsageSetting)) {
+            PDFMergerUtility pdfMerger = new PDFMergerUtility();
+            FastPageMerger fastMerger = getMergeEngine() == MergeEngine.FAST ? createFastMerger() : null;
+            for (PartPlanner.Slice slice : part) {
+                long phaseStart = System.nanoTime();
+                PDDocument source = workspace.loadSource(sources[slice.getDocument()], memoryUsageSetting);
+                partSources.add(source);
+                metrics.record(MergeMetrics.Phase.PARSE, phaseStart);
+
+                phaseStart = System.nanoTime();
+                PagePruner.retainPages(source, slice.getPages());
+                if (fastMerger != null) {
+                    fastMerger.append(destination, source);
+                } else {
+                    pdfMerger.appendDocument(destination, source);
+                }
+                metrics.record(MergeMetrics.Phase.MERGE, phaseStart);
+            }
+            long phaseStart = System.nanoTime();
+            postProcess(destination);
+            metrics.record(MergeMetrics.Phase.POST_PROCESS, phaseStart);
+
+            phaseStart = System.nanoTime();
+            OutputBuffer outputStream = new OutputBuffer(expectedBytes);
+            save(destination, outputStream);
+            byte[] content = handOver(outputStream, workspace, retainedOutputBytes);
+            metrics.record(MergeMetrics.Phase.SERIALIZE, phaseStart);
+            return content;
+        } finally {
+            for (PDDocument source : partSources) {
+                source.close();
+            }
+        }
+    }
+
+    /**
+     * Expected size of the merged document of a group: the share of each source taken by its selected pages (all of
+     * it when the pre-flight scan found no page count), plus the base document it is appended to.
+     */
+    private static long estimateOutputBytes(MergeGroup group, int[] sources, int baseSource,
+            List<PreflightScanner.Report> reports) {
+        long bytes = baseSource >= 0 ? reports.get(baseSource).getBytes() : 0;
+        for (int i = 0; i < sources.length; i++) {
+            PreflightScanner.Report report = reports.get(sources[i]);
+            PageSelection selection = group.pageSelections.get(i);
+            if (selection.isAll() || report.getPageCount() <= 0) {
+                bytes += report.getBytes();
+            } else {
+                bytes += report.getBytes() * selection.resolve(report.getPageCount()).cardinality()
+                        / report.getPageCount();
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * @return the content of the buffer, handed to the output as it is
+     */
+    private byte[] handOver(OutputBuffer outputBuffer, MergeWorkspace workspace, long retainedOutputBytes) {
+        byte[] content = outputBuffer.toByteArray();
+        metrics.updatePeakEstimatedMemory(workspace.getEstimatedHeapBytes() + retainedOutputBytes
+                + outputBuffer.getPeakBytes());
+        return content;
+    }
+
+    /**
+     * Checks a fetched source before it joins the merge.
+     *
+     * @throws IOException naming the document, if it cannot be merged
+     */
+    private static PreflightScanner.Report preflight(Document document, byte[] content) throws IOException {
+        try {
+            PreflightScanner.Report report = PreflightScanner.scan(new RandomAccessBuffer(content));
+            LOGGER.fine(String.format("Document '%s': %d pages, %d objects%s", document.getContentFileName(),
+                    report.getPageCount(), report.getObjectCount(), report.isEncrypted() ? ", encrypted" : ""));
+            return report;
+        } catch (IOException | RuntimeException e) {
+            throw new IOException(String.format("Document '%s' cannot be merged: %s",
+                    document.getContentFileName(), e.getMessage()), e);
+        }
+    }
+
+    /**
+     * Takes the page count found by the pre-flight scan, and only parses the whole document when its page tree root
+     * does not declare it.
+     */
+    private static int countPages(MergeWorkspace workspace, int index, PreflightScanner.Report report,
+            MemoryUsageSetting memoryUsageSetting) throws IOException {
+        if (report.getPageCount() > 0) {
+            return report.getPageCount();
+        }
+        try (PDDocument document = workspace.loadSource(index, memoryUsageSetting)) {
+            return document.getNumberOfPages();
+        }
+    }
+
+    /**
+     * @return the index of the document in {@code sources}, added unless a document with the same content is there
+     */
+    private static int addSource(Document document, List<Document> sources, Map<Object, Integer> sourceIndices) {
+        // documents without content have no storage id and are never the same source
+        Object key = document.getContentStorageId() != null ? document.getContentStorageId() : document;
+        return sourceIndices.computeIfAbsent(key, k -> {
+            sources.add(document);
+            return sources.size() - 1;
+        });
+    }
+
+    /**
+     * Runs the optional optimizations on a merged document, adding their savings to the outputs.
+     */
+    private void postProcess(PDDocument mergedDocument) throws IOException {
+        if (Boolean.TRUE.equals(getInputParameter(DEDUPLICATE_RESOURCES_INPUT))) {
+            ResourceDeduplicator deduplicator = new ResourceDeduplicator();
+            long savedBytes = deduplicator.deduplicate(mergedDocument);
+            LOGGER.fine(String.format("Removed %d duplicate resources (about %d bytes)",
+                    deduplicator.getDuplicateCount(), savedBytes));
+            addToOutput(DEDUPLICATION_SAVED_BYTES_OUTPUT, savedBytes);
+        }
+        ImageOptimizer imageOptimizer = createImageOptimizer();
+        if (imageOptimizer != null) {
+            imageOptimizer.optimize(mergedDocument);
+            LOGGER.fine(String.format("Downsampled %d images (%d bytes of images, now %d)",
+                    imageOptimizer.getOptimizedCount(), imageOptimizer.getBytesBefore(),
+                    imageOptimizer.getBytesAfter()));
+            addToOutput(IMAGE_BYTES_BEFORE_OUTPUT, imageOptimizer.getBytesBefore());
+            addToOutput(IMAGE_BYTES_AFTER_OUTPUT, imageOptimizer.getBytesAfter());
+        }
+    }
+
+    private void addToOutput(String output, long value) {
+        setOutputParameter(output, (Long) getOutputParameters().get(output) + value);
+    }
+
+    private void save(PDDocument mergedDocument, OutputStream outputStream) throws IOException {
+        if (getOutputCompression() == OutputCompression.COMPRESSED) {
+            new CompressedPdfWriter().write(mergedDocument, outputStream);
+        } else if (getOutputCompression() == OutputCompression.LINEARIZED) {
+            new LinearizedPdfWriter().write(mergedDocument, outputStream);
+        } else {
+            mergedDocument.save(outputStream);
+        }
+    }
+
+    private int getFetchParallelism() {
+        Number fetchParallelism = (Number) getInputParameter(FETCH_PARALLELISM_INPUT);
+        return fetchParallelism != null ? fetchParallelism.intValue() : DocumentContentFetcher.DEFAULT_PARALLELISM;
+    }
+
+    private ExecutionMode getExecutionMode() {
+        return ExecutionMode.fromInput((String) getInputParameter(EXECUTION_MODE_INPUT));
+    }
+
+    private OutputCompression getOutputCompression() {
+        return OutputCompression.fromInput((String) getInputParameter(OUTPUT_COMPRESSION_INPUT));
+    }
+
+    /**
+     * @return the image optimization stage, {@code null} when no target resolution is set
+     */
+    private ImageOptimizer createImageOptimizer() {
+        Number targetDpi = (Number) getInputParameter(IMAGE_TARGET_DPI_INPUT);
+        if (targetDpi == null) {
+            return null;
+        }
+        return new ImageOptimizer(targetDpi.intValue(), getImageCompression(), getImageJpegQuality(),
+                ImageOptimizer.DEFAULT_PARALLELISM);
+    }
+
+    private boolean isSplit() {
+        return getInputParameter(MAX_PART_BYTES_INPUT) != null || getInputParameter(MAX_PART_PAGES_INPUT) != null;
+    }
+
+    private ImageCompression getImageCompression() {
+        return ImageCompression.fromInput((String) getInputParameter(IMAGE_COMPRESSION_INPUT));
+    }
+
+    private float getImageJpegQuality() {
+        Number jpegQuality = (Number) getInputParameter(IMAGE_JPEG_QUALITY_INPUT);
+        return jpegQuality != null ? jpegQuality.floatValue() : ImageOptimizer.DEFAULT_JPEG_QUALITY;
+    }
+
+    private MergeEngine getMergeEngine() {
+        return MergeEngine.fromInput((String) getInputParameter(MERGE_ENGINE_INPUT));
+    }
+
+    private boolean isParallel(MergeGroup group) {
+        Number threshold = (Number) getInputParameter(PARALLEL_MERGE_THRESHOLD_INPUT);
+        return threshold != null && group.documents.size() > threshold.intValue();
+    }
+
+    /**
+     * Merger of a group on several threads. Each thread prunes and moves the pages of the sources it parses, so
+     * that none is shared with another group.
+     */
+    private ParallelMerger createParallelMerger(MergeGroup group, int[] sources, MergeWorkspace workspace,
+            MemoryUsageSetting memoryUsageSetting) {
+        FastPageMerger fastMerger = getMergeEngine() == MergeEngine.FAST ? createFastMerger() : null;
+        int threshold = ((Number) getInputParameter(PARALLEL_MERGE_THRESHOLD_INPUT)).intValue();
+        return new ParallelMerger(threshold, fastMerger != null, memoryUsageSetting, position -> {
+            long phaseStart = System.nanoTime();
+            PDDocument source = workspace.loadSource(sources[position], memoryUsageSetting);
+            metrics.record(MergeMetrics.Phase.PARSE, phaseStart);
+            phaseStart = System.nanoTime();
+            try {
+                retainSelectedPages(source, group.pageSelections.get(position), group.documents.get(position));
+            } catch (IOException | RuntimeException e) {
+                source.close();
+                throw e;
+            }
+            metrics.record(MergeMetrics.Phase.MERGE, phaseStart);
+            return source;
+        }, (destination, source) -> {
+            long phaseStart = System.nanoTime();
+            if (fastMerger != null) {
+                fastMerger.append(destination, source);
+            } else {
+                // one per append, as it is not meant to be shared between threads
+                new PDFMergerUtility().appendDocument(destination, source);
+            }
+            metrics.record(MergeMetrics.Phase.MERGE, phaseStart);
+        });
+    }
+
+    private FastPageMerger createFastMerger() {
+        return new FastPageMerger(Boolean.TRUE.equals(getInputParameter(KEEP_OUTLINES_INPUT)),
+                Boolean.TRUE.equals(getInputParameter(KEEP_FORMS_INPUT)),
+                Boolean.TRUE.equals(getInputParameter(KEEP_STRUCTURE_TREE_INPUT)),
+                Boolean.TRUE.equals(getInputParameter(KEEP_PAGE_LABELS_INPUT)));
+    }
+
+    /**
+     * One selection per document, every page when the input is not set.
+     */
+    private List<PageSelection> getPageSelections(int documentCount) {
+        List<?> selections = (List<?>) getInputParameter(PAGE_SELECTIONS_INPUT);
+        List<PageSelection> pageSelections = new ArrayList<>(documentCount);
+        for (int i = 0; i < documentCount; i++) {
+            Object selection = selections != null ? selections.get(i) : null;
+            pageSelections.add(PageSelection.parse(selection != null ? selection.toString() : null));
         }
+        return pageSelections;
     }
 
-    private byte[] mergePdfDocuments(List<Document> documents) throws IOException, DocumentNotFoundException {
-        ProcessAPI processAPI = getAPIAccessor().getProcessAPI();
-        PDFMergerUtility pdfMerger = new PDFMergerUtility();
+    private static void retainSelectedPages(PDDocument source, PageSelection selection, Document document)
+            throws IOException {
+        if (selection.isAll()) {
+            return;
+        }
+        PagePruner.retainPages(source, selectPages(selection, source.getNumberOfPages(), document));
+    }
 
-        for (Document document : documents) {
-            byte[] content = processAPI.getDocumentContent(document.getContentStorageId());
-            pdfMerger.addSource(new ByteArrayInputStream(content));
-            LOGGER.fine(String.format("Added document '%s' to merge queue", document.getContentFileName()));
+    private static BitSet selectPages(PageSelection selection, int pageCount, Document document) throws IOException {
+        BitSet pages = selection.resolve(pageCount);
+        if (pages.isEmpty()) {
+            throw new IOException(String.format("Page selection '%s' matches none of the %d pages of document '%s'",
+                    selection, pageCount, document.getContentFileName()));
         }
+        return pages;
+    }
 
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-        pdfMerger.setDestinationStream(outputStream);
-        pdfMerger.mergeDocuments(MemoryUsageSetting.setupMainMemoryOnly());
+    /**
+     * Admission control shared by every merge of the JVM.
+     */
+    MergeGovernor getGovernor() {
+        return MergeGovernor.getInstance();
+    }
+
+    /**
+     * Background merges shared by every execution of the JVM.
+     */
+    MergeJobQueue getJobQueue() {
+        return MergeJobQueue.getInstance();
+    }
 
-        return outputStream.toByteArray();
+    private MergeWorkspace createWorkspace() {
+        MemoryStrategy memoryStrategy = MemoryStrategy.fromInput((String) getInputParameter(MEMORY_STRATEGY_INPUT));
+        Number maxMainMemoryBytes = (Number) getInputParameter(MAX_MAIN_MEMORY_BYTES_INPUT);
+        String tempDirectory = (String) getInputParameter(TEMP_DIRECTORY_INPUT);
+        return new MergeWorkspace(memoryStrategy,
+                maxMainMemoryBytes != null ? maxMainMemoryBytes.longValue() : DEFAULT_MAX_MAIN_MEMORY_BYTES,
+                tempDirectory != null && !tempDirectory.trim().isEmpty() ? Paths.get(tempDirectory.trim()) : null);
     }
 
     @Override
@@ -0,0 +1,399 @@
+package com.bonitasoft.presales.connector.mergepdf;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * JVM-wide cache of merged documents, keyed by the ordered content storage ids of the sources and the
+ * options that change the merged bytes.
+ * <p>
+ * Bonita never rewrites the content behind a storage id (a new document version gets a new one), so a
+ * key built from storage ids identifies the merged bytes without fetching anything. Entries are kept
+ * on the heap up to {@code mergepdf.cache.maxBytes}, least recently used first out. When
+ * {@code mergepdf.cache.directory} is set, evicted entries move to that directory, itself bounded by
+ * {@code mergepdf.cache.maxDiskBytes}.
+ * <p>
+ * Bonita loads the connector once per process definition class loader, and each copy has a cache of its own.
+ * Each cache writes to a subdirectory of its own, claimed with a lock file next to it, and the disk budget is
+ * shared by the caches of the JVM through {@link SharedState}. Subdirectories whose lock is free were left
+ * by caches that are gone, and are deleted when a cache is created, unless {@code mergepdf.cache.keepOnRestart}
+ * is set: the new cache then reuses the most recent of them. After a database restore or on another tenant, the
+ * same storage id can stand for another content, so entries written before a restart are only reused when storage
+ * ids are known to be unique to this directory.
+ * <p>
+ * Cached arrays are shared between executions and must not be modified.
+ */
+class MergeResultCache {
+
+    private static final Logger LOGGER = Logger.getLogger(MergeResultCache.class.getName());
+
+    static final String MAX_BYTES_PROPERTY = "mergepdf.cache.maxBytes";
+    static final String DIRECTORY_PROPERTY = "mergepdf.cache.directory";
+    static final String MAX_DISK_BYTES_PROPERTY = "mergepdf.cache.maxDiskBytes";
+    static final String KEEP_ON_RESTART_PROPERTY = "mergepdf.cache.keepOnRestart";
+
+    static final long DEFAULT_MAX_BYTES = 256L * 1024 * 1024;
+    static final long DEFAULT_MAX_DISK_BYTES = 4L * 1024 * 1024 * 1024;
+
+    private static final String FILE_SUFFIX = ".pdf";
+    private static final String LOCK_SUFFIX = ".lock";
+
+    private static MergeResultCache instance;
+
+    private final long maxBytes;
+    private final long maxDiskBytes;
+    private final AtomicLong totalDiskBytes;
+    /** Held as long as the cache lives, so that other caches leave its subdirectory alone. */
+    private FileChannel lock;
+    private final Path directory;
+
+    private final LinkedHashMap<String, byte[]> memoryEntries = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, Long> diskEntries = new LinkedHashMap<>(16, 0.75f, true);
+    private long memoryBytes;
+    private long diskBytes;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    static synchronized MergeResultCache getInstance() {
+        if (instance == null) {
+            String directory = System.getProperty(DIRECTORY_PROPERTY);
+            instance = new MergeResultCache(Long.getLong(MAX_BYTES_PROPERTY, DEFAULT_MAX_BYTES),
+                    directory != null && !directory.trim().isEmpty() ? Paths.get(directory.trim()) : null,
+                    Long.getLong(MAX_DISK_BYTES_PROPERTY, DEFAULT_MAX_DISK_BYTES),
+                    Boolean.getBoolean(KEEP_ON_RESTART_PROPERTY),
+                    SharedState.get("MergeResultCacheDiskBytes", AtomicLong.class, AtomicLong::new));
+        }
+        return instance;
+    }
+
+    MergeResultCache(long maxBytes, Path directory, long maxDiskBytes, boolean keepOnRestart) {
+        this(maxBytes, directory, maxDiskBytes, keepOnRestart, new AtomicLong());
+    }
+
+    /**
+     * @param directory      directory holding the subdirectories of the caches
+     * @param keepOnRestart  whether a subdirectory left by a cache that is gone is reused rather than deleted
+     * @param totalDiskBytes bytes written by all the caches sharing {@code maxDiskBytes}
+     */
+    MergeResultCache(long maxBytes, Path directory, long maxDiskBytes, boolean keepOnRestart,
+            AtomicLong totalDiskBytes) {
+        this.maxBytes = maxBytes;
+        this.maxDiskBytes = maxDiskBytes;
+        this.totalDiskBytes = totalDiskBytes;
+        this.directory = directory != null ? claimDirectory(directory, keepOnRestart) : null;
+        if (this.directory != null) {
+            loadDiskIndex();
+        }
+    }
+
+    /**
+     * Builds the cache key of a merge.
+     *
+     * @param storageIds content storage ids of the sources, in merge order, none of them {@code null}
+     * @param options    every option that changes the merged bytes, by input name
+     */
+    static String key(List<String> storageIds, SortedMap<String, ?> options) {
+        StringBuilder builder = new StringBuilder();
+        for (String storageId : storageIds) {
+            builder.append(storageId.length()).append(':').append(storageId).append(';');
+        }
+        builder.append('|').append(options);
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest(builder.toString().getBytes(StandardCharsets.UTF_8))) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    synchronized byte[] get(String key) {
+        byte[] content = memoryEntries.get(key);
+        if (content != null) {
+            hits.incrementAndGet();
+            return content;
+        }
+        if (diskEntries.containsKey(key)) {
+            try {
+                content = Files.readAllBytes(entryFile(key));
+                removeDiskEntry(key);
+                putInMemory(key, content);
+                hits.incrementAndGet();
+                diskHits.incrementAndGet();
+                return content;
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, String.format("Dropping unreadable cache entry '%s'", key), e);
+                removeDiskEntry(key);
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    synchronized void put(String key, byte[] content) {
+        if (memoryEntries.containsKey(key)) {
+            return;
+        }
+        if (diskEntries.containsKey(key)) {
+            removeDiskEntry(key);
+        }
+        putInMemory(key, content);
+    }
+
+    synchronized void clear() {
+        memoryEntries.clear();
+        memoryBytes = 0;
+        for (String key : diskEntries.keySet().toArray(new String[0])) {
+            removeDiskEntry(key);
+        }
+        hits.set(0);
+        diskHits.set(0);
+        misses.set(0);
+    }
+
+    long getHitCount() {
+        return hits.get();
+    }
+
+    long getDiskHitCount() {
+        return diskHits.get();
+    }
+
+    long getMissCount() {
+        return misses.get();
+    }
+
+    synchronized long getMemoryBytes() {
+        return memoryBytes;
+    }
+
+    synchronized long getDiskBytes() {
+        return diskBytes;
+    }
+
+    Path getDirectory() {
+        return directory;
+    }
+
+    private void putInMemory(String key, byte[] content) {
+        if (content.length > maxBytes) {
+            moveToDisk(key, content);
+            return;
+        }
+        memoryEntries.put(key, content);
+        memoryBytes += content.length;
+        Iterator<Map.Entry<String, byte[]>> eldest = memoryEntries.entrySet().iterator();
+        while (memoryBytes > maxBytes && eldest.hasNext()) {
+            Map.Entry<String, byte[]> entry = eldest.next();
+            eldest.remove();
+            memoryBytes -= entry.getValue().length;
+            moveToDisk(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private void moveToDisk(String key, byte[] content) {
+        if (directory == null || content.length > maxDiskBytes) {
+            return;
+        }
+        if (!makeRoomOnDisk(content.length)) {
+            // the rest of the budget is used by the caches of other copies of the connector
+            totalDiskBytes.addAndGet(-content.length);
+            return;
+        }
+        try {
+            Files.createDirectories(directory);
+            Path temporary = Files.createTempFile(directory, key, ".tmp");
+            Files.write(temporary, content);
+            Files.move(temporary, entryFile(key), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            diskEntries.put(key, (long) content.length);
+            diskBytes += content.length;
+        } catch (IOException e) {
+            totalDiskBytes.addAndGet(-content.length);
+            LOGGER.log(Level.WARNING, String.format("Could not write cache entry '%s' to '%s'", key, directory), e);
+        }
+    }
+
+    /**
+     * Adds bytes to the shared disk budget and evicts entries of this cache, least recently used first, until
+     * it fits.
+     *
+     * @return whether the budget fits; the bytes are added either way
+     */
+    private boolean makeRoomOnDisk(long bytes) {
+        long total = totalDiskBytes.addAndGet(bytes);
+        Iterator<Map.Entry<String, Long>> eldest = diskEntries.entrySet().iterator();
+        while (total > maxDiskBytes && eldest.hasNext()) {
+            Map.Entry<String, Long> entry = eldest.next();
+            eldest.remove();
+            diskBytes -= entry.getValue();
+            total = totalDiskBytes.addAndGet(-entry.getValue());
+            deleteQuietly(entryFile(entry.getKey()));
+        }
+        return total <= maxDiskBytes;
+    }
+
+    private void removeDiskEntry(String key) {
+        Long size = diskEntries.remove(key);
+        if (size != null) {
+            diskBytes -= size;
+            totalDiskBytes.addAndGet(-size);
+        }
+        deleteQuietly(entryFile(key));
+    }
+
+    /**
+     * Claims a subdirectory of {@code root} for this cache and deletes the stale ones, but for the most recent
+     * one when it is reused.
+     *
+     * @return the subdirectory, or {@code null} if the directory cannot be used, which turns the disk tier off
+     */
+    private Path claimDirectory(Path root, boolean keepOnRestart) {
+        try {
+            Files.createDirectories(root);
+            List<Path> subdirectories;
+            try (Stream<Path> paths = Files.list(root)) {
+                subdirectories = paths.filter(Files::isDirectory)
+                        .sorted(Comparator.comparing((Path path) -> path.toFile().lastModified()).reversed())
+                        .collect(Collectors.toList());
+            }
+            Path claimed = null;
+            for (Path subdirectory : subdirectories) {
+                FileChannel staleLock = lockIfStale(subdirectory);
+                if (staleLock == null) {
+                    continue;
+                }
+                if (keepOnRestart && claimed == null) {
+                    claimed = subdirectory;
+                    lock = staleLock;
+                    continue;
+                }
+                LOGGER.info(String.format("Deleting stale cache directory '%s' (see %s)", subdirectory,
+                        KEEP_ON_RESTART_PROPERTY));
+                try (Stream<Path> paths = Files.walk(subdirectory)) {
+                    paths.sorted(Comparator.reverseOrder()).forEach(MergeResultCache::deleteQuietly);
+                }
+                deleteQuietly(lockFile(subdirectory));
+                unlock(subdirectory, staleLock);
+            }
+            if (claimed == null) {
+                claimed = root.resolve(UUID.randomUUID().toString());
+                lock = lockIfStale(claimed);
+                if (lock == null) {
+                    throw new IOException(String.format("Could not lock '%s'", claimed));
+                }
+                Files.createDirectory(claimed);
+            }
+            return claimed;
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, String.format("Could not use cache directory '%s'", root), e);
+            return null;
+        }
+    }
+
+    /**
+     * Locks the subdirectory of a cache, unless a live cache of this JVM or of another one holds it.
+     *
+     * @return the channel holding the lock, or {@code null} if the subdirectory is in use
+     */
+    private static FileChannel lockIfStale(Path subdirectory) throws IOException {
+        // the JVM-wide set keeps this JVM from opening, and closing, a lock file it already holds: on some
+        // systems, closing any channel on a file releases every lock the process has on it
+        String name = subdirectory.toAbsolutePath().normalize().toString();
+        if (!lockedDirectories().add(name)) {
+            return null;
+        }
+        FileChannel channel = null;
+        try {
+            channel = FileChannel.open(lockFile(subdirectory), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            if (channel.tryLock() != null) {
+                return channel;
+            }
+        } catch (OverlappingFileLockException e) {
+            // held by this JVM
+        } catch (IOException | RuntimeException e) {
+            unlock(subdirectory, channel);
+            throw e;
+        }
+        unlock(subdirectory, channel);
+        return null;
+    }
+
+    private static void unlock(Path subdirectory, FileChannel channel) {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, String.format("Could not unlock '%s'", subdirectory), e);
+            }
+        }
+        lockedDirectories().remove(subdirectory.toAbsolutePath().normalize().toString());
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Set<String> lockedDirectories() {
+        return SharedState.get("MergeResultCacheDirectories", Set.class, ConcurrentHashMap::newKeySet);
+    }
+
+    private static Path lockFile(Path subdirectory) {
+        return subdirectory.resolveSibling(subdirectory.getFileName() + LOCK_SUFFIX);
+    }
+
+    private void loadDiskIndex() {
+        try (Stream<Path> files = Files.list(directory)) {
+            files.sorted(Comparator.comparing(file -> file.toFile().lastModified())).forEach(file -> {
+                String fileName = file.getFileName().toString();
+                if (!fileName.endsWith(FILE_SUFFIX)) {
+                    // leftover of a write interrupted by a crash
+                    deleteQuietly(file);
+                    return;
+                }
+                long size = file.toFile().length();
+                diskEntries.put(fileName.substring(0, fileName.length() - FILE_SUFFIX.length()), size);
+                diskBytes += size;
+            });
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, String.format("Could not index cache directory '%s'", directory), e);
+        }
+        makeRoomOnDisk(diskBytes);
+    }
+
+    private Path entryFile(String key) {
+        return directory.resolve(key + FILE_SUFFIX);
+    }
+
+    private static void deleteQuietly(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, String.format("Could not delete '%s'", file), e);
+        }
+    }
+}
@@ -0,0 +1,276 @@
+package com.bonitasoft.presales.connector.mergepdf;
+
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import javax.management.modelmbean.ModelMBeanAttributeInfo;
+import javax.management.modelmbean.ModelMBeanInfoSupport;
+import javax.management.modelmbean.RequiredModelMBean;
+
+/**
+ * JVM-wide statistics of the merges run on this engine node, exposed over JMX.
+ * <p>
+ * Bonita loads the connector once per process definition class loader. The counters and histograms are
+ * kept in {@link AtomicLongArray}s shared by every copy through {@link SharedState}, and published to a
+ * single model MBean of the JDK registered as {@value #OBJECT_NAME}: the copy recording a merge, or
+ * changing the state of the {@link MergeGovernor}, sets its attributes to the values of
+ * {@link MergeStatisticsMXBean}. The MBean holds no class of the connector, so it does not keep any
+ * class loader alive after its process definition is undeployed.
+ */
+class MergeStatistics implements MergeStatisticsMXBean {
+
+    private static final Logger LOGGER = Logger.getLogger(MergeStatistics.class.getName());
+
+    static final String OBJECT_NAME = "com.bonitasoft.presales.connector.mergepdf:type=MergeStatistics";
+
+    private static final String SHARED_STATE_NAME = "MergeStatistics";
+
+    private static final int EXECUTIONS = 0;
+    private static final int FAILURES = 1;
+    private static final int CACHE_HITS = 2;
+    private static final int INPUT_BYTES = 3;
+    private static final int OUTPUT_BYTES = 4;
+    private static final int PAGES_MERGED = 5;
+    private static final int PEAK_ESTIMATED_MEMORY_BYTES = 6;
+
+    private static MergeStatistics instance;
+
+    /** The counters, the histogram of the total and one histogram per phase; also the lock of publication. */
+    private final AtomicLongArray[] state;
+    private final AtomicLongArray counters;
+    private final LatencyHistogram total;
+    private final Map<MergeMetrics.Phase, LatencyHistogram> phases = new EnumMap<>(MergeMetrics.Phase.class);
+
+    private MBeanServer server;
+    private ObjectName objectName;
+    private StandardMBean view;
+    private String[] attributeNames;
+
+    static synchronized MergeStatistics getInstance() {
+        if (instance == null) {
+            instance = new MergeStatistics(
+                    SharedState.get(SHARED_STATE_NAME, AtomicLongArray[].class, MergeStatistics::newState));
+            instance.register(ManagementFactory.getPlatformMBeanServer());
+            MergeGovernor.getInstance().onChange(instance::publish);
+        }
+        return instance;
+    }
+
+    MergeStatistics() {
+        this(newState());
+    }
+
+    private MergeStatistics(AtomicLongArray[] state) {
+        this.state = state;
+        this.counters = state[0];
+        this.total = new LatencyHistogram(state[1]);
+        for (MergeMetrics.Phase phase : MergeMetrics.Phase.values()) {
+            phases.put(phase, new LatencyHistogram(state[2 + phase.ordinal()]));
+        }
+    }
+
+    private static AtomicLongArray[] newState() {
+        AtomicLongArray[] state = new AtomicLongArray[2 + MergeMetrics.Phase.values().length];
+        state[0] = new AtomicLongArray(PEAK_ESTIMATED_MEMORY_BYTES + 1);
+        for (int i = 1; i < state.length; i++) {
+            state[i] = LatencyHistogram.newValues();
+        }
+        return state;
+    }
+
+    /**
+     * Registers the MBean the statistics are published to, unless another copy of the connector already did.
+     */
+    void register(MBeanServer server) {
+        try {
+            ObjectName objectName = new ObjectName(OBJECT_NAME);
+            StandardMBean view = new StandardMBean(this, MergeStatisticsMXBean.class, true);
+            try {
+                server.registerMBean(publication(view.getMBeanInfo()), objectName);
+            } catch (InstanceAlreadyExistsException e) {
+                // another class loader got there first
+            }
+            synchronized (state) {
+                this.server = server;
+                this.objectName = objectName;
+                this.view = view;
+                this.attributeNames = attributeNames(view.getMBeanInfo());
+            }
+            publish();
+        } catch (JMException | RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Could not register merge statistics MBean", e);
+        }
+    }
+
+    private static RequiredModelMBean publication(MBeanInfo info) throws JMException {
+        MBeanAttributeInfo[] attributes = info.getAttributes();
+        ModelMBeanAttributeInfo[] published = new ModelMBeanAttributeInfo[attributes.length];
+        for (int i = 0; i < attributes.length; i++) {
+            // writable, since the values are set from the outside; the next merge overwrites any other change
+            published[i] = new ModelMBeanAttributeInfo(attributes[i].getName(), attributes[i].getType(),
+                    attributes[i].getDescription(), true, true, false);
+        }
+        return new RequiredModelMBean(new ModelMBeanInfoSupport(RequiredModelMBean.class.getName(),
+                "Merge statistics of this engine node", published, null, null, null));
+    }
+
+    private static String[] attributeNames(MBeanInfo info) {
+        MBeanAttributeInfo[] attributes = info.getAttributes();
+        String[] names = new String[attributes.length];
+        for (int i = 0; i < attributes.length; i++) {
+            names[i] = attributes[i].getName();
+        }
+        return names;
+    }
+
+    /**
+     * Sets the attributes of the registered MBean to the current values.
+     */
+    void publish() {
+        synchronized (state) {
+            if (server == null) {
+                return;
+            }
+            try {
+                server.setAttributes(objectName, view.getAttributes(attributeNames));
+            } catch (JMException | RuntimeException e) {
+                LOGGER.log(Level.FINE, "Could not publish merge statistics", e);
+            }
+        }
+    }
+
+    void recordSuccess(MergeMetrics metrics) {
+        counters.incrementAndGet(EXECUTIONS);
+        if (metrics.isCacheHit()) {
+            counters.incrementAndGet(CACHE_HITS);
+        }
+        counters.addAndGet(INPUT_BYTES, metrics.getInputBytes());
+        counters.addAndGet(OUTPUT_BYTES, metrics.getOutputBytes());
+        counters.addAndGet(PAGES_MERGED, metrics.getPageCount());
+        counters.accumulateAndGet(PEAK_ESTIMATED_MEMORY_BYTES, metrics.getPeakEstimatedMemoryBytes(), Math::max);
+        total.record(metrics.getTotalNanos());
+        if (!metrics.isCacheHit()) {
+            for (Map.Entry<MergeMetrics.Phase, LatencyHistogram> phase : phases.entrySet()) {
+                phase.getValue().record(metrics.getPhaseNanos(phase.getKey()));
+            }
+        }
+        publish();
+    }
+
+    void recordFailure() {
+        counters.incrementAndGet(EXECUTIONS);
+        counters.incrementAndGet(FAILURES);
+        publish();
+    }
+
+    @Override
+    public long getExecutionCount() {
+        return counters.get(EXECUTIONS);
+    }
+
+    @Override
+    public long getFailureCount() {
+        return counters.get(FAILURES);
+    }
+
+    @Override
+    public long getCacheHitCount() {
+        return counters.get(CACHE_HITS);
+    }
+
+    @Override
+    public long getInputBytes() {
+        return counters.get(INPUT_BYTES);
+    }
+
+    @Override
+    public long getOutputBytes() {
+        return counters.get(OUTPUT_BYTES);
+    }
+
+    @Override
+    public long getPagesMerged() {
+        return counters.get(PAGES_MERGED);
+    }
+
+    @Override
+    public long getPeakEstimatedMemoryBytes() {
+        return counters.get(PEAK_ESTIMATED_MEMORY_BYTES);
+    }
+
+    @Override
+    public PhaseStatistics getTotal() {
+        return total.snapshot();
+    }
+
+    @Override
+    public PhaseStatistics getFetch() {
+        return phases.get(MergeMetrics.Phase.FETCH).snapshot();
+    }
+
+    @Override
+    public PhaseStatistics getAdmission() {
+        return phases.get(MergeMetrics.Phase.ADMISSION).snapshot();
+    }
+
+    @Override
+    public PhaseStatistics getParse() {
+        return phases.get(MergeMetrics.Phase.PARSE).snapshot();
+    }
+
+    @Override
+    public PhaseStatistics getMerge() {
+        return phases.get(MergeMetrics.Phase.MERGE).snapshot();
+    }
+
+    @Override
+    public PhaseStatistics getPostProcess() {
+        return phases.get(MergeMetrics.Phase.POST_PROCESS).snapshot();
+    }
+
+    @Override
+    public PhaseStatistics getSerialize() {
+        return phases.get(MergeMetrics.Phase.SERIALIZE).snapshot();
+    }
+
+    @Override
+    public long getAdmissionBudgetBytes() {
+        return MergeGovernor.getInstance().getMaxBytes();
+    }
+
+    @Override
+    public long getAdmittedBytes() {
+        return MergeGovernor.getInstance().getUsedBytes();
+    }
+
+    @Override
+    public long getPeakAdmittedBytes() {
+        return MergeGovernor.getInstance().getPeakUsedBytes();
+    }
+
+    @Override
+    public int getRunningMerges() {
+        return MergeGovernor.getInstance().getRunningCount();
+    }
+
+    @Override
+    public int getQueuedMerges() {
+        return MergeGovernor.getInstance().getQueuedCount();
+    }
+
+    @Override
+    public long getRejectedMerges() {
+        return MergeGovernor.getInstance().getRejectedCount();
+    }
+}
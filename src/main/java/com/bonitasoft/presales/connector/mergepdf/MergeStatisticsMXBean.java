@@ -0,0 +1,47 @@
+package com.bonitasoft.presales.connector.mergepdf;
+
+/**
+ * Merge statistics of an engine node, published as {@value MergeStatistics#OBJECT_NAME}.
+ */
+public interface MergeStatisticsMXBean {
+
+    long getExecutionCount();
+
+    long getFailureCount();
+
+    long getCacheHitCount();
+
+    long getInputBytes();
+
+    long getOutputBytes();
+
+    long getPagesMerged();
+
+    long getPeakEstimatedMemoryBytes();
+
+    PhaseStatistics getTotal();
+
+    PhaseStatistics getFetch();
+
+    PhaseStatistics getAdmission();
+
+    PhaseStatistics getParse();
+
+    PhaseStatistics getMerge();
+
+    PhaseStatistics getPostProcess();
+
+    PhaseStatistics getSerialize();
+
+    long getAdmissionBudgetBytes();
+
+    long getAdmittedBytes();
+
+    long getPeakAdmittedBytes();
+
+    int getRunningMerges();
+
+    int getQueuedMerges();
+
+    long getRejectedMerges();
+}
@@ -0,0 +1,194 @@
+package com.bonitasoft.presales.connector.mergepdf;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+import org.apache.pdfbox.io.MemoryUsageSetting;
+import org.apache.pdfbox.io.RandomAccessBuffer;
+import org.apache.pdfbox.io.RandomAccessBufferedFileInputStream;
+import org.apache.pdfbox.io.RandomAccessRead;
+import org.apache.pdfbox.pdmodel.PDDocument;
+
+/**
+ * Holds the fetched source documents of one connector execution and decides where they live.
+ * <p>
+ * Sources stay on the heap while the strategy allows it. Once the strategy spills (explicitly, or
+ * because {@link MemoryStrategy#AUTO} went over the main memory budget), every source is written to
+ * a private scratch directory that PDFBox also uses for its own scratch files. Closing the
+ * workspace deletes that directory, whether the merge succeeded or not.
+ */
+class MergeWorkspace implements Closeable {
+
+    private static final Logger LOGGER = Logger.getLogger(MergeWorkspace.class.getName());
+    private static final String SCRATCH_DIRECTORY_PREFIX = "merge-pdf-";
+
+    /**
+     * Heap taken by a parsed object, stream buffers included: about 1.4 KB measured on generated reports, whatever
+     * the memory strategy, since PDFBox keeps every parsed object on the heap.
+     */
+    static final long PARSED_OBJECT_HEAP_BYTES = 1434;
+
+    private final MemoryStrategy requestedStrategy;
+    private final long maxMainMemoryBytes;
+    private final Path parentDirectory;
+
+    private final List<Object> sources = new ArrayList<>();
+    private long totalBytes;
+    private long heapSourceBytes;
+    private long objectCount;
+    private boolean spilled;
+    private Path scratchDirectory;
+
+    MergeWorkspace(MemoryStrategy requestedStrategy, long maxMainMemoryBytes, Path parentDirectory) {
+        this.requestedStrategy = requestedStrategy;
+        this.maxMainMemoryBytes = maxMainMemoryBytes;
+        this.parentDirectory = parentDirectory;
+        this.spilled = requestedStrategy.spillsToDisk();
+    }
+
+    /**
+     * @param objectCount number of objects of the source, as found by the {@link PreflightScanner}
+     */
+    void addSource(byte[] content, int objectCount) throws IOException {
+        totalBytes += content.length;
+        this.objectCount += objectCount;
+        if (!spilled && requestedStrategy == MemoryStrategy.AUTO && totalBytes > maxMainMemoryBytes) {
+            LOGGER.info(String.format("Fetched content (%d bytes) exceeds the main memory budget (%d bytes), "
+                    + "spilling sources to disk", totalBytes, maxMainMemoryBytes));
+            spillHeldSources();
+        }
+        if (spilled) {
+            sources.add(writeToScratchFile(content));
+        } else {
+            sources.add(content);
+            heapSourceBytes += content.length;
+        }
+    }
+
+    long getTotalBytes() {
+        return totalBytes;
+    }
+
+    int getSourceCount() {
+        return sources.size();
+    }
+
+    /**
+     * Rough heap footprint of the sources: the fetched contents still held as arrays, the objects PDFBox parses,
+     * plus the copy of their streams it keeps in main memory.
+     */
+    long getEstimatedHeapBytes() {
+        long parsedObjectBytes = objectCount * PARSED_OBJECT_HEAP_BYTES;
+        switch (getEffectiveStrategy()) {
+            case MAIN_MEMORY_ONLY:
+                return heapSourceBytes + parsedObjectBytes + totalBytes;
+            case MIXED:
+                return heapSourceBytes + parsedObjectBytes + Math.min(totalBytes, maxMainMemoryBytes);
+            default:
+                return heapSourceBytes + parsedObjectBytes;
+        }
+    }
+
+    /**
+     * Rough heap peak of the whole merge, used for admission: the sources as {@link #getEstimatedHeapBytes()},
+     * plus the merged output held on the heap.
+     */
+    long estimatePeakHeapBytes(long outputBytes) {
+        return getEstimatedHeapBytes() + outputBytes;
+    }
+
+    MemoryStrategy getEffectiveStrategy() {
+        if (requestedStrategy != MemoryStrategy.AUTO) {
+            return requestedStrategy;
+        }
+        return spilled ? MemoryStrategy.MIXED : MemoryStrategy.MAIN_MEMORY_ONLY;
+    }
+
+    MemoryUsageSetting getMemoryUsageSetting() throws IOException {
+        switch (getEffectiveStrategy()) {
+            case MIXED:
+                return MemoryUsageSetting.setupMixed(maxMainMemoryBytes).setTempDir(getScratchDirectory().toFile());
+            case TEMP_FILE_ONLY:
+                return MemoryUsageSetting.setupTempFileOnly().setTempDir(getScratchDirectory().toFile());
+            default:
+                return MemoryUsageSetting.setupMainMemoryOnly();
+        }
+    }
+
+    /**
+     * Memory setting for each of the documents opened during the merge: the sources plus the destination
+     * share the main memory budget, as {@code PDFMergerUtility} does.
+     */
+    MemoryUsageSetting getPartitionedMemoryUsageSetting() throws IOException {
+        return getMemoryUsageSetting().getPartitionedCopy(sources.size() + 1);
+    }
+
+    PDDocument loadSource(int index, MemoryUsageSetting memoryUsageSetting) throws IOException {
+        Object source = sources.get(index);
+        if (source instanceof File) {
+            return PDDocument.load((File) source, memoryUsageSetting);
+        }
+        return PDDocument.load((byte[]) source, null, null, null, memoryUsageSetting);
+    }
+
+    /**
+     * Raw bytes of a source, for the readers that do not load the whole document.
+     */
+    RandomAccessRead openSource(int index) throws IOException {
+        Object source = sources.get(index);
+        if (source instanceof File) {
+            return new RandomAccessBufferedFileInputStream((File) source);
+        }
+        return new RandomAccessBuffer((byte[]) source);
+    }
+
+    private void spillHeldSources() throws IOException {
+        spilled = true;
+        heapSourceBytes = 0;
+        for (int i = 0; i < sources.size(); i++) {
+            if (sources.get(i) instanceof byte[]) {
+                sources.set(i, writeToScratchFile((byte[]) sources.get(i)));
+            }
+        }
+    }
+
+    private File writeToScratchFile(byte[] content) throws IOException {
+        Path file = Files.createTempFile(getScratchDirectory(), "source-", ".pdf");
+        Files.write(file, content);
+        return file.toFile();
+    }
+
+    private Path getScratchDirectory() throws IOException {
+        if (scratchDirectory == null) {
+            scratchDirectory = parentDirectory != null
+                    ? Files.createTempDirectory(parentDirectory, SCRATCH_DIRECTORY_PREFIX)
+                    : Files.createTempDirectory(SCRATCH_DIRECTORY_PREFIX);
+        }
+        return scratchDirectory;
+    }
+
+    @Override
+    public void close() throws IOException {
+        sources.clear();
+        heapSourceBytes = 0;
+        objectCount = 0;
+        if (scratchDirectory == null) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(scratchDirectory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+        if (Files.exists(scratchDirectory)) {
+            LOGGER.warning(String.format("Could not fully delete scratch directory '%s'", scratchDirectory));
+        }
+        scratchDirectory = null;
+    }
+}
@@ -0,0 +1,131 @@
+package com.bonitasoft.presales.connector.mergepdf;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Collects a serialized document in memory in segments, so that growing never copies what was already written,
+ * and hands it over as a single array of the exact size.
+ * <p>
+ * A {@link java.io.ByteArrayOutputStream} doubles its array each time it is full, copying its content every time,
+ * and {@code toByteArray()} copies it once more: up to three times the document size is allocated at the end of
+ * a merge. Here the first segment is sized from the expected size of the document (the summed size of its
+ * sources is a good estimate), and each further segment is as large as everything written so far, up to
+ * {@value #MAX_SEGMENT_BYTES} bytes. {@link #toByteArray()} returns the first segment itself when the document
+ * fills it exactly, and otherwise copies the segments once into the result, releasing each one once copied.
+ */
+class OutputBuffer extends OutputStream {
+
+    static final int MIN_SEGMENT_BYTES = 64 * 1024;
+    static final int MAX_SEGMENT_BYTES = 64 * 1024 * 1024;
+
+    /** Largest array most JVMs can allocate. */
+    private static final int MAX_ARRAY_BYTES = Integer.MAX_VALUE - 8;
+
+    private final List<byte[]> segments = new ArrayList<>();
+    private byte[] current;
+    private int position;
+    private long size;
+    private long allocatedBytes;
+    private long peakBytes;
+
+    /**
+     * @param expectedBytes expected size of the document, used to size the first segment
+     */
+    OutputBuffer(long expectedBytes) {
+        addSegment(segmentSize(expectedBytes));
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (position == current.length) {
+            grow(1);
+        }
+        current[position++] = (byte) b;
+        size++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        Objects.checkFromIndexSize(off, len, b.length);
+        while (len > 0) {
+            if (position == current.length) {
+                grow(len);
+            }
+            int count = Math.min(len, current.length - position);
+            System.arraycopy(b, off, current, position, count);
+            position += count;
+            size += count;
+            off += count;
+            len -= count;
+        }
+    }
+
+    /**
+     * @return number of bytes written
+     */
+    long size() {
+        return size;
+    }
+
+    /**
+     * @return total size of the segments allocated so far
+     */
+    long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    /**
+     * @return largest heap footprint of the buffer: its segments, plus the result when they had to be copied into
+     *         it; only known once the content is handed over
+     */
+    long getPeakBytes() {
+        return peakBytes;
+    }
+
+    /**
+     * Hands over the content. The buffer cannot be written to afterwards.
+     */
+    byte[] toByteArray() {
+        byte[] content;
+        if (segments.size() == 1 && position == current.length) {
+            content = current;
+            peakBytes = allocatedBytes;
+        } else {
+            peakBytes = allocatedBytes + size;
+            content = new byte[(int) size];
+            int offset = 0;
+            for (int i = 0; i < segments.size(); i++) {
+                byte[] segment = segments.get(i);
+                int count = Math.min(segment.length, content.length - offset);
+                System.arraycopy(segment, 0, content, offset, count);
+                offset += count;
+                segments.set(i, null);
+            }
+        }
+        segments.clear();
+        current = null;
+        return content;
+    }
+
+    private void grow(int minimum) throws IOException {
+        if (size + minimum > MAX_ARRAY_BYTES) {
+            throw new IOException(String.format("Document larger than the maximum of %d bytes", MAX_ARRAY_BYTES));
+        }
+        addSegment((int) Math.min(segmentSize(size), MAX_ARRAY_BYTES - size));
+    }
+
+    private void addSegment(int length) {
+        current = new byte[length];
+        position = 0;
+        segments.add(current);
+        allocatedBytes += length;
+    }
+
+    private static int segmentSize(long bytes) {
+        return (int) Math.max(MIN_SEGMENT_BYTES, Math.min(bytes, MAX_SEGMENT_BYTES));
+    }
+}
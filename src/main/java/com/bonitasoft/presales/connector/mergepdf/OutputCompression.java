@@ -0,0 +1,38 @@
+package com.bonitasoft.presales.connector.mergepdf;
+
+import java.util.Locale;
+
+/**
+ * How the merged document is serialized.
+ */
+public enum OutputCompression {
+
+    /**
+     * Classic cross-reference table and loose objects, as written by PDFBox (historical behaviour).
+     */
+    STANDARD,
+
+    /**
+     * PDF 1.5 object streams and cross-reference stream, with every content stream Flate-compressed
+     * at the highest level. Smaller output for a longer save.
+     */
+    COMPRESSED,
+
+    /**
+     * Linearized ("fast web view"): the first page and everything it uses come first in the file, so that
+     * viewers can display it before the rest of the document is downloaded.
+     */
+    LINEARIZED;
+
+    /**
+     * Parses a connector input value, {@code null} or blank meaning {@link #STANDARD}.
+     *
+     * @throws IllegalArgumentException if the value does not name a compression mode
+     */
+    static OutputCompression fromInput(String value) {
+        if (value == null || value.trim().isEmpty()) {
+            return STANDARD;
+        }
+        return valueOf(value.trim().toUpperCase(Locale.ROOT));
+    }
+}
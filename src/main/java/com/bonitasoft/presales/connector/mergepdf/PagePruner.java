@@ -0,0 +1,492 @@
+package com.bonitasoft.presales.connector.mergepdf;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Predicate;
+
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSNull;
+import org.apache.pdfbox.cos.COSNumber;
+import org.apache.pdfbox.cos.COSString;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDDocumentCatalog;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.common.PDPageLabelRange;
+import org.apache.pdfbox.pdmodel.common.PDPageLabels;
+import org.apache.pdfbox.pdmodel.interactive.annotation.PDAnnotationLink;
+import org.apache.pdfbox.pdmodel.interactive.documentnavigation.destination.PDNamedDestination;
+import org.apache.pdfbox.pdmodel.interactive.documentnavigation.destination.PDPageDestination;
+
+/**
+ * Removes the pages left out by a {@link PageSelection} from a source document before it is merged.
+ * <p>
+ * Both merge engines copy whatever is reachable from the kept pages and the catalog, so everything that still
+ * points at a removed page is dropped as well: links and named destinations leading to it, the open action,
+ * form fields whose widgets are all on removed pages, article threads running through it and the structure
+ * elements of its content. A bookmark leading to a removed page is dropped too, unless it has children; it then
+ * only loses its target. Page labels are renumbered so that the kept pages keep their label.
+ */
+class PagePruner {
+
+    private static final COSName MCR = COSName.getPDFName("MCR");
+    private static final COSName LINK = COSName.getPDFName(PDAnnotationLink.SUB_TYPE);
+    private static final int MAX_TREE_DEPTH = 256;
+
+    private final PDDocument document;
+    private final PDDocumentCatalog catalog;
+    private final Set<COSBase> removedPages = identitySet();
+    private final Set<COSBase> removedAnnotations = identitySet();
+    private final Set<COSBase> removedElements = identitySet();
+    private final Set<Integer> removedStructParents = new HashSet<>();
+
+    private PagePruner(PDDocument document) {
+        this.document = document;
+        this.catalog = document.getDocumentCatalog();
+    }
+
+    /**
+     * Keeps only the pages whose zero-based index is set in {@code selectedPages}.
+     */
+    static void retainPages(PDDocument document, BitSet selectedPages) throws IOException {
+        new PagePruner(document).retain(selectedPages);
+    }
+
+    private static Set<COSBase> identitySet() {
+        return Collections.newSetFromMap(new IdentityHashMap<>());
+    }
+
+    private void retain(BitSet selectedPages) throws IOException {
+        List<PDPage> pages = new ArrayList<>();
+        for (PDPage page : document.getPages()) {
+            pages.add(page);
+        }
+        if (selectedPages.nextClearBit(0) >= pages.size()) {
+            return;
+        }
+        for (int i = 0; i < pages.size(); i++) {
+            if (!selectedPages.get(i)) {
+                markRemoved(pages.get(i).getCOSObject());
+            }
+        }
+        renumberPageLabels(selectedPages, pages.size());
+        for (int i = pages.size() - 1; i >= 0; i--) {
+            if (!selectedPages.get(i)) {
+                document.getPages().remove(pages.get(i));
+            }
+        }
+
+        removeLinks();
+        if (leadsToRemovedPage(catalog.getCOSObject().getDictionaryObject(COSName.OPEN_ACTION))) {
+            catalog.getCOSObject().removeItem(COSName.OPEN_ACTION);
+        }
+        pruneStructureTree();
+        pruneOutlines();
+        pruneNamedDestinations();
+        pruneFields();
+        pruneThreads();
+    }
+
+    private void markRemoved(COSDictionary page) {
+        removedPages.add(page);
+        if (page.getDictionaryObject(COSName.STRUCT_PARENTS) instanceof COSNumber) {
+            removedStructParents.add(page.getInt(COSName.STRUCT_PARENTS));
+        }
+        COSArray annotations = page.getCOSArray(COSName.ANNOTS);
+        if (annotations != null) {
+            for (int i = 0; i < annotations.size(); i++) {
+                markRemovedAnnotation(annotations.getObject(i));
+            }
+        }
+    }
+
+    private void markRemovedAnnotation(COSBase annotation) {
+        removedAnnotations.add(annotation);
+        if (annotation instanceof COSDictionary
+                && ((COSDictionary) annotation).getDictionaryObject(COSName.STRUCT_PARENT) instanceof COSNumber) {
+            removedStructParents.add(((COSDictionary) annotation).getInt(COSName.STRUCT_PARENT));
+        }
+    }
+
+    /**
+     * Restarts a label range wherever the kept pages stop being consecutive, at the number the page had.
+     */
+    private void renumberPageLabels(BitSet selectedPages, int pageCount) throws IOException {
+        PDPageLabels labels = catalog.getPageLabels();
+        if (labels == null) {
+            return;
+        }
+        PDPageLabels renumbered = new PDPageLabels(document);
+        int newIndex = 0;
+        int previousIndex = -2;
+        Integer previousStart = null;
+        for (int i = selectedPages.nextSetBit(0); i >= 0 && i < pageCount; i = selectedPages.nextSetBit(i + 1)) {
+            Integer start = labels.getPageIndices().floor(i);
+            if (start != null && (i != previousIndex + 1 || !start.equals(previousStart))) {
+                PDPageLabelRange range = labels.getPageLabelRange(start);
+                PDPageLabelRange copy = new PDPageLabelRange();
+                copy.setStyle(range.getStyle());
+                copy.setPrefix(range.getPrefix());
+                copy.setStart(range.getStart() + i - start);
+                renumbered.setLabelItem(newIndex, copy);
+            }
+            previousIndex = i;
+            previousStart = start;
+            newIndex++;
+        }
+        catalog.setPageLabels(renumbered);
+    }
+
+    private void removeLinks() throws IOException {
+        for (PDPage page : document.getPages()) {
+            COSArray annotations = page.getCOSObject().getCOSArray(COSName.ANNOTS);
+            if (annotations == null) {
+                continue;
+            }
+            for (int i = annotations.size() - 1; i >= 0; i--) {
+                COSBase annotation = annotations.getObject(i);
+                if (annotation instanceof COSDictionary
+                        && LINK.equals(((COSDictionary) annotation).getCOSName(COSName.SUBTYPE))
+                        && (leadsToRemovedPage(((COSDictionary) annotation).getDictionaryObject(COSName.DEST))
+                        || leadsToRemovedPage(((COSDictionary) annotation).getDictionaryObject(COSName.A)))) {
+                    annotations.remove(i);
+                    markRemovedAnnotation(annotation);
+                }
+            }
+        }
+    }
+
+    /**
+     * Whether an explicit or named destination, a destination dictionary or a go-to action leads to a removed page.
+     */
+    private boolean leadsToRemovedPage(COSBase target) throws IOException {
+        if (target instanceof COSDictionary) {
+            target = ((COSDictionary) target).getDictionaryObject(COSName.D);
+        }
+        PDPageDestination destination = null;
+        if (target instanceof COSName) {
+            destination = catalog.findNamedDestinationPage(new PDNamedDestination((COSName) target));
+        } else if (target instanceof COSString) {
+            destination = catalog.findNamedDestinationPage(new PDNamedDestination((COSString) target));
+        }
+        return isRemovedPageDestination(destination != null ? destination.getCOSObject() : target);
+    }
+
+    /**
+     * Whether an explicit destination, or a destination dictionary, is on a removed page.
+     */
+    private boolean isRemovedPageDestination(COSBase destination) {
+        if (destination instanceof COSDictionary) {
+            destination = ((COSDictionary) destination).getDictionaryObject(COSName.D);
+        }
+        return destination instanceof COSArray && ((COSArray) destination).size() > 0
+                && removedPages.contains(((COSArray) destination).getObject(0));
+    }
+
+    private void pruneStructureTree() {
+        COSDictionary root = catalog.getCOSObject().getCOSDictionary(COSName.STRUCT_TREE_ROOT);
+        if (root == null) {
+            return;
+        }
+        pruneStructureKids(root, null, 0);
+        pruneParentTree(root.getCOSDictionary(COSName.PARENT_TREE), 0);
+        pruneNameTree(root.getCOSDictionary(COSName.ID_TREE), removedElements::contains, 0);
+    }
+
+    /**
+     * Removes the content of removed pages from the kids of a structure element, then the elements left empty.
+     *
+     * @return whether the element had content and has none left
+     */
+    private boolean pruneStructureKids(COSDictionary element, COSDictionary inheritedPage, int depth) {
+        COSDictionary page = element.getCOSDictionary(COSName.PG) != null ? element.getCOSDictionary(COSName.PG)
+                : inheritedPage;
+        if (removedPages.contains(page)) {
+            element.removeItem(COSName.PG);
+        }
+        COSBase kids = element.getDictionaryObject(COSName.K);
+        if (kids instanceof COSArray) {
+            COSArray kidArray = (COSArray) kids;
+            if (kidArray.size() == 0) {
+                return false;
+            }
+            for (int i = kidArray.size() - 1; i >= 0; i--) {
+                if (isRemovedContent(kidArray.getObject(i), page, depth)) {
+                    kidArray.remove(i);
+                }
+            }
+            return kidArray.size() == 0;
+        }
+        if (kids != null && isRemovedContent(kids, page, depth)) {
+            element.removeItem(COSName.K);
+            return true;
+        }
+        return false;
+    }
+
+    private boolean isRemovedContent(COSBase kid, COSDictionary page, int depth) {
+        if (kid instanceof COSNumber) {
+            // marked-content id on the page of the element
+            return removedPages.contains(page);
+        }
+        if (!(kid instanceof COSDictionary)) {
+            return false;
+        }
+        COSDictionary dictionary = (COSDictionary) kid;
+        COSDictionary kidPage = dictionary.getCOSDictionary(COSName.PG) != null
+                ? dictionary.getCOSDictionary(COSName.PG) : page;
+        if (MCR.equals(dictionary.getCOSName(COSName.TYPE))) {
+            return removedPages.contains(kidPage);
+        }
+        if (COSName.OBJR.equals(dictionary.getCOSName(COSName.TYPE))) {
+            return removedPages.contains(kidPage)
+                    || removedAnnotations.contains(dictionary.getDictionaryObject(COSName.OBJ));
+        }
+        if (depth < MAX_TREE_DEPTH && pruneStructureKids(dictionary, page, depth + 1)) {
+            removedElements.add(dictionary);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Drops the parent tree entries of removed pages and annotations, and references to removed elements.
+     */
+    private void pruneParentTree(COSDictionary node, int depth) {
+        if (node == null || depth > MAX_TREE_DEPTH) {
+            return;
+        }
+        COSArray nums = node.getCOSArray(COSName.NUMS);
+        if (nums != null) {
+            for (int i = nums.size() - 2 - nums.size() % 2; i >= 0; i -= 2) {
+                COSBase key = nums.getObject(i);
+                COSBase value = nums.getObject(i + 1);
+                boolean removed = key instanceof COSNumber
+                        && removedStructParents.contains(((COSNumber) key).intValue())
+                        || removedElements.contains(value);
+                if (value instanceof COSArray) {
+                    COSArray elements = (COSArray) value;
+                    for (int j = 0; j < elements.size(); j++) {
+                        if (removedElements.contains(elements.getObject(j))) {
+                            elements.set(j, COSNull.NULL);
+                        }
+                    }
+                }
+                if (removed) {
+                    nums.remove(i + 1);
+                    nums.remove(i);
+                }
+            }
+        }
+        COSArray kids = node.getCOSArray(COSName.KIDS);
+        if (kids != null) {
+            for (int i = 0; i < kids.size(); i++) {
+                if (kids.getObject(i) instanceof COSDictionary) {
+                    pruneParentTree((COSDictionary) kids.getObject(i), depth + 1);
+                }
+            }
+        }
+    }
+
+    private void pruneOutlines() throws IOException {
+        COSDictionary outlines = catalog.getCOSObject().getCOSDictionary(COSName.OUTLINES);
+        if (outlines == null) {
+            return;
+        }
+        pruneOutlineItems(outlines, identitySet(), 0);
+        if (outlines.getCOSDictionary(COSName.FIRST) == null) {
+            catalog.getCOSObject().removeItem(COSName.OUTLINES);
+        } else {
+            outlines.setInt(COSName.COUNT, updateOutlineCounts(outlines, identitySet(), 0));
+        }
+    }
+
+    private void pruneOutlineItems(COSDictionary parent, Set<COSBase> visited, int depth) throws IOException {
+        COSDictionary item = parent.getCOSDictionary(COSName.FIRST);
+        while (item != null && visited.add(item) && depth < MAX_TREE_DEPTH) {
+            COSDictionary next = item.getCOSDictionary(COSName.NEXT);
+            pruneOutlineItems(item, visited, depth + 1);
+            if (removedElements.contains(item.getDictionaryObject(COSName.SE))) {
+                item.removeItem(COSName.SE);
+            }
+            if (leadsToRemovedPage(item.getDictionaryObject(COSName.DEST))
+                    || leadsToRemovedPage(item.getDictionaryObject(COSName.A))) {
+                if (item.getCOSDictionary(COSName.FIRST) == null) {
+                    unlinkOutlineItem(parent, item);
+                } else {
+                    item.removeItem(COSName.DEST);
+                    item.removeItem(COSName.A);
+                }
+            }
+            item = next;
+        }
+    }
+
+    private static void unlinkOutlineItem(COSDictionary parent, COSDictionary item) {
+        COSDictionary previous = item.getCOSDictionary(COSName.PREV);
+        COSDictionary next = item.getCOSDictionary(COSName.NEXT);
+        if (previous != null) {
+            previous.setItem(COSName.NEXT, next);
+        } else {
+            parent.setItem(COSName.FIRST, next);
+        }
+        if (next != null) {
+            next.setItem(COSName.PREV, previous);
+        } else {
+            parent.setItem(COSName.LAST, previous);
+        }
+    }
+
+    /**
+     * Recomputes the {@code /Count} of the items below {@code node}.
+     *
+     * @return the number of items visible below {@code node} when it is open
+     */
+    private static int updateOutlineCounts(COSDictionary node, Set<COSBase> visited, int depth) {
+        int visible = 0;
+        COSDictionary item = node.getCOSDictionary(COSName.FIRST);
+        while (item != null && visited.add(item) && depth < MAX_TREE_DEPTH) {
+            boolean open = item.getInt(COSName.COUNT, 0) > 0;
+            int descendants = updateOutlineCounts(item, visited, depth + 1);
+            if (descendants == 0) {
+                item.removeItem(COSName.COUNT);
+            } else {
+                item.setInt(COSName.COUNT, open ? descendants : -descendants);
+            }
+            visible += 1 + (open ? descendants : 0);
+            item = item.getCOSDictionary(COSName.NEXT);
+        }
+        return visible;
+    }
+
+    private void pruneNamedDestinations() {
+        COSDictionary dests = catalog.getCOSObject().getCOSDictionary(COSName.DESTS);
+        if (dests != null) {
+            for (COSName name : new ArrayList<>(dests.keySet())) {
+                if (isRemovedPageDestination(dests.getDictionaryObject(name))) {
+                    dests.removeItem(name);
+                }
+            }
+        }
+        COSDictionary names = catalog.getCOSObject().getCOSDictionary(COSName.NAMES);
+        if (names != null) {
+            pruneNameTree(names.getCOSDictionary(COSName.DESTS), this::isRemovedPageDestination, 0);
+        }
+    }
+
+    private static void pruneNameTree(COSDictionary node, Predicate<COSBase> removed, int depth) {
+        if (node == null || depth > MAX_TREE_DEPTH) {
+            return;
+        }
+        COSArray names = node.getCOSArray(COSName.NAMES);
+        if (names != null) {
+            for (int i = names.size() - 2 - names.size() % 2; i >= 0; i -= 2) {
+                if (removed.test(names.getObject(i + 1))) {
+                    names.remove(i + 1);
+                    names.remove(i);
+                }
+            }
+        }
+        COSArray kids = node.getCOSArray(COSName.KIDS);
+        if (kids != null) {
+            for (int i = 0; i < kids.size(); i++) {
+                if (kids.getObject(i) instanceof COSDictionary) {
+                    pruneNameTree((COSDictionary) kids.getObject(i), removed, depth + 1);
+                }
+            }
+        }
+    }
+
+    private void pruneFields() {
+        COSDictionary form = catalog.getCOSObject().getCOSDictionary(COSName.ACRO_FORM);
+        COSArray fields = form != null ? form.getCOSArray(COSName.FIELDS) : null;
+        if (fields == null) {
+            return;
+        }
+        Set<COSBase> removedFields = identitySet();
+        pruneFieldKids(fields, removedFields, 0);
+        COSArray calculationOrder = form.getCOSArray(COSName.CO);
+        if (calculationOrder != null) {
+            for (int i = calculationOrder.size() - 1; i >= 0; i--) {
+                if (removedFields.contains(calculationOrder.getObject(i))) {
+                    calculationOrder.remove(i);
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes the widgets of removed pages, then the fields left without widgets.
+     */
+    private void pruneFieldKids(COSArray fields, Set<COSBase> removedFields, int depth) {
+        for (int i = fields.size() - 1; i >= 0; i--) {
+            COSBase field = fields.getObject(i);
+            if (!(field instanceof COSDictionary)) {
+                continue;
+            }
+            COSArray kids = ((COSDictionary) field).getCOSArray(COSName.KIDS);
+            boolean removed;
+            if (kids != null && kids.size() > 0 && depth < MAX_TREE_DEPTH) {
+                pruneFieldKids(kids, removedFields, depth + 1);
+                removed = kids.size() == 0;
+            } else {
+                removed = removedAnnotations.contains(field);
+            }
+            if (removed) {
+                fields.remove(i);
+                removedFields.add(field);
+            }
+        }
+    }
+
+    /**
+     * Drops the article threads that run through a removed page, and the beads of the kept pages that belong to them.
+     */
+    private void pruneThreads() {
+        COSArray threads = catalog.getCOSObject().getCOSArray(COSName.THREADS);
+        if (threads == null) {
+            return;
+        }
+        Set<COSBase> removedBeads = identitySet();
+        for (int i = threads.size() - 1; i >= 0; i--) {
+            COSBase thread = threads.getObject(i);
+            if (!(thread instanceof COSDictionary)) {
+                continue;
+            }
+            List<COSDictionary> beads = new ArrayList<>();
+            boolean removed = false;
+            COSDictionary bead = ((COSDictionary) thread).getCOSDictionary(COSName.F);
+            Set<COSBase> visited = identitySet();
+            while (bead != null && visited.add(bead)) {
+                beads.add(bead);
+                removed |= removedPages.contains(bead.getDictionaryObject(COSName.P));
+                bead = bead.getCOSDictionary(COSName.N);
+            }
+            if (removed) {
+                threads.remove(i);
+                removedBeads.addAll(beads);
+            }
+        }
+        if (removedBeads.isEmpty()) {
+            return;
+        }
+        for (PDPage page : document.getPages()) {
+            COSArray pageBeads = page.getCOSObject().getCOSArray(COSName.B);
+            if (pageBeads != null) {
+                for (int i = pageBeads.size() - 1; i >= 0; i--) {
+                    if (removedBeads.contains(pageBeads.getObject(i))) {
+                        pageBeads.remove(i);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.bonitasoft.presales.connector.mergepdf;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * Pages of a source document to merge, parsed from a comma-separated list of page numbers and ranges such as
+ * {@code 1}, {@code 1-3}, {@code last} or {@code 1,4-last}.
+ * <p>
+ * Page numbers start at 1 and {@code last} stands for the last page of the document. Selected pages keep their
+ * order in the source document; pages selected twice are merged once. Parts of a range beyond the end of the
+ * document are ignored.
+ */
+final class PageSelection {
+
+    static final PageSelection ALL = new PageSelection(List.of());
+
+    private static final Pattern ITEM = Pattern.compile("(\\d+|last)(?:-(\\d+|last))?");
+    private static final int LAST = 0;
+
+    /** Pairs of first and last page number, {@link #LAST} standing for the last page. */
+    private final List<int[]> ranges;
+
+    private PageSelection(List<int[]> ranges) {
+        this.ranges = ranges;
+    }
+
+    /**
+     * Parses a page-range expression, {@code null} or blank meaning every page.
+     *
+     * @throws IllegalArgumentException if the expression is not a valid list of pages and ranges
+     */
+    static PageSelection parse(String expression) {
+        if (expression == null || expression.trim().isEmpty()) {
+            return ALL;
+        }
+        List<int[]> ranges = new ArrayList<>();
+        for (String item : expression.toLowerCase(Locale.ROOT).replaceAll("\\s", "").split(",", -1)) {
+            Matcher matcher = ITEM.matcher(item);
+            if (!matcher.matches()) {
+                throw new IllegalArgumentException(String.format(
+                        "'%s' is not a page number or range (expected e.g. 1, 1-3, last or 2-last)", item));
+            }
+            int first = pageNumber(matcher.group(1));
+            int last = matcher.group(2) != null ? pageNumber(matcher.group(2)) : first;
+            if (first == LAST && last != LAST || first != LAST && last != LAST && first > last) {
+                throw new IllegalArgumentException(String.format("Page range '%s' is descending", item));
+            }
+            ranges.add(new int[] { first, last });
+        }
+        return new PageSelection(ranges);
+    }
+
+    private static int pageNumber(String value) {
+        if ("last".equals(value)) {
+            return LAST;
+        }
+        int number;
+        try {
+            number = Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            number = -1;
+        }
+        if (number < 1) {
+            throw new IllegalArgumentException(String.format("Page number '%s' must be between 1 and %d", value,
+                    Integer.MAX_VALUE));
+        }
+        return number;
+    }
+
+    boolean isAll() {
+        return ranges.isEmpty();
+    }
+
+    /**
+     * Zero-based indices of the selected pages of a document of {@code pageCount} pages.
+     */
+    BitSet resolve(int pageCount) {
+        BitSet pages = new BitSet(pageCount);
+        if (isAll()) {
+            pages.set(0, pageCount);
+            return pages;
+        }
+        for (int[] range : ranges) {
+            int first = range[0] == LAST ? pageCount : range[0];
+            int last = Math.min(range[1] == LAST ? pageCount : range[1], pageCount);
+            if (first >= 1 && first <= last) {
+                pages.set(first - 1, last);
+            }
+        }
+        return pages;
+    }
+
+    /**
+     * Normalized expression, empty for every page.
+     */
+    @Override
+    public String toString() {
+        return ranges.stream()
+                .map(range -> range[0] == range[1] ? format(range[0]) : format(range[0]) + "-" + format(range[1]))
+                .collect(Collectors.joining(","));
+    }
+
+    private static String format(int pageNumber) {
+        return pageNumber == LAST ? "last" : Integer.toString(pageNumber);
+    }
+}
@@ -0,0 +1,168 @@
+package com.bonitasoft.presales.connector.mergepdf;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+
+import org.apache.pdfbox.io.MemoryUsageSetting;
+import org.apache.pdfbox.pdmodel.PDDocument;
+
+/**
+ * Merges the sources of one group on several threads, by divide and conquer.
+ * <p>
+ * The sources are split in two halves until at most {@code threshold} remain: the left half is merged into the
+ * destination on the current thread while the right half is merged into an intermediate document by another one,
+ * which is appended to the destination once both are done. Each source is parsed by the thread that merges it, and
+ * the pages keep their order since every half is a contiguous range of sources. Document-level features (document
+ * information, open action, outlines, forms, page labels) are merged first-come as by a sequential merge.
+ * <p>
+ * The threads are those of a pool shared by every merge of the JVM, {@code mergepdf.merge.parallelism} of them
+ * (one per processor by default). With the {@link MergeEngine#FULL} engine, sources and intermediate documents are
+ * closed as soon as they are copied; with the {@link MergeEngine#FAST} engine, whose destination shares their
+ * objects, they stay open until the merger is closed.
+ */
+class ParallelMerger implements Closeable {
+
+    static final String PARALLELISM_PROPERTY = "mergepdf.merge.parallelism";
+
+    private static ForkJoinPool pool;
+
+    @FunctionalInterface
+    interface SourceLoader {
+        /**
+         * Parses the source at the given position of the group, with only its selected pages.
+         */
+        PDDocument load(int position) throws IOException;
+    }
+
+    @FunctionalInterface
+    interface DocumentAppender {
+        void append(PDDocument destination, PDDocument source) throws IOException;
+    }
+
+    private final int threshold;
+    private final boolean keepSourcesOpen;
+    private final MemoryUsageSetting memoryUsageSetting;
+    private final SourceLoader loader;
+    private final DocumentAppender appender;
+    private final Set<PDDocument> openDocuments = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param threshold          largest number of sources merged by a single thread
+     * @param keepSourcesOpen    whether the destination shares objects with the documents appended to it
+     * @param memoryUsageSetting memory setting of the intermediate documents
+     */
+    ParallelMerger(int threshold, boolean keepSourcesOpen, MemoryUsageSetting memoryUsageSetting, SourceLoader loader,
+            DocumentAppender appender) {
+        this.threshold = Math.max(threshold, 1);
+        this.keepSourcesOpen = keepSourcesOpen;
+        this.memoryUsageSetting = memoryUsageSetting;
+        this.loader = loader;
+        this.appender = appender;
+    }
+
+    static synchronized ForkJoinPool getPool() {
+        if (pool == null) {
+            int parallelism = Integer.getInteger(PARALLELISM_PROPERTY, Runtime.getRuntime().availableProcessors());
+            pool = new ForkJoinPool(Math.max(parallelism, 1), ParallelMerger::newThread, null, false);
+        }
+        return pool;
+    }
+
+    /**
+     * Appends the {@code sourceCount} sources of the group to the destination, in order.
+     */
+    void merge(PDDocument destination, int sourceCount) throws IOException {
+        try {
+            getPool().invoke(new MergeTask(destination, 0, sourceCount));
+        } catch (RuntimeException e) {
+            for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+                if (cause instanceof UncheckedIOException) {
+                    throw ((UncheckedIOException) cause).getCause();
+                }
+            }
+            throw e;
+        }
+    }
+
+    private void merge(PDDocument destination, int from, int to) throws IOException {
+        if (to - from <= threshold) {
+            for (int position = from; position < to; position++) {
+                PDDocument source = loader.load(position);
+                openDocuments.add(source);
+                appender.append(destination, source);
+                release(source);
+            }
+            return;
+        }
+        int middle = (from + to) >>> 1;
+        PDDocument intermediate = new PDDocument(memoryUsageSetting);
+        openDocuments.add(intermediate);
+        MergeTask right = new MergeTask(intermediate, middle, to);
+        right.fork();
+        try {
+            merge(destination, from, middle);
+        } catch (IOException | RuntimeException e) {
+            right.quietlyJoin();
+            throw e;
+        }
+        right.join();
+        appender.append(destination, intermediate);
+        release(intermediate);
+    }
+
+    private void release(PDDocument document) throws IOException {
+        if (!keepSourcesOpen) {
+            openDocuments.remove(document);
+            document.close();
+        }
+    }
+
+    /**
+     * Closes the sources and intermediate documents still open, once the destination is saved.
+     */
+    @Override
+    public void close() throws IOException {
+        for (PDDocument document : openDocuments) {
+            document.close();
+        }
+        openDocuments.clear();
+    }
+
+    private static ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+        ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+        thread.setName("merge-pdf-merge-" + thread.getPoolIndex());
+        // the pool outlives the execution that created it: resolve PDFBox and its services from the connector
+        thread.setContextClassLoader(ParallelMerger.class.getClassLoader());
+        return thread;
+    }
+
+    private class MergeTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final PDDocument destination;
+        private final int from;
+        private final int to;
+
+        MergeTask(PDDocument destination, int from, int to) {
+            this.destination = destination;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                merge(destination, from, to);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
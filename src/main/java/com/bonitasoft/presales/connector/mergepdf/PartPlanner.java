@@ -0,0 +1,136 @@
+package com.bonitasoft.presales.connector.mergepdf;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Distributes the selected pages of the documents to merge over consecutive output parts, each holding at most a
+ * number of pages and, as far as can be told before writing it, a number of bytes.
+ * <p>
+ * The size of a page is estimated as an equal share of the size of its source document. A part is never left empty:
+ * a page larger than the byte limit on its own makes a part of one page. Parts that turn out larger than the limit
+ * once written are split again with {@link #halve(List)}.
+ */
+class PartPlanner {
+
+    /**
+     * Pages of one source document going into a part.
+     */
+    static class Slice {
+
+        private final int document;
+        private final BitSet pages;
+
+        Slice(int document, BitSet pages) {
+            this.document = document;
+            this.pages = pages;
+        }
+
+        /**
+         * @return index of the document in the list of documents to merge
+         */
+        int getDocument() {
+            return document;
+        }
+
+        /**
+         * @return zero-based indices of the pages of the document
+         */
+        BitSet getPages() {
+            return pages;
+        }
+    }
+
+    private final long maxPartBytes;
+    private final int maxPartPages;
+
+    /**
+     * @param maxPartBytes maximum size of a part, {@code 0} for no limit
+     * @param maxPartPages maximum number of pages of a part, {@code 0} for no limit
+     */
+    PartPlanner(long maxPartBytes, int maxPartPages) {
+        this.maxPartBytes = maxPartBytes;
+        this.maxPartPages = maxPartPages;
+    }
+
+    /**
+     * @param selectedPages pages selected in each document
+     * @param pageCounts number of pages of each document
+     * @param documentBytes size of each document
+     * @return the slices of each part, in document and page order
+     */
+    List<List<Slice>> plan(List<BitSet> selectedPages, int[] pageCounts, long[] documentBytes) {
+        List<List<Slice>> parts = new ArrayList<>();
+        List<Slice> part = new ArrayList<>();
+        int partPages = 0;
+        long partBytes = 0;
+        for (int document = 0; document < selectedPages.size(); document++) {
+            long pageBytes = documentBytes[document] / Math.max(1, pageCounts[document]);
+            BitSet pages = selectedPages.get(document);
+            for (int page = pages.nextSetBit(0); page >= 0; page = pages.nextSetBit(page + 1)) {
+                if (partPages > 0 && (maxPartPages > 0 && partPages + 1 > maxPartPages
+                        || maxPartBytes > 0 && partBytes + pageBytes > maxPartBytes)) {
+                    parts.add(part);
+                    part = new ArrayList<>();
+                    partPages = 0;
+                    partBytes = 0;
+                }
+                if (part.isEmpty() || part.get(part.size() - 1).document != document) {
+                    part.add(new Slice(document, new BitSet()));
+                }
+                part.get(part.size() - 1).pages.set(page);
+                partPages++;
+                partBytes += pageBytes;
+            }
+        }
+        if (!part.isEmpty()) {
+            parts.add(part);
+        }
+        return parts;
+    }
+
+    /**
+     * @return the first and the second half of the pages of a part of at least two pages
+     */
+    static List<List<Slice>> halve(List<Slice> part) {
+        int remaining = pageCount(part) / 2;
+        List<Slice> first = new ArrayList<>();
+        List<Slice> second = new ArrayList<>();
+        for (Slice slice : part) {
+            BitSet firstPages = new BitSet();
+            BitSet secondPages = new BitSet();
+            for (int page = slice.pages.nextSetBit(0); page >= 0; page = slice.pages.nextSetBit(page + 1)) {
+                if (remaining > 0) {
+                    firstPages.set(page);
+                    remaining--;
+                } else {
+                    secondPages.set(page);
+                }
+            }
+            if (!firstPages.isEmpty()) {
+                first.add(new Slice(slice.document, firstPages));
+            }
+            if (!secondPages.isEmpty()) {
+                second.add(new Slice(slice.document, secondPages));
+            }
+        }
+        return List.of(first, second);
+    }
+
+    /**
+     * @return estimated size of a part, with the same estimate as {@link #plan(List, int[], long[])}
+     */
+    static long estimateBytes(List<Slice> part, int[] pageCounts, long[] documentBytes) {
+        long bytes = 0;
+        for (Slice slice : part) {
+            long pageBytes = documentBytes[slice.document] / Math.max(1, pageCounts[slice.document]);
+            bytes += pageBytes * slice.pages.cardinality();
+        }
+        return bytes;
+    }
+
+    static int pageCount(List<Slice> part) {
+        return part.stream().mapToInt(slice -> slice.pages.cardinality()).sum();
+    }
+}
@@ -0,0 +1,51 @@
+package com.bonitasoft.presales.connector.mergepdf;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * Latency distribution of one merge phase across executions, as exposed by {@link MergeStatisticsMXBean}.
+ */
+public class PhaseStatistics {
+
+    private final long count;
+    private final double meanMillis;
+    private final long p50Millis;
+    private final long p90Millis;
+    private final long p99Millis;
+    private final long maxMillis;
+
+    @ConstructorProperties({ "count", "meanMillis", "p50Millis", "p90Millis", "p99Millis", "maxMillis" })
+    public PhaseStatistics(long count, double meanMillis, long p50Millis, long p90Millis, long p99Millis,
+            long maxMillis) {
+        this.count = count;
+        this.meanMillis = meanMillis;
+        this.p50Millis = p50Millis;
+        this.p90Millis = p90Millis;
+        this.p99Millis = p99Millis;
+        this.maxMillis = maxMillis;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getMeanMillis() {
+        return meanMillis;
+    }
+
+    public long getP50Millis() {
+        return p50Millis;
+    }
+
+    public long getP90Millis() {
+        return p90Millis;
+    }
+
+    public long getP99Millis() {
+        return p99Millis;
+    }
+
+    public long getMaxMillis() {
+        return maxMillis;
+    }
+}
@@ -0,0 +1,154 @@
+package com.bonitasoft.presales.connector.mergepdf;
+
+import java.io.IOException;
+
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSDocument;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSNull;
+import org.apache.pdfbox.cos.COSNumber;
+import org.apache.pdfbox.cos.COSObject;
+import org.apache.pdfbox.io.RandomAccessRead;
+import org.apache.pdfbox.io.ScratchFile;
+import org.apache.pdfbox.pdfparser.COSParser;
+import org.apache.pdfbox.pdmodel.encryption.InvalidPasswordException;
+
+/**
+ * Checks that a source document can be merged, before anything is merged, and estimates what merging it costs.
+ * <p>
+ * Only the header, the cross-reference sections, the trailer, the catalog and the page tree root are read: a few
+ * hundred bytes for most documents, whatever their size. The scan rejects what a full parse would reject at the
+ * start (no PDF header, no readable cross-reference or catalog, encrypted with a password) and reads the page count
+ * from the page tree root. Damaged cross-references are rebuilt as leniently as a full parse does.
+ */
+class PreflightScanner {
+
+    /**
+     * Outcome of the scan of one document.
+     */
+    static class Report {
+
+        private final long bytes;
+        private final int pageCount;
+        private final int objectCount;
+        private final boolean encrypted;
+
+        Report(long bytes, int pageCount, int objectCount, boolean encrypted) {
+            this.bytes = bytes;
+            this.pageCount = pageCount;
+            this.objectCount = objectCount;
+            this.encrypted = encrypted;
+        }
+
+        long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * @return number of pages declared by the page tree root, {@code 0} when it declares none
+         */
+        int getPageCount() {
+            return pageCount;
+        }
+
+        /**
+         * @return number of objects in the cross-reference sections, which is what a full parse keeps on the heap
+         */
+        int getObjectCount() {
+            return objectCount;
+        }
+
+        /**
+         * @return whether the document is encrypted without a password to open it
+         */
+        boolean isEncrypted() {
+            return encrypted;
+        }
+    }
+
+    private PreflightScanner() {
+    }
+
+    /**
+     * Scans a document. The source is left open.
+     *
+     * @throws IOException if the document cannot be merged, with the reason as message
+     */
+    static Report scan(RandomAccessRead source) throws IOException {
+        ScanParser parser = new ScanParser(source);
+        try {
+            if (!parser.parseHeader()) {
+                throw new IOException("no PDF header");
+            }
+            COSDictionary trailer;
+            try {
+                trailer = parser.parseTrailer();
+            } catch (InvalidPasswordException e) {
+                throw new IOException("encrypted with a password", e);
+            }
+            if (trailer == null) {
+                throw new IOException("no cross-reference table");
+            }
+            COSDictionary catalog = asDictionary(parser.resolve(trailer.getItem(COSName.ROOT)));
+            if (catalog == null) {
+                throw new IOException("no document catalog");
+            }
+            COSDictionary pageTreeRoot = asDictionary(parser.resolve(catalog.getItem(COSName.PAGES)));
+            if (pageTreeRoot == null) {
+                throw new IOException("no page tree");
+            }
+            COSBase count = parser.resolve(pageTreeRoot.getItem(COSName.COUNT));
+            return new Report(source.length(), count instanceof COSNumber ? ((COSNumber) count).intValue() : 0,
+                    parser.getObjectCount(), trailer.getItem(COSName.ENCRYPT) != null);
+        } finally {
+            parser.close();
+        }
+    }
+
+    private static COSDictionary asDictionary(COSBase value) {
+        return value instanceof COSDictionary ? (COSDictionary) value : null;
+    }
+
+    /**
+     * Exposes the steps of {@link COSParser} that read the structure of a document, without parsing its objects.
+     */
+    private static class ScanParser extends COSParser {
+
+        ScanParser(RandomAccessRead source) throws IOException {
+            super(source, "", null, null);
+            fileLen = source.length();
+            document = new COSDocument(ScratchFile.getMainMemoryOnlyInstance());
+        }
+
+        boolean parseHeader() {
+            try {
+                return parsePDFHeader();
+            } catch (IOException e) {
+                // the content ended while looking for the header line
+                return false;
+            }
+        }
+
+        COSDictionary parseTrailer() throws IOException {
+            return retrieveTrailer();
+        }
+
+        COSBase resolve(COSBase value) throws IOException {
+            if (!(value instanceof COSObject)) {
+                return value;
+            }
+            COSObject object = (COSObject) value;
+            COSBase resolved = object.getObject() != null ? object.getObject() : parseObjectDynamically(object, false);
+            return resolved instanceof COSNull ? null : resolved;
+        }
+
+        int getObjectCount() {
+            return document.getXrefTable().size();
+        }
+
+        void close() throws IOException {
+            document.close();
+        }
+    }
+}
@@ -0,0 +1,234 @@
+package com.bonitasoft.presales.connector.mergepdf;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSBoolean;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSFloat;
+import org.apache.pdfbox.cos.COSInteger;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSObject;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.cos.COSString;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+
+/**
+ * Collapses identical resources (fonts, font programs, images, form XObjects, ICC profiles...) of a merged
+ * document into a single object.
+ * <p>
+ * {@code PDFMergerUtility} clones the resources of every source separately, so thirty letters built from
+ * the same template carry thirty copies of the same fonts and logos. This pass fingerprints every object
+ * reachable from the page resources, bottom-up, from its structure and its raw stream bytes, and points
+ * every reference to the first object with the same fingerprint. PDFBox writes an object once per Java
+ * instance, so the duplicates simply disappear from the saved file.
+ */
+class ResourceDeduplicator {
+
+    /** Back-links that lead out of the resource graph. */
+    private static final Set<COSName> SKIPPED_KEYS = Set.of(COSName.PARENT, COSName.P);
+
+    private final Map<COSBase, String> fingerprints = new IdentityHashMap<>();
+    private final Map<String, COSBase> canonicalObjects = new HashMap<>();
+    private final Map<COSBase, Integer> identities = new IdentityHashMap<>();
+    private final Set<COSBase> inProgress = Collections.newSetFromMap(new IdentityHashMap<>());
+    private final MessageDigest digest;
+
+    private int duplicateCount;
+    private long savedBytes;
+
+    ResourceDeduplicator() {
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * Deduplicates the resources of every page of the document.
+     *
+     * @return estimated number of bytes the duplicates would have taken in the saved file
+     */
+    long deduplicate(PDDocument document) throws IOException {
+        for (PDPage page : document.getPages()) {
+            COSDictionary pageDictionary = page.getCOSObject();
+            COSBase resources = pageDictionary.getDictionaryObject(COSName.RESOURCES);
+            if (resources instanceof COSDictionary) {
+                canonicalizeChildren((COSDictionary) resources);
+            }
+        }
+        return savedBytes;
+    }
+
+    int getDuplicateCount() {
+        return duplicateCount;
+    }
+
+    long getSavedBytes() {
+        return savedBytes;
+    }
+
+    private COSBase canonicalize(COSBase value) throws IOException {
+        COSBase target = value instanceof COSObject ? ((COSObject) value).getObject() : value;
+        if (!(target instanceof COSDictionary) && !(target instanceof COSArray)) {
+            return value;
+        }
+        String fingerprint = fingerprints.get(target);
+        if (fingerprint != null) {
+            COSBase canonical = canonicalObjects.get(fingerprint);
+            return canonical == target ? value : canonical;
+        }
+        if (!inProgress.add(target)) {
+            return value;
+        }
+        try {
+            if (target instanceof COSDictionary) {
+                canonicalizeChildren((COSDictionary) target);
+            } else {
+                canonicalizeChildren((COSArray) target);
+            }
+            fingerprint = fingerprint(target);
+            fingerprints.put(target, fingerprint);
+            COSBase canonical = canonicalObjects.putIfAbsent(fingerprint, target);
+            if (canonical == null) {
+                return value;
+            }
+            duplicateCount++;
+            if (target instanceof COSDictionary && !target.isDirect()) {
+                // arrays and direct dictionaries are written inline anyway
+                savedBytes += estimateSize((COSDictionary) target);
+            }
+            return canonical;
+        } finally {
+            inProgress.remove(target);
+        }
+    }
+
+    private void canonicalizeChildren(COSDictionary dictionary) throws IOException {
+        List<COSName> keys = new ArrayList<>(dictionary.keySet());
+        for (COSName key : keys) {
+            if (SKIPPED_KEYS.contains(key)) {
+                continue;
+            }
+            COSBase child = dictionary.getItem(key);
+            COSBase canonical = canonicalize(child);
+            if (canonical != child) {
+                dictionary.setItem(key, canonical);
+            }
+        }
+    }
+
+    private void canonicalizeChildren(COSArray array) throws IOException {
+        for (int i = 0; i < array.size(); i++) {
+            COSBase child = array.get(i);
+            COSBase canonical = canonicalize(child);
+            if (canonical != child) {
+                array.set(i, canonical);
+            }
+        }
+    }
+
+    private String fingerprint(COSBase object) throws IOException {
+        StringBuilder builder = new StringBuilder();
+        if (object instanceof COSArray) {
+            builder.append('[');
+            for (COSBase child : (COSArray) object) {
+                appendValue(builder, child);
+                builder.append(' ');
+            }
+            builder.append(']');
+        } else {
+            COSDictionary dictionary = (COSDictionary) object;
+            List<COSName> keys = new ArrayList<>(dictionary.keySet());
+            Collections.sort(keys);
+            builder.append(object instanceof COSStream ? "S<<" : "<<");
+            for (COSName key : keys) {
+                if (object instanceof COSStream && COSName.LENGTH.equals(key)) {
+                    continue;
+                }
+                builder.append('/').append(key.getName()).append(' ');
+                if (SKIPPED_KEYS.contains(key)) {
+                    // back-links are not followed, but objects pointing to different parents stay apart
+                    builder.append('@').append(identityOf(dictionary.getDictionaryObject(key)));
+                } else {
+                    appendValue(builder, dictionary.getItem(key));
+                }
+                builder.append(' ');
+            }
+            builder.append(">>");
+            if (object instanceof COSStream) {
+                builder.append(hashStream((COSStream) object));
+            }
+        }
+        return hash(builder.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private int identityOf(COSBase object) {
+        return identities.computeIfAbsent(object, key -> identities.size());
+    }
+
+    private void appendValue(StringBuilder builder, COSBase value) {
+        COSBase target = value instanceof COSObject ? ((COSObject) value).getObject() : value;
+        if (target instanceof COSDictionary || target instanceof COSArray) {
+            String fingerprint = fingerprints.get(target);
+            // objects still being visited are part of a cycle: never consider them equal to anything
+            builder.append('#').append(fingerprint != null ? fingerprint : "cycle-" + identityOf(target));
+        } else if (target instanceof COSName) {
+            builder.append('/').append(((COSName) target).getName());
+        } else if (target instanceof COSString) {
+            builder.append('(').append(Base64.getEncoder().encodeToString(((COSString) target).getBytes())).append(')');
+        } else if (target instanceof COSInteger) {
+            builder.append(((COSInteger) target).longValue());
+        } else if (target instanceof COSFloat) {
+            builder.append(((COSFloat) target).floatValue()).append('f');
+        } else if (target instanceof COSBoolean) {
+            builder.append(((COSBoolean) target).getValue());
+        } else {
+            builder.append("null");
+        }
+    }
+
+    private String hashStream(COSStream stream) throws IOException {
+        digest.reset();
+        byte[] buffer = new byte[8192];
+        try (InputStream input = stream.createRawInputStream()) {
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return Base64.getEncoder().encodeToString(digest.digest());
+    }
+
+    private String hash(byte[] bytes) {
+        digest.reset();
+        return Base64.getEncoder().encodeToString(digest.digest(bytes));
+    }
+
+    /**
+     * Rough serialized size of an object that will no longer be written: raw stream data plus a guess
+     * for the dictionary. Children were deduplicated (and counted) on their own beforehand.
+     */
+    private static long estimateSize(COSDictionary object) {
+        long size = 20 + object.size() * 16L;
+        if (object instanceof COSStream) {
+            size += ((COSStream) object).getLength();
+        }
+        return size;
+    }
+}
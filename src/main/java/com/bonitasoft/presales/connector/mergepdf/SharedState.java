@@ -0,0 +1,74 @@
+package com.bonitasoft.presales.connector.mergepdf;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanParameterInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.modelmbean.InvalidTargetObjectTypeException;
+import javax.management.modelmbean.ModelMBeanInfoSupport;
+import javax.management.modelmbean.ModelMBeanOperationInfo;
+import javax.management.modelmbean.RequiredModelMBean;
+
+/**
+ * State shared by every copy of the connector loaded in the JVM.
+ * <p>
+ * Bonita loads the connector once per process definition class loader, so a static field is only shared by
+ * the executions of one process definition. Shared state is published in the platform MBeanServer instead,
+ * held by a model MBean of the JDK: the first copy registers it, the others look it up. Only instances of JDK
+ * classes may be shared this way, since they are the same classes in every class loader and do not keep the
+ * class loader of the copy that created them alive.
+ */
+final class SharedState {
+
+    private static final Logger LOGGER = Logger.getLogger(SharedState.class.getName());
+
+    static final String OBJECT_NAME_PREFIX = "com.bonitasoft.presales.connector.mergepdf:type=SharedState,name=";
+
+    private SharedState() {
+    }
+
+    /**
+     * Returns the object shared under a name, creating it with the factory when this copy is the first to ask.
+     * Falls back to an object of this copy only when the platform MBeanServer cannot hold it.
+     */
+    static <T> T get(String name, Class<T> type, Supplier<T> factory) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName objectName = new ObjectName(OBJECT_NAME_PREFIX + name);
+            try {
+                return type.cast(server.invoke(objectName, "get", null, null));
+            } catch (InstanceNotFoundException e) {
+                // first copy to ask
+            }
+            try {
+                server.registerMBean(holder(factory.get()), objectName);
+            } catch (InstanceAlreadyExistsException e) {
+                // another copy got there first
+            }
+            return type.cast(server.invoke(objectName, "get", null, null));
+        } catch (JMException | InvalidTargetObjectTypeException | RuntimeException e) {
+            LOGGER.log(Level.WARNING, String.format("Could not share %s between the copies of the connector", name),
+                    e);
+            return factory.get();
+        }
+    }
+
+    private static RequiredModelMBean holder(Object value) throws JMException, InvalidTargetObjectTypeException {
+        ModelMBeanOperationInfo get = new ModelMBeanOperationInfo("get", "Returns the shared object",
+                new MBeanParameterInfo[0], Object.class.getName(), MBeanOperationInfo.INFO);
+        RequiredModelMBean holder = new RequiredModelMBean(new ModelMBeanInfoSupport(
+                AtomicReference.class.getName(), "Object shared by the copies of the merge PDF connector", null,
+                null, new ModelMBeanOperationInfo[] { get }, null));
+        holder.setManagedResource(new AtomicReference<>(value), "ObjectReference");
+        return holder;
+    }
+}
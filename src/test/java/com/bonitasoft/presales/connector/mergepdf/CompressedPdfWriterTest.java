@@ -0,0 +1,183 @@
+package com.bonitasoft.presales.connector.mergepdf;
+
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.multipdf.PDFMergerUtility;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.common.PDMetadata;
+import org.apache.pdfbox.pdmodel.font.PDType1Font;
+import org.apache.pdfbox.pdmodel.graphics.image.LosslessFactory;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+import org.apache.pdfbox.pdmodel.interactive.documentnavigation.outline.PDDocumentOutline;
+import org.apache.pdfbox.pdmodel.interactive.documentnavigation.outline.PDOutlineItem;
+import org.apache.pdfbox.text.PDFTextStripper;
+import org.junit.jupiter.api.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class CompressedPdfWriterTest {
+
+    // Helper method to create a document with uncompressed content streams and an outline
+    private byte[] createReport(String title, int pages) throws IOException {
+        try (PDDocument document = new PDDocument();
+             ByteArrayOutputStream outputStream = new ByteArrayOutputStream()) {
+            PDDocumentOutline outline = new PDDocumentOutline();
+            document.getDocumentCatalog().setDocumentOutline(outline);
+            for (int i = 0; i < pages; i++) {
+                PDPage page = new PDPage();
+                document.addPage(page);
+                try (PDPageContentStream contentStream = new PDPageContentStream(document, page,
+                        PDPageContentStream.AppendMode.OVERWRITE, false)) {
+                    contentStream.beginText();
+                    contentStream.setFont(PDType1Font.HELVETICA, 12);
+                    for (int line = 0; line < 40; line++) {
+                        contentStream.newLineAtOffset(0, -14);
+                        contentStream.showText(title + " page " + i + " line " + line);
+                    }
+                    contentStream.endText();
+                }
+                PDOutlineItem item = new PDOutlineItem();
+                item.setTitle(title + " " + i);
+                item.setDestination(page);
+                outline.addLast(item);
+            }
+            document.getDocumentInformation().setTitle(title);
+            document.save(outputStream);
+            return outputStream.toByteArray();
+        }
+    }
+
+    private PDDocument merge(byte[]... sources) throws IOException {
+        PDDocument destination = new PDDocument();
+        PDFMergerUtility pdfMerger = new PDFMergerUtility();
+        for (byte[] source : sources) {
+            try (PDDocument document = PDDocument.load(source)) {
+                pdfMerger.appendDocument(destination, document);
+            }
+        }
+        return destination;
+    }
+
+    private byte[] write(PDDocument document) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        new CompressedPdfWriter().write(document, outputStream);
+        return outputStream.toByteArray();
+    }
+
+    @Test
+    void should_write_a_smaller_document_with_object_and_xref_streams() throws Exception {
+        // Given
+        byte[] first = createReport("Quarterly", 60);
+        byte[] second = createReport("Annual", 60);
+        byte[] standard;
+        try (PDDocument merged = merge(first, second)) {
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            merged.save(outputStream);
+            standard = outputStream.toByteArray();
+        }
+
+        // When
+        byte[] compressed;
+        try (PDDocument merged = merge(first, second)) {
+            compressed = write(merged);
+        }
+
+        // Then
+        assertThat(compressed.length).isLessThan(standard.length / 2);
+        String raw = new String(compressed, StandardCharsets.ISO_8859_1);
+        assertThat(raw).startsWith("%PDF-1.5").contains("/Type /ObjStm", "/Type /XRef").endsWith("%%EOF\n");
+        assertThat(raw).doesNotContain("\ntrailer");
+        try (PDDocument result = PDDocument.load(compressed)) {
+            assertThat(result.getNumberOfPages()).isEqualTo(120);
+            String text = new PDFTextStripper().getText(result);
+            assertThat(text).contains("Quarterly page 59 line 39", "Annual page 0 line 0");
+            assertThat(result.getDocumentCatalog().getDocumentOutline().children()).hasSize(120);
+            assertThat(result.getDocumentInformation().getTitle()).isEqualTo("Quarterly");
+            assertThat(result.getDocument().getTrailer().getCOSArray(COSName.ID)).hasSize(2);
+        }
+    }
+
+    @Test
+    void should_produce_identical_files_for_identical_documents() throws Exception {
+        // Given
+        byte[] report = createReport("Monthly", 3);
+
+        // When
+        byte[] firstRun;
+        byte[] secondRun;
+        try (PDDocument merged = merge(report, report)) {
+            firstRun = write(merged);
+        }
+        try (PDDocument merged = merge(report, report)) {
+            secondRun = write(merged);
+        }
+
+        // Then
+        assertThat(secondRun).isEqualTo(firstRun);
+    }
+
+    @Test
+    void should_keep_metadata_streams_uncompressed() throws Exception {
+        // Given
+        String xmp = "<x:xmpmeta xmlns:x=\"adobe:ns:meta/\"><rdf:RDF/></x:xmpmeta>";
+        try (PDDocument document = PDDocument.load(createReport("Tagged", 1))) {
+            PDMetadata metadata = new PDMetadata(document);
+            metadata.importXMPMetadata(xmp.getBytes(StandardCharsets.UTF_8));
+            document.getDocumentCatalog().setMetadata(metadata);
+
+            // When
+            byte[] compressed = write(document);
+
+            // Then
+            assertThat(new String(compressed, StandardCharsets.ISO_8859_1)).contains(xmp);
+        }
+    }
+
+    @Test
+    void should_stream_large_stream_data_without_changing_it() throws Exception {
+        // Given
+        Random random = new Random(42);
+        BufferedImage noise = new BufferedImage(400, 400, BufferedImage.TYPE_INT_RGB);
+        for (int x = 0; x < noise.getWidth(); x++) {
+            for (int y = 0; y < noise.getHeight(); y++) {
+                noise.setRGB(x, y, random.nextInt(4) << 16 | random.nextInt(4) << 8 | random.nextInt(4));
+            }
+        }
+        try (PDDocument document = new PDDocument()) {
+            PDPage page = new PDPage();
+            document.addPage(page);
+            PDImageXObject image = LosslessFactory.createFromImage(document, noise);
+            try (PDPageContentStream contentStream = new PDPageContentStream(document, page,
+                    PDPageContentStream.AppendMode.OVERWRITE, false)) {
+                contentStream.drawImage(image, 0, 0);
+                for (int line = 0; line < 20_000; line++) {
+                    contentStream.addComment(Long.toString(random.nextLong(), 36));
+                }
+            }
+            byte[] content = page.getContents().readAllBytes();
+            byte[] pixels = image.getCOSObject().createInputStream().readAllBytes();
+
+            // When
+            byte[] compressed = write(document);
+
+            // Then
+            try (PDDocument result = PDDocument.load(compressed)) {
+                PDPage resultPage = result.getPage(0);
+                assertThat(resultPage.getContents().readAllBytes()).isEqualTo(content);
+                PDImageXObject resultImage = (PDImageXObject) resultPage.getResources()
+                        .getXObject(resultPage.getResources().getXObjectNames().iterator().next());
+                assertThat(resultImage.getCOSObject().createInputStream().readAllBytes()).isEqualTo(pixels);
+                assertThat(((COSStream) resultPage.getCOSObject().getDictionaryObject(COSName.CONTENTS))
+                        .getFilters()).isEqualTo(COSName.FLATE_DECODE);
+            }
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package com.bonitasoft.presales.connector.mergepdf;
+
+import org.bonitasoft.engine.api.ProcessAPI;
+import org.bonitasoft.engine.bpm.document.Document;
+import org.bonitasoft.engine.bpm.document.DocumentNotFoundException;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.lenient;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class DocumentContentFetcherTest {
+
+    @Mock
+    ProcessAPI processAPI;
+
+    private Document document(String storageId) {
+        Document document = mock(Document.class);
+        lenient().when(document.getContentStorageId()).thenReturn(storageId);
+        lenient().when(document.getContentFileName()).thenReturn(storageId + ".pdf");
+        return document;
+    }
+
+    @Test
+    void should_hand_contents_over_in_input_order_when_fetches_complete_out_of_order() throws Exception {
+        // Given - the first document is the slowest to fetch
+        CountDownLatch othersFetched = new CountDownLatch(2);
+        when(processAPI.getDocumentContent("slow")).thenAnswer(invocation -> {
+            othersFetched.await(5, TimeUnit.SECONDS);
+            return new byte[] { 1 };
+        });
+        when(processAPI.getDocumentContent("fast-1")).thenAnswer(invocation -> {
+            othersFetched.countDown();
+            return new byte[] { 2 };
+        });
+        when(processAPI.getDocumentContent("fast-2")).thenAnswer(invocation -> {
+            othersFetched.countDown();
+            return new byte[] { 3 };
+        });
+        List<Document> documents = List.of(document("slow"), document("fast-1"), document("fast-2"));
+
+        // When
+        List<Byte> received = new ArrayList<>();
+        new DocumentContentFetcher(processAPI, 3).fetchAll(documents, (document, content) -> received.add(content[0]));
+
+        // Then
+        assertThat(received).containsExactly((byte) 1, (byte) 2, (byte) 3);
+    }
+
+    @Test
+    void should_never_run_more_fetches_than_the_parallelism() throws Exception {
+        // Given
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        List<Document> documents = new ArrayList<>();
+        for (int i = 0; i < 12; i++) {
+            documents.add(document("storage-" + i));
+            when(processAPI.getDocumentContent("storage-" + i)).thenAnswer(invocation -> {
+                maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                Thread.sleep(20);
+                running.decrementAndGet();
+                return new byte[0];
+            });
+        }
+
+        // When
+        AtomicInteger received = new AtomicInteger();
+        new DocumentContentFetcher(processAPI, 3).fetchAll(documents, (document, content) -> received.incrementAndGet());
+
+        // Then
+        assertThat(received).hasValue(12);
+        assertThat(maxRunning.get()).isBetween(1, 3);
+    }
+
+    @Test
+    void should_report_the_failing_document_and_cancel_outstanding_fetches() throws Exception {
+        // Given
+        AtomicBoolean slowFetchInterrupted = new AtomicBoolean();
+        CountDownLatch slowFetchStarted = new CountDownLatch(1);
+        when(processAPI.getDocumentContent("slow")).thenAnswer(invocation -> {
+            slowFetchStarted.countDown();
+            try {
+                Thread.sleep(10_000);
+            } catch (InterruptedException e) {
+                slowFetchInterrupted.set(true);
+                throw e;
+            }
+            return new byte[0];
+        });
+        when(processAPI.getDocumentContent("missing")).thenAnswer(invocation -> {
+            // fail only once the slow fetch is running, so that there is something to cancel
+            slowFetchStarted.await(5, TimeUnit.SECONDS);
+            throw new DocumentNotFoundException("no content");
+        });
+        List<Document> documents = List.of(document("slow"), document("missing"));
+
+        // When
+        long start = System.nanoTime();
+        DocumentNotFoundException exception = assertThrows(DocumentNotFoundException.class, () ->
+                new DocumentContentFetcher(processAPI, 2).fetchAll(documents, (document, content) -> {
+                })
+        );
+
+        // Then
+        assertThat(exception.getMessage()).contains("missing.pdf", "missing", "no content");
+        assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)).isLessThan(5_000);
+        Thread.sleep(200);
+        assertThat(slowFetchInterrupted).isTrue();
+    }
+
+    @Test
+    void should_fetch_sequentially_with_a_parallelism_of_one() throws Exception {
+        // Given
+        when(processAPI.getDocumentContent("a")).thenReturn(new byte[] { 1 });
+        when(processAPI.getDocumentContent("b")).thenReturn(new byte[] { 2 });
+        String callerThread = Thread.currentThread().getName();
+
+        // When
+        List<String> threads = new ArrayList<>();
+        new DocumentContentFetcher(processAPI, 1).fetchAll(List.of(document("a"), document("b")),
+                (document, content) -> threads.add(Thread.currentThread().getName()));
+
+        // Then
+        assertThat(threads).containsOnly(callerThread);
+    }
+}
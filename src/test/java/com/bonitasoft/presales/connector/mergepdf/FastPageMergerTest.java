@@ -0,0 +1,283 @@
+package com.bonitasoft.presales.connector.mergepdf;
+
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSInteger;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.multipdf.PDFMergerUtility;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDDocumentCatalog;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.PDResources;
+import org.apache.pdfbox.pdmodel.common.PDNumberTreeNode;
+import org.apache.pdfbox.pdmodel.common.COSObjectable;
+import org.apache.pdfbox.pdmodel.common.PDPageLabelRange;
+import org.apache.pdfbox.pdmodel.common.PDPageLabels;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.pdmodel.documentinterchange.logicalstructure.PDMarkInfo;
+import org.apache.pdfbox.pdmodel.documentinterchange.logicalstructure.PDStructureElement;
+import org.apache.pdfbox.pdmodel.documentinterchange.logicalstructure.PDStructureTreeRoot;
+import org.apache.pdfbox.pdmodel.documentinterchange.markedcontent.PDMarkedContent;
+import org.apache.pdfbox.pdmodel.documentinterchange.markedcontent.PDPropertyList;
+import org.apache.pdfbox.pdmodel.documentinterchange.taggedpdf.StandardStructureTypes;
+import org.apache.pdfbox.pdmodel.font.PDType1Font;
+import org.apache.pdfbox.pdmodel.interactive.annotation.PDAnnotationWidget;
+import org.apache.pdfbox.pdmodel.interactive.documentnavigation.outline.PDDocumentOutline;
+import org.apache.pdfbox.pdmodel.interactive.documentnavigation.outline.PDOutlineItem;
+import org.apache.pdfbox.pdmodel.interactive.form.PDAcroForm;
+import org.apache.pdfbox.pdmodel.interactive.form.PDField;
+import org.apache.pdfbox.pdmodel.interactive.form.PDTextField;
+import org.apache.pdfbox.rendering.PDFRenderer;
+import org.apache.pdfbox.text.PDFTextStripper;
+import org.junit.jupiter.api.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class FastPageMergerTest {
+
+    // Helper method to create a tagged document with form fields, bookmarks and roman page labels
+    private byte[] createTaggedForm(String title, int pages) throws IOException {
+        try (PDDocument document = new PDDocument()) {
+            PDDocumentCatalog catalog = document.getDocumentCatalog();
+            PDMarkInfo markInfo = new PDMarkInfo();
+            markInfo.setMarked(true);
+            catalog.setMarkInfo(markInfo);
+            PDStructureTreeRoot structureRoot = new PDStructureTreeRoot();
+            catalog.setStructureTreeRoot(structureRoot);
+            PDStructureElement documentElement = new PDStructureElement(StandardStructureTypes.DOCUMENT, null);
+            structureRoot.appendKid(documentElement);
+            COSArray parentTreeNums = new COSArray();
+
+            PDAcroForm acroForm = new PDAcroForm(document);
+            PDResources formResources = new PDResources();
+            formResources.put(COSName.getPDFName("Helv"), PDType1Font.HELVETICA);
+            acroForm.setDefaultResources(formResources);
+            acroForm.setDefaultAppearance("/Helv 10 Tf 0 g");
+            catalog.setAcroForm(acroForm);
+
+            PDDocumentOutline outline = new PDDocumentOutline();
+            catalog.setDocumentOutline(outline);
+            PDPageLabels labels = new PDPageLabels(document);
+            PDPageLabelRange romanRange = new PDPageLabelRange();
+            romanRange.setStyle(PDPageLabelRange.STYLE_ROMAN_LOWER);
+            labels.setLabelItem(0, romanRange);
+            catalog.setPageLabels(labels);
+
+            for (int p = 0; p < pages; p++) {
+                PDPage page = new PDPage(PDRectangle.A4);
+                document.addPage(page);
+                page.getCOSObject().setInt(COSName.STRUCT_PARENTS, p);
+                COSDictionary properties = new COSDictionary();
+                properties.setInt(COSName.MCID, 0);
+                try (PDPageContentStream content = new PDPageContentStream(document, page)) {
+                    content.beginMarkedContent(COSName.P, PDPropertyList.create(properties));
+                    content.beginText();
+                    content.setFont(PDType1Font.HELVETICA, 12);
+                    content.newLineAtOffset(40, 800);
+                    content.showText(title + " page " + p);
+                    content.endText();
+                    content.endMarkedContent();
+                }
+                PDStructureElement paragraph = new PDStructureElement(StandardStructureTypes.P, documentElement);
+                paragraph.setPage(page);
+                paragraph.appendKid(new PDMarkedContent(COSName.P, properties));
+                documentElement.appendKid(paragraph);
+                COSArray pageElements = new COSArray();
+                pageElements.add(paragraph);
+                parentTreeNums.add(COSInteger.get(p));
+                parentTreeNums.add(pageElements);
+
+                PDTextField field = new PDTextField(acroForm);
+                field.setPartialName("name" + p);
+                PDAnnotationWidget widget = field.getWidgets().get(0);
+                widget.setRectangle(new PDRectangle(360, 780, 180, 18));
+                widget.setPage(page);
+                page.getAnnotations().add(widget);
+                acroForm.getFields().add(field);
+                field.setValue(title + " value " + p);
+
+                PDOutlineItem item = new PDOutlineItem();
+                item.setTitle(title + " " + p);
+                item.setDestination(page);
+                outline.addLast(item);
+            }
+            COSDictionary parentTree = new COSDictionary();
+            parentTree.setItem(COSName.NUMS, parentTreeNums);
+            structureRoot.setParentTree(new PDNumberTreeNode(parentTree, COSObjectable.class));
+            structureRoot.setParentTreeNextKey(pages);
+            return save(document);
+        }
+    }
+
+    // Helper method to create a rotated document whose pages inherit their resources and media box
+    private byte[] createDocumentWithInheritedAttributes(String title) throws IOException {
+        try (PDDocument document = new PDDocument()) {
+            for (int p = 0; p < 2; p++) {
+                PDPage page = new PDPage(PDRectangle.A5);
+                document.addPage(page);
+                try (PDPageContentStream content = new PDPageContentStream(document, page)) {
+                    content.beginText();
+                    content.setFont(PDType1Font.TIMES_BOLD, 18);
+                    content.newLineAtOffset(30, 300);
+                    content.showText(title + " page " + p);
+                    content.endText();
+                    content.addRect(20, 20, 100, 50);
+                    content.fill();
+                }
+            }
+            COSDictionary pagesRoot = document.getPages().getCOSObject();
+            for (PDPage page : document.getPages()) {
+                pagesRoot.setItem(COSName.RESOURCES, page.getCOSObject().getItem(COSName.RESOURCES));
+                page.getCOSObject().removeItem(COSName.RESOURCES);
+                page.getCOSObject().removeItem(COSName.MEDIA_BOX);
+            }
+            pagesRoot.setItem(COSName.MEDIA_BOX, PDRectangle.A5.getCOSArray());
+            pagesRoot.setInt(COSName.ROTATE, 90);
+            return save(document);
+        }
+    }
+
+    private byte[] mergeWithFullEngine(byte[]... sources) throws IOException {
+        try (PDDocument destination = new PDDocument()) {
+            PDFMergerUtility pdfMerger = new PDFMergerUtility();
+            for (byte[] source : sources) {
+                try (PDDocument document = PDDocument.load(source)) {
+                    pdfMerger.appendDocument(destination, document);
+                }
+            }
+            return save(destination);
+        }
+    }
+
+    private byte[] mergeWithFastEngine(FastPageMerger merger, byte[]... sources) throws IOException {
+        List<PDDocument> documents = new ArrayList<>();
+        try (PDDocument destination = new PDDocument()) {
+            for (byte[] source : sources) {
+                PDDocument document = PDDocument.load(source);
+                documents.add(document);
+                merger.append(destination, document);
+            }
+            return save(destination);
+        } finally {
+            for (PDDocument document : documents) {
+                document.close();
+            }
+        }
+    }
+
+    private static byte[] save(PDDocument document) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        document.save(outputStream);
+        return outputStream.toByteArray();
+    }
+
+    private static List<int[]> render(byte[] pdf) throws IOException {
+        List<int[]> pages = new ArrayList<>();
+        try (PDDocument document = PDDocument.load(pdf)) {
+            PDFRenderer renderer = new PDFRenderer(document);
+            for (int i = 0; i < document.getNumberOfPages(); i++) {
+                BufferedImage image = renderer.renderImageWithDPI(i, 36);
+                int[] pixels = image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth());
+                pages.add(pixels);
+            }
+        }
+        return pages;
+    }
+
+    @Test
+    void should_render_the_same_pages_as_the_full_engine() throws Exception {
+        // Given
+        byte[] first = createTaggedForm("First", 2);
+        byte[] second = createDocumentWithInheritedAttributes("Second");
+        byte[] third = createTaggedForm("Third", 3);
+
+        // When
+        byte[] full = mergeWithFullEngine(first, second, third);
+        byte[] fast = mergeWithFastEngine(new FastPageMerger(false, false, false, false), first, second, third);
+
+        // Then
+        List<int[]> fullPages = render(full);
+        List<int[]> fastPages = render(fast);
+        assertThat(fastPages).hasSameSizeAs(fullPages).hasSize(7);
+        for (int i = 0; i < fullPages.size(); i++) {
+            assertThat(fastPages.get(i)).as("page %d", i).isEqualTo(fullPages.get(i));
+        }
+        try (PDDocument fullDocument = PDDocument.load(full); PDDocument fastDocument = PDDocument.load(fast)) {
+            assertThat(new PDFTextStripper().getText(fastDocument)).isEqualTo(new PDFTextStripper().getText(fullDocument));
+            for (int i = 0; i < fullDocument.getNumberOfPages(); i++) {
+                PDPage fullPage = fullDocument.getPage(i);
+                PDPage fastPage = fastDocument.getPage(i);
+                assertThat(fastPage.getMediaBox().toString()).isEqualTo(fullPage.getMediaBox().toString());
+                assertThat(fastPage.getRotation()).isEqualTo(fullPage.getRotation());
+                assertThat(fastPage.getAnnotations()).hasSameSizeAs(fullPage.getAnnotations());
+            }
+        }
+    }
+
+    @Test
+    void should_only_import_pages_when_no_feature_is_kept() throws Exception {
+        // When
+        byte[] fast = mergeWithFastEngine(new FastPageMerger(false, false, false, false),
+                createTaggedForm("First", 2), createTaggedForm("Second", 2));
+
+        // Then
+        try (PDDocument document = PDDocument.load(fast)) {
+            PDDocumentCatalog catalog = document.getDocumentCatalog();
+            assertThat(document.getNumberOfPages()).isEqualTo(4);
+            assertThat(catalog.getDocumentOutline()).isNull();
+            assertThat(catalog.getAcroForm(null)).isNull();
+            assertThat(catalog.getStructureTreeRoot()).isNull();
+            assertThat(catalog.getPageLabels()).isNull();
+            assertThat(document.getPage(3).getStructParents()).isEqualTo(-1);
+        }
+    }
+
+    @Test
+    void should_keep_the_selected_features() throws Exception {
+        // When
+        byte[] fast = mergeWithFastEngine(new FastPageMerger(true, true, true, true),
+                createTaggedForm("First", 2), createTaggedForm("Second", 3));
+
+        // Then
+        try (PDDocument document = PDDocument.load(fast)) {
+            PDDocumentCatalog catalog = document.getDocumentCatalog();
+            assertThat(document.getNumberOfPages()).isEqualTo(5);
+
+            List<String> titles = new ArrayList<>();
+            for (PDOutlineItem item : catalog.getDocumentOutline().children()) {
+                titles.add(item.getTitle());
+            }
+            assertThat(titles).containsExactly("First 0", "First 1", "Second 0", "Second 1", "Second 2");
+            PDOutlineItem lastItem = catalog.getDocumentOutline().getLastChild();
+            assertThat(lastItem.findDestinationPage(document).getCOSObject())
+                    .isSameAs(document.getPage(4).getCOSObject());
+
+            List<String> fieldNames = new ArrayList<>();
+            for (PDField field : catalog.getAcroForm(null).getFields()) {
+                fieldNames.add(field.getFullyQualifiedName());
+            }
+            assertThat(fieldNames).containsExactly("name0", "name1", "name0_2", "name1_2", "name2");
+            assertThat(catalog.getAcroForm(null).getField("name0_2").getValueAsString()).isEqualTo("Second value 0");
+
+            PDStructureTreeRoot structureRoot = catalog.getStructureTreeRoot();
+            assertThat(structureRoot.getCOSObject().getCOSArray(COSName.K).size()).isEqualTo(2);
+            assertThat(structureRoot.getParentTreeNextKey()).isEqualTo(5);
+            assertThat(document.getPage(3).getStructParents()).isEqualTo(3);
+            COSArray parentTreeNums = structureRoot.getParentTree().getCOSObject().getCOSArray(COSName.NUMS);
+            assertThat(parentTreeNums.size()).isEqualTo(10);
+            COSDictionary element = (COSDictionary) ((COSArray) parentTreeNums.getObject(7)).getObject(0);
+            assertThat(element.getCOSDictionary(COSName.PG)).isSameAs(document.getPage(3).getCOSObject());
+            assertThat(catalog.getMarkInfo().isMarked()).isTrue();
+
+            assertThat(catalog.getPageLabels().getLabelsByPageIndices())
+                    .containsExactly("i", "ii", "i", "ii", "iii");
+        }
+    }
+}
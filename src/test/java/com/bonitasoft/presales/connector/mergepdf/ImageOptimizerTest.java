@@ -0,0 +1,114 @@
+package com.bonitasoft.presales.connector.mergepdf;
+
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.pdmodel.graphics.color.PDDeviceGray;
+import org.apache.pdfbox.pdmodel.graphics.image.LosslessFactory;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+import org.junit.jupiter.api.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ImageOptimizerTest {
+
+    // Helper method to create a scan-like image of 1200x1200 pixels: a gradient with a little noise
+    private BufferedImage createScan(int type) {
+        BufferedImage scan = new BufferedImage(1200, 1200, type);
+        for (int x = 0; x < 1200; x++) {
+            for (int y = 0; y < 1200; y++) {
+                int level = (x + y) * 255 / 2400 ^ (x * 7 + y * 13) % 5;
+                scan.setRGB(x, y, level << 16 | (255 - level) << 8 | level / 2);
+            }
+        }
+        return scan;
+    }
+
+    // Helper method to create a page drawing the image once per given size, in points
+    private PDImageXObject addPage(PDDocument document, BufferedImage scan, float... sizes) throws IOException {
+        PDImageXObject image = LosslessFactory.createFromImage(document, scan);
+        PDPage page = new PDPage(PDRectangle.A4);
+        document.addPage(page);
+        try (PDPageContentStream contentStream = new PDPageContentStream(document, page)) {
+            for (float size : sizes) {
+                contentStream.drawImage(image, 20, 20, size, size);
+            }
+        }
+        return image;
+    }
+
+    private PDImageXObject reloadImage(PDDocument document) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        document.save(outputStream);
+        try (PDDocument reloaded = PDDocument.load(outputStream.toByteArray())) {
+            PDPage page = reloaded.getPage(0);
+            COSName name = page.getResources().getXObjectNames().iterator().next();
+            PDImageXObject image = (PDImageXObject) page.getResources().getXObject(name);
+            image.getImage();
+            return image;
+        }
+    }
+
+    @Test
+    void should_downsample_images_drawn_above_the_target_resolution() throws Exception {
+        try (PDDocument document = new PDDocument()) {
+            // Given: 1200 pixels over 2 inches, i.e. 600 DPI
+            addPage(document, createScan(BufferedImage.TYPE_INT_RGB), 144);
+            ImageOptimizer optimizer = new ImageOptimizer(150, ImageCompression.JPEG, 0.75f, 2);
+
+            // When
+            optimizer.optimize(document);
+
+            // Then
+            assertThat(optimizer.getOptimizedCount()).isEqualTo(1);
+            assertThat(optimizer.getBytesAfter()).isPositive().isLessThan(optimizer.getBytesBefore());
+            PDImageXObject image = reloadImage(document);
+            assertThat(image.getWidth()).isEqualTo(300);
+            assertThat(image.getHeight()).isEqualTo(300);
+            assertThat(image.getSuffix()).isEqualTo("jpg");
+        }
+    }
+
+    @Test
+    void should_keep_images_drawn_at_the_target_resolution_somewhere() throws Exception {
+        try (PDDocument document = new PDDocument()) {
+            // Given: drawn at 600 DPI and at 150 DPI
+            PDImageXObject original = addPage(document, createScan(BufferedImage.TYPE_INT_RGB), 144, 576);
+            long originalLength = original.getCOSObject().getLength();
+            ImageOptimizer optimizer = new ImageOptimizer(150, ImageCompression.JPEG, 0.75f, 2);
+
+            // When
+            optimizer.optimize(document);
+
+            // Then
+            assertThat(optimizer.getOptimizedCount()).isZero();
+            assertThat(optimizer.getBytesAfter()).isEqualTo(optimizer.getBytesBefore()).isEqualTo(originalLength);
+            assertThat(reloadImage(document).getWidth()).isEqualTo(1200);
+        }
+    }
+
+    @Test
+    void should_encode_gray_images_losslessly_with_the_flate_policy() throws Exception {
+        try (PDDocument document = new PDDocument()) {
+            // Given
+            addPage(document, createScan(BufferedImage.TYPE_BYTE_GRAY), 144);
+            ImageOptimizer optimizer = new ImageOptimizer(200, ImageCompression.FLATE, 0.75f, 1);
+
+            // When
+            optimizer.optimize(document);
+
+            // Then
+            PDImageXObject image = reloadImage(document);
+            assertThat(image.getWidth()).isEqualTo(400);
+            assertThat(image.getSuffix()).isEqualTo("png");
+            assertThat(image.getColorSpace()).isEqualTo(PDDeviceGray.INSTANCE);
+            assertThat(optimizer.getBytesAfter()).isLessThan(optimizer.getBytesBefore());
+        }
+    }
+}
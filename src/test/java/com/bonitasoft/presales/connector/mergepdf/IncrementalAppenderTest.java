@@ -0,0 +1,180 @@
+package com.bonitasoft.presales.connector.mergepdf;
+
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.io.RandomAccessBuffer;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.pdmodel.encryption.AccessPermission;
+import org.apache.pdfbox.pdmodel.encryption.StandardProtectionPolicy;
+import org.apache.pdfbox.pdmodel.font.PDType1Font;
+import org.apache.pdfbox.pdmodel.graphics.image.LosslessFactory;
+import org.apache.pdfbox.pdmodel.interactive.annotation.PDAnnotationWidget;
+import org.apache.pdfbox.pdmodel.interactive.documentnavigation.outline.PDDocumentOutline;
+import org.apache.pdfbox.pdmodel.interactive.documentnavigation.outline.PDOutlineItem;
+import org.apache.pdfbox.pdmodel.interactive.form.PDAcroForm;
+import org.apache.pdfbox.pdmodel.interactive.form.PDField;
+import org.apache.pdfbox.pdmodel.interactive.form.PDTextField;
+import org.apache.pdfbox.text.PDFTextStripper;
+import org.junit.jupiter.api.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class IncrementalAppenderTest {
+
+    // Helper method to create a document with one bookmark and one form field per page, and a large image on the
+    // first page of the dossier
+    private PDDocument createDocument(String title, int pages) throws IOException {
+        PDDocument document = new PDDocument();
+        PDDocumentOutline outline = new PDDocumentOutline();
+        document.getDocumentCatalog().setDocumentOutline(outline);
+        PDAcroForm acroForm = new PDAcroForm(document);
+        document.getDocumentCatalog().setAcroForm(acroForm);
+        for (int i = 0; i < pages; i++) {
+            PDPage page = new PDPage(PDRectangle.A4);
+            document.addPage(page);
+            try (PDPageContentStream contentStream = new PDPageContentStream(document, page)) {
+                contentStream.beginText();
+                contentStream.setFont(PDType1Font.HELVETICA, 12);
+                contentStream.newLineAtOffset(50, 700);
+                contentStream.showText(title + " page " + i);
+                contentStream.endText();
+                if (i == 0 && title.equals("Dossier")) {
+                    BufferedImage noise = new BufferedImage(200, 200, BufferedImage.TYPE_INT_RGB);
+                    Random random = new Random(42);
+                    for (int x = 0; x < 200; x++) {
+                        for (int y = 0; y < 200; y++) {
+                            noise.setRGB(x, y, random.nextInt());
+                        }
+                    }
+                    contentStream.drawImage(LosslessFactory.createFromImage(document, noise), 50, 300);
+                }
+            }
+            PDOutlineItem item = new PDOutlineItem();
+            item.setTitle(title + " " + i);
+            item.setDestination(page);
+            outline.addLast(item);
+
+            PDTextField field = new PDTextField(acroForm);
+            field.setPartialName("name" + i);
+            PDAnnotationWidget widget = field.getWidgets().get(0);
+            widget.setRectangle(new PDRectangle(360, 780, 180, 18));
+            widget.setPage(page);
+            page.getAnnotations().add(widget);
+            acroForm.getFields().add(field);
+        }
+        return document;
+    }
+
+    private byte[] save(PDDocument document) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        document.save(outputStream);
+        return outputStream.toByteArray();
+    }
+
+    private byte[] append(byte[] base, PDDocument document) throws IOException {
+        try (IncrementalAppender appender = new IncrementalAppender(new RandomAccessBuffer(base))) {
+            appender.append(document);
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            appender.write(outputStream);
+            return outputStream.toByteArray();
+        }
+    }
+
+    private void assertAppended(byte[] base, byte[] appended, int pages, String... titles) throws IOException {
+        assertThat(Arrays.copyOf(appended, base.length)).isEqualTo(base);
+        try (PDDocument document = PDDocument.load(appended)) {
+            assertThat(document.getNumberOfPages()).isEqualTo(pages);
+            String text = new PDFTextStripper().getText(document);
+            assertThat(text).contains("Dossier page 0", "Attachment page 1");
+            List<String> bookmarks = new ArrayList<>();
+            for (PDOutlineItem item : document.getDocumentCatalog().getDocumentOutline().children()) {
+                bookmarks.add(item.getTitle());
+                assertThat(document.getPages().indexOf(item.findDestinationPage(document))).isNotNegative();
+            }
+            assertThat(bookmarks).containsExactly(titles);
+            assertThat(document.getDocumentCatalog().getDocumentOutline().getCOSObject().getInt(COSName.COUNT))
+                    .isEqualTo(titles.length);
+        }
+    }
+
+    @Test
+    void should_write_only_the_new_pages_after_the_unchanged_base_document() throws Exception {
+        // Given
+        byte[] base;
+        try (PDDocument dossier = createDocument("Dossier", 2)) {
+            base = save(dossier);
+        }
+
+        try (PDDocument attachment = createDocument("Attachment", 2)) {
+            // When
+            byte[] appended = append(base, attachment);
+
+            // Then
+            assertAppended(base, appended, 4, "Dossier 0", "Dossier 1", "Attachment 0", "Attachment 1");
+            // the image of the base document is not written again
+            assertThat(appended.length - base.length).isLessThan(base.length / 10);
+            try (PDDocument document = PDDocument.load(appended)) {
+                List<String> fields = new ArrayList<>();
+                for (PDField field : document.getDocumentCatalog().getAcroForm().getFields()) {
+                    fields.add(field.getPartialName());
+                }
+                assertThat(fields).containsExactly("name0", "name1", "name0_2", "name1_2");
+                assertThat(document.getPage(3).getCOSObject().getCOSDictionary(COSName.PARENT))
+                        .isNotSameAs(document.getPage(0).getCOSObject().getCOSDictionary(COSName.PARENT));
+            }
+        }
+    }
+
+    @Test
+    void should_chain_updates_to_a_compressed_base_document() throws Exception {
+        // Given
+        byte[] base;
+        try (PDDocument dossier = createDocument("Dossier", 2)) {
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            new CompressedPdfWriter().write(dossier, outputStream);
+            base = outputStream.toByteArray();
+        }
+
+        // When
+        byte[] once;
+        try (PDDocument attachment = createDocument("Attachment", 2)) {
+            once = append(base, attachment);
+        }
+        byte[] twice;
+        try (PDDocument attachment = createDocument("Annex", 1)) {
+            twice = append(once, attachment);
+        }
+
+        // Then
+        assertAppended(base, once, 4, "Dossier 0", "Dossier 1", "Attachment 0", "Attachment 1");
+        assertAppended(once, twice, 5, "Dossier 0", "Dossier 1", "Attachment 0", "Attachment 1", "Annex 0");
+    }
+
+    @Test
+    void should_reject_an_encrypted_base_document() throws Exception {
+        // Given
+        byte[] base;
+        try (PDDocument dossier = createDocument("Dossier", 1)) {
+            dossier.protect(new StandardProtectionPolicy("owner", "", new AccessPermission()));
+            base = save(dossier);
+        }
+
+        // When
+        IOException exception = assertThrows(IOException.class,
+                () -> new IncrementalAppender(new RandomAccessBuffer(base)));
+
+        // Then
+        assertThat(exception.getMessage()).contains("encrypted");
+    }
+}
@@ -0,0 +1,168 @@
+package com.bonitasoft.presales.connector.mergepdf;
+
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSObject;
+import org.apache.pdfbox.io.RandomAccessBuffer;
+import org.apache.pdfbox.multipdf.PDFMergerUtility;
+import org.apache.pdfbox.pdfparser.PDFParser;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.font.PDType1Font;
+import org.apache.pdfbox.text.PDFTextStripper;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class LinearizedPdfWriterTest {
+
+    private static final Pattern LINEARIZATION_ENTRY = Pattern.compile("/(L|O|E|N|T) +(\\d+)");
+
+    /**
+     * Reads a file the way a viewer does while it is still downloading it: only the objects received so far,
+     * without looking for the page tree.
+     */
+    private static class PartialParser extends PDFParser {
+
+        PartialParser(byte[] received) throws IOException {
+            super(new RandomAccessBuffer(received));
+        }
+
+        @Override
+        protected void initialParse() throws IOException {
+            retrieveTrailer();
+            document.setDecrypted();
+            initialParseDone = true;
+        }
+
+        COSDictionary readPage(long number) throws IOException {
+            COSDictionary page = (COSDictionary) parseObjectDynamically(number, 0, true);
+            parseDictObjects(page, COSName.PARENT);
+            return page;
+        }
+    }
+
+    // Helper method to create a document with uncompressed content streams
+    private byte[] createReport(String title, int pages) throws IOException {
+        try (PDDocument document = new PDDocument();
+             ByteArrayOutputStream outputStream = new ByteArrayOutputStream()) {
+            for (int i = 0; i < pages; i++) {
+                PDPage page = new PDPage();
+                document.addPage(page);
+                try (PDPageContentStream contentStream = new PDPageContentStream(document, page,
+                        PDPageContentStream.AppendMode.OVERWRITE, false)) {
+                    contentStream.beginText();
+                    contentStream.setFont(PDType1Font.HELVETICA, 12);
+                    for (int line = 0; line < 40; line++) {
+                        contentStream.newLineAtOffset(0, -14);
+                        contentStream.showText(title + " page " + i + " line " + line);
+                    }
+                    contentStream.endText();
+                }
+            }
+            document.getDocumentInformation().setTitle(title);
+            document.save(outputStream);
+            return outputStream.toByteArray();
+        }
+    }
+
+    private byte[] mergeLinearized(byte[]... sources) throws IOException {
+        try (PDDocument destination = new PDDocument()) {
+            PDFMergerUtility pdfMerger = new PDFMergerUtility();
+            for (byte[] source : sources) {
+                try (PDDocument document = PDDocument.load(source)) {
+                    pdfMerger.appendDocument(destination, document);
+                }
+            }
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            new LinearizedPdfWriter().write(destination, outputStream);
+            return outputStream.toByteArray();
+        }
+    }
+
+    // Helper method to read the integer entries of the linearization dictionary, which starts the file
+    private Map<String, Long> readLinearizationDictionary(byte[] pdf) {
+        String raw = new String(pdf, StandardCharsets.ISO_8859_1);
+        String dictionary = raw.substring(raw.indexOf("<<"), raw.indexOf(">>") + 2);
+        assertThat(dictionary).startsWith("<</Linearized 1");
+        Map<String, Long> entries = new HashMap<>();
+        Matcher matcher = LINEARIZATION_ENTRY.matcher(dictionary);
+        while (matcher.find()) {
+            entries.put(matcher.group(1), Long.parseLong(matcher.group(2)));
+        }
+        return entries;
+    }
+
+    @Test
+    void should_write_the_first_page_at_the_start_of_the_file() throws Exception {
+        // When
+        byte[] linearized = mergeLinearized(createReport("Quarterly", 60), createReport("Annual", 60));
+
+        // Then
+        Map<String, Long> dictionary = readLinearizationDictionary(linearized);
+        assertThat(dictionary.get("L")).isEqualTo(linearized.length);
+        assertThat(dictionary.get("N")).isEqualTo(120);
+        String raw = new String(linearized, StandardCharsets.ISO_8859_1);
+        long firstPageEnd = dictionary.get("E");
+        assertThat(raw.indexOf("Quarterly page 0 line 39")).isBetween(0, (int) firstPageEnd);
+        assertThat(raw.indexOf("Quarterly page 1 line 0")).isGreaterThan((int) firstPageEnd);
+        assertThat(raw.substring(dictionary.get("T").intValue() + 1)).startsWith("0000000000 65535 f");
+        try (PDDocument result = PDDocument.load(linearized)) {
+            assertThat(result.getNumberOfPages()).isEqualTo(120);
+            COSArray kids = result.getDocumentCatalog().getPages().getCOSObject().getCOSArray(COSName.KIDS);
+            assertThat(((COSObject) kids.get(0)).getObjectNumber()).isEqualTo(dictionary.get("O"));
+            String text = new PDFTextStripper().getText(result);
+            assertThat(text).contains("Quarterly page 59 line 39", "Annual page 0 line 0");
+            assertThat(result.getDocumentInformation().getTitle()).isEqualTo("Quarterly");
+        }
+    }
+
+    @Test
+    @SuppressWarnings("try") // the partial document is only closed, the page is read through the parser
+    void should_display_the_first_page_from_the_first_page_section_only() throws Exception {
+        // Given: what a viewer has received once the first page section is complete
+        byte[] linearized = mergeLinearized(createReport("Quarterly", 60), createReport("Annual", 60));
+        Map<String, Long> dictionary = readLinearizationDictionary(linearized);
+        byte[] received = Arrays.copyOf(linearized, dictionary.get("E").intValue());
+
+        // When: it reads the first page named by the linearization dictionary
+        String text;
+        PartialParser parser = new PartialParser(received);
+        parser.parse();
+        try (PDDocument partial = parser.getPDDocument();
+             PDDocument viewer = new PDDocument()) {
+            COSDictionary page = parser.readPage(dictionary.get("O"));
+            // the page tree has not been received yet, and the page does not need it
+            page.removeItem(COSName.PARENT);
+            viewer.addPage(new PDPage(page));
+            text = new PDFTextStripper().getText(viewer);
+        }
+
+        // Then
+        assertThat(text).contains("Quarterly page 0 line 0", "Quarterly page 0 line 39");
+    }
+
+    @Test
+    void should_keep_the_first_page_section_small_whatever_the_size_of_the_document() throws Exception {
+        // When
+        byte[] small = mergeLinearized(createReport("Quarterly", 2));
+        byte[] large = mergeLinearized(createReport("Quarterly", 2), createReport("Annual", 300));
+
+        // Then: only the hint stream grows with the number of pages
+        long smallFirstPageEnd = readLinearizationDictionary(small).get("E");
+        long largeFirstPageEnd = readLinearizationDictionary(large).get("E");
+        assertThat(large.length).isGreaterThan(50 * small.length);
+        assertThat(largeFirstPageEnd).isLessThan(smallFirstPageEnd + 1024);
+    }
+}
@@ -0,0 +1,258 @@
+package com.bonitasoft.presales.connector.mergepdf;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.font.PDType1Font;
+import org.bonitasoft.engine.api.APIAccessor;
+import org.bonitasoft.engine.api.ProcessAPI;
+import org.bonitasoft.engine.bpm.document.Document;
+import org.bonitasoft.engine.bpm.document.DocumentValue;
+import org.bonitasoft.engine.connector.ConnectorException;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class MergeGovernorTest {
+
+    static class GovernedMergePDF extends MergePDF {
+
+        private final MergeGovernor governor;
+
+        GovernedMergePDF(MergeGovernor governor) {
+            this.governor = governor;
+        }
+
+        @Override
+        MergeGovernor getGovernor() {
+            return governor;
+        }
+
+        Map<String, Object> getOutputs() {
+            return getOutputParameters();
+        }
+    }
+
+    @Mock
+    Document pdfDocument1;
+
+    @Mock
+    Document pdfDocument2;
+
+    @Mock
+    APIAccessor apiAccessor;
+
+    @Mock
+    ProcessAPI processAPI;
+
+    private static byte[] createPdf(int pages) throws IOException {
+        try (PDDocument document = new PDDocument();
+             ByteArrayOutputStream outputStream = new ByteArrayOutputStream()) {
+            for (int i = 0; i < pages; i++) {
+                PDPage page = new PDPage();
+                document.addPage(page);
+                try (PDPageContentStream contentStream = new PDPageContentStream(document, page)) {
+                    contentStream.beginText();
+                    contentStream.setFont(PDType1Font.HELVETICA, 12);
+                    contentStream.newLineAtOffset(50, 700);
+                    contentStream.showText("Page " + i);
+                    contentStream.endText();
+                }
+            }
+            document.save(outputStream);
+            return outputStream.toByteArray();
+        }
+    }
+
+    private GovernedMergePDF connector(MergeGovernor governor) {
+        GovernedMergePDF connector = new GovernedMergePDF(governor);
+        Map<String, Object> parameters = new HashMap<>();
+        parameters.put(MergePDF.DOCUMENTS_INPUT, List.of(pdfDocument1, pdfDocument2));
+        parameters.put(MergePDF.OUTPUT_FILE_NAME_INPUT, "merged.pdf");
+        parameters.put(MergePDF.MEMORY_STRATEGY_INPUT, MemoryStrategy.MAIN_MEMORY_ONLY.name());
+        connector.setInputParameters(parameters);
+        connector.setAPIAccessor(apiAccessor);
+        return connector;
+    }
+
+    @Test
+    void should_queue_merges_until_the_budget_is_released() throws Exception {
+        // Given
+        MergeGovernor governor = new MergeGovernor(100, TimeUnit.SECONDS.toMillis(10));
+        MergeGovernor.Permit first = governor.acquire(60);
+
+        // When
+        CompletableFuture<MergeGovernor.Permit> second = CompletableFuture.supplyAsync(() -> {
+            try {
+                return governor.acquire(60);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        while (governor.getQueuedCount() == 0) {
+            Thread.sleep(5);
+        }
+        assertThat(second).isNotDone();
+        first.close();
+
+        // Then
+        second.get(10, TimeUnit.SECONDS).close();
+        assertThat(governor.getUsedBytes()).isZero();
+        assertThat(governor.getPeakUsedBytes()).isEqualTo(60);
+        assertThat(governor.getRunningCount()).isZero();
+    }
+
+    @Test
+    @SuppressWarnings("try") // the permit is only held, and released by closing it
+    void should_reject_a_merge_not_admitted_in_time() throws Exception {
+        // Given
+        MergeGovernor governor = new MergeGovernor(100, 50);
+
+        try (MergeGovernor.Permit permit = governor.acquire(80)) {
+            // When
+            IOException exception = assertThrows(IOException.class, () -> governor.acquire(30));
+
+            // Then
+            assertThat(exception.getMessage()).contains("not admitted within 50 ms")
+                    .contains("80 of 100 bytes in use by 1 merges")
+                    .contains(MergeGovernor.MAX_BYTES_PROPERTY);
+        }
+        assertThat(governor.getRejectedCount()).isEqualTo(1);
+        assertThat(governor.getQueuedCount()).isZero();
+    }
+
+    @Test
+    @SuppressWarnings("try") // the permit is only held, and released by closing it
+    void should_admit_a_merge_larger_than_the_budget_alone() throws Exception {
+        // Given
+        MergeGovernor governor = new MergeGovernor(100, 0);
+
+        // When
+        try (MergeGovernor.Permit permit = governor.acquire(500)) {
+            // Then
+            assertThat(governor.getUsedBytes()).isEqualTo(100);
+            assertThrows(IOException.class, () -> governor.acquire(1));
+        }
+        governor.acquire(100).close();
+    }
+
+    @Test
+    @SuppressWarnings("try") // the permit is only held, and released by closing it
+    void should_fail_the_connector_when_the_merge_is_rejected() throws Exception {
+        // Given
+        when(pdfDocument1.getContentStorageId()).thenReturn("storage-id-1");
+        when(pdfDocument2.getContentStorageId()).thenReturn("storage-id-2");
+        when(apiAccessor.getProcessAPI()).thenReturn(processAPI);
+        when(processAPI.getDocumentContent("storage-id-1")).thenReturn(createPdf(1));
+        when(processAPI.getDocumentContent("storage-id-2")).thenReturn(createPdf(1));
+        MergeGovernor governor = new MergeGovernor(1000, 0);
+
+        try (MergeGovernor.Permit permit = governor.acquire(1000)) {
+            // When
+            ConnectorException exception = assertThrows(ConnectorException.class,
+                    () -> connector(governor).executeBusinessLogic());
+
+            // Then
+            assertThat(exception.getMessage()).contains("not admitted within 0 ms");
+        }
+    }
+
+    @Test
+    void should_keep_admitted_memory_within_budget_under_concurrent_merges() throws Exception {
+        // Given
+        byte[] pdfContent1 = createPdf(20);
+        byte[] pdfContent2 = createPdf(20);
+        when(pdfDocument1.getContentStorageId()).thenReturn("storage-id-1");
+        when(pdfDocument2.getContentStorageId()).thenReturn("storage-id-2");
+        when(apiAccessor.getProcessAPI()).thenReturn(processAPI);
+        when(processAPI.getDocumentContent("storage-id-1")).thenReturn(pdfContent1);
+        when(processAPI.getDocumentContent("storage-id-2")).thenReturn(pdfContent2);
+        // main memory only: fetched arrays, parsed copy, output buffer and its copy
+        long estimatedBytes = 4L * (pdfContent1.length + pdfContent2.length);
+        long budget = 2 * estimatedBytes + estimatedBytes / 2;
+        MergeGovernor governor = new MergeGovernor(budget, TimeUnit.MINUTES.toMillis(1));
+        int executions = 24;
+
+        // When
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<DocumentValue>> results = new ArrayList<>();
+        try {
+            for (int i = 0; i < executions; i++) {
+                results.add(executor.submit(() -> {
+                    GovernedMergePDF connector = connector(governor);
+                    connector.executeBusinessLogic();
+                    return (DocumentValue) connector.getOutputs().get(MergePDF.MERGED_DOCUMENT_OUTPUT);
+                }));
+            }
+            // Then
+            for (Future<DocumentValue> result : results) {
+                assertThat(result.get(1, TimeUnit.MINUTES).getContent()).isNotEmpty();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertThat(governor.getPeakUsedBytes()).isGreaterThanOrEqualTo(estimatedBytes).isLessThanOrEqualTo(budget);
+        assertThat(governor.getUsedBytes()).isZero();
+        assertThat(governor.getRunningCount()).isZero();
+        assertThat(governor.getRejectedCount()).isZero();
+    }
+
+    @Test
+    void should_share_one_budget_between_copies_loaded_by_different_class_loaders() throws Exception {
+        // Given
+        URL classes = MergeGovernor.class.getProtectionDomain().getCodeSource().getLocation();
+        try (URLClassLoader firstLoader = new URLClassLoader(new URL[] { classes },
+                ClassLoader.getPlatformClassLoader());
+                URLClassLoader secondLoader = new URLClassLoader(new URL[] { classes },
+                        ClassLoader.getPlatformClassLoader())) {
+            Object first = invoke(firstLoader.loadClass(MergeGovernor.class.getName()), null, "getInstance");
+            Object second = invoke(secondLoader.loadClass(MergeGovernor.class.getName()), null, "getInstance");
+            long usedBefore = (long) invoke(second.getClass(), second, "getUsedBytes");
+
+            // When
+            Object permit = invoke(first.getClass(), first, "acquire", 1000L);
+
+            // Then
+            try {
+                assertThat(first.getClass()).isNotSameAs(second.getClass());
+                assertThat(invoke(second.getClass(), second, "getUsedBytes")).isEqualTo(usedBefore + 1000);
+                assertThat(MergeGovernor.getInstance().getUsedBytes()).isEqualTo(usedBefore + 1000);
+            } finally {
+                invoke(permit.getClass(), permit, "close");
+            }
+            assertThat(invoke(second.getClass(), second, "getUsedBytes")).isEqualTo(usedBefore);
+        }
+    }
+
+    private static Object invoke(Class<?> type, Object target, String name, Object... arguments)
+            throws ReflectiveOperationException {
+        for (Method method : type.getDeclaredMethods()) {
+            if (method.getName().equals(name) && method.getParameterCount() == arguments.length) {
+                method.setAccessible(true);
+                return method.invoke(target, arguments);
+            }
+        }
+        throw new NoSuchMethodException(name);
+    }
+}
@@ -0,0 +1,218 @@
+package com.bonitasoft.presales.connector.mergepdf;
+
+import org.bonitasoft.engine.bpm.document.DocumentValue;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+class MergeJobQueueTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void should_hand_over_the_outputs_of_a_finished_merge_once() throws Exception {
+        // Given: outputs of the types the connector sets
+        MergeJobQueue queue = new MergeJobQueue(1, 4, tempDir, 60_000);
+        List<DocumentValue> parts = new ArrayList<>(
+                List.of(new DocumentValue(new byte[] { 1, 2, 3 }, "application/pdf", "dossier-1.pdf")));
+        Map<String, Object> metrics = new LinkedHashMap<>(Map.of("pageCount", 3, "outputBytes", 3L));
+        String jobId = queue.submit(() -> Map.of(MergePDF.MERGED_DOCUMENT_PARTS_OUTPUT, parts,
+                MergePDF.MERGE_METRICS_OUTPUT, metrics));
+
+        // When
+        MergeJobQueue.Collected collected = queue.collect(jobId, 10_000);
+
+        // Then
+        assertThat(collected.getStatus()).isEqualTo(MergeJobQueue.Status.DONE);
+        List<?> collectedParts = (List<?>) collected.getOutputs().get(MergePDF.MERGED_DOCUMENT_PARTS_OUTPUT);
+        assertThat(((DocumentValue) collectedParts.get(0)).getContent()).containsExactly(1, 2, 3);
+        assertThat(collected.getOutputs().get(MergePDF.MERGE_METRICS_OUTPUT))
+                .isEqualTo(Map.of("pageCount", 3, "outputBytes", 3L));
+        IOException exception = assertThrows(IOException.class, () -> queue.collect(jobId, 0));
+        assertThat(exception.getMessage()).contains("Unknown merge job " + jobId);
+        try (var remaining = Files.list(tempDir)) {
+            assertThat(remaining).isEmpty();
+        }
+    }
+
+    @Test
+    void should_reject_merges_beyond_the_queue_depth() throws Exception {
+        // Given: one merge running and one waiting
+        MergeJobQueue queue = new MergeJobQueue(1, 1, tempDir, 60_000);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        String running = queue.submit(() -> {
+            started.countDown();
+            release.await();
+            return Map.of();
+        });
+        started.await(10, TimeUnit.SECONDS);
+        String queued = queue.submit(Map::of);
+
+        // When
+        IOException exception = assertThrows(IOException.class, () -> queue.submit(Map::of));
+
+        // Then
+        assertThat(exception.getMessage()).contains("Merge queue full", MergeJobQueue.MAX_QUEUE_DEPTH_PROPERTY);
+        assertThat(queue.collect(running, 0).getStatus()).isEqualTo(MergeJobQueue.Status.RUNNING);
+        assertThat(queue.collect(queued, 0).getStatus()).isEqualTo(MergeJobQueue.Status.QUEUED);
+        release.countDown();
+        assertThat(queue.collect(queued, 10_000).getStatus()).isEqualTo(MergeJobQueue.Status.DONE);
+    }
+
+    @Test
+    void should_report_a_merge_running_on_another_queue_of_the_same_directory() throws Exception {
+        // Given: a merge running and one waiting on another node
+        MergeJobQueue node = new MergeJobQueue(1, 4, tempDir, 60_000);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        String running = node.submit(() -> {
+            started.countDown();
+            release.await();
+            return Map.of();
+        });
+        started.await(10, TimeUnit.SECONDS);
+        String queued = node.submit(() -> Map.of(MergePDF.CACHE_HIT_OUTPUT, true));
+        MergeJobQueue otherNode = new MergeJobQueue(1, 4, tempDir, 60_000);
+        MergePDFTest.TestableMergePDF collector = new MergePDFTest.TestableMergePDF();
+        collector.jobQueue = otherNode;
+        collector.setInputParameters(Map.of(MergePDF.EXECUTION_MODE_INPUT, "COLLECT",
+                MergePDF.JOB_ID_INPUT, running));
+
+        // When
+        collector.executeBusinessLogic();
+
+        // Then
+        assertThat(collector.getOutputs()).containsEntry(MergePDF.JOB_STATUS_OUTPUT, "RUNNING")
+                .doesNotContainKey(MergePDF.MERGED_DOCUMENT_OUTPUT);
+        assertThat(otherNode.collect(queued, 100).getStatus()).isEqualTo(MergeJobQueue.Status.QUEUED);
+        release.countDown();
+        assertThat(otherNode.collect(queued, 10_000).getOutputs()).containsEntry(MergePDF.CACHE_HIT_OUTPUT, true);
+        assertThat(otherNode.collect(running, 10_000).getStatus()).isEqualTo(MergeJobQueue.Status.DONE);
+        try (var remaining = Files.list(tempDir)) {
+            assertThat(remaining).isEmpty();
+        }
+    }
+
+    @Test
+    void should_forget_a_merge_lost_with_the_jvm_that_ran_it() throws Exception {
+        // Given: the marker of a merge whose JVM stopped without touching it again
+        MergeJobQueue queue = new MergeJobQueue(1, 4, tempDir, 60_000);
+        String jobId = "0b9e3e9c-3f51-4b4e-9d36-0e4f4b1f6a29";
+        Path marker = Files.createFile(tempDir.resolve(jobId + ".running"));
+        marker.toFile().setLastModified(System.currentTimeMillis() - MergeJobQueue.STALE_PART_MILLIS - 1000);
+
+        // When
+        IOException exception = assertThrows(IOException.class, () -> queue.collect(jobId, 0));
+
+        // Then
+        assertThat(exception.getMessage()).contains("Unknown merge job " + jobId);
+        assertThat(marker).doesNotExist();
+    }
+
+    @Test
+    void should_report_the_failure_of_a_merge() throws Exception {
+        // Given
+        MergeJobQueue queue = new MergeJobQueue(1, 4, tempDir, 60_000);
+        String jobId = queue.submit(() -> {
+            throw new IOException("Document 'payslip.pdf' cannot be merged: encrypted with a password");
+        });
+
+        // When
+        IOException exception = assertThrows(IOException.class, () -> queue.collect(jobId, 10_000));
+
+        // Then
+        assertThat(exception.getMessage()).isEqualTo("Merge job " + jobId
+                + " failed: Document 'payslip.pdf' cannot be merged: encrypted with a password");
+    }
+
+    @Test
+    void should_refuse_a_result_holding_another_type_than_the_outputs() throws Exception {
+        // Given
+        MergeJobQueue queue = new MergeJobQueue(1, 4, tempDir, 60_000);
+        String jobId = queue.submit(() -> Map.of(MergePDF.MERGE_METRICS_OUTPUT, new TreeMap<>(Map.of("pageCount", 3))));
+
+        // When
+        IOException exception = assertThrows(IOException.class, () -> queue.collect(jobId, 10_000));
+
+        // Then
+        assertThat(exception).hasMessageContaining("REJECTED");
+    }
+
+    @Test
+    void should_keep_the_files_of_a_merge_to_the_owner() throws Exception {
+        assumeTrue(tempDir.getFileSystem().supportedFileAttributeViews().contains("posix"));
+        // Given
+        Path directory = tempDir.resolve("jobs");
+        MergeJobQueue queue = new MergeJobQueue(1, 4, directory, 60_000);
+        CountDownLatch release = new CountDownLatch(1);
+
+        // When
+        Path sources = queue.createSourceDirectory();
+        queue.writeSource(sources.resolve("0.pdf"), new byte[] { 1 });
+        String jobId = queue.submit(() -> {
+            release.await();
+            return Map.of();
+        });
+
+        Path running = directory.resolve(jobId + ".running");
+        while (!Files.exists(running)) {
+            Thread.sleep(10);
+        }
+        String marker = permissions(running);
+        release.countDown();
+        Path result = directory.resolve(jobId + ".result");
+        while (!Files.exists(result)) {
+            Thread.sleep(10);
+        }
+
+        // Then
+        assertThat(permissions(directory)).isEqualTo("rwx------");
+        assertThat(permissions(sources)).isEqualTo("rwx------");
+        assertThat(permissions(sources.resolve("0.pdf"))).isEqualTo("rw-------");
+        assertThat(marker).isEqualTo("rw-------");
+        assertThat(permissions(result)).isEqualTo("rw-------");
+    }
+
+    private static String permissions(Path path) throws IOException {
+        return PosixFilePermissions.toString(Files.getPosixFilePermissions(path));
+    }
+
+    @Test
+    void should_keep_finished_results_over_a_restart_and_delete_expired_and_partial_files() throws Exception {
+        // Given: the files left by a previous JVM
+        MergeJobQueue previous = new MergeJobQueue(1, 4, tempDir, 60_000);
+        String finished = previous.submit(() -> Map.of(MergePDF.CACHE_HIT_OUTPUT, false));
+        while (!Files.exists(tempDir.resolve(finished + ".result"))) {
+            Thread.sleep(10);
+        }
+        Path expired = Files.write(tempDir.resolve("0b9e3e9c-3f51-4b4e-9d36-0e4f4b1f6a27.result"), new byte[10]);
+        expired.toFile().setLastModified(System.currentTimeMillis() - 120_000);
+        Path partial = Files.write(tempDir.resolve("0b9e3e9c-3f51-4b4e-9d36-0e4f4b1f6a28-1.part"), new byte[10]);
+        partial.toFile().setLastModified(System.currentTimeMillis() - MergeJobQueue.STALE_PART_MILLIS - 1000);
+
+        // When
+        MergeJobQueue queue = new MergeJobQueue(1, 4, tempDir, 60_000);
+
+        // Then
+        assertThat(expired).doesNotExist();
+        assertThat(partial).doesNotExist();
+        assertThat(queue.collect(finished, 0).getOutputs()).containsEntry(MergePDF.CACHE_HIT_OUTPUT, false);
+    }
+}
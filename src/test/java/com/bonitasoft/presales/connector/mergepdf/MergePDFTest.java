@@ -3,7 +3,12 @@ package com.bonitasoft.presales.connector.mergepdf;
 import org.apache.pdfbox.pdmodel.PDDocument;
 import org.apache.pdfbox.pdmodel.PDPage;
 import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.PDResources;
+import org.apache.pdfbox.pdmodel.encryption.AccessPermission;
+import org.apache.pdfbox.pdmodel.encryption.StandardProtectionPolicy;
 import org.apache.pdfbox.pdmodel.font.PDType1Font;
+import org.apache.pdfbox.pdmodel.graphics.image.LosslessFactory;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
 import org.apache.pdfbox.text.PDFTextStripper;
 import org.bonitasoft.engine.api.APIAccessor;
 import org.bonitasoft.engine.api.ProcessAPI;
@@ -15,20 +20,36 @@ import org.bonitasoft.engine.connector.ConnectorValidationException;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
 
+import java.awt.image.BufferedImage;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.lenient;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.reset;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
 import static org.mockito.Mockito.when;
 
 @ExtendWith(MockitoExtension.class)
@@ -36,9 +57,17 @@ class MergePDFTest {
 
     // Test subclass to expose protected methods
     static class TestableMergePDF extends MergePDF {
+
+        MergeJobQueue jobQueue;
+
         public Map<String, Object> getOutputs() {
             return getOutputParameters();
         }
+
+        @Override
+        MergeJobQueue getJobQueue() {
+            return jobQueue != null ? jobQueue : super.getJobQueue();
+        }
     }
 
     TestableMergePDF connector;
@@ -81,6 +110,26 @@ class MergePDFTest {
         }
     }
 
+    // Helper method to create a PDF with one line of text per page
+    private byte[] createPdfWithPages(String text, int pages) throws IOException {
+        try (PDDocument document = new PDDocument();
+             ByteArrayOutputStream outputStream = new ByteArrayOutputStream()) {
+            for (int i = 1; i <= pages; i++) {
+                PDPage page = new PDPage();
+                document.addPage(page);
+                try (PDPageContentStream contentStream = new PDPageContentStream(document, page)) {
+                    contentStream.beginText();
+                    contentStream.setFont(PDType1Font.HELVETICA, 12);
+                    contentStream.newLineAtOffset(50, 700);
+                    contentStream.showText(text + " page " + i);
+                    contentStream.endText();
+                }
+            }
+            document.save(outputStream);
+            return outputStream.toByteArray();
+        }
+    }
+
     // Helper method to extract text from PDF bytes
     private String extractTextFromPdf(byte[] pdfBytes) throws IOException {
         try (PDDocument document = PDDocument.load(new ByteArrayInputStream(pdfBytes))) {
@@ -203,6 +252,35 @@ class MergePDFTest {
         assertDoesNotThrow(() -> connector.validateInputParameters());
     }
 
+    @Test
+    void should_throw_exception_if_memory_strategy_is_unknown() {
+        when(pdfDocument1.getContentMimeType()).thenReturn("application/pdf");
+        when(pdfDocument2.getContentMimeType()).thenReturn("application/pdf");
+        Map<String, Object> parameters = new HashMap<>();
+        parameters.put(MergePDF.DOCUMENTS_INPUT, List.of(pdfDocument1, pdfDocument2));
+        parameters.put(MergePDF.OUTPUT_FILE_NAME_INPUT, "merged.pdf");
+        parameters.put(MergePDF.MEMORY_STRATEGY_INPUT, "SWAP");
+        connector.setInputParameters(parameters);
+        ConnectorValidationException exception = assertThrows(ConnectorValidationException.class, () ->
+                connector.validateInputParameters()
+        );
+        assertThat(exception.getMessage()).contains(MergePDF.MEMORY_STRATEGY_INPUT);
+    }
+
+    @Test
+    void should_throw_exception_if_temp_directory_does_not_exist(@TempDir Path tempDir) {
+        when(pdfDocument1.getContentMimeType()).thenReturn("application/pdf");
+        when(pdfDocument2.getContentMimeType()).thenReturn("application/pdf");
+        Map<String, Object> parameters = new HashMap<>();
+        parameters.put(MergePDF.DOCUMENTS_INPUT, List.of(pdfDocument1, pdfDocument2));
+        parameters.put(MergePDF.OUTPUT_FILE_NAME_INPUT, "merged.pdf");
+        parameters.put(MergePDF.TEMP_DIRECTORY_INPUT, tempDir.resolve("missing").toString());
+        connector.setInputParameters(parameters);
+        assertThrows(ConnectorValidationException.class, () ->
+                connector.validateInputParameters()
+        );
+    }
+
     // ==================== Business Logic Tests ====================
 
     @Test
@@ -291,12 +369,13 @@ class MergePDFTest {
 
     @Test
     void should_throw_exception_when_document_not_found() throws Exception {
-        // Given
-        when(pdfDocument1.getContentStorageId()).thenReturn("storage-id-1");
+        // Given - the valid document may be cancelled before it is fetched
+        lenient().when(pdfDocument1.getContentStorageId()).thenReturn("storage-id-1");
         when(pdfDocument2.getContentStorageId()).thenReturn("invalid-storage-id");
+        when(pdfDocument2.getContentFileName()).thenReturn("missing.pdf");
 
         when(apiAccessor.getProcessAPI()).thenReturn(processAPI);
-        when(processAPI.getDocumentContent("storage-id-1")).thenReturn(createPdfWithText("Content"));
+        lenient().when(processAPI.getDocumentContent("storage-id-1")).thenReturn(createPdfWithText("Content"));
         when(processAPI.getDocumentContent("invalid-storage-id"))
                 .thenThrow(new DocumentNotFoundException("Document not found"));
 
@@ -311,6 +390,7 @@ class MergePDFTest {
         ConnectorException exception = assertThrows(ConnectorException.class,
                 () -> connector.executeBusinessLogic());
         assertThat(exception.getMessage()).contains("Failed to merge PDF documents");
+        assertThat(exception.getMessage()).contains("missing.pdf", "invalid-storage-id");
     }
 
     @Test
@@ -325,6 +405,7 @@ class MergePDFTest {
         when(apiAccessor.getProcessAPI()).thenReturn(processAPI);
         when(processAPI.getDocumentContent("storage-id-1")).thenReturn(validPdfContent);
         when(processAPI.getDocumentContent("storage-id-2")).thenReturn(invalidContent);
+        when(pdfDocument2.getContentFileName()).thenReturn("notes.pdf");
 
         Map<String, Object> parameters = new HashMap<>();
         parameters.put(MergePDF.DOCUMENTS_INPUT, List.of(pdfDocument1, pdfDocument2));
@@ -337,6 +418,44 @@ class MergePDFTest {
         ConnectorException exception = assertThrows(ConnectorException.class,
                 () -> connector.executeBusinessLogic());
         assertThat(exception.getMessage()).contains("Failed to merge PDF documents");
+        assertThat(exception.getMessage()).contains("'notes.pdf'", "no PDF header");
+    }
+
+    @Test
+    void should_reject_a_password_protected_document_before_fetching_the_next_ones() throws Exception {
+        // Given
+        Document pdfDocument3 = org.mockito.Mockito.mock(Document.class);
+        byte[] protectedContent;
+        try (PDDocument document = PDDocument.load(createPdfWithText("Payslip"));
+             ByteArrayOutputStream outputStream = new ByteArrayOutputStream()) {
+            document.protect(new StandardProtectionPolicy("owner", "secret", new AccessPermission()));
+            document.save(outputStream);
+            protectedContent = outputStream.toByteArray();
+        }
+        when(pdfDocument1.getContentStorageId()).thenReturn("storage-id-1");
+        when(pdfDocument2.getContentStorageId()).thenReturn("storage-id-2");
+        when(pdfDocument2.getContentFileName()).thenReturn("payslip.pdf");
+        when(pdfDocument3.getContentStorageId()).thenReturn("storage-id-3");
+
+        when(apiAccessor.getProcessAPI()).thenReturn(processAPI);
+        when(processAPI.getDocumentContent("storage-id-1")).thenReturn(createPdfWithText("Letter"));
+        when(processAPI.getDocumentContent("storage-id-2")).thenReturn(protectedContent);
+
+        Map<String, Object> parameters = new HashMap<>();
+        parameters.put(MergePDF.DOCUMENTS_INPUT, List.of(pdfDocument1, pdfDocument2, pdfDocument3));
+        parameters.put(MergePDF.OUTPUT_FILE_NAME_INPUT, "merged.pdf");
+        parameters.put(MergePDF.FETCH_PARALLELISM_INPUT, 1);
+
+        connector.setInputParameters(parameters);
+        connector.setAPIAccessor(apiAccessor);
+
+        // When
+        ConnectorException exception = assertThrows(ConnectorException.class,
+                () -> connector.executeBusinessLogic());
+
+        // Then
+        assertThat(exception.getMessage()).contains("'payslip.pdf'", "encrypted with a password");
+        verify(processAPI, never()).getDocumentContent("storage-id-3");
     }
 
     @Test
@@ -381,4 +500,894 @@ class MergePDFTest {
         }
     }
 
-}
\ No newline at end of file
+    @Test
+    void should_merge_with_temp_file_only_strategy_and_clean_up_scratch_files(@TempDir Path tempDir) throws Exception {
+        // Given
+        when(pdfDocument1.getContentStorageId()).thenReturn("storage-id-1");
+        when(pdfDocument2.getContentStorageId()).thenReturn("storage-id-2");
+
+        when(apiAccessor.getProcessAPI()).thenReturn(processAPI);
+        when(processAPI.getDocumentContent("storage-id-1")).thenReturn(createPdfWithText("On disk 1"));
+        when(processAPI.getDocumentContent("storage-id-2")).thenReturn(createPdfWithText("On disk 2"));
+
+        Map<String, Object> parameters = new HashMap<>();
+        parameters.put(MergePDF.DOCUMENTS_INPUT, List.of(pdfDocument1, pdfDocument2));
+        parameters.put(MergePDF.OUTPUT_FILE_NAME_INPUT, "merged.pdf");
+        parameters.put(MergePDF.MEMORY_STRATEGY_INPUT, "TEMP_FILE_ONLY");
+        parameters.put(MergePDF.TEMP_DIRECTORY_INPUT, tempDir.toString());
+
+        connector.setInputParameters(parameters);
+        connector.setAPIAccessor(apiAccessor);
+
+        // When
+        connector.executeBusinessLogic();
+
+        // Then
+        DocumentValue result = (DocumentValue) connector.getOutputs().get(MergePDF.MERGED_DOCUMENT_OUTPUT);
+        assertThat(countPagesInPdf(result.getContent())).isEqualTo(2);
+        assertThat(extractTextFromPdf(result.getContent())).contains("On disk 1", "On disk 2");
+        try (var remaining = Files.list(tempDir)) {
+            assertThat(remaining).isEmpty();
+        }
+    }
+
+    @Test
+    void should_clean_up_scratch_files_when_merge_fails(@TempDir Path tempDir) throws Exception {
+        // Given
+        when(pdfDocument1.getContentStorageId()).thenReturn("storage-id-1");
+        when(pdfDocument2.getContentStorageId()).thenReturn("storage-id-2");
+
+        when(apiAccessor.getProcessAPI()).thenReturn(processAPI);
+        when(processAPI.getDocumentContent("storage-id-1")).thenReturn(createPdfWithText("Valid PDF"));
+        when(processAPI.getDocumentContent("storage-id-2")).thenReturn("Not a PDF".getBytes());
+
+        Map<String, Object> parameters = new HashMap<>();
+        parameters.put(MergePDF.DOCUMENTS_INPUT, List.of(pdfDocument1, pdfDocument2));
+        parameters.put(MergePDF.OUTPUT_FILE_NAME_INPUT, "merged.pdf");
+        parameters.put(MergePDF.MEMORY_STRATEGY_INPUT, "MIXED");
+        parameters.put(MergePDF.MAX_MAIN_MEMORY_BYTES_INPUT, 1024L);
+        parameters.put(MergePDF.TEMP_DIRECTORY_INPUT, tempDir.toString());
+
+        connector.setInputParameters(parameters);
+        connector.setAPIAccessor(apiAccessor);
+
+        // When / Then
+        assertThrows(ConnectorException.class, () -> connector.executeBusinessLogic());
+        try (var remaining = Files.list(tempDir)) {
+            assertThat(remaining).isEmpty();
+        }
+    }
+
+    @Test
+    void should_serve_a_repeated_merge_from_the_cache() throws Exception {
+        // Given
+        MergeResultCache.getInstance().clear();
+        when(pdfDocument1.getContentStorageId()).thenReturn("cached-storage-id-1");
+        when(pdfDocument2.getContentStorageId()).thenReturn("cached-storage-id-2");
+
+        when(apiAccessor.getProcessAPI()).thenReturn(processAPI);
+        when(processAPI.getDocumentContent("cached-storage-id-1")).thenReturn(createPdfWithText("Cached 1"));
+        when(processAPI.getDocumentContent("cached-storage-id-2")).thenReturn(createPdfWithText("Cached 2"));
+
+        Map<String, Object> parameters = new HashMap<>();
+        parameters.put(MergePDF.DOCUMENTS_INPUT, List.of(pdfDocument1, pdfDocument2));
+        parameters.put(MergePDF.OUTPUT_FILE_NAME_INPUT, "first.pdf");
+        parameters.put(MergePDF.USE_CACHE_INPUT, true);
+        connector.setInputParameters(parameters);
+        connector.setAPIAccessor(apiAccessor);
+        connector.executeBusinessLogic();
+        DocumentValue first = (DocumentValue) connector.getOutputs().get(MergePDF.MERGED_DOCUMENT_OUTPUT);
+
+        // When
+        TestableMergePDF secondConnector = new TestableMergePDF();
+        parameters.put(MergePDF.OUTPUT_FILE_NAME_INPUT, "second.pdf");
+        secondConnector.setInputParameters(parameters);
+        secondConnector.setAPIAccessor(apiAccessor);
+        secondConnector.executeBusinessLogic();
+
+        // Then
+        DocumentValue second = (DocumentValue) secondConnector.getOutputs().get(MergePDF.MERGED_DOCUMENT_OUTPUT);
+        assertThat(connector.getOutputs().get(MergePDF.CACHE_HIT_OUTPUT)).isEqualTo(false);
+        assertThat(secondConnector.getOutputs().get(MergePDF.CACHE_HIT_OUTPUT)).isEqualTo(true);
+        assertThat(second.getFileName()).isEqualTo("second.pdf");
+        assertThat(second.getContent()).isEqualTo(first.getContent());
+        verify(processAPI, times(1)).getDocumentContent("cached-storage-id-1");
+        verify(processAPI, times(1)).getDocumentContent("cached-storage-id-2");
+        MergeResultCache.getInstance().clear();
+    }
+
+    @Test
+    void should_not_cache_a_merge_of_a_document_without_storage_id() throws Exception {
+        // Given
+        MergeResultCache.getInstance().clear();
+        when(pdfDocument1.getContentStorageId()).thenReturn("cached-storage-id-1");
+        when(pdfDocument2.getContentStorageId()).thenReturn(null);
+
+        when(apiAccessor.getProcessAPI()).thenReturn(processAPI);
+        when(processAPI.getDocumentContent("cached-storage-id-1")).thenReturn(createPdfWithText("Stored"));
+        when(processAPI.getDocumentContent(null)).thenReturn(createPdfWithText("From URL"));
+
+        Map<String, Object> parameters = new HashMap<>();
+        parameters.put(MergePDF.DOCUMENTS_INPUT, List.of(pdfDocument1, pdfDocument2));
+        parameters.put(MergePDF.OUTPUT_FILE_NAME_INPUT, "merged.pdf");
+        parameters.put(MergePDF.USE_CACHE_INPUT, true);
+        connector.setInputParameters(parameters);
+        connector.setAPIAccessor(apiAccessor);
+        connector.executeBusinessLogic();
+
+        // When
+        TestableMergePDF secondConnector = new TestableMergePDF();
+        secondConnector.setInputParameters(parameters);
+        secondConnector.setAPIAccessor(apiAccessor);
+        secondConnector.executeBusinessLogic();
+
+        // Then
+        assertThat(connector.getOutputs().get(MergePDF.CACHE_HIT_OUTPUT)).isEqualTo(false);
+        assertThat(secondConnector.getOutputs().get(MergePDF.CACHE_HIT_OUTPUT)).isEqualTo(false);
+        DocumentValue result = (DocumentValue) secondConnector.getOutputs().get(MergePDF.MERGED_DOCUMENT_OUTPUT);
+        try (PDDocument merged = PDDocument.load(result.getContent())) {
+            assertThat(merged.getNumberOfPages()).isEqualTo(2);
+        }
+        verify(processAPI, times(2)).getDocumentContent("cached-storage-id-1");
+        assertThat(MergeResultCache.getInstance().getMemoryBytes()).isZero();
+    }
+
+    @Test
+    void should_report_bytes_saved_by_resource_deduplication() throws Exception {
+        // Given
+        byte[] pdfContent = createPdfWithText("Same template");
+        when(pdfDocument1.getContentStorageId()).thenReturn("storage-id-1");
+        when(pdfDocument2.getContentStorageId()).thenReturn("storage-id-2");
+
+        when(apiAccessor.getProcessAPI()).thenReturn(processAPI);
+        when(processAPI.getDocumentContent("storage-id-1")).thenReturn(pdfContent);
+        when(processAPI.getDocumentContent("storage-id-2")).thenReturn(pdfContent);
+
+        Map<String, Object> parameters = new HashMap<>();
+        parameters.put(MergePDF.DOCUMENTS_INPUT, List.of(pdfDocument1, pdfDocument2));
+        parameters.put(MergePDF.OUTPUT_FILE_NAME_INPUT, "merged.pdf");
+        parameters.put(MergePDF.DEDUPLICATE_RESOURCES_INPUT, true);
+
+        connector.setInputParameters(parameters);
+        connector.setAPIAccessor(apiAccessor);
+
+        // When
+        connector.executeBusinessLogic();
+
+        // Then
+        DocumentValue result = (DocumentValue) connector.getOutputs().get(MergePDF.MERGED_DOCUMENT_OUTPUT);
+        assertThat(countPagesInPdf(result.getContent())).isEqualTo(2);
+        assertThat((Long) connector.getOutputs().get(MergePDF.DEDUPLICATION_SAVED_BYTES_OUTPUT)).isPositive();
+    }
+
+    @Test
+    void should_write_compressed_output_when_requested() throws Exception {
+        // Given
+        when(pdfDocument1.getContentStorageId()).thenReturn("storage-id-1");
+        when(pdfDocument2.getContentStorageId()).thenReturn("storage-id-2");
+
+        when(apiAccessor.getProcessAPI()).thenReturn(processAPI);
+        when(processAPI.getDocumentContent("storage-id-1")).thenReturn(createPdfWithText("Compressed first"));
+        when(processAPI.getDocumentContent("storage-id-2")).thenReturn(createPdfWithText("Compressed second"));
+
+        Map<String, Object> parameters = new HashMap<>();
+        parameters.put(MergePDF.DOCUMENTS_INPUT, List.of(pdfDocument1, pdfDocument2));
+        parameters.put(MergePDF.OUTPUT_FILE_NAME_INPUT, "merged.pdf");
+        parameters.put(MergePDF.OUTPUT_COMPRESSION_INPUT, "COMPRESSED");
+
+        connector.setInputParameters(parameters);
+        connector.setAPIAccessor(apiAccessor);
+
+        // When
+        connector.executeBusinessLogic();
+
+        // Then
+        DocumentValue result = (DocumentValue) connector.getOutputs().get(MergePDF.MERGED_DOCUMENT_OUTPUT);
+        assertThat(new String(result.getContent(), 0, 8, StandardCharsets.ISO_8859_1))
+                .isEqualTo("%PDF-1.5");
+        assertThat(countPagesInPdf(result.getContent())).isEqualTo(2);
+        assertThat(extractTextFromPdf(result.getContent())).contains("Compressed first", "Compressed second");
+    }
+
+    @Test
+    void should_write_linearized_output_when_requested() throws Exception {
+        // Given
+        when(pdfDocument1.getContentStorageId()).thenReturn("storage-id-1");
+        when(pdfDocument2.getContentStorageId()).thenReturn("storage-id-2");
+
+        when(apiAccessor.getProcessAPI()).thenReturn(processAPI);
+        when(processAPI.getDocumentContent("storage-id-1")).thenReturn(createPdfWithText("Linearized first"));
+        when(processAPI.getDocumentContent("storage-id-2")).thenReturn(createPdfWithText("Linearized second"));
+
+        Map<String, Object> parameters = new HashMap<>();
+        parameters.put(MergePDF.DOCUMENTS_INPUT, List.of(pdfDocument1, pdfDocument2));
+        parameters.put(MergePDF.OUTPUT_FILE_NAME_INPUT, "merged.pdf");
+        parameters.put(MergePDF.OUTPUT_COMPRESSION_INPUT, "LINEARIZED");
+
+        connector.setInputParameters(parameters);
+        connector.setAPIAccessor(apiAccessor);
+
+        // When
+        connector.executeBusinessLogic();
+
+        // Then
+        DocumentValue result = (DocumentValue) connector.getOutputs().get(MergePDF.MERGED_DOCUMENT_OUTPUT);
+        assertThat(new String(result.getContent(), 0, 200, StandardCharsets.ISO_8859_1)).contains("/Linearized 1");
+        assertThat(countPagesInPdf(result.getContent())).isEqualTo(2);
+        assertThat(extractTextFromPdf(result.getContent())).contains("Linearized first", "Linearized second");
+    }
+
+    @Test
+    void should_throw_exception_if_output_compression_is_unknown() {
+        when(pdfDocument1.getContentMimeType()).thenReturn("application/pdf");
+        when(pdfDocument2.getContentMimeType()).thenReturn("application/pdf");
+        Map<String, Object> parameters = new HashMap<>();
+        parameters.put(MergePDF.DOCUMENTS_INPUT, List.of(pdfDocument1, pdfDocument2));
+        parameters.put(MergePDF.OUTPUT_FILE_NAME_INPUT, "merged.pdf");
+        parameters.put(MergePDF.OUTPUT_COMPRESSION_INPUT, "ZIP");
+        connector.setInputParameters(parameters);
+        ConnectorValidationException exception = assertThrows(ConnectorValidationException.class, () ->
+                connector.validateInputParameters()
+        );
+        assertThat(exception.getMessage()).contains(MergePDF.OUTPUT_COMPRESSION_INPUT);
+    }
+
+    @Test
+    void should_merge_with_the_fast_engine() throws Exception {
+        // Given
+        when(pdfDocument1.getContentStorageId()).thenReturn("storage-id-1");
+        when(pdfDocument2.getContentStorageId()).thenReturn("storage-id-2");
+
+        when(apiAccessor.getProcessAPI()).thenReturn(processAPI);
+        when(processAPI.getDocumentContent("storage-id-1")).thenReturn(createPdfWithText("Fast first"));
+        when(processAPI.getDocumentContent("storage-id-2")).thenReturn(createPdfWithText("Fast second"));
+
+        Map<String, Object> parameters = new HashMap<>();
+        parameters.put(MergePDF.DOCUMENTS_INPUT, List.of(pdfDocument1, pdfDocument2));
+        parameters.put(MergePDF.OUTPUT_FILE_NAME_INPUT, "merged.pdf");
+        parameters.put(MergePDF.MERGE_ENGINE_INPUT, "FAST");
+        parameters.put(MergePDF.MEMORY_STRATEGY_INPUT, "TEMP_FILE_ONLY");
+
+        connector.setInputParameters(parameters);
+        connector.setAPIAccessor(apiAccessor);
+
+        // When
+        connector.executeBusinessLogic();
+
+        // Then
+        DocumentValue result = (DocumentValue) connector.getOutputs().get(MergePDF.MERGED_DOCUMENT_OUTPUT);
+        assertThat(countPagesInPdf(result.getContent())).isEqualTo(2);
+        assertThat(extractTextFromPdf(result.getContent())).contains("Fast first", "Fast second");
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void should_report_merge_metrics() throws Exception {
+        // Given
+        byte[] pdfContent1 = createPdfWithText("Metrics first");
+        byte[] pdfContent2 = createPdfWithText("Metrics second");
+        when(pdfDocument1.getContentStorageId()).thenReturn("storage-id-1");
+        when(pdfDocument2.getContentStorageId()).thenReturn("storage-id-2");
+
+        when(apiAccessor.getProcessAPI()).thenReturn(processAPI);
+        when(processAPI.getDocumentContent("storage-id-1")).thenReturn(pdfContent1);
+        when(processAPI.getDocumentContent("storage-id-2")).thenReturn(pdfContent2);
+
+        Map<String, Object> parameters = new HashMap<>();
+        parameters.put(MergePDF.DOCUMENTS_INPUT, List.of(pdfDocument1, pdfDocument2));
+        parameters.put(MergePDF.OUTPUT_FILE_NAME_INPUT, "merged.pdf");
+
+        connector.setInputParameters(parameters);
+        connector.setAPIAccessor(apiAccessor);
+        long executionsBefore = MergeStatistics.getInstance().getExecutionCount();
+
+        // When
+        connector.executeBusinessLogic();
+
+        // Then
+        Map<String, Object> metrics = (Map<String, Object>) connector.getOutputs().get(MergePDF.MERGE_METRICS_OUTPUT);
+        DocumentValue result = (DocumentValue) connector.getOutputs().get(MergePDF.MERGED_DOCUMENT_OUTPUT);
+        assertThat(metrics).containsKeys("totalMillis", "fetchMillis", "parseMillis", "mergeMillis",
+                "postProcessMillis", "serializeMillis", "admissionMillis");
+        assertThat(metrics).containsEntry("documentCount", 2)
+                .containsEntry("pageCount", 2)
+                .containsEntry("inputBytes", (long) (pdfContent1.length + pdfContent2.length))
+                .containsEntry("outputBytes", (long) result.getContent().length)
+                .containsEntry("cacheHit", false);
+        assertThat((Long) metrics.get("peakEstimatedMemoryBytes")).isGreaterThan(result.getContent().length);
+        assertThat(MergeStatistics.getInstance().getExecutionCount()).isEqualTo(executionsBefore + 1);
+    }
+
+    @Test
+    void should_merge_only_the_selected_pages() throws Exception {
+        // Given
+        when(pdfDocument1.getContentStorageId()).thenReturn("storage-id-1");
+        when(pdfDocument2.getContentStorageId()).thenReturn("storage-id-2");
+
+        when(apiAccessor.getProcessAPI()).thenReturn(processAPI);
+        when(processAPI.getDocumentContent("storage-id-1")).thenReturn(createPdfWithPages("Cover", 3));
+        when(processAPI.getDocumentContent("storage-id-2")).thenReturn(createPdfWithPages("Contract", 4));
+
+        Map<String, Object> parameters = new HashMap<>();
+        parameters.put(MergePDF.DOCUMENTS_INPUT, List.of(pdfDocument1, pdfDocument2));
+        parameters.put(MergePDF.OUTPUT_FILE_NAME_INPUT, "merged.pdf");
+        parameters.put(MergePDF.PAGE_SELECTIONS_INPUT, List.of("1", "2,last"));
+
+        connector.setInputParameters(parameters);
+        connector.setAPIAccessor(apiAccessor);
+
+        // When
+        connector.executeBusinessLogic();
+
+        // Then
+        DocumentValue result = (DocumentValue) connector.getOutputs().get(MergePDF.MERGED_DOCUMENT_OUTPUT);
+        assertThat(countPagesInPdf(result.getContent())).isEqualTo(3);
+        assertThat(extractTextFromPdf(result.getContent()))
+                .contains("Cover page 1", "Contract page 2", "Contract page 4")
+                .doesNotContain("Cover page 2", "Contract page 1", "Contract page 3");
+    }
+
+    @Test
+    void should_throw_exception_if_page_selections_do_not_match_documents() {
+        when(pdfDocument1.getContentMimeType()).thenReturn("application/pdf");
+        when(pdfDocument2.getContentMimeType()).thenReturn("application/pdf");
+        Map<String, Object> parameters = new HashMap<>();
+        parameters.put(MergePDF.DOCUMENTS_INPUT, List.of(pdfDocument1, pdfDocument2));
+        parameters.put(MergePDF.OUTPUT_FILE_NAME_INPUT, "merged.pdf");
+        parameters.put(MergePDF.PAGE_SELECTIONS_INPUT, List.of("1"));
+        connector.setInputParameters(parameters);
+        ConnectorValidationException exception = assertThrows(ConnectorValidationException.class, () ->
+                connector.validateInputParameters()
+        );
+        assertThat(exception.getMessage()).contains(MergePDF.PAGE_SELECTIONS_INPUT);
+
+        parameters.put(MergePDF.PAGE_SELECTIONS_INPUT, Arrays.asList(null, "2-1"));
+        connector.setInputParameters(parameters);
+        exception = assertThrows(ConnectorValidationException.class, () ->
+                connector.validateInputParameters()
+        );
+        assertThat(exception.getMessage()).contains("document 2");
+    }
+
+    @Test
+    void should_throw_exception_if_page_selection_matches_no_page() throws Exception {
+        // Given
+        when(pdfDocument1.getContentStorageId()).thenReturn("storage-id-1");
+        when(pdfDocument2.getContentStorageId()).thenReturn("storage-id-2");
+        when(pdfDocument2.getContentFileName()).thenReturn("short.pdf");
+
+        when(apiAccessor.getProcessAPI()).thenReturn(processAPI);
+        when(processAPI.getDocumentContent("storage-id-1")).thenReturn(createPdfWithPages("First", 1));
+        when(processAPI.getDocumentContent("storage-id-2")).thenReturn(createPdfWithPages("Second", 1));
+
+        Map<String, Object> parameters = new HashMap<>();
+        parameters.put(MergePDF.DOCUMENTS_INPUT, List.of(pdfDocument1, pdfDocument2));
+        parameters.put(MergePDF.OUTPUT_FILE_NAME_INPUT, "merged.pdf");
+        parameters.put(MergePDF.PAGE_SELECTIONS_INPUT, List.of("1", "2-3"));
+
+        connector.setInputParameters(parameters);
+        connector.setAPIAccessor(apiAccessor);
+
+        // When
+        ConnectorException exception = assertThrows(ConnectorException.class, () ->
+                connector.executeBusinessLogic()
+        );
+
+        // Then
+        assertThat(exception.getMessage()).contains("'2-3'", "short.pdf");
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, DocumentValue> mergeGroupsSharingDocuments(String mergeEngine) throws Exception {
+        Document pdfDocument3 = org.mockito.Mockito.mock(Document.class);
+        when(pdfDocument1.getContentStorageId()).thenReturn("storage-id-1");
+        when(pdfDocument2.getContentStorageId()).thenReturn("storage-id-2");
+        when(pdfDocument3.getContentStorageId()).thenReturn("storage-id-3");
+
+        when(apiAccessor.getProcessAPI()).thenReturn(processAPI);
+        when(processAPI.getDocumentContent("storage-id-1")).thenReturn(createPdfWithText("Letter"));
+        when(processAPI.getDocumentContent("storage-id-2")).thenReturn(createPdfWithPages("Contract", 2));
+        when(processAPI.getDocumentContent("storage-id-3")).thenReturn(createPdfWithText("Legal notice"));
+
+        Map<String, Object> mergeGroups = new LinkedHashMap<>();
+        mergeGroups.put("client", List.of(pdfDocument1, pdfDocument2));
+        mergeGroups.put("archive.pdf", List.of(pdfDocument1, pdfDocument2, pdfDocument3));
+        mergeGroups.put("legal", List.of(pdfDocument3, pdfDocument2));
+        Map<String, Object> parameters = new HashMap<>();
+        parameters.put(MergePDF.MERGE_GROUPS_INPUT, mergeGroups);
+        parameters.put(MergePDF.MERGE_ENGINE_INPUT, mergeEngine);
+
+        connector.setInputParameters(parameters);
+        connector.setAPIAccessor(apiAccessor);
+        connector.executeBusinessLogic();
+
+        verify(processAPI, times(1)).getDocumentContent("storage-id-1");
+        verify(processAPI, times(1)).getDocumentContent("storage-id-2");
+        verify(processAPI, times(1)).getDocumentContent("storage-id-3");
+        return (Map<String, DocumentValue>) connector.getOutputs().get(MergePDF.MERGED_DOCUMENTS_OUTPUT);
+    }
+
+    private void assertMergeGroups(Map<String, DocumentValue> results) throws IOException {
+        assertThat(results).containsOnlyKeys("client", "archive.pdf", "legal");
+        assertThat(results.keySet()).containsExactly("client", "archive.pdf", "legal");
+        assertThat(results.get("client").getFileName()).isEqualTo("client.pdf");
+        assertThat(results.get("archive.pdf").getFileName()).isEqualTo("archive.pdf");
+        assertThat(countPagesInPdf(results.get("client").getContent())).isEqualTo(3);
+        assertThat(countPagesInPdf(results.get("archive.pdf").getContent())).isEqualTo(4);
+        assertThat(countPagesInPdf(results.get("legal").getContent())).isEqualTo(3);
+        assertThat(extractTextFromPdf(results.get("legal").getContent()))
+                .contains("Legal notice", "Contract page 2")
+                .doesNotContain("Letter");
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void should_merge_each_group_and_fetch_shared_documents_once() throws Exception {
+        // When
+        Map<String, DocumentValue> results = mergeGroupsSharingDocuments("FULL");
+
+        // Then
+        assertMergeGroups(results);
+        assertThat(connector.getOutputs().get(MergePDF.MERGED_DOCUMENT_OUTPUT)).isNull();
+        Map<String, Object> metrics = (Map<String, Object>) connector.getOutputs().get(MergePDF.MERGE_METRICS_OUTPUT);
+        assertThat(metrics).containsEntry("documentCount", 7).containsEntry("pageCount", 10);
+    }
+
+    @Test
+    void should_merge_groups_sharing_documents_with_the_fast_engine() throws Exception {
+        // When
+        Map<String, DocumentValue> results = mergeGroupsSharingDocuments("FAST");
+
+        // Then
+        assertMergeGroups(results);
+    }
+
+    private byte[] mergeStatements(List<Document> statements, Integer parallelMergeThreshold, String mergeEngine)
+            throws Exception {
+        List<String> pageSelections = new ArrayList<>(Collections.nCopies(statements.size(), null));
+        pageSelections.set(5, "last");
+        Map<String, Object> parameters = new HashMap<>();
+        parameters.put(MergePDF.DOCUMENTS_INPUT, statements);
+        parameters.put(MergePDF.OUTPUT_FILE_NAME_INPUT, "statements.pdf");
+        parameters.put(MergePDF.PAGE_SELECTIONS_INPUT, pageSelections);
+        parameters.put(MergePDF.MERGE_ENGINE_INPUT, mergeEngine);
+        if (parallelMergeThreshold != null) {
+            parameters.put(MergePDF.PARALLEL_MERGE_THRESHOLD_INPUT, parallelMergeThreshold);
+        }
+        TestableMergePDF merger = new TestableMergePDF();
+        merger.setInputParameters(parameters);
+        merger.setAPIAccessor(apiAccessor);
+        merger.executeBusinessLogic();
+        return ((DocumentValue) merger.getOutputs().get(MergePDF.MERGED_DOCUMENT_OUTPUT)).getContent();
+    }
+
+    @Test
+    void should_merge_in_parallel_in_the_same_order_as_sequentially() throws Exception {
+        // Given
+        List<Document> statements = new ArrayList<>();
+        when(apiAccessor.getProcessAPI()).thenReturn(processAPI);
+        for (int i = 0; i < 20; i++) {
+            Document statement = org.mockito.Mockito.mock(Document.class);
+            when(statement.getContentStorageId()).thenReturn("storage-id-" + i);
+            when(processAPI.getDocumentContent("storage-id-" + i)).thenReturn(createPdfWithPages("Statement " + i, 2));
+            statements.add(statement);
+        }
+
+        for (String mergeEngine : List.of("FULL", "FAST")) {
+            // When
+            byte[] sequential = mergeStatements(statements, null, mergeEngine);
+            byte[] parallel = mergeStatements(statements, 3, mergeEngine);
+
+            // Then
+            assertThat(countPagesInPdf(parallel)).isEqualTo(39);
+            assertThat(extractTextFromPdf(parallel)).isEqualTo(extractTextFromPdf(sequential))
+                    .contains("Statement 5 page 2")
+                    .doesNotContain("Statement 5 page 1");
+        }
+    }
+
+    @Test
+    void should_throw_exception_if_parallel_merge_threshold_is_invalid() {
+        when(pdfDocument1.getContentMimeType()).thenReturn("application/pdf");
+        when(pdfDocument2.getContentMimeType()).thenReturn("application/pdf");
+        Map<String, Object> parameters = new HashMap<>();
+        parameters.put(MergePDF.DOCUMENTS_INPUT, List.of(pdfDocument1, pdfDocument2));
+        parameters.put(MergePDF.OUTPUT_FILE_NAME_INPUT, "merged.pdf");
+        parameters.put(MergePDF.PARALLEL_MERGE_THRESHOLD_INPUT, 0);
+        connector.setInputParameters(parameters);
+        ConnectorValidationException exception = assertThrows(ConnectorValidationException.class, () ->
+                connector.validateInputParameters()
+        );
+        assertThat(exception.getMessage()).contains(MergePDF.PARALLEL_MERGE_THRESHOLD_INPUT);
+
+        parameters.put(MergePDF.PARALLEL_MERGE_THRESHOLD_INPUT, 16);
+        connector.setInputParameters(parameters);
+        assertDoesNotThrow(() -> connector.validateInputParameters());
+    }
+
+    @Test
+    void should_throw_exception_if_merge_groups_are_invalid() {
+        when(pdfDocument1.getContentMimeType()).thenReturn("application/pdf");
+        Map<String, Object> parameters = new HashMap<>();
+        parameters.put(MergePDF.DOCUMENTS_INPUT, List.of(pdfDocument1, pdfDocument1));
+        parameters.put(MergePDF.MERGE_GROUPS_INPUT, Map.of("client", List.of(pdfDocument1)));
+        connector.setInputParameters(parameters);
+        ConnectorValidationException exception = assertThrows(ConnectorValidationException.class, () ->
+                connector.validateInputParameters()
+        );
+        assertThat(exception.getMessage()).contains(MergePDF.DOCUMENTS_INPUT, MergePDF.MERGE_GROUPS_INPUT);
+
+        parameters.remove(MergePDF.DOCUMENTS_INPUT);
+        parameters.put(MergePDF.MERGE_GROUPS_INPUT, Map.of("client", List.of()));
+        connector = new TestableMergePDF();
+        connector.setInputParameters(parameters);
+        exception = assertThrows(ConnectorValidationException.class, () ->
+                connector.validateInputParameters()
+        );
+        assertThat(exception.getMessage()).contains("'client'");
+
+        parameters.put(MergePDF.MERGE_GROUPS_INPUT, Map.of("client", List.of(pdfDocument1)));
+        connector.setInputParameters(parameters);
+        assertDoesNotThrow(() -> connector.validateInputParameters());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void should_append_documents_to_the_base_document_as_an_incremental_update() throws Exception {
+        // Given
+        byte[] dossier = createPdfWithPages("Dossier", 3);
+        Document baseDocument = pdfDocument1;
+        when(baseDocument.getContentStorageId()).thenReturn("storage-id-1");
+        when(pdfDocument2.getContentStorageId()).thenReturn("storage-id-2");
+        when(apiAccessor.getProcessAPI()).thenReturn(processAPI);
+        when(processAPI.getDocumentContent("storage-id-1")).thenReturn(dossier);
+        when(processAPI.getDocumentContent("storage-id-2")).thenReturn(createPdfWithText("New attachment"));
+
+        Map<String, Object> parameters = new HashMap<>();
+        parameters.put(MergePDF.BASE_DOCUMENT_INPUT, baseDocument);
+        parameters.put(MergePDF.DOCUMENTS_INPUT, List.of(pdfDocument2));
+        parameters.put(MergePDF.OUTPUT_FILE_NAME_INPUT, "dossier.pdf");
+
+        // When
+        connector.setInputParameters(parameters);
+        connector.setAPIAccessor(apiAccessor);
+        connector.executeBusinessLogic();
+
+        // Then
+        byte[] content = ((DocumentValue) connector.getOutputs().get(MergePDF.MERGED_DOCUMENT_OUTPUT)).getContent();
+        assertThat(Arrays.copyOf(content, dossier.length)).isEqualTo(dossier);
+        assertThat(countPagesInPdf(content)).isEqualTo(4);
+        assertThat(extractTextFromPdf(content)).contains("Dossier page 3", "New attachment");
+        Map<String, Object> metrics = (Map<String, Object>) connector.getOutputs().get(MergePDF.MERGE_METRICS_OUTPUT);
+        assertThat(metrics).containsEntry("documentCount", 1).containsEntry("pageCount", 4);
+    }
+
+    @Test
+    void should_throw_exception_if_base_document_is_used_with_compressed_output() {
+        when(pdfDocument1.getContentMimeType()).thenReturn("application/pdf");
+        when(pdfDocument2.getContentMimeType()).thenReturn("application/pdf");
+        Map<String, Object> parameters = new HashMap<>();
+        parameters.put(MergePDF.BASE_DOCUMENT_INPUT, pdfDocument1);
+        parameters.put(MergePDF.DOCUMENTS_INPUT, List.of(pdfDocument2));
+        parameters.put(MergePDF.OUTPUT_FILE_NAME_INPUT, "dossier.pdf");
+        connector.setInputParameters(parameters);
+        assertDoesNotThrow(() -> connector.validateInputParameters());
+
+        parameters.put(MergePDF.OUTPUT_COMPRESSION_INPUT, "COMPRESSED");
+        connector.setInputParameters(parameters);
+        ConnectorValidationException exception = assertThrows(ConnectorValidationException.class, () ->
+                connector.validateInputParameters()
+        );
+        assertThat(exception.getMessage()).contains(MergePDF.OUTPUT_COMPRESSION_INPUT, MergePDF.BASE_DOCUMENT_INPUT);
+
+        parameters.put(MergePDF.OUTPUT_COMPRESSION_INPUT, "linearized");
+        connector.setInputParameters(parameters);
+        exception = assertThrows(ConnectorValidationException.class, () -> connector.validateInputParameters());
+        assertThat(exception.getMessage()).contains("LINEARIZED", MergePDF.BASE_DOCUMENT_INPUT);
+    }
+
+    @Test
+    void should_downsample_scanned_images_and_report_their_size() throws Exception {
+        // Given: a 1200x1200 pixel scan drawn over 2 inches, i.e. 600 DPI
+        byte[] scan;
+        try (PDDocument document = new PDDocument();
+             ByteArrayOutputStream outputStream = new ByteArrayOutputStream()) {
+            BufferedImage image = new BufferedImage(1200, 1200, BufferedImage.TYPE_INT_RGB);
+            Random random = new Random(42);
+            for (int x = 0; x < 1200; x++) {
+                for (int y = 0; y < 1200; y++) {
+                    image.setRGB(x, y, ((x + y) / 10 % 240 + random.nextInt(16)) * 0x010101);
+                }
+            }
+            PDPage page = new PDPage();
+            document.addPage(page);
+            try (PDPageContentStream contentStream = new PDPageContentStream(document, page)) {
+                contentStream.drawImage(LosslessFactory.createFromImage(document, image), 50, 500, 144, 144);
+            }
+            document.save(outputStream);
+            scan = outputStream.toByteArray();
+        }
+        when(pdfDocument1.getContentStorageId()).thenReturn("storage-id-1");
+        when(pdfDocument2.getContentStorageId()).thenReturn("storage-id-2");
+        when(apiAccessor.getProcessAPI()).thenReturn(processAPI);
+        when(processAPI.getDocumentContent("storage-id-1")).thenReturn(createPdfWithText("Cover letter"));
+        when(processAPI.getDocumentContent("storage-id-2")).thenReturn(scan);
+
+        Map<String, Object> parameters = new HashMap<>();
+        parameters.put(MergePDF.DOCUMENTS_INPUT, List.of(pdfDocument1, pdfDocument2));
+        parameters.put(MergePDF.OUTPUT_FILE_NAME_INPUT, "merged.pdf");
+        parameters.put(MergePDF.IMAGE_TARGET_DPI_INPUT, 150);
+
+        connector.setInputParameters(parameters);
+        connector.setAPIAccessor(apiAccessor);
+
+        // When
+        connector.executeBusinessLogic();
+
+        // Then
+        byte[] content = ((DocumentValue) connector.getOutputs().get(MergePDF.MERGED_DOCUMENT_OUTPUT)).getContent();
+        assertThat(content.length).isLessThan(scan.length);
+        assertThat(extractTextFromPdf(content)).contains("Cover letter");
+        long bytesBefore = (Long) connector.getOutputs().get(MergePDF.IMAGE_BYTES_BEFORE_OUTPUT);
+        long bytesAfter = (Long) connector.getOutputs().get(MergePDF.IMAGE_BYTES_AFTER_OUTPUT);
+        assertThat(bytesAfter).isPositive().isLessThan(bytesBefore);
+        try (PDDocument merged = PDDocument.load(content)) {
+            PDResources resources = merged.getPage(1).getResources();
+            PDImageXObject image = (PDImageXObject) resources.getXObject(resources.getXObjectNames().iterator().next());
+            assertThat(image.getWidth()).isEqualTo(300);
+        }
+    }
+
+    @Test
+    void should_throw_exception_if_image_optimization_inputs_are_invalid() {
+        when(pdfDocument1.getContentMimeType()).thenReturn("application/pdf");
+        when(pdfDocument2.getContentMimeType()).thenReturn("application/pdf");
+        Map<String, Object> parameters = new HashMap<>();
+        parameters.put(MergePDF.DOCUMENTS_INPUT, List.of(pdfDocument1, pdfDocument2));
+        parameters.put(MergePDF.OUTPUT_FILE_NAME_INPUT, "merged.pdf");
+        parameters.put(MergePDF.IMAGE_TARGET_DPI_INPUT, 150);
+        parameters.put(MergePDF.IMAGE_COMPRESSION_INPUT, "flate");
+        connector.setInputParameters(parameters);
+        assertDoesNotThrow(() -> connector.validateInputParameters());
+
+        parameters.put(MergePDF.IMAGE_TARGET_DPI_INPUT, 0);
+        connector.setInputParameters(parameters);
+        ConnectorValidationException exception = assertThrows(ConnectorValidationException.class, () ->
+                connector.validateInputParameters()
+        );
+        assertThat(exception.getMessage()).contains(MergePDF.IMAGE_TARGET_DPI_INPUT);
+
+        parameters.put(MergePDF.IMAGE_TARGET_DPI_INPUT, 150);
+        parameters.put(MergePDF.IMAGE_JPEG_QUALITY_INPUT, 1.5);
+        connector.setInputParameters(parameters);
+        exception = assertThrows(ConnectorValidationException.class, () ->
+                connector.validateInputParameters()
+        );
+        assertThat(exception.getMessage()).contains(MergePDF.IMAGE_JPEG_QUALITY_INPUT);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void should_split_the_merged_document_in_parts_of_at_most_max_pages() throws Exception {
+        // Given
+        when(pdfDocument1.getContentStorageId()).thenReturn("storage-id-1");
+        when(pdfDocument2.getContentStorageId()).thenReturn("storage-id-2");
+        when(apiAccessor.getProcessAPI()).thenReturn(processAPI);
+        when(processAPI.getDocumentContent("storage-id-1")).thenReturn(createPdfWithPages("First", 3));
+        when(processAPI.getDocumentContent("storage-id-2")).thenReturn(createPdfWithPages("Second", 3));
+
+        Map<String, Object> parameters = new HashMap<>();
+        parameters.put(MergePDF.DOCUMENTS_INPUT, List.of(pdfDocument1, pdfDocument2));
+        parameters.put(MergePDF.OUTPUT_FILE_NAME_INPUT, "dossier.pdf");
+        parameters.put(MergePDF.MAX_PART_PAGES_INPUT, 4);
+
+        connector.setInputParameters(parameters);
+        connector.setAPIAccessor(apiAccessor);
+
+        // When
+        connector.executeBusinessLogic();
+
+        // Then
+        List<DocumentValue> parts = (List<DocumentValue>) connector.getOutputs().get(MergePDF.MERGED_DOCUMENT_PARTS_OUTPUT);
+        assertThat(parts).extracting(DocumentValue::getFileName).containsExactly("dossier-1.pdf", "dossier-2.pdf");
+        assertThat(countPagesInPdf(parts.get(0).getContent())).isEqualTo(4);
+        assertThat(extractTextFromPdf(parts.get(0).getContent()))
+                .contains("First page 1", "First page 3", "Second page 1").doesNotContain("Second page 2");
+        assertThat(countPagesInPdf(parts.get(1).getContent())).isEqualTo(2);
+        assertThat(extractTextFromPdf(parts.get(1).getContent())).contains("Second page 2", "Second page 3");
+        assertThat(connector.getOutputs()).doesNotContainKey(MergePDF.MERGED_DOCUMENT_OUTPUT);
+        Map<String, Object> metrics = (Map<String, Object>) connector.getOutputs().get(MergePDF.MERGE_METRICS_OUTPUT);
+        assertThat(metrics).containsEntry("pageCount", 6);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void should_split_again_a_part_written_larger_than_max_bytes() throws Exception {
+        // Given: 4 pages, the first one carrying an image of about 65 KB
+        byte[] scan;
+        try (PDDocument document = new PDDocument();
+             ByteArrayOutputStream outputStream = new ByteArrayOutputStream()) {
+            BufferedImage noise = new BufferedImage(150, 150, BufferedImage.TYPE_INT_RGB);
+            Random random = new Random(42);
+            for (int x = 0; x < 150; x++) {
+                for (int y = 0; y < 150; y++) {
+                    noise.setRGB(x, y, random.nextInt());
+                }
+            }
+            for (int i = 1; i <= 4; i++) {
+                PDPage page = new PDPage();
+                document.addPage(page);
+                try (PDPageContentStream contentStream = new PDPageContentStream(document, page)) {
+                    contentStream.beginText();
+                    contentStream.setFont(PDType1Font.HELVETICA, 12);
+                    contentStream.newLineAtOffset(50, 700);
+                    contentStream.showText("Scan page " + i);
+                    contentStream.endText();
+                    if (i == 1) {
+                        contentStream.drawImage(LosslessFactory.createFromImage(document, noise), 50, 300);
+                    }
+                }
+            }
+            document.save(outputStream);
+            scan = outputStream.toByteArray();
+        }
+        when(pdfDocument1.getContentStorageId()).thenReturn("storage-id-1");
+        when(apiAccessor.getProcessAPI()).thenReturn(processAPI);
+        when(processAPI.getDocumentContent("storage-id-1")).thenReturn(scan);
+
+        Map<String, Object> parameters = new HashMap<>();
+        parameters.put(MergePDF.DOCUMENTS_INPUT, List.of(pdfDocument1));
+        parameters.put(MergePDF.OUTPUT_FILE_NAME_INPUT, "scan");
+        parameters.put(MergePDF.MAX_PART_BYTES_INPUT, 40_000L);
+
+        connector.setInputParameters(parameters);
+        connector.setAPIAccessor(apiAccessor);
+
+        // When
+        connector.executeBusinessLogic();
+
+        // Then: pages 1 and 2 were planned together, but page 1 alone exceeds the limit
+        List<DocumentValue> parts = (List<DocumentValue>) connector.getOutputs().get(MergePDF.MERGED_DOCUMENT_PARTS_OUTPUT);
+        assertThat(parts).extracting(DocumentValue::getFileName)
+                .containsExactly("scan-1.pdf", "scan-2.pdf", "scan-3.pdf");
+        assertThat(countPagesInPdf(parts.get(0).getContent())).isEqualTo(1);
+        assertThat(extractTextFromPdf(parts.get(1).getContent())).contains("Scan page 2");
+        assertThat(extractTextFromPdf(parts.get(2).getContent())).contains("Scan page 3", "Scan page 4");
+        assertThat(parts.get(1).getContent().length).isLessThanOrEqualTo(40_000);
+        assertThat(parts.get(2).getContent().length).isLessThanOrEqualTo(40_000);
+    }
+
+    @Test
+    void should_merge_in_the_background_and_collect_the_result_later(@TempDir Path tempDir) throws Exception {
+        // Given: the only thread of the queue busy until the submitting execution has returned
+        MergeJobQueue jobQueue = new MergeJobQueue(1, 4, tempDir, 60_000);
+        CountDownLatch release = new CountDownLatch(1);
+        jobQueue.submit(() -> {
+            release.await();
+            return Map.of();
+        });
+        when(pdfDocument1.getContentStorageId()).thenReturn("storage-id-1");
+        when(pdfDocument2.getContentStorageId()).thenReturn("storage-id-2");
+        when(apiAccessor.getProcessAPI()).thenReturn(processAPI);
+        when(processAPI.getDocumentContent("storage-id-1")).thenReturn(createPdfWithText("Statement"));
+        when(processAPI.getDocumentContent("storage-id-2")).thenReturn(createPdfWithPages("Annex", 2));
+
+        Map<String, Object> parameters = new HashMap<>();
+        parameters.put(MergePDF.DOCUMENTS_INPUT, List.of(pdfDocument1, pdfDocument2));
+        parameters.put(MergePDF.OUTPUT_FILE_NAME_INPUT, "statement.pdf");
+        parameters.put(MergePDF.EXECUTION_MODE_INPUT, "SUBMIT");
+        connector.jobQueue = jobQueue;
+        connector.setInputParameters(parameters);
+        connector.setAPIAccessor(apiAccessor);
+
+        // When
+        connector.executeBusinessLogic();
+        String jobId = (String) connector.getOutputs().get(MergePDF.JOB_ID_OUTPUT);
+        // the engine API is no longer valid once the submitting execution has returned
+        verify(processAPI).getDocumentContent("storage-id-1");
+        verify(processAPI).getDocumentContent("storage-id-2");
+        reset(apiAccessor, processAPI);
+        release.countDown();
+
+        TestableMergePDF collector = new TestableMergePDF();
+        collector.jobQueue = jobQueue;
+        collector.setInputParameters(Map.of(MergePDF.EXECUTION_MODE_INPUT, "COLLECT",
+                MergePDF.JOB_ID_INPUT, jobId, MergePDF.COLLECT_TIMEOUT_MILLIS_INPUT, 30_000L));
+        collector.validateInputParameters();
+        collector.executeBusinessLogic();
+
+        // Then
+        assertThat(connector.getOutputs()).containsEntry(MergePDF.JOB_STATUS_OUTPUT, "QUEUED")
+                .doesNotContainKey(MergePDF.MERGED_DOCUMENT_OUTPUT);
+        assertThat(collector.getOutputs()).containsEntry(MergePDF.JOB_ID_OUTPUT, jobId)
+                .containsEntry(MergePDF.JOB_STATUS_OUTPUT, "DONE")
+                .containsKey(MergePDF.MERGE_METRICS_OUTPUT);
+        DocumentValue result = (DocumentValue) collector.getOutputs().get(MergePDF.MERGED_DOCUMENT_OUTPUT);
+        assertThat(result.getFileName()).isEqualTo("statement.pdf");
+        assertThat(countPagesInPdf(result.getContent())).isEqualTo(3);
+        verifyNoInteractions(apiAccessor, processAPI);
+        try (var remaining = Files.list(tempDir)) {
+            assertThat(remaining).allMatch(file -> file.getFileName().toString().endsWith(".result"));
+        }
+    }
+
+    @Test
+    void should_merge_in_the_background_what_was_submitted(@TempDir Path tempDir) throws Exception {
+        // Given: two documents without storage id, such as documents given by URL
+        MergeJobQueue jobQueue = new MergeJobQueue(1, 4, tempDir, 60_000);
+        when(pdfDocument1.getContentStorageId()).thenReturn(null);
+        when(pdfDocument2.getContentStorageId()).thenReturn(null);
+        when(apiAccessor.getProcessAPI()).thenReturn(processAPI);
+        when(processAPI.getDocumentContent(null)).thenReturn(createPdfWithText("Statement"),
+                createPdfWithPages("Annex", 2));
+
+        Map<String, Object> parameters = new HashMap<>();
+        parameters.put(MergePDF.DOCUMENTS_INPUT, List.of(pdfDocument1, pdfDocument2));
+        parameters.put(MergePDF.OUTPUT_FILE_NAME_INPUT, "statement.pdf");
+        parameters.put(MergePDF.EXECUTION_MODE_INPUT, "SUBMIT");
+        parameters.put(MergePDF.FETCH_PARALLELISM_INPUT, 1);
+        connector.jobQueue = jobQueue;
+        connector.setInputParameters(parameters);
+        connector.setAPIAccessor(apiAccessor);
+
+        // When: the caller reuses its map once the merge is submitted
+        connector.executeBusinessLogic();
+        parameters.put(MergePDF.OUTPUT_FILE_NAME_INPUT, "other.pdf");
+        TestableMergePDF collector = new TestableMergePDF();
+        collector.jobQueue = jobQueue;
+        collector.setInputParameters(Map.of(MergePDF.EXECUTION_MODE_INPUT, "COLLECT", MergePDF.JOB_ID_INPUT,
+                connector.getOutputs().get(MergePDF.JOB_ID_OUTPUT), MergePDF.COLLECT_TIMEOUT_MILLIS_INPUT, 30_000L));
+        collector.executeBusinessLogic();
+
+        // Then
+        DocumentValue result = (DocumentValue) collector.getOutputs().get(MergePDF.MERGED_DOCUMENT_OUTPUT);
+        assertThat(result.getFileName()).isEqualTo("statement.pdf");
+        try (PDDocument merged = PDDocument.load(result.getContent())) {
+            assertThat(merged.getNumberOfPages()).isEqualTo(3);
+            assertThat(new PDFTextStripper().getText(merged)).contains("Statement", "Annex");
+        }
+    }
+
+    @Test
+    void should_throw_exception_if_collect_inputs_are_invalid() {
+        connector.setInputParameters(Map.of(MergePDF.EXECUTION_MODE_INPUT, "LATER"));
+        ConnectorValidationException exception = assertThrows(ConnectorValidationException.class, () ->
+                connector.validateInputParameters()
+        );
+        assertThat(exception.getMessage()).contains("SYNC, SUBMIT or COLLECT");
+
+        connector.setInputParameters(Map.of(MergePDF.EXECUTION_MODE_INPUT, "COLLECT"));
+        exception = assertThrows(ConnectorValidationException.class, () ->
+                connector.validateInputParameters()
+        );
+        assertThat(exception.getMessage()).contains(MergePDF.JOB_ID_INPUT);
+
+        // the documents and output file name belong to the SUBMIT execution
+        connector.setInputParameters(Map.of(MergePDF.EXECUTION_MODE_INPUT, "COLLECT",
+                MergePDF.JOB_ID_INPUT, "0b9e3e9c-3f51-4b4e-9d36-0e4f4b1f6a27"));
+        assertDoesNotThrow(() -> connector.validateInputParameters());
+    }
+
+    @Test
+    void should_throw_exception_if_split_output_inputs_are_invalid() {
+        when(pdfDocument1.getContentMimeType()).thenReturn("application/pdf");
+        when(pdfDocument2.getContentMimeType()).thenReturn("application/pdf");
+        Map<String, Object> parameters = new HashMap<>();
+        parameters.put(MergePDF.DOCUMENTS_INPUT, List.of(pdfDocument1, pdfDocument2));
+        parameters.put(MergePDF.OUTPUT_FILE_NAME_INPUT, "dossier.pdf");
+        parameters.put(MergePDF.MAX_PART_PAGES_INPUT, 0);
+        connector.setInputParameters(parameters);
+        ConnectorValidationException exception = assertThrows(ConnectorValidationException.class, () ->
+                connector.validateInputParameters()
+        );
+        assertThat(exception.getMessage()).contains(MergePDF.MAX_PART_PAGES_INPUT);
+
+        parameters.put(MergePDF.MAX_PART_PAGES_INPUT, 10);
+        parameters.put(MergePDF.BASE_DOCUMENT_INPUT, pdfDocument1);
+        connector.setInputParameters(parameters);
+        exception = assertThrows(ConnectorValidationException.class, () ->
+                connector.validateInputParameters()
+        );
+        assertThat(exception.getMessage()).contains(MergePDF.BASE_DOCUMENT_INPUT);
+    }
+}
@@ -0,0 +1,120 @@
+package com.bonitasoft.presales.connector.mergepdf;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class MergeResultCacheTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void should_build_keys_that_depend_on_storage_id_order_and_options() {
+        String key = MergeResultCache.key(List.of("a", "b"), new TreeMap<>());
+
+        assertThat(MergeResultCache.key(List.of("a", "b"), new TreeMap<>())).isEqualTo(key);
+        assertThat(MergeResultCache.key(List.of("b", "a"), new TreeMap<>())).isNotEqualTo(key);
+        assertThat(MergeResultCache.key(List.of("ab"), new TreeMap<>())).isNotEqualTo(key);
+        TreeMap<String, Object> options = new TreeMap<>();
+        options.put("option", true);
+        assertThat(MergeResultCache.key(List.of("a", "b"), options)).isNotEqualTo(key);
+    }
+
+    @Test
+    void should_evict_least_recently_used_entries_beyond_the_byte_budget() {
+        MergeResultCache cache = new MergeResultCache(100, null, 0, false);
+        cache.put("first", new byte[40]);
+        cache.put("second", new byte[40]);
+        cache.get("first");
+
+        cache.put("third", new byte[40]);
+
+        assertThat(cache.get("second")).isNull();
+        assertThat(cache.get("first")).hasSize(40);
+        assertThat(cache.get("third")).hasSize(40);
+        assertThat(cache.getMemoryBytes()).isEqualTo(80);
+        assertThat(cache.getHitCount()).isEqualTo(3);
+        assertThat(cache.getMissCount()).isEqualTo(1);
+    }
+
+    @Test
+    void should_move_evicted_entries_to_the_disk_tier_and_promote_them_back() throws Exception {
+        MergeResultCache cache = new MergeResultCache(50, tempDir, 1000, false);
+        cache.put("first", new byte[] { 1, 2, 3 });
+        cache.put("second", new byte[48]);
+
+        assertThat(cache.getDiskBytes()).isEqualTo(3);
+        assertThat(cache.getDirectory().getParent()).isEqualTo(tempDir);
+        assertThat(cache.getDirectory().resolve("first.pdf")).exists();
+
+        assertThat(cache.get("first")).containsExactly(1, 2, 3);
+        assertThat(cache.getDiskHitCount()).isEqualTo(1);
+        assertThat(cache.getDirectory().resolve("first.pdf")).doesNotExist();
+        assertThat(cache.getDirectory().resolve("second.pdf")).exists();
+    }
+
+    @Test
+    void should_reuse_the_disk_tier_after_a_restart_and_drop_partial_writes() throws Exception {
+        Path previous = Files.createDirectory(tempDir.resolve("previous"));
+        Files.write(previous.resolve("kept.pdf"), new byte[] { 7 });
+        Files.write(previous.resolve("kept1234.tmp"), new byte[] { 8 });
+
+        MergeResultCache cache = new MergeResultCache(50, tempDir, 1000, true);
+
+        assertThat(cache.getDirectory()).isEqualTo(previous);
+        assertThat(cache.getDiskBytes()).isEqualTo(1);
+        assertThat(previous.resolve("kept1234.tmp")).doesNotExist();
+        assertThat(cache.get("kept")).containsExactly(7);
+    }
+
+    @Test
+    void should_empty_the_disk_tier_after_a_restart_unless_told_to_keep_it() throws Exception {
+        Path previous = Files.createDirectory(tempDir.resolve("previous"));
+        Files.write(previous.resolve("stale.pdf"), new byte[] { 7 });
+
+        MergeResultCache cache = new MergeResultCache(50, tempDir, 1000, false);
+
+        assertThat(cache.getDiskBytes()).isZero();
+        assertThat(previous).doesNotExist();
+        assertThat(cache.get("stale")).isNull();
+    }
+
+    @Test
+    void should_leave_the_entries_of_a_live_cache_in_the_same_directory() {
+        AtomicLong diskBytes = new AtomicLong();
+        MergeResultCache first = new MergeResultCache(10, tempDir, 25, false, diskBytes);
+        first.put("first", new byte[10]);
+        first.put("second", new byte[10]);
+        first.put("third", new byte[10]);
+
+        MergeResultCache second = new MergeResultCache(10, tempDir, 25, true, diskBytes);
+        second.put("fourth", new byte[10]);
+        second.put("fifth", new byte[10]);
+
+        assertThat(second.getDirectory()).isNotEqualTo(first.getDirectory());
+        assertThat(first.getDirectory().resolve("first.pdf")).exists();
+        assertThat(first.get("first")).hasSize(10);
+        assertThat(first.getDiskBytes() + second.getDiskBytes()).isEqualTo(diskBytes.get()).isLessThanOrEqualTo(25);
+    }
+
+    @Test
+    void should_bound_the_disk_tier() {
+        MergeResultCache cache = new MergeResultCache(10, tempDir, 25, false);
+        cache.put("first", new byte[10]);
+        cache.put("second", new byte[10]);
+        cache.put("third", new byte[10]);
+        cache.put("fourth", new byte[10]);
+
+        assertThat(cache.getDiskBytes()).isLessThanOrEqualTo(25);
+        assertThat(cache.get("first")).isNull();
+        assertThat(cache.get("fourth")).isNotNull();
+    }
+}
@@ -0,0 +1,110 @@
+package com.bonitasoft.presales.connector.mergepdf;
+
+import org.junit.jupiter.api.Test;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class MergeStatisticsTest {
+
+    private static MergeMetrics metrics(long fetchMillis, long totalMillis, int pages, boolean cacheHit) {
+        MergeMetrics metrics = new MergeMetrics() {
+            @Override
+            long getPhaseNanos(Phase phase) {
+                return phase == Phase.FETCH ? TimeUnit.MILLISECONDS.toNanos(fetchMillis) : 0;
+            }
+
+            @Override
+            long getTotalNanos() {
+                return TimeUnit.MILLISECONDS.toNanos(totalMillis);
+            }
+        };
+        metrics.setPageCount(pages);
+        metrics.setInputBytes(1000);
+        metrics.setOutputBytes(800);
+        metrics.setCacheHit(cacheHit);
+        metrics.updatePeakEstimatedMemory(pages * 100L);
+        return metrics;
+    }
+
+    @Test
+    void should_expose_latency_distributions_over_jmx() throws Exception {
+        // Given
+        MBeanServer server = MBeanServerFactory.newMBeanServer();
+        MergeStatistics statistics = new MergeStatistics();
+        statistics.register(server);
+
+        // When
+        for (int i = 1; i <= 100; i++) {
+            statistics.recordSuccess(metrics(i, i * 10L, 2, false));
+        }
+        statistics.recordSuccess(metrics(0, 1, 0, true));
+        statistics.recordFailure();
+
+        // Then
+        ObjectName name = new ObjectName(MergeStatistics.OBJECT_NAME);
+        assertThat(server.getAttribute(name, "ExecutionCount")).isEqualTo(102L);
+        assertThat(server.getAttribute(name, "FailureCount")).isEqualTo(1L);
+        assertThat(server.getAttribute(name, "CacheHitCount")).isEqualTo(1L);
+        assertThat(server.getAttribute(name, "PagesMerged")).isEqualTo(200L);
+        assertThat(server.getAttribute(name, "PeakEstimatedMemoryBytes")).isEqualTo(200L);
+        CompositeData total = (CompositeData) server.getAttribute(name, "Total");
+        assertThat(total.get("count")).isEqualTo(101L);
+        assertThat((Long) total.get("p50Millis")).isEqualTo(500L);
+        assertThat((Long) total.get("p99Millis")).isEqualTo(1000L);
+        assertThat(total.get("maxMillis")).isEqualTo(1000L);
+        CompositeData fetch = (CompositeData) server.getAttribute(name, "Fetch");
+        assertThat(fetch.get("count")).isEqualTo(100L);
+        assertThat((Long) fetch.get("p90Millis")).isEqualTo(100L);
+        assertThat((Double) fetch.get("meanMillis")).isEqualTo(50.5);
+    }
+
+    @Test
+    void should_publish_the_statistics_of_every_copy_to_one_mbean() throws Exception {
+        // Given
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(MergeStatistics.OBJECT_NAME);
+        URL classes = MergeStatistics.class.getProtectionDomain().getCodeSource().getLocation();
+        try (URLClassLoader firstLoader = new URLClassLoader(new URL[] { classes },
+                ClassLoader.getPlatformClassLoader());
+                URLClassLoader secondLoader = new URLClassLoader(new URL[] { classes },
+                        ClassLoader.getPlatformClassLoader())) {
+            Object first = invoke(firstLoader.loadClass(MergeStatistics.class.getName()), null, "getInstance");
+            Object second = invoke(secondLoader.loadClass(MergeStatistics.class.getName()), null, "getInstance");
+            long executionsBefore = (long) server.getAttribute(name, "ExecutionCount");
+
+            // When
+            invoke(first.getClass(), first, "recordFailure");
+            invoke(second.getClass(), second, "recordFailure");
+
+            // Then
+            assertThat(server.getAttribute(name, "ExecutionCount")).isEqualTo(executionsBefore + 2);
+            assertThat(server.getAttribute(name, "FailureCount"))
+                    .isEqualTo(MergeStatistics.getInstance().getFailureCount());
+            assertThat(server.queryNames(new ObjectName(MergeStatistics.OBJECT_NAME + ",*"), null))
+                    .containsExactly(name);
+            assertThat(server.getClassLoaderFor(name)).isNotIn(firstLoader, secondLoader,
+                    MergeStatistics.class.getClassLoader());
+        }
+    }
+
+    private static Object invoke(Class<?> type, Object target, String name, Object... arguments)
+            throws ReflectiveOperationException {
+        for (Method method : type.getDeclaredMethods()) {
+            if (method.getName().equals(name) && method.getParameterCount() == arguments.length) {
+                method.setAccessible(true);
+                return method.invoke(target, arguments);
+            }
+        }
+        throw new NoSuchMethodException(name);
+    }
+}
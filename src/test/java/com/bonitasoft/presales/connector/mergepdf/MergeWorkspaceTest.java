@@ -0,0 +1,73 @@
+package com.bonitasoft.presales.connector.mergepdf;
+
+import org.apache.pdfbox.io.MemoryUsageSetting;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class MergeWorkspaceTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void should_stay_in_main_memory_while_input_fits_the_budget() throws Exception {
+        try (MergeWorkspace workspace = new MergeWorkspace(MemoryStrategy.AUTO, 100, tempDir)) {
+            workspace.addSource(new byte[40], 0);
+            workspace.addSource(new byte[60], 0);
+
+            assertThat(workspace.getEffectiveStrategy()).isEqualTo(MemoryStrategy.MAIN_MEMORY_ONLY);
+            assertThat(workspace.getMemoryUsageSetting().useTempFile()).isFalse();
+            assertThat(countFiles(tempDir)).isZero();
+        }
+    }
+
+    @Test
+    void should_spill_all_sources_once_input_exceeds_the_budget() throws Exception {
+        try (MergeWorkspace workspace = new MergeWorkspace(MemoryStrategy.AUTO, 100, tempDir)) {
+            workspace.addSource(new byte[60], 0);
+            workspace.addSource(new byte[60], 0);
+            workspace.addSource(new byte[10], 0);
+
+            assertThat(workspace.getEffectiveStrategy()).isEqualTo(MemoryStrategy.MIXED);
+            assertThat(workspace.getTotalBytes()).isEqualTo(130);
+            MemoryUsageSetting setting = workspace.getMemoryUsageSetting();
+            assertThat(setting.useTempFile()).isTrue();
+            assertThat(setting.getMaxMainMemoryBytes()).isEqualTo(100);
+            assertThat(setting.getTempDir().toPath().getParent()).isEqualTo(tempDir);
+            assertThat(countFiles(setting.getTempDir().toPath())).isEqualTo(3);
+        }
+        assertThat(countFiles(tempDir)).isZero();
+    }
+
+    @Test
+    void should_honour_an_explicit_strategy() throws Exception {
+        try (MergeWorkspace workspace = new MergeWorkspace(MemoryStrategy.TEMP_FILE_ONLY, 100, tempDir)) {
+            workspace.addSource(new byte[10], 0);
+
+            assertThat(workspace.getEffectiveStrategy()).isEqualTo(MemoryStrategy.TEMP_FILE_ONLY);
+            assertThat(workspace.getMemoryUsageSetting().useMainMemory()).isFalse();
+        }
+        assertThat(countFiles(tempDir)).isZero();
+    }
+
+    @Test
+    void should_count_parsed_objects_in_the_heap_estimate_whatever_the_strategy() throws Exception {
+        try (MergeWorkspace workspace = new MergeWorkspace(MemoryStrategy.TEMP_FILE_ONLY, 100, tempDir)) {
+            workspace.addSource(new byte[10], 3);
+            workspace.addSource(new byte[10], 2);
+
+            assertThat(workspace.getEstimatedHeapBytes()).isEqualTo(5 * MergeWorkspace.PARSED_OBJECT_HEAP_BYTES);
+        }
+    }
+
+    private long countFiles(Path directory) throws Exception {
+        try (var paths = Files.list(directory)) {
+            return paths.count();
+        }
+    }
+}
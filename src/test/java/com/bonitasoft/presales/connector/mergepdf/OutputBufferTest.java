@@ -0,0 +1,54 @@
+package com.bonitasoft.presales.connector.mergepdf;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class OutputBufferTest {
+
+    @Test
+    void should_grow_in_segments_without_losing_any_byte() throws Exception {
+        // Given
+        byte[] document = new byte[1_000_000];
+        new Random(42).nextBytes(document);
+        OutputBuffer buffer = new OutputBuffer(100_000);
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+
+        // When: writes of every size, crossing segment boundaries
+        int offset = 0;
+        for (int length = 1; offset + length <= document.length; length = length * 3 + 1) {
+            buffer.write(document, offset, length);
+            buffer.write(document[offset + length - 1]);
+            expected.write(document, offset, length);
+            expected.write(document[offset + length - 1]);
+            offset += length;
+        }
+        buffer.write(document, offset, document.length - offset);
+        expected.write(document, offset, document.length - offset);
+
+        // Then
+        assertThat(buffer.size()).isEqualTo(expected.size());
+        assertThat(buffer.getAllocatedBytes()).isGreaterThan(100_000).isLessThan(2L * expected.size());
+        assertThat(buffer.toByteArray()).isEqualTo(expected.toByteArray());
+        assertThat(buffer.getPeakBytes()).isEqualTo(buffer.getAllocatedBytes() + expected.size());
+    }
+
+    @Test
+    void should_allocate_a_single_segment_when_the_expected_size_is_exact() throws Exception {
+        // Given
+        byte[] document = new byte[OutputBuffer.MIN_SEGMENT_BYTES * 2];
+        new Random(42).nextBytes(document);
+        OutputBuffer buffer = new OutputBuffer(document.length);
+
+        // When
+        buffer.write(document);
+
+        // Then
+        assertThat(buffer.getAllocatedBytes()).isEqualTo(document.length);
+        assertThat(buffer.toByteArray()).isEqualTo(document);
+        assertThat(buffer.getPeakBytes()).isEqualTo(document.length);
+    }
+}
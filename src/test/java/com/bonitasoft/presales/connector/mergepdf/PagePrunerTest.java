@@ -0,0 +1,219 @@
+package com.bonitasoft.presales.connector.mergepdf;
+
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSInteger;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.multipdf.PDFMergerUtility;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDDocumentCatalog;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.common.COSObjectable;
+import org.apache.pdfbox.pdmodel.common.PDNumberTreeNode;
+import org.apache.pdfbox.pdmodel.common.PDPageLabelRange;
+import org.apache.pdfbox.pdmodel.common.PDPageLabels;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.pdmodel.documentinterchange.logicalstructure.PDStructureElement;
+import org.apache.pdfbox.pdmodel.documentinterchange.logicalstructure.PDStructureTreeRoot;
+import org.apache.pdfbox.pdmodel.documentinterchange.markedcontent.PDMarkedContent;
+import org.apache.pdfbox.pdmodel.documentinterchange.markedcontent.PDPropertyList;
+import org.apache.pdfbox.pdmodel.documentinterchange.taggedpdf.StandardStructureTypes;
+import org.apache.pdfbox.pdmodel.font.PDType1Font;
+import org.apache.pdfbox.pdmodel.graphics.image.LosslessFactory;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+import org.apache.pdfbox.pdmodel.interactive.annotation.PDAnnotation;
+import org.apache.pdfbox.pdmodel.interactive.annotation.PDAnnotationLink;
+import org.apache.pdfbox.pdmodel.interactive.annotation.PDAnnotationWidget;
+import org.apache.pdfbox.pdmodel.interactive.documentnavigation.destination.PDPageFitDestination;
+import org.apache.pdfbox.pdmodel.interactive.documentnavigation.outline.PDDocumentOutline;
+import org.apache.pdfbox.pdmodel.interactive.documentnavigation.outline.PDOutlineItem;
+import org.apache.pdfbox.pdmodel.interactive.form.PDAcroForm;
+import org.apache.pdfbox.pdmodel.interactive.form.PDField;
+import org.apache.pdfbox.pdmodel.interactive.form.PDTextField;
+import org.apache.pdfbox.text.PDFTextStripper;
+import org.junit.jupiter.api.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class PagePrunerTest {
+
+    // Helper method to create a tagged form with bookmarks, roman page labels, an image on page 2 only
+    // and a link from the first page to page 2
+    private byte[] createDocument(int pages) throws IOException {
+        try (PDDocument document = new PDDocument()) {
+            PDDocumentCatalog catalog = document.getDocumentCatalog();
+            PDStructureTreeRoot structureRoot = new PDStructureTreeRoot();
+            catalog.setStructureTreeRoot(structureRoot);
+            PDStructureElement documentElement = new PDStructureElement(StandardStructureTypes.DOCUMENT, null);
+            structureRoot.appendKid(documentElement);
+            COSArray parentTreeNums = new COSArray();
+            PDAcroForm acroForm = new PDAcroForm(document);
+            catalog.setAcroForm(acroForm);
+            PDDocumentOutline outline = new PDDocumentOutline();
+            catalog.setDocumentOutline(outline);
+            PDPageLabels labels = new PDPageLabels(document);
+            PDPageLabelRange romanRange = new PDPageLabelRange();
+            romanRange.setStyle(PDPageLabelRange.STYLE_ROMAN_LOWER);
+            labels.setLabelItem(0, romanRange);
+            catalog.setPageLabels(labels);
+
+            BufferedImage noise = new BufferedImage(200, 200, BufferedImage.TYPE_INT_RGB);
+            Random random = new Random(42);
+            for (int x = 0; x < 200; x++) {
+                for (int y = 0; y < 200; y++) {
+                    noise.setRGB(x, y, random.nextInt());
+                }
+            }
+            PDImageXObject image = LosslessFactory.createFromImage(document, noise);
+
+            for (int p = 0; p < pages; p++) {
+                PDPage page = new PDPage(PDRectangle.A4);
+                document.addPage(page);
+                page.getCOSObject().setInt(COSName.STRUCT_PARENTS, p);
+                COSDictionary properties = new COSDictionary();
+                properties.setInt(COSName.MCID, 0);
+                try (PDPageContentStream content = new PDPageContentStream(document, page)) {
+                    content.beginMarkedContent(COSName.P, PDPropertyList.create(properties));
+                    content.beginText();
+                    content.setFont(PDType1Font.HELVETICA, 12);
+                    content.newLineAtOffset(40, 800);
+                    content.showText("Text of page " + p);
+                    content.endText();
+                    content.endMarkedContent();
+                    if (p == 1) {
+                        content.drawImage(image, 40, 400);
+                    }
+                }
+                PDStructureElement paragraph = new PDStructureElement(StandardStructureTypes.P, documentElement);
+                paragraph.setPage(page);
+                paragraph.appendKid(new PDMarkedContent(COSName.P, properties));
+                documentElement.appendKid(paragraph);
+                COSArray pageElements = new COSArray();
+                pageElements.add(paragraph);
+                parentTreeNums.add(COSInteger.get(p));
+                parentTreeNums.add(pageElements);
+
+                PDTextField field = new PDTextField(acroForm);
+                field.setPartialName("name" + p);
+                PDAnnotationWidget widget = field.getWidgets().get(0);
+                widget.setRectangle(new PDRectangle(360, 780, 180, 18));
+                widget.setPage(page);
+                page.getAnnotations().add(widget);
+                acroForm.getFields().add(field);
+
+                PDOutlineItem item = new PDOutlineItem();
+                item.setTitle("Bookmark " + p);
+                item.setDestination(page);
+                outline.addLast(item);
+            }
+            PDAnnotationLink link = new PDAnnotationLink();
+            link.setRectangle(new PDRectangle(40, 700, 100, 20));
+            PDPageFitDestination destination = new PDPageFitDestination();
+            destination.setPage(document.getPage(1));
+            link.setDestination(destination);
+            document.getPage(0).getAnnotations().add(link);
+
+            COSDictionary parentTree = new COSDictionary();
+            parentTree.setItem(COSName.NUMS, parentTreeNums);
+            structureRoot.setParentTree(new PDNumberTreeNode(parentTree, COSObjectable.class));
+            structureRoot.setParentTreeNextKey(pages);
+            return save(document);
+        }
+    }
+
+    private static byte[] save(PDDocument document) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        document.save(outputStream);
+        return outputStream.toByteArray();
+    }
+
+    private byte[] mergeSelection(byte[] source, String selection, MergeEngine engine) throws IOException {
+        try (PDDocument destination = new PDDocument(); PDDocument document = PDDocument.load(source)) {
+            PagePruner.retainPages(document, PageSelection.parse(selection).resolve(document.getNumberOfPages()));
+            if (engine == MergeEngine.FAST) {
+                new FastPageMerger(true, true, true, true).append(destination, document);
+            } else {
+                new PDFMergerUtility().appendDocument(destination, document);
+            }
+            return save(destination);
+        }
+    }
+
+    private void assertOnlyPagesOneAndThreeAreKept(byte[] merged) throws IOException {
+        assertThat(new String(merged, StandardCharsets.ISO_8859_1)).doesNotContain("/Image");
+        try (PDDocument document = PDDocument.load(merged)) {
+            assertThat(document.getNumberOfPages()).isEqualTo(2);
+            String text = new PDFTextStripper().getText(document);
+            assertThat(text).contains("Text of page 0", "Text of page 2").doesNotContain("Text of page 1");
+
+            PDDocumentCatalog catalog = document.getDocumentCatalog();
+            assertThat(catalog.getPageLabels().getLabelsByPageIndices()).containsExactly("i", "iii");
+            List<String> bookmarks = new ArrayList<>();
+            for (PDOutlineItem item : catalog.getDocumentOutline().children()) {
+                bookmarks.add(item.getTitle());
+            }
+            assertThat(bookmarks).containsExactly("Bookmark 0", "Bookmark 2");
+            List<String> fields = new ArrayList<>();
+            for (PDField field : catalog.getAcroForm().getFields()) {
+                fields.add(field.getPartialName());
+            }
+            assertThat(fields).containsExactly("name0", "name2");
+            for (PDAnnotation annotation : document.getPage(0).getAnnotations()) {
+                assertThat(annotation).isNotInstanceOf(PDAnnotationLink.class);
+            }
+            PDStructureElement documentElement =
+                    (PDStructureElement) catalog.getStructureTreeRoot().getKids().get(0);
+            assertThat(documentElement.getKids()).hasSize(2);
+        }
+    }
+
+    @Test
+    void should_not_copy_unselected_pages_with_the_full_engine() throws Exception {
+        // Given
+        byte[] source = createDocument(4);
+
+        // When
+        byte[] merged = mergeSelection(source, "1,3", MergeEngine.FULL);
+
+        // Then
+        assertOnlyPagesOneAndThreeAreKept(merged);
+    }
+
+    @Test
+    void should_not_copy_unselected_pages_with_the_fast_engine() throws Exception {
+        // Given
+        byte[] source = createDocument(4);
+
+        // When
+        byte[] merged = mergeSelection(source, "1,3", MergeEngine.FAST);
+
+        // Then
+        assertOnlyPagesOneAndThreeAreKept(merged);
+    }
+
+    @Test
+    void should_leave_the_document_untouched_when_every_page_is_selected() throws Exception {
+        // Given
+        try (PDDocument document = PDDocument.load(createDocument(3))) {
+            BitSet everyPage = new BitSet();
+            everyPage.set(0, 3);
+
+            // When
+            PagePruner.retainPages(document, everyPage);
+
+            // Then
+            assertThat(document.getNumberOfPages()).isEqualTo(3);
+            assertThat(document.getPage(0).getAnnotations()).hasSize(2);
+        }
+    }
+}
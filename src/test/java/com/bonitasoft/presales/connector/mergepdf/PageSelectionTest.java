@@ -0,0 +1,54 @@
+package com.bonitasoft.presales.connector.mergepdf;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.BitSet;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class PageSelectionTest {
+
+    private static String resolve(String expression, int pageCount) {
+        return PageSelection.parse(expression).resolve(pageCount).toString();
+    }
+
+    @Test
+    void should_select_every_page_when_blank() {
+        assertThat(PageSelection.parse(null).isAll()).isTrue();
+        assertThat(PageSelection.parse("  ").isAll()).isTrue();
+        assertThat(resolve(null, 3)).isEqualTo("{0, 1, 2}");
+    }
+
+    @Test
+    void should_resolve_pages_ranges_and_last() {
+        assertThat(resolve("1", 5)).isEqualTo("{0}");
+        assertThat(resolve("1-3", 5)).isEqualTo("{0, 1, 2}");
+        assertThat(resolve("last", 5)).isEqualTo("{4}");
+        assertThat(resolve(" 1, 4-LAST ", 5)).isEqualTo("{0, 3, 4}");
+        assertThat(resolve("3,1,1-2", 5)).isEqualTo("{0, 1, 2}");
+    }
+
+    @Test
+    void should_ignore_pages_beyond_the_end_of_the_document() {
+        assertThat(resolve("1-3", 2)).isEqualTo("{0, 1}");
+        assertThat(resolve("4-last", 2)).isEqualTo("{}");
+        assertThat(PageSelection.parse("5").resolve(2)).isEqualTo(new BitSet());
+    }
+
+    @Test
+    void should_normalize_the_expression() {
+        assertThat(PageSelection.parse(" 1 , 2-Last,last ")).hasToString("1,2-last,last");
+        assertThat(PageSelection.parse(null)).hasToString("");
+    }
+
+    @Test
+    void should_reject_invalid_expressions() {
+        assertThrows(IllegalArgumentException.class, () -> PageSelection.parse("first"));
+        assertThrows(IllegalArgumentException.class, () -> PageSelection.parse("1,,2"));
+        assertThrows(IllegalArgumentException.class, () -> PageSelection.parse("0"));
+        assertThrows(IllegalArgumentException.class, () -> PageSelection.parse("3-1"));
+        assertThrows(IllegalArgumentException.class, () -> PageSelection.parse("last-2"));
+        assertThrows(IllegalArgumentException.class, () -> PageSelection.parse("99999999999"));
+    }
+}
@@ -0,0 +1,182 @@
+package com.bonitasoft.presales.connector.mergepdf;
+
+import org.apache.pdfbox.io.MemoryUsageSetting;
+import org.apache.pdfbox.multipdf.PDFMergerUtility;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.font.PDType1Font;
+import org.apache.pdfbox.pdmodel.interactive.documentnavigation.outline.PDDocumentOutline;
+import org.apache.pdfbox.pdmodel.interactive.documentnavigation.outline.PDOutlineItem;
+import org.apache.pdfbox.text.PDFTextStripper;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class ParallelMergerTest {
+
+    // Helper method to create a titled statement with one bookmark per page
+    private byte[] createStatement(String title, int pages) throws IOException {
+        try (PDDocument document = new PDDocument();
+             ByteArrayOutputStream outputStream = new ByteArrayOutputStream()) {
+            PDDocumentOutline outline = new PDDocumentOutline();
+            for (int i = 1; i <= pages; i++) {
+                PDPage page = new PDPage();
+                document.addPage(page);
+                try (PDPageContentStream contentStream = new PDPageContentStream(document, page)) {
+                    contentStream.beginText();
+                    contentStream.setFont(PDType1Font.HELVETICA, 12);
+                    contentStream.newLineAtOffset(50, 700);
+                    contentStream.showText(title + " page " + i);
+                    contentStream.endText();
+                }
+                PDOutlineItem item = new PDOutlineItem();
+                item.setTitle(title + " page " + i);
+                item.setDestination(page);
+                outline.addLast(item);
+            }
+            document.getDocumentCatalog().setDocumentOutline(outline);
+            document.getDocumentInformation().setTitle(title);
+            document.save(outputStream);
+            return outputStream.toByteArray();
+        }
+    }
+
+    private List<byte[]> createStatements(int count) throws IOException {
+        List<byte[]> statements = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            statements.add(createStatement("Statement " + i, 2));
+        }
+        return statements;
+    }
+
+    // Helper method to list the text of each page and the title of each bookmark
+    private List<String> describe(PDDocument document) throws IOException {
+        List<String> description = new ArrayList<>();
+        PDFTextStripper stripper = new PDFTextStripper();
+        for (int page = 1; page <= document.getNumberOfPages(); page++) {
+            stripper.setStartPage(page);
+            stripper.setEndPage(page);
+            description.add(stripper.getText(document).trim());
+        }
+        for (PDOutlineItem item : document.getDocumentCatalog().getDocumentOutline().children()) {
+            description.add("bookmark " + item.getTitle());
+        }
+        description.add("title " + document.getDocumentInformation().getTitle());
+        return description;
+    }
+
+    @Test
+    void should_merge_like_a_sequential_merge() throws Exception {
+        // Given
+        List<byte[]> statements = createStatements(23);
+        List<String> expected;
+        try (PDDocument destination = new PDDocument()) {
+            PDFMergerUtility pdfMerger = new PDFMergerUtility();
+            List<PDDocument> sources = new ArrayList<>();
+            for (byte[] statement : statements) {
+                PDDocument source = PDDocument.load(statement);
+                sources.add(source);
+                pdfMerger.appendDocument(destination, source);
+            }
+            expected = describe(destination);
+            for (PDDocument source : sources) {
+                source.close();
+            }
+        }
+
+        // When
+        List<String> merged;
+        try (PDDocument destination = new PDDocument();
+             ParallelMerger merger = new ParallelMerger(3, false, MemoryUsageSetting.setupMainMemoryOnly(),
+                     position -> PDDocument.load(statements.get(position)),
+                     (target, source) -> new PDFMergerUtility().appendDocument(target, source))) {
+            merger.merge(destination, statements.size());
+            merged = describe(destination);
+        }
+
+        // Then
+        assertThat(merged).hasSize(2 * 23 + 2 * 23 + 1);
+        assertThat(merged).containsExactlyElementsOf(expected);
+        assertThat(merged.get(0)).isEqualTo("Statement 0 page 1");
+        assertThat(merged).last().isEqualTo("title Statement 0");
+    }
+
+    @Test
+    void should_keep_the_sources_of_the_fast_engine_open_until_closed() throws Exception {
+        // Given
+        List<byte[]> statements = createStatements(9);
+        List<PDDocument> loaded = Collections.synchronizedList(new ArrayList<>());
+        FastPageMerger fastMerger = new FastPageMerger(true, false, false, false);
+
+        // When
+        List<String> merged;
+        try (PDDocument destination = new PDDocument()) {
+            ParallelMerger merger = new ParallelMerger(2, true, MemoryUsageSetting.setupMainMemoryOnly(),
+                    position -> {
+                        PDDocument source = PDDocument.load(statements.get(position));
+                        loaded.add(source);
+                        return source;
+                    }, fastMerger::append);
+            merger.merge(destination, statements.size());
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            destination.save(outputStream);
+            assertThat(loaded).noneMatch(source -> source.getDocument().isClosed());
+            merger.close();
+            try (PDDocument saved = PDDocument.load(outputStream.toByteArray())) {
+                merged = describe(saved);
+            }
+        }
+
+        // Then
+        assertThat(loaded).hasSize(9).allMatch(source -> source.getDocument().isClosed());
+        assertThat(merged.subList(0, 4)).containsExactly("Statement 0 page 1", "Statement 0 page 2",
+                "Statement 1 page 1", "Statement 1 page 2");
+        assertThat(merged.get(17)).isEqualTo("Statement 8 page 2");
+        assertThat(merged.get(18)).isEqualTo("bookmark Statement 0 page 1");
+    }
+
+    @Test
+    void should_report_the_failure_of_a_source_and_close_every_document() throws Exception {
+        // Given
+        List<byte[]> statements = createStatements(12);
+        List<PDDocument> loaded = Collections.synchronizedList(new ArrayList<>());
+        ParallelMerger merger = new ParallelMerger(2, false, MemoryUsageSetting.setupMainMemoryOnly(),
+                position -> {
+                    if (position == 7) {
+                        throw new IOException("Statement 7 is damaged");
+                    }
+                    PDDocument source = PDDocument.load(statements.get(position));
+                    loaded.add(source);
+                    return source;
+                }, (target, source) -> new PDFMergerUtility().appendDocument(target, source));
+
+        // When
+        IOException exception;
+        try (PDDocument destination = new PDDocument()) {
+            exception = assertThrows(IOException.class, () -> merger.merge(destination, statements.size()));
+            merger.close();
+        }
+
+        // Then
+        assertThat(exception).hasMessage("Statement 7 is damaged");
+        assertThat(loaded).isNotEmpty().allMatch(source -> source.getDocument().isClosed());
+    }
+
+    @Test
+    void should_run_the_workers_with_the_class_loader_of_the_connector() throws Exception {
+        // When
+        ClassLoader classLoader = ParallelMerger.getPool()
+                .submit(() -> Thread.currentThread().getContextClassLoader()).get();
+
+        // Then
+        assertThat(classLoader).isSameAs(ParallelMerger.class.getClassLoader());
+    }
+}
@@ -0,0 +1,74 @@
+package com.bonitasoft.presales.connector.mergepdf;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class PartPlannerTest {
+
+    private static BitSet pages(int from, int to) {
+        BitSet pages = new BitSet();
+        pages.set(from, to);
+        return pages;
+    }
+
+    // Helper method to describe a part as "document:pages" slices, e.g. [0:{0, 1}, 1:{0}]
+    private static List<String> describe(List<PartPlanner.Slice> part) {
+        List<String> slices = new ArrayList<>();
+        for (PartPlanner.Slice slice : part) {
+            slices.add(slice.getDocument() + ":" + slice.getPages());
+        }
+        return slices;
+    }
+
+    @Test
+    void should_spread_a_document_over_consecutive_parts_by_page_count() {
+        // Given
+        PartPlanner planner = new PartPlanner(0, 3);
+
+        // When
+        List<List<PartPlanner.Slice>> parts = planner.plan(List.of(pages(0, 2), pages(0, 5)),
+                new int[] {2, 5}, new long[] {1000, 1000});
+
+        // Then
+        assertThat(parts).hasSize(3);
+        assertThat(describe(parts.get(0))).containsExactly("0:{0, 1}", "1:{0}");
+        assertThat(describe(parts.get(1))).containsExactly("1:{1, 2, 3}");
+        assertThat(describe(parts.get(2))).containsExactly("1:{4}");
+    }
+
+    @Test
+    void should_estimate_part_sizes_from_the_size_of_the_documents() {
+        // Given: pages of about 100 bytes, then one page of 5000 bytes
+        PartPlanner planner = new PartPlanner(250, 0);
+
+        // When
+        List<List<PartPlanner.Slice>> parts = planner.plan(List.of(pages(0, 4), pages(0, 1), pages(1, 3)),
+                new int[] {4, 1, 3}, new long[] {400, 5000, 300});
+
+        // Then: the large page makes a part on its own; unselected pages are not planned
+        assertThat(parts).hasSize(4);
+        assertThat(describe(parts.get(0))).containsExactly("0:{0, 1}");
+        assertThat(describe(parts.get(1))).containsExactly("0:{2, 3}");
+        assertThat(describe(parts.get(2))).containsExactly("1:{0}");
+        assertThat(describe(parts.get(3))).containsExactly("2:{1, 2}");
+    }
+
+    @Test
+    void should_halve_a_part_across_its_slices() {
+        // Given
+        List<PartPlanner.Slice> part = List.of(new PartPlanner.Slice(0, pages(3, 4)),
+                new PartPlanner.Slice(1, pages(0, 4)));
+
+        // When
+        List<List<PartPlanner.Slice>> halves = PartPlanner.halve(part);
+
+        // Then
+        assertThat(describe(halves.get(0))).containsExactly("0:{3}", "1:{0}");
+        assertThat(describe(halves.get(1))).containsExactly("1:{1, 2, 3}");
+    }
+}
@@ -0,0 +1,102 @@
+package com.bonitasoft.presales.connector.mergepdf;
+
+import org.apache.pdfbox.io.RandomAccessBuffer;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.encryption.AccessPermission;
+import org.apache.pdfbox.pdmodel.encryption.StandardProtectionPolicy;
+import org.apache.pdfbox.pdmodel.font.PDType1Font;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class PreflightScannerTest {
+
+    // Helper method to create a document with one line of text per page, protected with the given passwords
+    private byte[] createDocument(int pages, String ownerPassword, String userPassword) throws IOException {
+        try (PDDocument document = new PDDocument();
+             ByteArrayOutputStream outputStream = new ByteArrayOutputStream()) {
+            for (int i = 0; i < pages; i++) {
+                PDPage page = new PDPage();
+                document.addPage(page);
+                try (PDPageContentStream contentStream = new PDPageContentStream(document, page)) {
+                    contentStream.beginText();
+                    contentStream.setFont(PDType1Font.HELVETICA, 12);
+                    contentStream.newLineAtOffset(50, 700);
+                    contentStream.showText("Page " + i);
+                    contentStream.endText();
+                }
+            }
+            if (ownerPassword != null) {
+                document.protect(new StandardProtectionPolicy(ownerPassword, userPassword, new AccessPermission()));
+            }
+            document.save(outputStream);
+            return outputStream.toByteArray();
+        }
+    }
+
+    @Test
+    void should_read_the_page_count_and_object_count_of_a_document() throws Exception {
+        // Given
+        byte[] content = createDocument(12, null, null);
+
+        // When
+        PreflightScanner.Report report = PreflightScanner.scan(new RandomAccessBuffer(content));
+
+        // Then: the free entry, catalog, page tree, and each page with its content stream, resources and font
+        assertThat(report.getPageCount()).isEqualTo(12);
+        assertThat(report.getBytes()).isEqualTo(content.length);
+        assertThat(report.getObjectCount()).isEqualTo(3 + 12 * 4);
+        assertThat(report.isEncrypted()).isFalse();
+    }
+
+    @Test
+    void should_accept_a_document_encrypted_without_a_password_to_open_it() throws Exception {
+        // Given
+        byte[] content = createDocument(3, "owner", "");
+
+        // When
+        PreflightScanner.Report report = PreflightScanner.scan(new RandomAccessBuffer(content));
+
+        // Then
+        assertThat(report.getPageCount()).isEqualTo(3);
+        assertThat(report.isEncrypted()).isTrue();
+    }
+
+    @Test
+    void should_reject_a_document_encrypted_with_a_password() throws Exception {
+        // Given
+        byte[] content = createDocument(3, "owner", "secret");
+
+        // When
+        IOException exception = assertThrows(IOException.class,
+                () -> PreflightScanner.scan(new RandomAccessBuffer(content)));
+
+        // Then
+        assertThat(exception.getMessage()).isEqualTo("encrypted with a password");
+    }
+
+    @Test
+    void should_reject_content_that_is_not_a_pdf_or_is_truncated() throws Exception {
+        // Given
+        byte[] text = "This is not a PDF file, just plain text".getBytes(StandardCharsets.ISO_8859_1);
+        byte[] truncated = Arrays.copyOf(createDocument(3, null, null), 20);
+
+        // When
+        IOException notPdf = assertThrows(IOException.class,
+                () -> PreflightScanner.scan(new RandomAccessBuffer(text)));
+        IOException notComplete = assertThrows(IOException.class,
+                () -> PreflightScanner.scan(new RandomAccessBuffer(truncated)));
+
+        // Then
+        assertThat(notPdf.getMessage()).isEqualTo("no PDF header");
+        assertThat(notComplete.getMessage()).isNotBlank();
+    }
+}
@@ -0,0 +1,120 @@
+package com.bonitasoft.presales.connector.mergepdf;
+
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.multipdf.PDFMergerUtility;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.font.PDFont;
+import org.apache.pdfbox.pdmodel.font.PDType0Font;
+import org.apache.pdfbox.pdmodel.graphics.image.LosslessFactory;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+import org.apache.pdfbox.text.PDFTextStripper;
+import org.junit.jupiter.api.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ResourceDeduplicatorTest {
+
+    private static final String FONT_RESOURCE = "/org/apache/pdfbox/resources/ttf/LiberationSans-Regular.ttf";
+
+    // Helper method to create a letter embedding the complete font and a small logo
+    private byte[] createLetter(String text, int logoColor) throws IOException {
+        try (PDDocument document = new PDDocument();
+             ByteArrayOutputStream outputStream = new ByteArrayOutputStream()) {
+            PDFont font;
+            try (InputStream fontStream = getClass().getResourceAsStream(FONT_RESOURCE)) {
+                font = PDType0Font.load(document, fontStream, false);
+            }
+            BufferedImage logo = new BufferedImage(64, 64, BufferedImage.TYPE_INT_RGB);
+            for (int x = 0; x < 64; x++) {
+                logo.setRGB(x, x, logoColor);
+            }
+            PDImageXObject image = LosslessFactory.createFromImage(document, logo);
+            PDPage page = new PDPage();
+            document.addPage(page);
+            try (PDPageContentStream contentStream = new PDPageContentStream(document, page)) {
+                contentStream.drawImage(image, 50, 600);
+                contentStream.beginText();
+                contentStream.setFont(font, 12);
+                contentStream.newLineAtOffset(50, 500);
+                contentStream.showText(text);
+                contentStream.endText();
+            }
+            document.save(outputStream);
+            return outputStream.toByteArray();
+        }
+    }
+
+    private PDDocument merge(byte[]... sources) throws IOException {
+        PDDocument destination = new PDDocument();
+        PDFMergerUtility pdfMerger = new PDFMergerUtility();
+        for (byte[] source : sources) {
+            try (PDDocument document = PDDocument.load(source)) {
+                pdfMerger.appendDocument(destination, document);
+            }
+        }
+        return destination;
+    }
+
+    private byte[] save(PDDocument document) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        document.save(outputStream);
+        return outputStream.toByteArray();
+    }
+
+    @Test
+    void should_store_identical_fonts_and_images_once() throws Exception {
+        // Given
+        byte[] letter1 = createLetter("Dear Alice", 0xFF0000);
+        byte[] letter2 = createLetter("Dear Bob", 0xFF0000);
+        byte[] letter3 = createLetter("Dear Carol", 0xFF0000);
+        byte[] withoutDeduplication;
+        try (PDDocument merged = merge(letter1, letter2, letter3)) {
+            withoutDeduplication = save(merged);
+        }
+
+        // When
+        byte[] withDeduplication;
+        long savedBytes;
+        try (PDDocument merged = merge(letter1, letter2, letter3)) {
+            savedBytes = new ResourceDeduplicator().deduplicate(merged);
+            withDeduplication = save(merged);
+        }
+
+        // Then
+        assertThat(withDeduplication.length).isLessThan(withoutDeduplication.length / 2);
+        assertThat(savedBytes).isBetween((withoutDeduplication.length - withDeduplication.length) / 2L,
+                (withoutDeduplication.length - withDeduplication.length) * 2L);
+        try (PDDocument result = PDDocument.load(withDeduplication)) {
+            assertThat(result.getNumberOfPages()).isEqualTo(3);
+            String text = new PDFTextStripper().getText(result);
+            assertThat(text).contains("Dear Alice", "Dear Bob", "Dear Carol");
+            COSName fontName = result.getPage(0).getResources().getFontNames().iterator().next();
+            assertThat(result.getPage(2).getResources().getFont(fontName).getCOSObject())
+                    .isSameAs(result.getPage(0).getResources().getFont(fontName).getCOSObject());
+        }
+    }
+
+    @Test
+    void should_keep_resources_that_differ() throws Exception {
+        // Given - same font, different logos
+        try (PDDocument merged = merge(createLetter("Red", 0xFF0000), createLetter("Blue", 0x0000FF))) {
+            ResourceDeduplicator deduplicator = new ResourceDeduplicator();
+
+            // When
+            deduplicator.deduplicate(merged);
+
+            // Then
+            COSName imageName = merged.getPage(0).getResources().getXObjectNames().iterator().next();
+            assertThat(merged.getPage(1).getResources().getXObject(imageName).getCOSObject())
+                    .isNotSameAs(merged.getPage(0).getResources().getXObject(imageName).getCOSObject());
+            assertThat(deduplicator.getDuplicateCount()).isPositive();
+        }
+    }
+}